@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * Generates the datasets used by the benchmarks. The datasets are created
+ * from a fixed seed so that results from different runs can be compared.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+final class BenchmarkData {
+
+	static final long SEED = 0x5EED;
+
+	static final String TYPE_NAME = "benchmark";
+
+	static final String WKT_FIELD = "the_geom";
+
+	static final List<String> CSV_HEADERS = Arrays.asList("ID", "NAME", "CATEGORY", "VALUE", WKT_FIELD);
+
+	private static final String[] CATEGORIES = { "alpha", "beta", "gamma", "delta", "epsilon" };
+
+	private BenchmarkData() {
+	}
+
+	static SimpleFeatureType createSchema() {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(TYPE_NAME);
+		builder.setCRS(DefaultGeographicCRS.WGS84);
+		builder.add(WKT_FIELD, Polygon.class);
+		builder.add("ID", Integer.class);
+		builder.length(40).add("NAME", String.class);
+		builder.length(10).add("CATEGORY", String.class);
+		builder.add("VALUE", Double.class);
+		return builder.buildFeatureType();
+	}
+
+	/**
+	 * Create a collection of small polygons scattered across the globe.
+	 *
+	 * @param featureCount
+	 *            The number of features to create.
+	 * @param verticesPerPolygon
+	 *            The number of distinct vertices in each polygon ring.
+	 * @return A collection containing the generated features.
+	 */
+	static ListFeatureCollection createFeatures(int featureCount, int verticesPerPolygon) {
+		SimpleFeatureType schema = createSchema();
+		GeometryFactory geometryFactory = new GeometryFactory();
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(schema);
+		Random random = new Random(SEED);
+		List<SimpleFeature> features = new ArrayList<>(featureCount);
+		for (int i = 0; i < featureCount; i++) {
+			builder.add(geometryFactory.createPolygon(createRing(random, verticesPerPolygon)));
+			builder.add(i);
+			builder.add("Feature " + i);
+			builder.add(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+			builder.add(random.nextDouble() * 1000);
+			features.add(builder.buildFeature(TYPE_NAME + "." + (i + 1)));
+		}
+		return new ListFeatureCollection(schema, features);
+	}
+
+	/**
+	 * Write a CSV file with a WKT geometry column, in the format read by
+	 * CSV2SHP.
+	 *
+	 * @param csvFile
+	 *            The file to create.
+	 * @param featureCount
+	 *            The number of rows to write.
+	 * @param verticesPerPolygon
+	 *            The number of distinct vertices in each polygon ring.
+	 * @throws IOException
+	 *             If the file could not be written.
+	 */
+	static void writeCSV(Path csvFile, int featureCount, int verticesPerPolygon) throws IOException {
+		GeometryFactory geometryFactory = new GeometryFactory();
+		Random random = new Random(SEED);
+		try (Writer writer = Files.newBufferedWriter(csvFile, StandardCharsets.UTF_8);
+				SequenceWriter csv = CSVStream.newCSVWriter(writer, CSVStream.buildSchema(CSV_HEADERS));) {
+			for (int i = 0; i < featureCount; i++) {
+				Polygon polygon = geometryFactory.createPolygon(createRing(random, verticesPerPolygon));
+				csv.write(Arrays.asList(Integer.toString(i), "Feature " + i,
+						CATEGORIES[random.nextInt(CATEGORIES.length)], Double.toString(random.nextDouble() * 1000),
+						polygon.toText()));
+			}
+		}
+	}
+
+	private static Coordinate[] createRing(Random random, int verticesPerPolygon) {
+		double centreX = random.nextDouble() * 358 - 179;
+		double centreY = random.nextDouble() * 178 - 89;
+		double radius = 0.01 + random.nextDouble() * 0.5;
+		Coordinate[] ring = new Coordinate[verticesPerPolygon + 1];
+		for (int i = 0; i < verticesPerPolygon; i++) {
+			double angle = 2 * Math.PI * i / verticesPerPolygon;
+			ring[i] = new Coordinate(centreX + radius * Math.cos(angle), centreY + radius * Math.sin(angle));
+		}
+		ring[verticesPerPolygon] = new Coordinate(ring[0]);
+		return ring;
+	}
+
+	/**
+	 * Run the given action with System.out discarded, so that the progress
+	 * output from the command line programs does not distort the results.
+	 */
+	static void runQuietly(QuietAction action) throws Exception {
+		PrintStream originalOut = System.out;
+		try (PrintStream nullOut = new PrintStream((OutputStream) NullOutputStream.NULL_OUTPUT_STREAM);) {
+			System.setOut(nullOut);
+			action.run();
+		} finally {
+			System.setOut(originalOut);
+		}
+	}
+
+	static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path);) {
+			paths.sorted(Comparator.reverseOrder()).forEachOrdered(nextPath -> {
+				try {
+					Files.delete(nextPath);
+				} catch (IOException e) {
+					throw new RuntimeException("Could not delete: " + nextPath, e);
+				}
+			});
+		}
+	}
+
+	@FunctionalInterface
+	interface QuietAction {
+		void run() throws Exception;
+	}
+}
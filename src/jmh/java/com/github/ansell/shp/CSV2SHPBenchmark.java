@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for converting a CSV file with WKT geometries to a shapefile
+ * using CSV2SHP.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CSV2SHPBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int featureCount;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private Path tempDir;
+	private Path inputFile;
+	private Path outputDir;
+
+	@Setup(Level.Trial)
+	public void setUpInput() throws Exception {
+		tempDir = Files.createTempDirectory("csv2shp-benchmark");
+		inputFile = tempDir.resolve(BenchmarkData.TYPE_NAME + ".csv");
+		BenchmarkData.writeCSV(inputFile, featureCount, 16);
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpOutput() throws Exception {
+		outputDir = Files.createDirectory(tempDir.resolve("output"));
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownOutput() throws Exception {
+		BenchmarkData.deleteRecursively(outputDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownInput() throws Exception {
+		BenchmarkData.deleteRecursively(tempDir);
+	}
+
+	@Benchmark
+	public void convert() throws Exception {
+		BenchmarkData.runQuietly(() -> CSV2SHP.main("--input", inputFile.toString(), "--output",
+				outputDir.toString(), "--prefix", BenchmarkData.TYPE_NAME, "--wkt-field", BenchmarkData.WKT_FIELD,
+				"--threads", Integer.toString(threads)));
+	}
+}
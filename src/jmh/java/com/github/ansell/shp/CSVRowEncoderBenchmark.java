@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * Compares {@link CSVRowEncoder} with the string based CSV writing that
+ * SHPDump used before it. Run with -prof gc to compare the allocation rates.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CSVRowEncoderBenchmark {
+
+	@Param({ "10000" })
+	public int featureCount;
+
+	private SimpleFeatureType schema;
+	private List<String> headers;
+	private SimpleFeature[] features;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		SyntheticFeatureCollection collection = new SyntheticFeatureCollection("encode", 42L, featureCount,
+				SyntheticFeatureCollection.GeometryKind.POINT, 1, 16, 12, 0.1,
+				SyntheticFeatureCollection.Distribution.UNIFORM, 1.0);
+		schema = collection.getSchema();
+		headers = new ArrayList<>();
+		for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
+			headers.add(attribute.getLocalName());
+		}
+		List<SimpleFeature> featureList = new ArrayList<>(featureCount);
+		try (SimpleFeatureIterator iterator = collection.features();) {
+			while (iterator.hasNext()) {
+				featureList.add(iterator.next());
+			}
+		}
+		features = featureList.toArray(new SimpleFeature[0]);
+	}
+
+	@Benchmark
+	public void stringRows() throws Exception {
+		try (SequenceWriter csv = CSVStream.newCSVWriter(
+				new OutputStreamWriter(NullOutputStream.NULL_OUTPUT_STREAM, StandardCharsets.UTF_8),
+				CSVStream.buildSchema(headers));) {
+			List<String> nextLine = new ArrayList<>(headers.size());
+			for (SimpleFeature feature : features) {
+				for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
+					nextLine.add(Optional.ofNullable(feature.getAttribute(attribute.getName())).orElse("").toString());
+				}
+				csv.write(nextLine);
+				nextLine.clear();
+			}
+		}
+	}
+
+	@Benchmark
+	public void encodedRows() throws Exception {
+		try (CSVRowEncoder encoder = new CSVRowEncoder(schema, Collections.emptySet(),
+				NullOutputStream.NULL_OUTPUT_STREAM);) {
+			encoder.writeHeader(headers);
+			for (SimpleFeature feature : features) {
+				if (!encoder.isFiltered(feature)) {
+					encoder.writeRow(feature);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.MapContent;
+import org.geotools.styling.SLD;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for rendering features to a PNG image at different
+ * resolutions. The encoded image is discarded so that disk performance does
+ * not affect the results.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RenderImageBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int featureCount;
+
+	@Param({ "512", "2048", "8192" })
+	public int resolution;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private MapContent map;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		ListFeatureCollection features = BenchmarkData.createFeatures(featureCount, 16);
+		map = new MapContent();
+		map.setTitle(BenchmarkData.TYPE_NAME);
+		map.addLayer(new FeatureLayer(SHPUtils.getRenderSource(features, resolution, threads),
+				SLD.createSimpleStyle(features.getSchema())));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		map.dispose();
+	}
+
+	@Benchmark
+	public void renderImage() throws Exception {
+		SHPUtils.renderImage(map, NullOutputStream.NULL_OUTPUT_STREAM, resolution, "png", threads,
+				SHPUtils.DEFAULT_TILE_SIZE);
+	}
+}
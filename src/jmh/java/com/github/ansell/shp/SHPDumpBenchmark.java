@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.FileDataStore;
+import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for reading shapefiles with SHPDump, both for the feature loop
+ * on its own and for the complete program.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SHPDumpBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int featureCount;
+
+	@Param({ "1", "4" })
+	public int threads;
+
+	private Path tempDir;
+	private Path inputFile;
+	private Path outputDir;
+
+	@Setup(Level.Trial)
+	public void setUpInput() throws Exception {
+		tempDir = Files.createTempDirectory("shpdump-benchmark");
+		Path inputDir = Files.createDirectory(tempDir.resolve("input"));
+		SHPUtils.writeShapefile(BenchmarkData.createFeatures(featureCount, 16), inputDir);
+		inputFile = inputDir.resolve(BenchmarkData.TYPE_NAME + ".shp");
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpOutput() throws Exception {
+		outputDir = Files.createDirectory(tempDir.resolve("output"));
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownOutput() throws Exception {
+		BenchmarkData.deleteRecursively(outputDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownInput() throws Exception {
+		BenchmarkData.deleteRecursively(tempDir);
+	}
+
+	/**
+	 * The feature loop from SHPDump, reading each feature and converting its
+	 * attributes to strings, without writing any output.
+	 */
+	@Benchmark
+	public int readFeatures(Blackhole blackhole) throws Exception {
+		FileDataStore store = FileDataStoreFinder.getDataStore(inputFile.toFile());
+		try {
+			SimpleFeatureType schema = store.getSchema();
+			SimpleFeatureCollection collection = threads > 1
+					? new ParallelSHPFeatureCollection(inputFile, schema, threads)
+					: store.getFeatureSource().getFeatures();
+			int count = 0;
+			List<String> nextLine = new ArrayList<>();
+			try (SimpleFeatureIterator iterator = collection.features();) {
+				while (iterator.hasNext()) {
+					SimpleFeature feature = iterator.next();
+					count++;
+					for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
+						nextLine.add(Optional.ofNullable(feature.getAttribute(attribute.getName())).orElse("")
+								.toString());
+					}
+					blackhole.consume(nextLine);
+					nextLine.clear();
+				}
+			}
+			return count;
+		} finally {
+			store.dispose();
+		}
+	}
+
+	@Benchmark
+	public void dump() throws Exception {
+		BenchmarkData.runQuietly(() -> SHPDump.main("--input", inputFile.toString(), "--output",
+				outputDir.toString(), "--threads", Integer.toString(threads), "--resolution", "256"));
+	}
+
+	@Benchmark
+	public void dumpStreaming() throws Exception {
+		BenchmarkData.runQuietly(() -> SHPDump.main("--input", inputFile.toString(), "--output",
+				outputDir.toString(), "--threads", Integer.toString(threads), "--resolution", "256", "--streaming",
+				"true", "--write-csv", "false", "--direct-zip", "true"));
+	}
+}
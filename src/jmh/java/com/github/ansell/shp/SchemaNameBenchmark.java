@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.simple.SimpleFeatureTypeImpl;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.Name;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks for both overloads of
+ * {@link SHPUtils#changeSchemaName(SimpleFeatureType, Name)} and
+ * {@link SHPUtils#changeSchemaName(SimpleFeature, SimpleFeatureType)}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SchemaNameBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int featureCount;
+
+	private SimpleFeatureType schema;
+	private Name outputSchemaName;
+	private SimpleFeatureTypeImpl outputSchema;
+	private SimpleFeature[] features;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		schema = BenchmarkData.createSchema();
+		outputSchemaName = new NameImpl(schema.getName().getNamespaceURI(), "renamed");
+		outputSchema = SHPUtils.changeSchemaName(schema, outputSchemaName);
+		features = BenchmarkData.createFeatures(featureCount, 4).toArray(new SimpleFeature[0]);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.NANOSECONDS)
+	public SimpleFeatureTypeImpl changeSchemaNameOfSchema() {
+		return SHPUtils.changeSchemaName(schema, outputSchemaName);
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void changeSchemaNameOfFeatures(Blackhole blackhole) {
+		for (SimpleFeature feature : features) {
+			blackhole.consume(SHPUtils.changeSchemaName(feature, outputSchema));
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for writing features to a shapefile directory and directly to a
+ * zip file.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteShapefileBenchmark {
+
+	@Param({ "1000", "10000", "100000" })
+	public int featureCount;
+
+	private ListFeatureCollection features;
+	private Path tempDir;
+	private Path outputDir;
+
+	@Setup(Level.Trial)
+	public void setUpFeatures() throws Exception {
+		features = BenchmarkData.createFeatures(featureCount, 16);
+		tempDir = Files.createTempDirectory("write-benchmark");
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpOutput() throws Exception {
+		outputDir = Files.createDirectory(tempDir.resolve("output"));
+	}
+
+	@TearDown(Level.Invocation)
+	public void tearDownOutput() throws Exception {
+		BenchmarkData.deleteRecursively(outputDir);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDownFeatures() throws Exception {
+		BenchmarkData.deleteRecursively(tempDir);
+	}
+
+	@Benchmark
+	public void writeShapefile() throws Exception {
+		SHPUtils.writeShapefile(features, outputDir);
+	}
+
+	@Benchmark
+	public void writeShapefileZip() throws Exception {
+		SHPUtils.writeShapefileZip(features, outputDir.resolve("output.zip"), 1);
+	}
+
+	@Benchmark
+	public void writeShapefileZipParallel() throws Exception {
+		SHPUtils.writeShapefileZip(features, outputDir.resolve("output.zip"),
+				Runtime.getRuntime().availableProcessors());
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+import joptsimple.OptionDescriptor;
+import joptsimple.OptionParser;
+import joptsimple.OptionSpec;
+
+/**
+ * Runs one of the command line programs over many input files in a single
+ * JVM, so that GeoTools startup and JIT compilation are only paid once. Each
+ * input is run as a separate job on a bounded thread pool, with its own
+ * output prefix, and a failure in one job does not stop the others.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class BatchRunner {
+
+	public static final List<String> RESULT_HEADERS = Arrays.asList("input", "prefix", "status", "millis",
+			"message");
+
+	private static final String GLOB_CHARACTERS = "*?[{";
+
+	/**
+	 * The entry point of a command line program.
+	 */
+	@FunctionalInterface
+	public interface Program {
+		void main(String... args) throws Exception;
+	}
+
+	private final Program program;
+	private final OptionParser parser;
+	private final int threads;
+
+	/**
+	 * @param program
+	 *            The program to run for each input.
+	 * @param parser
+	 *            The parser for the options of the program, which is used to
+	 *            find the options to replace for each job.
+	 * @param threads
+	 *            The maximum number of inputs to process at the same time.
+	 */
+	public BatchRunner(Program program, OptionParser parser, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of batch threads must be at least 1: " + threads);
+		}
+		this.program = program;
+		this.parser = parser;
+		this.threads = threads;
+	}
+
+	/**
+	 * Checks whether the given input refers to more than one file, either as a
+	 * directory or as a glob pattern. An existing file is never a batch input,
+	 * even if its name contains glob characters.
+	 *
+	 * @param input
+	 *            The value of the input option.
+	 * @return True if the input should be processed in batch mode.
+	 */
+	public static boolean isBatchInput(String input) {
+		if (Files.isRegularFile(Paths.get(input))) {
+			return false;
+		}
+		return input.chars().anyMatch(c -> GLOB_CHARACTERS.indexOf(c) >= 0) || Files.isDirectory(Paths.get(input));
+	}
+
+	/**
+	 * Find the files for a batch input.
+	 *
+	 * @param input
+	 *            A directory, in which case the files directly inside it with
+	 *            the default extension are used, or a glob pattern such as
+	 *            <code>/data/**&#47;*.shp</code>.
+	 * @param defaultExtension
+	 *            The extension, without the leading period, of the files to use
+	 *            from a directory.
+	 * @return The matching files, sorted by path.
+	 * @throws IOException
+	 *             If the files could not be listed.
+	 */
+	public static List<Path> findInputs(String input, String defaultExtension) throws IOException {
+		Path inputPath = Paths.get(input);
+		if (Files.isDirectory(inputPath)) {
+			String suffix = "." + defaultExtension.toLowerCase(Locale.ENGLISH);
+			try (Stream<Path> children = Files.list(inputPath);) {
+				return children.filter(Files::isRegularFile)
+						.filter(p -> p.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(suffix))
+						.sorted().collect(Collectors.toList());
+			}
+		}
+		// Walk from the deepest directory that does not contain a pattern
+		Path baseDir = inputPath.isAbsolute() ? inputPath.getRoot() : Paths.get("");
+		int patternDepth = inputPath.getNameCount();
+		for (Path nextElement : inputPath) {
+			if (nextElement.toString().chars().anyMatch(c -> GLOB_CHARACTERS.indexOf(c) >= 0)) {
+				break;
+			}
+			baseDir = baseDir.resolve(nextElement);
+			patternDepth--;
+		}
+		if (baseDir.toString().isEmpty()) {
+			baseDir = Paths.get(".");
+		}
+		if (!Files.isDirectory(baseDir)) {
+			return Collections.emptyList();
+		}
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + inputPath.normalize().toString());
+		final Path walkDir = baseDir;
+		int maxDepth = input.contains("**") ? Integer.MAX_VALUE : patternDepth;
+		try (Stream<Path> children = Files.walk(walkDir, maxDepth);) {
+			return children.filter(Files::isRegularFile)
+					.filter(p -> matcher.matches(walkDir.toString().equals(".") ? walkDir.relativize(p) : p))
+					.map(Path::normalize).sorted().collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Create the arguments for a single job by replacing the value of an
+	 * option in the original arguments, adding the option if it was not
+	 * present. The arguments are matched to options in the same way as the
+	 * parser, so abbreviations of the option are also replaced, and values of
+	 * other options are never mistaken for the option.
+	 *
+	 * @param parser
+	 *            The parser for the options of the program.
+	 * @param args
+	 *            The original arguments.
+	 * @param option
+	 *            The name of the option, without the leading dashes.
+	 * @param value
+	 *            The new value for the option.
+	 * @return A copy of the arguments with the new value.
+	 */
+	public static String[] replaceOption(OptionParser parser, String[] args, String option, String value) {
+		Map<String, OptionSpec<?>> recognizedOptions = parser.recognizedOptions();
+		OptionSpec<?> replacedOption = recognizedOptions.get(option);
+		if (replacedOption == null) {
+			throw new IllegalArgumentException("Option is not recognised by the parser: " + option);
+		}
+		List<String> result = new ArrayList<>(args.length + 2);
+		int optionsEnd = -1;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--")) {
+				// The remaining arguments are not options
+				optionsEnd = result.size();
+				result.addAll(Arrays.asList(args).subList(i, args.length));
+				break;
+			}
+			OptionSpec<?> nextOption = findOption(recognizedOptions, args[i]);
+			boolean hasSeparateValue = nextOption instanceof OptionDescriptor
+					&& ((OptionDescriptor) nextOption).requiresArgument() && !args[i].contains("=")
+					&& i + 1 < args.length;
+			if (nextOption == replacedOption) {
+				if (hasSeparateValue) {
+					// Skip the value as well
+					i++;
+				}
+			} else {
+				result.add(args[i]);
+				if (hasSeparateValue) {
+					result.add(args[++i]);
+				}
+			}
+		}
+		List<String> replacement = Arrays.asList("--" + option, value);
+		if (optionsEnd >= 0) {
+			result.addAll(optionsEnd, replacement);
+		} else {
+			result.addAll(replacement);
+		}
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * Find the option for an argument, accepting any unambiguous abbreviation of
+	 * the option name in the same way as the parser.
+	 *
+	 * @return The option, or null if the argument is not a recognised option.
+	 */
+	private static OptionSpec<?> findOption(Map<String, OptionSpec<?>> recognizedOptions, String arg) {
+		if (!arg.startsWith("-")) {
+			return null;
+		}
+		String name = arg.substring(arg.startsWith("--") ? 2 : 1);
+		int valueStart = name.indexOf('=');
+		if (valueStart >= 0) {
+			name = name.substring(0, valueStart);
+		}
+		if (name.isEmpty()) {
+			return null;
+		}
+		OptionSpec<?> exactMatch = recognizedOptions.get(name);
+		if (exactMatch != null) {
+			return exactMatch;
+		}
+		Set<OptionSpec<?>> matches = new HashSet<>();
+		for (Map.Entry<String, OptionSpec<?>> nextOption : recognizedOptions.entrySet()) {
+			if (nextOption.getKey().startsWith(name)) {
+				matches.add(nextOption.getValue());
+			}
+		}
+		return matches.size() == 1 ? matches.iterator().next() : null;
+	}
+
+	/**
+	 * @param input
+	 *            An input file.
+	 * @return The file name without its extension, with spaces removed, to
+	 *         distinguish the outputs of each job.
+	 */
+	public static String getJobName(Path input) {
+		String fileName = input.getFileName().toString();
+		int extensionStart = fileName.lastIndexOf('.');
+		if (extensionStart > 0) {
+			fileName = fileName.substring(0, extensionStart);
+		}
+		return fileName.replace(" ", "").replace("%20", "");
+	}
+
+	/**
+	 * @param inputs
+	 *            The input files.
+	 * @return A distinct job name for each input. Inputs with the same name in
+	 *         different directories are named using their directories relative
+	 *         to the common parent directory of the inputs, and any names that
+	 *         are still duplicated are numbered.
+	 */
+	public static List<String> getJobNames(List<Path> inputs) {
+		Map<String, Integer> nameCounts = new HashMap<>();
+		for (Path nextInput : inputs) {
+			nameCounts.merge(getJobName(nextInput).toLowerCase(Locale.ENGLISH), 1, Integer::sum);
+		}
+		Path commonParent = null;
+		for (Path nextInput : inputs) {
+			Path parent = nextInput.toAbsolutePath().normalize().getParent();
+			while (commonParent != null && !parent.startsWith(commonParent)) {
+				commonParent = commonParent.getParent();
+			}
+			if (commonParent == null) {
+				commonParent = parent;
+			}
+		}
+		List<String> result = new ArrayList<>(inputs.size());
+		// Output names are compared ignoring case, as the outputs may be written
+		// to a case insensitive file system
+		Set<String> usedNames = new HashSet<>();
+		for (Path nextInput : inputs) {
+			String jobName = getJobName(nextInput);
+			if (nameCounts.get(jobName.toLowerCase(Locale.ENGLISH)) > 1) {
+				Path relativeParent = commonParent
+						.relativize(nextInput.toAbsolutePath().normalize().getParent());
+				StringBuilder qualifiedName = new StringBuilder();
+				for (Path nextElement : relativeParent) {
+					String directoryName = nextElement.toString().replace(" ", "").replace("%20", "");
+					if (!directoryName.isEmpty()) {
+						qualifiedName.append(directoryName).append("-");
+					}
+				}
+				jobName = qualifiedName.append(jobName).toString();
+			}
+			String uniqueName = jobName;
+			for (int i = 2; !usedNames.add(uniqueName.toLowerCase(Locale.ENGLISH)); i++) {
+				uniqueName = jobName + "-" + i;
+			}
+			result.add(uniqueName);
+		}
+		return result;
+	}
+
+	/**
+	 * Run the program for each input, and write a summary of the results.
+	 *
+	 * @param args
+	 *            The original arguments. The input and prefix options are
+	 *            replaced for each job, and the batch threads option is removed.
+	 * @param inputs
+	 *            The input files.
+	 * @param prefix
+	 *            The prefix that each job prefix is based on.
+	 * @param outputPath
+	 *            The directory to write the batch results file to.
+	 * @param batchThreadsOption
+	 *            The name of the option that sets the number of batch threads,
+	 *            which is removed from the arguments for each job.
+	 * @return The number of jobs that failed.
+	 * @throws IOException
+	 *             If the results file could not be written.
+	 * @throws InterruptedException
+	 *             If the batch was interrupted.
+	 */
+	public int run(String[] args, List<Path> inputs, String prefix, Path outputPath, String batchThreadsOption)
+			throws IOException, InterruptedException {
+		List<String> jobNames = getJobNames(inputs);
+		List<String> jobPrefixes = new ArrayList<>(inputs.size());
+		List<Future<Long>> results = new ArrayList<>(inputs.size());
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, inputs.size())));
+		try {
+			for (int i = 0; i < inputs.size(); i++) {
+				Path nextInput = inputs.get(i);
+				String jobPrefix = prefix + "-" + jobNames.get(i);
+				jobPrefixes.add(jobPrefix);
+				String[] jobArgs = replaceOption(parser, args, batchThreadsOption, "1");
+				jobArgs = replaceOption(parser, jobArgs, "input", nextInput.toString());
+				final String[] finalJobArgs = replaceOption(parser, jobArgs, "prefix", jobPrefix);
+				results.add(executor.submit(() -> {
+					long jobStart = System.currentTimeMillis();
+					program.main(finalJobArgs);
+					return System.currentTimeMillis() - jobStart;
+				}));
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		int failures = 0;
+		List<String> failureMessages = new ArrayList<>();
+		try (Writer writer = Files.newBufferedWriter(outputPath.resolve(prefix + "-Batch.csv"),
+				StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);
+				SequenceWriter csv = CSVStream.newCSVWriter(writer, CSVStream.buildSchema(RESULT_HEADERS));) {
+			for (int i = 0; i < inputs.size(); i++) {
+				String status;
+				String millis = "";
+				String message = "";
+				try {
+					millis = Long.toString(results.get(i).get());
+					status = "success";
+				} catch (ExecutionException e) {
+					failures++;
+					status = "failed";
+					message = String.valueOf(e.getCause());
+					failureMessages.add(inputs.get(i) + " : " + message);
+				}
+				csv.write(Arrays.asList(inputs.get(i).toString(), jobPrefixes.get(i), status, millis, message));
+			}
+		}
+		executor.awaitTermination(1, TimeUnit.MINUTES);
+		printSummary(System.out, inputs.size(), failures, failureMessages, System.currentTimeMillis() - start);
+		return failures;
+	}
+
+	private static void printSummary(PrintStream out, int jobCount, int failures, List<String> failureMessages,
+			long millis) {
+		out.println("");
+		out.println("Batch complete: " + (jobCount - failures) + " succeeded, " + failures + " failed, in " + millis
+				+ " ms");
+		for (String nextFailure : failureMessages) {
+			out.println("Failed: " + nextFailure);
+		}
+	}
+}
@@ -35,7 +35,6 @@ import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -95,6 +94,20 @@ public class CSV2SHP {
 		final OptionSpec<String> removeIfEmpty = parser.accepts("remove-if-empty").withRequiredArg()
 				.ofType(String.class).describedAs(
 						"The name of an attribute to remove if its value is empty before outputting the resulting shapefile. Use multiple times to specify multiple fields to check");
+		final OptionSpec<Boolean> directZip = parser.accepts("direct-zip").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to write the shapefile straight into the zip file instead of writing a -dump directory first. Shapefiles that are too large for a single .shp or .dbf file are still written to a -dump directory, where they are split into several files.");
+		final OptionSpec<Integer> threads = parser.accepts("threads").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(1).describedAs(
+						"The number of threads to parse WKT geometries with. Values above 1 stream the features into the shapefile instead of holding them in memory, unless --direct-zip is set, which holds the parsed features in memory so the WKT is only parsed once.");
+		final OptionSpec<Integer> zipThreads = parser.accepts("zip-threads").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(1).describedAs("The number of threads to compress the zip file with");
+		final OptionSpec<Integer> batchThreads = parser.accepts("batch-threads").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors()).describedAs(
+						"The number of files to process at the same time when the input is a directory or a glob pattern. Each file uses the prefix followed by the file name.");
+		final OptionSpec<Boolean> metrics = parser.accepts("metrics").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.TRUE).describedAs(
+						"Set to false to disable writing the timing and throughput report for each phase to prefix-Metrics.json");
 
 		OptionSet options = null;
 
@@ -111,6 +124,26 @@ public class CSV2SHP {
 			return;
 		}
 
+		final String inputValue = input.value(options).getPath();
+		if (BatchRunner.isBatchInput(inputValue)) {
+			final Path batchOutputPath = output.value(options).toPath();
+			if (!Files.exists(batchOutputPath)) {
+				throw new FileNotFoundException("Output directory does not exist: " + batchOutputPath.toString());
+			}
+			final List<Path> batchInputs = BatchRunner.findInputs(inputValue, "csv");
+			if (batchInputs.isEmpty()) {
+				throw new FileNotFoundException("Could not find any CSV files for batch input: " + inputValue);
+			}
+			System.out.println("Processing " + batchInputs.size() + " CSV files using up to "
+					+ batchThreads.value(options) + " threads");
+			int failures = new BatchRunner(CSV2SHP::main, parser, batchThreads.value(options)).run(args, batchInputs,
+					outputPrefix.value(options), batchOutputPath, "batch-threads");
+			if (failures > 0) {
+				throw new RuntimeException(failures + " of " + batchInputs.size() + " batch jobs failed");
+			}
+			return;
+		}
+
 		final Path inputPath = input.value(options).toPath();
 		if (!Files.exists(inputPath)) {
 			throw new FileNotFoundException("Could not find input SHP file: " + inputPath.toString());
@@ -123,6 +156,17 @@ public class CSV2SHP {
 
 		final String prefix = outputPrefix.value(options);
 		final String wktField = wktFieldOption.value(options);
+		final boolean directZipBoolean = directZip.value(options);
+		final int zipThreadsInt = zipThreads.value(options);
+		final int threadsInt = threads.value(options);
+		if (threadsInt < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threadsInt);
+		}
+		final boolean metricsBoolean = metrics.value(options);
+		final RunMetrics runMetrics = new RunMetrics("csv2shp");
+		runMetrics.setProperty("input", inputPath.toAbsolutePath());
+		runMetrics.setProperty("threads", threadsInt);
+		runMetrics.setProperty("directZip", directZipBoolean);
 
 		final Set<String> filterFields = ConcurrentHashMap.newKeySet();
 		if (options.has(removeIfEmpty)) {
@@ -178,66 +222,121 @@ public class CSV2SHP {
 								+ attributeList.size());
 			}
 
-			SimpleFeatureCollection collection = featureSource.getFeatures();
-			int featureCount = 0;
-			List<SimpleFeature> outputFeatureList = new CopyOnWriteArrayList<>();
-
-			try (SimpleFeatureIterator iterator = collection.features();) {
-				List<String> nextLine = new ArrayList<>();
-				while (iterator.hasNext()) {
-					SimpleFeature feature = iterator.next();
-					featureCount++;
-					if (featureCount <= 2) {
-						System.out.println("");
-						System.out.println(feature.getIdentifier());
-					} else if (featureCount % 100 == 0) {
-						System.out.print(".");
-					}
-					boolean filterThisFeature = false;
-					for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
-						String featureString = Optional.ofNullable(feature.getAttribute(attribute.getName())).orElse("")
-								.toString();
-						nextLine.add(featureString);
-						if (filterFields.contains(attribute.getName().toString()) && featureString.trim().isEmpty()) {
-							filterThisFeature = true;
+			SimpleFeatureCollection outputCollection;
+			ParallelWKTFeatureCollection parallelCollection = null;
+			if (threadsInt > 1) {
+				System.out.println("Converting features using " + threadsInt + " threads");
+				// The direct zip writer iterates the features several times, so
+				// they are cached instead of parsing the WKT for every pass
+				parallelCollection = new ParallelWKTFeatureCollection(inputPath, schema, wktField, threadsInt,
+						ParallelWKTFeatureCollection.DEFAULT_BATCH_SIZE, directZipBoolean);
+				outputCollection = new StreamingFeatureCollection(parallelCollection, outputSchema, filterFields);
+			} else {
+				SimpleFeatureCollection collection = featureSource.getFeatures();
+				int featureCount = 0;
+				List<SimpleFeature> outputFeatureList = new ArrayList<>();
+
+				try (RunMetrics.Phase convertPhase = runMetrics.startPhase("convert");
+						SimpleFeatureIterator iterator = collection.features();) {
+					List<String> nextLine = new ArrayList<>();
+					while (iterator.hasNext()) {
+						SimpleFeature feature = iterator.next();
+						featureCount++;
+						if (featureCount <= 2) {
+							System.out.println("");
+							System.out.println(feature.getIdentifier());
+						} else if (featureCount % 100 == 0) {
+							System.out.print(".");
 						}
-						if (featureString.length() > 100) {
-							featureString = featureString.substring(0, 100) + "...";
+						boolean filterThisFeature = false;
+						for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
+							String featureString = Optional.ofNullable(feature.getAttribute(attribute.getName()))
+									.orElse("").toString();
+							nextLine.add(featureString);
+							if (filterFields.contains(attribute.getName().toString())
+									&& featureString.trim().isEmpty()) {
+								filterThisFeature = true;
+							}
+							if (featureString.length() > 100) {
+								featureString = featureString.substring(0, 100) + "...";
+							}
+							if (featureCount <= 2) {
+								System.out.print(attribute.getName() + "=");
+								System.out.println(featureString);
+							}
 						}
-						if (featureCount <= 2) {
-							System.out.print(attribute.getName() + "=");
-							System.out.println(featureString);
+						if (!filterThisFeature) {
+							outputFeatureList.add(SHPUtils.changeSchemaName(feature, outputSchema));
 						}
+						nextLine.clear();
 					}
-					if (!filterThisFeature) {
-						outputFeatureList.add(SHPUtils.changeSchemaName(feature, outputSchema));
-					}
-					nextLine.clear();
+					convertPhase.addRecords(featureCount);
+					convertPhase.addBytesRead(RunMetrics.sizeOf(inputPath));
+				}
+				if (featureCount > 100) {
+					System.out.println("");
 				}
-			}
-			if (featureCount > 100) {
 				System.out.println("");
-			}
-			System.out.println("");
-			System.out.println("Feature count: " + featureCount);
+				System.out.println("Feature count: " + featureCount);
 
-			SimpleFeatureCollection outputCollection = new ListFeatureCollection(outputSchema, outputFeatureList);
-			Path outputShapefilePath = outputPath.resolve(prefix + "-" + outputSchema.getTypeName() + "-dump");
-			if (!Files.exists(outputShapefilePath)) {
-				Files.createDirectory(outputShapefilePath);
+				outputCollection = new ListFeatureCollection(outputSchema, outputFeatureList);
 			}
-			SHPUtils.writeShapefile(outputCollection, outputShapefilePath);
 
-			// Create ZIP file from the contents to keep the subfiles together
 			Path outputShapefileZipPath = outputPath.resolve(prefix + "-" + outputSchema.getTypeName() + "-dump.zip");
-			try (final OutputStream out = Files.newOutputStream(outputShapefileZipPath, StandardOpenOption.CREATE_NEW);
-					final ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);) {
-				Files.list(outputShapefilePath).forEachOrdered(Unchecked.consumer(e -> {
-					zip.putNextEntry(new ZipEntry(e.getFileName().toString()));
-					Files.copy(e, zip);
-					zip.closeEntry();
-				}));
+			// When parsing in parallel the WKT is converted while the shapefile is
+			// written, so the conversion time is included in the shapefile phase
+			boolean shapefileZipWritten = false;
+			if (directZipBoolean) {
+				try (RunMetrics.Phase shapefilePhase = runMetrics.startPhase("shapefile-zip");) {
+					shapefileZipWritten = SHPUtils.writeShapefileZip(outputCollection, outputShapefileZipPath,
+							zipThreadsInt);
+					if (shapefileZipWritten) {
+						shapefilePhase.addBytesWritten(RunMetrics.sizeOf(outputShapefileZipPath));
+					}
+				}
+				if (!shapefileZipWritten) {
+					System.out.println(
+							"Shapefile is too large for a single .shp or .dbf file, writing it to a directory to split it");
+				}
+			}
+			if (!shapefileZipWritten) {
+				Path outputShapefilePath = outputPath.resolve(prefix + "-" + outputSchema.getTypeName() + "-dump");
+				if (!Files.exists(outputShapefilePath)) {
+					Files.createDirectory(outputShapefilePath);
+				}
+				try (RunMetrics.Phase shapefilePhase = runMetrics.startPhase("shapefile");) {
+					SHPUtils.writeShapefile(outputCollection, outputShapefilePath);
+					shapefilePhase.addBytesWritten(RunMetrics.sizeOf(outputShapefilePath));
+				}
+
+				// Create ZIP file from the contents to keep the subfiles together
+				try (RunMetrics.Phase zipPhase = runMetrics.startPhase("zip");) {
+					try (final OutputStream out = Files.newOutputStream(outputShapefileZipPath,
+							StandardOpenOption.CREATE_NEW);
+							final ZipOutputStream zip = SHPUtils.newZipOutputStream(out, zipThreadsInt);) {
+						Files.list(outputShapefilePath).forEachOrdered(Unchecked.consumer(e -> {
+							zip.putNextEntry(new ZipEntry(e.getFileName().toString()));
+							Files.copy(e, zip);
+							zip.closeEntry();
+						}));
+					}
+					zipPhase.addBytesRead(RunMetrics.sizeOf(outputShapefilePath));
+					zipPhase.addBytesWritten(RunMetrics.sizeOf(outputShapefileZipPath));
+				}
 			}
+
+			if (parallelCollection != null) {
+				System.out.println("Feature count: " + parallelCollection.getLastRowCount());
+				RunMetrics.Phase shapefilePhase = runMetrics.phase(shapefileZipWritten ? "shapefile-zip" : "shapefile");
+				shapefilePhase.addRecords(parallelCollection.getLastRowCount());
+				shapefilePhase.addBytesRead(RunMetrics.sizeOf(inputPath));
+			}
+		}
+
+		System.out.println("");
+		runMetrics.printSummary(System.out);
+		if (metricsBoolean) {
+			runMetrics.writeReport(outputPath.resolve(prefix + "-Metrics.json"));
 		}
 	}
 }
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/**
+ * Writes features as CSV rows directly into a reused UTF-8 byte buffer. The
+ * index and formatter for each attribute are resolved once from the feature
+ * type, so that strings, integers, floating point numbers and dates are
+ * written without creating objects for each row. Other types, including
+ * geometries, are written using their string form.
+ * <p>
+ * The output is the same as the existing CSV writer, which uses the string
+ * form of each value, and quotes values that are longer than
+ * {@value #MAX_QUOTE_CHECK} characters or that contain a character at or
+ * below the separator in the character table, including spaces and quotes.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class CSVRowEncoder implements Flushable, Closeable {
+
+	private static final int FLUSH_THRESHOLD = 1 << 16;
+
+	private static final byte SEPARATOR = ',';
+	private static final byte QUOTE = '"';
+	private static final byte LINE_SEPARATOR = '\n';
+
+	/**
+	 * The length above which the CSV writer quotes values without checking
+	 * their characters, unless strict quoting is enabled.
+	 */
+	private static final int MAX_QUOTE_CHECK = 24;
+
+	private static final String[] DAYS = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+	private static final String[] MONTHS = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct",
+			"Nov", "Dec" };
+
+	private enum Formatter {
+		STRING, INTEGER, FLOATING_POINT, DATE, OTHER;
+
+		static Formatter forBinding(Class<?> binding) {
+			if (CharSequence.class.isAssignableFrom(binding)) {
+				return STRING;
+			} else if (Long.class.equals(binding) || Integer.class.equals(binding) || Short.class.equals(binding)
+					|| Byte.class.equals(binding)) {
+				return INTEGER;
+			} else if (Double.class.equals(binding) || Float.class.equals(binding)) {
+				return FLOATING_POINT;
+			} else if (Date.class.equals(binding)) {
+				// Subclasses such as java.sql.Date have different string forms
+				return DATE;
+			} else {
+				return OTHER;
+			}
+		}
+	}
+
+	private final OutputStream out;
+	private final Formatter[] formatters;
+	private final boolean[] filterIfEmpty;
+	private final StringBuilder text = new StringBuilder(64);
+	private final Calendar calendar;
+	private final String[] timeZoneNames;
+	private byte[] buffer = new byte[FLUSH_THRESHOLD * 2];
+	private int position = 0;
+
+	/**
+	 * @param featureType
+	 *            The type of the features that will be written.
+	 * @param filterFields
+	 *            The names of the attributes that cause a feature to be
+	 *            filtered out if they are empty.
+	 * @param out
+	 *            The stream to write the rows to, which is closed when this
+	 *            encoder is closed.
+	 */
+	public CSVRowEncoder(SimpleFeatureType featureType, Collection<String> filterFields, OutputStream out) {
+		this.out = out;
+		List<AttributeDescriptor> descriptors = featureType.getAttributeDescriptors();
+		this.formatters = new Formatter[descriptors.size()];
+		this.filterIfEmpty = new boolean[descriptors.size()];
+		for (int i = 0; i < descriptors.size(); i++) {
+			formatters[i] = Formatter.forBinding(descriptors.get(i).getType().getBinding());
+			filterIfEmpty[i] = filterFields.contains(descriptors.get(i).getName().toString());
+		}
+		TimeZone timeZone = TimeZone.getDefault();
+		this.calendar = Calendar.getInstance(timeZone, Locale.US);
+		this.timeZoneNames = new String[] { timeZone.getDisplayName(false, TimeZone.SHORT, Locale.US),
+				timeZone.getDisplayName(true, TimeZone.SHORT, Locale.US) };
+	}
+
+	/**
+	 * Write the header row.
+	 *
+	 * @param headers
+	 *            The names of the columns.
+	 * @throws IOException
+	 *             If the row could not be written.
+	 */
+	public void writeHeader(List<String> headers) throws IOException {
+		for (int i = 0; i < headers.size(); i++) {
+			if (i > 0) {
+				writeByte(SEPARATOR);
+			}
+			writeText(headers.get(i));
+		}
+		endRow();
+	}
+
+	/**
+	 * Check whether any of the filter fields are empty for the given feature,
+	 * in which case it should not be written.
+	 *
+	 * @param feature
+	 *            The feature to check.
+	 * @return True if the feature should be filtered out.
+	 */
+	public boolean isFiltered(SimpleFeature feature) {
+		for (int i = 0; i < filterIfEmpty.length; i++) {
+			if (filterIfEmpty[i]) {
+				Object value = feature.getAttribute(i);
+				if (value == null || isBlank(value instanceof CharSequence ? (CharSequence) value : value.toString())) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Write the attributes of a feature as a row.
+	 *
+	 * @param feature
+	 *            The feature, which must have the feature type given to the
+	 *            constructor.
+	 * @throws IOException
+	 *             If the row could not be written.
+	 */
+	public void writeRow(SimpleFeature feature) throws IOException {
+		for (int i = 0; i < formatters.length; i++) {
+			if (i > 0) {
+				writeByte(SEPARATOR);
+			}
+			Object value = feature.getAttribute(i);
+			if (value == null) {
+				continue;
+			}
+			text.setLength(0);
+			switch (formatters[i]) {
+			case STRING:
+				text.append((CharSequence) value);
+				break;
+			case INTEGER:
+				text.append(((Number) value).longValue());
+				break;
+			case FLOATING_POINT:
+				if (value instanceof Float) {
+					text.append(((Float) value).floatValue());
+				} else {
+					text.append(((Number) value).doubleValue());
+				}
+				break;
+			case DATE:
+				appendDate((Date) value);
+				break;
+			default:
+				text.append(value.toString());
+				break;
+			}
+			writeText(text);
+		}
+		endRow();
+	}
+
+	/**
+	 * Append a date in the same form as {@link Date#toString()}, without the
+	 * intermediate objects that it creates.
+	 */
+	private void appendDate(Date date) {
+		calendar.setTimeInMillis(date.getTime());
+		text.append(DAYS[calendar.get(Calendar.DAY_OF_WEEK) - 1]).append(' ');
+		text.append(MONTHS[calendar.get(Calendar.MONTH)]).append(' ');
+		appendTwoDigits(calendar.get(Calendar.DAY_OF_MONTH));
+		text.append(' ');
+		appendTwoDigits(calendar.get(Calendar.HOUR_OF_DAY));
+		text.append(':');
+		appendTwoDigits(calendar.get(Calendar.MINUTE));
+		text.append(':');
+		appendTwoDigits(calendar.get(Calendar.SECOND));
+		text.append(' ').append(timeZoneNames[calendar.get(Calendar.DST_OFFSET) != 0 ? 1 : 0]).append(' ');
+		int year = calendar.get(Calendar.YEAR);
+		text.append(calendar.get(Calendar.ERA) == GregorianCalendar.BC ? 1 - year : year);
+	}
+
+	private void appendTwoDigits(int value) {
+		if (value < 10) {
+			text.append('0');
+		}
+		text.append(value);
+	}
+
+	private void writeText(CharSequence value) {
+		int length = value.length();
+		boolean quote = length > MAX_QUOTE_CHECK;
+		for (int i = 0; !quote && i < length; i++) {
+			quote = value.charAt(i) <= SEPARATOR;
+		}
+		// Each character needs at most 3 bytes in UTF-8, and quotes may double
+		ensureCapacity(length * 3 + 2 + (quote ? length : 0));
+		if (quote) {
+			buffer[position++] = QUOTE;
+		}
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 0x80) {
+				if (c == QUOTE) {
+					buffer[position++] = QUOTE;
+				}
+				buffer[position++] = (byte) c;
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xC0 | (c >> 6));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				buffer[position++] = (byte) (0xF0 | (codePoint >> 18));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+				buffer[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (codePoint & 0x3F));
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired surrogates are replaced, as the UTF-8 charset encoder does
+				buffer[position++] = '?';
+			} else {
+				buffer[position++] = (byte) (0xE0 | (c >> 12));
+				buffer[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+				buffer[position++] = (byte) (0x80 | (c & 0x3F));
+			}
+		}
+		if (quote) {
+			buffer[position++] = QUOTE;
+		}
+	}
+
+	private void writeByte(byte value) {
+		ensureCapacity(1);
+		buffer[position++] = value;
+	}
+
+	private void endRow() throws IOException {
+		writeByte(LINE_SEPARATOR);
+		if (position >= FLUSH_THRESHOLD) {
+			out.write(buffer, 0, position);
+			position = 0;
+		}
+	}
+
+	private void ensureCapacity(int extra) {
+		if (position + extra > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+		}
+	}
+
+	private static boolean isBlank(CharSequence value) {
+		// Matches String.trim, which removes all characters up to space
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) > ' ') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.write(buffer, 0, position);
+		position = 0;
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Records the progress of a run in a small properties file, so that a run
+ * that fails part of the way through can be resumed. The file records the
+ * number of records that have been read, the length of the CSV output at that
+ * point, and the phases that have been completed, along with the size and
+ * modification time of the .shp, .shx and .dbf files of the input and the
+ * options that change the outputs, so that a checkpoint is not resumed
+ * against a different file or with different options.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class Checkpoint {
+
+	public static final String FEATURES_PHASE = "features";
+	public static final String SUMMARY_PHASE = "summary";
+	public static final String TYPED_SUMMARY_PHASE = "typed-summary";
+	public static final String VALIDATE_PHASE = "validate";
+	public static final String SHAPEFILE_PHASE = "shapefile";
+	public static final String ZIP_PHASE = "zip";
+	public static final String FLATGEOBUF_PHASE = "flatgeobuf";
+	public static final String TILES_PHASE = "tiles";
+
+	private static final String INPUT = "input";
+	private static final String INPUT_SIZE = "inputSize";
+	private static final String INPUT_MODIFIED = "inputModified";
+	private static final List<String> SIBLING_EXTENSIONS = Arrays.asList("shx", "dbf");
+	private static final String OPTIONS = "options";
+	private static final String RECORDS = "records";
+	private static final String CSV_BYTES = "csvBytes";
+	private static final String COMPLETED_PHASES = "completedPhases";
+
+	private final Path checkpointPath;
+	private final boolean resumed;
+	private long records;
+	private long csvBytes;
+	private final Set<String> completedPhases = new LinkedHashSet<>();
+	private final Properties inputProperties = new Properties();
+
+	private Checkpoint(Path checkpointPath, Path inputPath, String options, boolean resumed) throws IOException {
+		this.checkpointPath = checkpointPath;
+		this.resumed = resumed;
+		inputProperties.setProperty(INPUT, inputPath.toAbsolutePath().toString());
+		inputProperties.setProperty(INPUT_SIZE, Long.toString(Files.size(inputPath)));
+		inputProperties.setProperty(INPUT_MODIFIED, Long.toString(Files.getLastModifiedTime(inputPath).toMillis()));
+		for (String nextExtension : SIBLING_EXTENSIONS) {
+			Path siblingPath = SHPUtils.getSiblingFile(inputPath, nextExtension);
+			boolean exists = Files.exists(siblingPath);
+			inputProperties.setProperty(nextExtension + "Size",
+					exists ? Long.toString(Files.size(siblingPath)) : "missing");
+			inputProperties.setProperty(nextExtension + "Modified",
+					exists ? Long.toString(Files.getLastModifiedTime(siblingPath).toMillis()) : "missing");
+		}
+		inputProperties.setProperty(OPTIONS, options);
+	}
+
+	/**
+	 * Start a new checkpoint for a run.
+	 *
+	 * @param checkpointPath
+	 *            The file to record the checkpoint in, which must not already
+	 *            exist.
+	 * @param inputPath
+	 *            The input file for the run.
+	 * @param options
+	 *            The options for the run that change its outputs.
+	 * @return A new checkpoint with no progress.
+	 * @throws IOException
+	 *             If the checkpoint could not be written.
+	 */
+	public static Checkpoint create(Path checkpointPath, Path inputPath, String options) throws IOException {
+		if (Files.exists(checkpointPath)) {
+			throw new IllegalStateException(
+					"A checkpoint from an earlier run already exists, use --resume true to continue it: "
+							+ checkpointPath);
+		}
+		Checkpoint result = new Checkpoint(checkpointPath, inputPath, options, false);
+		result.save();
+		return result;
+	}
+
+	/**
+	 * Load an existing checkpoint to resume a run.
+	 *
+	 * @param checkpointPath
+	 *            The file containing the checkpoint.
+	 * @param inputPath
+	 *            The input file for the run, which must be the same size and
+	 *            have the same modification time as when the checkpoint was
+	 *            created, along with its .shx and .dbf files.
+	 * @param options
+	 *            The options for the run that change its outputs, which must be
+	 *            the same as when the checkpoint was created.
+	 * @return The checkpoint.
+	 * @throws IOException
+	 *             If the checkpoint could not be read.
+	 */
+	public static Checkpoint load(Path checkpointPath, Path inputPath, String options) throws IOException {
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(checkpointPath, StandardCharsets.UTF_8);) {
+			properties.load(reader);
+		}
+		Checkpoint result = new Checkpoint(checkpointPath, inputPath, options, true);
+		if (!options.equals(properties.getProperty(OPTIONS))) {
+			throw new IllegalStateException("Checkpoint was created with different options ("
+					+ properties.getProperty(OPTIONS) + "): " + checkpointPath);
+		}
+		for (String nextKey : result.inputProperties.stringPropertyNames()) {
+			if (!result.inputProperties.getProperty(nextKey).equals(properties.getProperty(nextKey))) {
+				throw new IllegalStateException("Checkpoint was created for a different or modified input ("
+						+ nextKey + "=" + properties.getProperty(nextKey) + "): " + checkpointPath);
+			}
+		}
+		result.records = Long.parseLong(properties.getProperty(RECORDS, "0"));
+		result.csvBytes = Long.parseLong(properties.getProperty(CSV_BYTES, "0"));
+		String phases = properties.getProperty(COMPLETED_PHASES, "");
+		if (!phases.isEmpty()) {
+			result.completedPhases.addAll(Arrays.asList(phases.split(",")));
+		}
+		return result;
+	}
+
+	/**
+	 * @return True if this checkpoint was loaded from an earlier run.
+	 */
+	public boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * @return The number of records read from the input, including any that
+	 *         were filtered out.
+	 */
+	public long getRecords() {
+		return records;
+	}
+
+	/**
+	 * @return The length of the CSV output after the records were written.
+	 */
+	public long getCsvBytes() {
+		return csvBytes;
+	}
+
+	public boolean isComplete(String phase) {
+		return completedPhases.contains(phase);
+	}
+
+	/**
+	 * Record the progress of the feature loop. The CSV output must have been
+	 * flushed before calling this method.
+	 *
+	 * @param records
+	 *            The number of records read from the input.
+	 * @param csvBytes
+	 *            The length of the CSV output.
+	 * @throws IOException
+	 *             If the checkpoint could not be written.
+	 */
+	public void recordProgress(long records, long csvBytes) throws IOException {
+		this.records = records;
+		this.csvBytes = csvBytes;
+		save();
+	}
+
+	public void markComplete(String phase) throws IOException {
+		completedPhases.add(phase);
+		save();
+	}
+
+	/**
+	 * Remove the checkpoint after the run has completed.
+	 *
+	 * @throws IOException
+	 *             If the checkpoint could not be deleted.
+	 */
+	public void delete() throws IOException {
+		Files.deleteIfExists(checkpointPath);
+	}
+
+	/**
+	 * Write the checkpoint to a temporary file and move it into place, so that
+	 * a failure while saving leaves the previous checkpoint intact.
+	 */
+	private void save() throws IOException {
+		Properties properties = new Properties();
+		properties.putAll(inputProperties);
+		properties.setProperty(RECORDS, Long.toString(records));
+		properties.setProperty(CSV_BYTES, Long.toString(csvBytes));
+		properties.setProperty(COMPLETED_PHASES, String.join(",", completedPhases));
+		Path tempPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8);) {
+			properties.store(writer, "SHPDump checkpoint");
+		}
+		Files.move(tempPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.type.AttributeDescriptor;
+
+/**
+ * Statistics for the values of a single attribute, using primitive
+ * accumulators and fixed size sketches so that the memory used does not grow
+ * with the number of rows or distinct values. The kind of statistics is
+ * chosen from the binding of the attribute: numbers and dates are measured by
+ * value, strings by length, and geometries by vertex count. Statistics for
+ * the same attribute can be merged.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ColumnStatistics {
+
+	public static final List<String> SUMMARY_HEADERS = Arrays.asList("fieldName", "binding", "measure",
+			"nonNullCount", "nullCount", "malformedCount", "min", "max", "mean", "stdDev", "approxDistinctCount", "approxMedian",
+			"approxP05", "approxP95", "approxTopValues");
+
+	/**
+	 * The number of frequent values to show in the summary.
+	 */
+	public static final int TOP_VALUES = 10;
+
+	public enum Kind {
+		NUMBER("value"), DATE("value"), BOOLEAN("value"), STRING("length"), GEOMETRY("vertexCount"), OTHER(
+				"length");
+
+		private final String measure;
+
+		private Kind(String measure) {
+			this.measure = measure;
+		}
+
+		/**
+		 * @return The name of the quantity that the numeric statistics describe.
+		 */
+		public String getMeasure() {
+			return measure;
+		}
+
+		public static Kind forBinding(Class<?> binding) {
+			if (Number.class.isAssignableFrom(binding)) {
+				return NUMBER;
+			} else if (Date.class.isAssignableFrom(binding)) {
+				return DATE;
+			} else if (Boolean.class.isAssignableFrom(binding)) {
+				return BOOLEAN;
+			} else if (CharSequence.class.isAssignableFrom(binding)) {
+				return STRING;
+			} else if (Geometry.class.isAssignableFrom(binding)) {
+				return GEOMETRY;
+			} else {
+				return OTHER;
+			}
+		}
+	}
+
+	private final String name;
+	private final Class<?> binding;
+	private final Kind kind;
+
+	private long count = 0;
+	private long nullCount = 0;
+	private long malformedCount = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+	private double mean = 0;
+	// The sum of the squared differences from the mean, using Welford's method
+	private double squaredDifferences = 0;
+
+	private final HyperLogLog distinct = new HyperLogLog();
+	private final TDigest quantiles = new TDigest();
+	private final HeavyHitters topValues = new HeavyHitters();
+
+	public ColumnStatistics(AttributeDescriptor descriptor) {
+		this(descriptor.getLocalName(), descriptor.getType().getBinding());
+	}
+
+	public ColumnStatistics(String name, Class<?> binding) {
+		this.name = name;
+		this.binding = binding;
+		this.kind = Kind.forBinding(binding);
+	}
+
+	/**
+	 * Add a value to the statistics.
+	 *
+	 * @param value
+	 *            The value, or null if the attribute was not set. Numeric values
+	 *            that were not converted to the binding are parsed from their
+	 *            text. Values that do not match the binding, or numbers that
+	 *            cannot be parsed, are counted as malformed rather than null.
+	 */
+	public void add(Object value) {
+		if (value == null) {
+			nullCount++;
+			return;
+		}
+		switch (kind) {
+		case NUMBER:
+			double number;
+			if (value instanceof Number) {
+				number = ((Number) value).doubleValue();
+			} else {
+				try {
+					number = Double.parseDouble(value.toString().trim());
+				} catch (NumberFormatException e) {
+					malformedCount++;
+					return;
+				}
+			}
+			if (Double.isNaN(number)) {
+				nullCount++;
+				return;
+			}
+			long bits = Double.doubleToLongBits(number);
+			addMeasure(number, bits);
+			topValues.add(bits, value);
+			break;
+		case DATE:
+			if (!(value instanceof Date)) {
+				malformedCount++;
+				return;
+			}
+			long millis = ((Date) value).getTime();
+			addMeasure(millis, millis);
+			topValues.add(millis, value);
+			break;
+		case BOOLEAN:
+			boolean flag = value instanceof Boolean ? (Boolean) value : Boolean.parseBoolean(value.toString());
+			addMeasure(flag ? 1 : 0, flag ? 1 : 0);
+			topValues.add(flag ? 1 : 0, Boolean.valueOf(flag));
+			break;
+		case GEOMETRY:
+			if (!(value instanceof Geometry)) {
+				malformedCount++;
+				return;
+			}
+			int vertexCount = ((Geometry) value).getNumPoints();
+			addMeasure(vertexCount, vertexCount);
+			break;
+		default:
+			addText(value instanceof CharSequence ? (CharSequence) value : value.toString());
+			break;
+		}
+	}
+
+	private void addText(CharSequence text) {
+		long hash = HyperLogLog.hash(text);
+		addMeasure(text.length(), hash);
+		topValues.add(hash, text);
+	}
+
+	private void addMeasure(double measure, long distinctKey) {
+		count++;
+		min = Math.min(min, measure);
+		max = Math.max(max, measure);
+		double delta = measure - mean;
+		mean += delta / count;
+		squaredDifferences += delta * (measure - mean);
+		distinct.addHash(HyperLogLog.hash(distinctKey));
+		quantiles.add(measure);
+	}
+
+	/**
+	 * Add the statistics for the same attribute from another part of the
+	 * input.
+	 *
+	 * @param other
+	 *            The statistics to merge into these statistics.
+	 */
+	public void merge(ColumnStatistics other) {
+		if (!name.equals(other.name) || kind != other.kind) {
+			throw new IllegalArgumentException(
+					"Cannot merge statistics for different attributes: " + name + " and " + other.name);
+		}
+		nullCount += other.nullCount;
+		malformedCount += other.malformedCount;
+		if (other.count > 0) {
+			long totalCount = count + other.count;
+			double delta = other.mean - mean;
+			// Chan et al. pairwise combination of the mean and variance
+			squaredDifferences += other.squaredDifferences + delta * delta * count * other.count / totalCount;
+			mean += delta * other.count / totalCount;
+			count = totalCount;
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+		distinct.merge(other.distinct);
+		quantiles.merge(other.quantiles);
+		topValues.merge(other.topValues);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Class<?> getBinding() {
+		return binding;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getNullCount() {
+		return nullCount;
+	}
+
+	/**
+	 * @return The number of values that were set but could not be read as the
+	 *         binding of the attribute.
+	 */
+	public long getMalformedCount() {
+		return malformedCount;
+	}
+
+	public double getMin() {
+		return count > 0 ? min : Double.NaN;
+	}
+
+	public double getMax() {
+		return count > 0 ? max : Double.NaN;
+	}
+
+	public double getMean() {
+		return count > 0 ? mean : Double.NaN;
+	}
+
+	/**
+	 * @return The sample standard deviation of the measure.
+	 */
+	public double getStdDev() {
+		return count > 1 ? Math.sqrt(squaredDifferences / (count - 1)) : Double.NaN;
+	}
+
+	public long getApproxDistinctCount() {
+		return count > 0 ? distinct.estimate() : 0;
+	}
+
+	public double getApproxQuantile(double quantile) {
+		return quantiles.quantile(quantile);
+	}
+
+	public List<HeavyHitters.Entry> getApproxTopValues() {
+		return topValues.getTop(TOP_VALUES);
+	}
+
+	/**
+	 * @return The values for this attribute in the order of
+	 *         {@link #SUMMARY_HEADERS}.
+	 */
+	public List<String> toSummaryRow() {
+		return Arrays.asList(name, binding.getSimpleName(), kind.getMeasure(), Long.toString(count),
+				Long.toString(nullCount), Long.toString(malformedCount), format(getMin()), format(getMax()),
+				format(getMean()), formatSpread(getStdDev()), Long.toString(getApproxDistinctCount()),
+				format(getApproxQuantile(0.5)), format(getApproxQuantile(0.05)), format(getApproxQuantile(0.95)),
+				getApproxTopValues().stream().map(HeavyHitters.Entry::toString).collect(Collectors.joining(", ")));
+	}
+
+	/**
+	 * Format a value of the measure, showing dates as timestamps.
+	 */
+	private String format(double measure) {
+		if (Double.isNaN(measure)) {
+			return "";
+		}
+		if (kind == Kind.DATE) {
+			return Instant.ofEpochMilli((long) measure).toString();
+		}
+		return Double.toString(measure);
+	}
+
+	/**
+	 * Format a difference between values of the measure, showing date
+	 * differences as durations.
+	 */
+	private String formatSpread(double spread) {
+		if (Double.isNaN(spread)) {
+			return "";
+		}
+		if (kind == Kind.DATE) {
+			return Duration.ofMillis((long) spread).toString();
+		}
+		return Double.toString(spread);
+	}
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The header and field descriptors of a dBase III .dbf file, along with
+ * methods to decode field values directly from the fixed width records.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class DBFHeader {
+
+	/**
+	 * The length of the fixed part of the header and of each field descriptor.
+	 */
+	public static final int DESCRIPTOR_LENGTH = 32;
+
+	/**
+	 * The byte that terminates the list of field descriptors.
+	 */
+	public static final byte HEADER_TERMINATOR = 0x0D;
+
+	/**
+	 * The byte in the first position of a record that has been deleted.
+	 */
+	public static final byte DELETED_RECORD = '*';
+
+	private final int version;
+	private final int recordCount;
+	private final int headerLength;
+	private final int recordLength;
+	private final List<Field> fields;
+
+	private DBFHeader(int version, int recordCount, int headerLength, int recordLength, List<Field> fields) {
+		this.version = version;
+		this.recordCount = recordCount;
+		this.headerLength = headerLength;
+		this.recordLength = recordLength;
+		this.fields = Collections.unmodifiableList(fields);
+	}
+
+	/**
+	 * Read the header from the start of the given buffer, without changing the
+	 * position or byte order of the buffer.
+	 *
+	 * @param buffer
+	 *            A buffer containing at least the complete header of a .dbf file.
+	 * @return The parsed header.
+	 */
+	public static DBFHeader read(ByteBuffer buffer) {
+		if (buffer.limit() < DESCRIPTOR_LENGTH) {
+			throw new IllegalArgumentException(
+					"DBF header requires " + DESCRIPTOR_LENGTH + " bytes but only found " + buffer.limit());
+		}
+		ByteBuffer header = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int version = header.get(0) & 0xFF;
+		int recordCount = header.getInt(4);
+		int headerLength = header.getShort(8) & 0xFFFF;
+		int recordLength = header.getShort(10) & 0xFFFF;
+
+		List<Field> fields = new ArrayList<>();
+		// The deletion flag occupies the first byte of each record
+		int nextFieldOffset = 1;
+		int descriptorEnd = Math.min(headerLength, header.limit());
+		for (int position = DESCRIPTOR_LENGTH; position + DESCRIPTOR_LENGTH <= descriptorEnd
+				&& header.get(position) != HEADER_TERMINATOR; position += DESCRIPTOR_LENGTH) {
+			int nameLength = 0;
+			while (nameLength < 11 && header.get(position + nameLength) != 0) {
+				nameLength++;
+			}
+			byte[] nameBytes = new byte[nameLength];
+			for (int i = 0; i < nameLength; i++) {
+				nameBytes[i] = header.get(position + i);
+			}
+			String name = new String(nameBytes, StandardCharsets.ISO_8859_1).trim();
+			char type = (char) (header.get(position + 11) & 0xFF);
+			int length = header.get(position + 16) & 0xFF;
+			int decimalCount = header.get(position + 17) & 0xFF;
+			fields.add(new Field(name, type, nextFieldOffset, length, decimalCount));
+			nextFieldOffset += length;
+		}
+		return new DBFHeader(version, recordCount, headerLength, recordLength, fields);
+	}
+
+	/**
+	 * Read the header from the start of the given channel.
+	 *
+	 * @param channel
+	 *            The channel for the .dbf file.
+	 * @return The parsed header.
+	 * @throws IOException
+	 *             If the header could not be read.
+	 */
+	public static DBFHeader read(FileChannel channel) throws IOException {
+		ByteBuffer fixedHeader = ByteBuffer.allocate(DESCRIPTOR_LENGTH);
+		channel.read(fixedHeader, 0);
+		int headerLength = fixedHeader.order(ByteOrder.LITTLE_ENDIAN).getShort(8) & 0xFFFF;
+		ByteBuffer fullHeader = ByteBuffer.allocate((int) Math.min(Math.max(headerLength, DESCRIPTOR_LENGTH),
+				channel.size()));
+		channel.read(fullHeader, 0);
+		fullHeader.flip();
+		return read(fullHeader);
+	}
+
+	/**
+	 * Find the charset for the .dbf file from the .cpg file next to it, falling
+	 * back to ISO-8859-1 if there is no .cpg file or it is not recognised.
+	 *
+	 * @param dbfPath
+	 *            The path to the .dbf file.
+	 * @return The charset to use for decoding character fields.
+	 */
+	public static Charset getCharset(Path dbfPath) {
+		Path cpgPath = SHPUtils.getSiblingFile(dbfPath, "cpg");
+		if (Files.exists(cpgPath)) {
+			try {
+				String charsetName = new String(Files.readAllBytes(cpgPath), StandardCharsets.US_ASCII).trim();
+				if (Charset.isSupported(charsetName)) {
+					return Charset.forName(charsetName);
+				}
+			} catch (IOException | IllegalArgumentException e) {
+				System.err.println("Could not read charset from: " + cpgPath + " : " + e.getMessage());
+			}
+		}
+		return StandardCharsets.ISO_8859_1;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	public int getHeaderLength() {
+		return headerLength;
+	}
+
+	public int getRecordLength() {
+		return recordLength;
+	}
+
+	public List<Field> getFields() {
+		return fields;
+	}
+
+	/**
+	 * @param recordIndex
+	 *            The zero-based index of the record.
+	 * @return The byte offset of the record in the .dbf file.
+	 */
+	public long getRecordOffset(long recordIndex) {
+		return headerLength + recordIndex * recordLength;
+	}
+
+	/**
+	 * A single field descriptor from a .dbf header.
+	 */
+	public static final class Field {
+
+		private final String name;
+		private final char type;
+		private final int offset;
+		private final int length;
+		private final int decimalCount;
+
+		Field(String name, char type, int offset, int length, int decimalCount) {
+			this.name = name;
+			this.type = type;
+			this.offset = offset;
+			this.length = length;
+			this.decimalCount = decimalCount;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public char getType() {
+			return type;
+		}
+
+		/**
+		 * @return The offset of the field from the start of each record, including
+		 *         the deletion flag.
+		 */
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public int getDecimalCount() {
+			return decimalCount;
+		}
+
+		/**
+		 * Decode the raw text of this field from a record, trimming any padding.
+		 *
+		 * @param buffer
+		 *            The buffer containing the record.
+		 * @param recordStart
+		 *            The position of the start of the record in the buffer.
+		 * @param charset
+		 *            The charset used for character fields.
+		 * @return The trimmed text of the field.
+		 */
+		public String readString(ByteBuffer buffer, int recordStart, Charset charset) {
+			byte[] bytes = new byte[length];
+			int start = recordStart + offset;
+			for (int i = 0; i < length; i++) {
+				bytes[i] = buffer.get(start + i);
+			}
+			int end = length;
+			// Some writers pad with nulls instead of spaces
+			for (int i = 0; i < length; i++) {
+				if (bytes[i] == 0) {
+					end = i;
+					break;
+				}
+			}
+			return new String(bytes, 0, end, charset).trim();
+		}
+
+		/**
+		 * Decode the value of this field from a record, based on the dBase type of
+		 * the field.
+		 *
+		 * @param buffer
+		 *            The buffer containing the record.
+		 * @param recordStart
+		 *            The position of the start of the record in the buffer.
+		 * @param charset
+		 *            The charset used for character fields.
+		 * @return A String for character and numeric fields, a {@link java.util.Date}
+		 *         at the start of the day in the default time zone for date
+		 *         fields, a Boolean for logical fields, or null if the field is
+		 *         empty or undefined.
+		 */
+		public Object readValue(ByteBuffer buffer, int recordStart, Charset charset) {
+			String text = readString(buffer, recordStart, charset);
+			switch (type) {
+			case 'N':
+			case 'F':
+				if (text.isEmpty() || text.startsWith("*")) {
+					return null;
+				}
+				return text;
+			case 'D':
+				if (text.length() != 8 || !text.chars().allMatch(Character::isDigit)) {
+					return null;
+				}
+				// ShapefileDataStore reads dates in the default time zone, so the
+				// same values are read using any number of threads
+				Calendar calendar = Calendar.getInstance(TimeZone.getDefault(), Locale.US);
+				calendar.clear();
+				calendar.set(Integer.parseInt(text.substring(0, 4)), Integer.parseInt(text.substring(4, 6)) - 1,
+						Integer.parseInt(text.substring(6, 8)));
+				return calendar.getTime();
+			case 'L':
+				if (text.isEmpty()) {
+					return null;
+				}
+				switch (text.charAt(0)) {
+				case 'T':
+				case 't':
+				case 'Y':
+				case 'y':
+					return Boolean.TRUE;
+				case 'F':
+				case 'f':
+				case 'N':
+				case 'n':
+					return Boolean.FALSE;
+				default:
+					return null;
+				}
+			default:
+				return text;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "Field [name=" + name + ", type=" + type + ", offset=" + offset + ", length=" + length
+					+ ", decimalCount=" + decimalCount + "]";
+		}
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * Summarises the values of each field as rows are added, so that the summary
+ * can be created in the same pass that reads the features, instead of writing
+ * a CSV file and parsing it again using CSVSummariser.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class FeatureSummariser {
+
+	public static final List<String> SUMMARY_HEADERS = Arrays.asList("fieldName", "emptyCount", "nonEmptyCount",
+			"uniqueValueCount", "possiblePrimaryKey", "possiblyInteger", "possiblyFloatingPoint", "sampleValues");
+
+	/**
+	 * The summary headers when the rows are a sample, with the counts scaled up
+	 * to estimate the counts for all of the rows.
+	 */
+	public static final List<String> SAMPLED_SUMMARY_HEADERS = Arrays.asList("fieldName", "emptyCount",
+			"nonEmptyCount", "estimatedEmptyCount", "estimatedNonEmptyCount", "uniqueValueCount",
+			"possiblePrimaryKey", "possiblyInteger", "possiblyFloatingPoint", "sampleValues");
+
+	public static final List<String> MAPPING_HEADERS = Arrays.asList("OldField", "NewField", "Shown", "Default",
+			"Mapping");
+
+	private final List<String> fieldNames;
+	private final int maxSampleCount;
+	private final boolean showSampleCounts;
+
+	private final int[] emptyCounts;
+	private final int[] nonEmptyCounts;
+	private final boolean[] possiblyInteger;
+	private final boolean[] possiblyFloatingPoint;
+	private final List<Map<String, AtomicInteger>> valueCounts;
+	private int rowCount = 0;
+	private double scaleFactor = 0;
+
+	/**
+	 * @param fieldNames
+	 *            The names of the fields, in the order they will be given to
+	 *            {@link #addRow(List)}.
+	 * @param maxSampleCount
+	 *            The maximum number of sample values to show for each field, or -1
+	 *            to show all of the sample values.
+	 * @param showSampleCounts
+	 *            True to add the number of times each sample value was seen after
+	 *            the sample value.
+	 */
+	public FeatureSummariser(List<String> fieldNames, int maxSampleCount, boolean showSampleCounts) {
+		this.fieldNames = new ArrayList<>(fieldNames);
+		this.maxSampleCount = maxSampleCount;
+		this.showSampleCounts = showSampleCounts;
+		int fieldCount = fieldNames.size();
+		this.emptyCounts = new int[fieldCount];
+		this.nonEmptyCounts = new int[fieldCount];
+		this.possiblyInteger = new boolean[fieldCount];
+		this.possiblyFloatingPoint = new boolean[fieldCount];
+		Arrays.fill(possiblyInteger, true);
+		Arrays.fill(possiblyFloatingPoint, true);
+		this.valueCounts = new ArrayList<>(fieldCount);
+		for (int i = 0; i < fieldCount; i++) {
+			valueCounts.add(new TreeMap<>());
+		}
+	}
+
+	/**
+	 * Add a row of values to the summary.
+	 *
+	 * @param values
+	 *            The values for the row, in the same order as the field names. The
+	 *            list is not retained and may be reused by the caller.
+	 */
+	public void addRow(List<String> values) {
+		if (values.size() != fieldNames.size()) {
+			throw new IllegalArgumentException(
+					"Expected " + fieldNames.size() + " values but found " + values.size() + ": " + values);
+		}
+		rowCount++;
+		for (int i = 0; i < values.size(); i++) {
+			String nextValue = values.get(i);
+			if (nextValue.trim().isEmpty()) {
+				emptyCounts[i]++;
+			} else {
+				nonEmptyCounts[i]++;
+				if (possiblyInteger[i]) {
+					try {
+						Long.parseLong(nextValue.trim());
+					} catch (NumberFormatException e) {
+						possiblyInteger[i] = false;
+					}
+				}
+				if (possiblyFloatingPoint[i]) {
+					try {
+						Double.parseDouble(nextValue.trim());
+					} catch (NumberFormatException e) {
+						possiblyFloatingPoint[i] = false;
+					}
+				}
+			}
+			valueCounts.get(i).computeIfAbsent(nextValue, k -> new AtomicInteger()).incrementAndGet();
+		}
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Mark the rows as a sample, so that the summary includes estimates of the
+	 * counts for all of the rows.
+	 *
+	 * @param scaleFactor
+	 *            The number of rows in the input for each row in the sample.
+	 */
+	public void setSampled(double scaleFactor) {
+		this.scaleFactor = scaleFactor;
+	}
+
+	/**
+	 * Write the summary of each field to the given output, using one row for
+	 * each field.
+	 *
+	 * @param summaryOutput
+	 *            The output to write the summary CSV to.
+	 * @throws IOException
+	 *             If there is an error writing the summary.
+	 */
+	public void writeSummary(Writer summaryOutput) throws IOException {
+		List<String> headers = scaleFactor > 0 ? SAMPLED_SUMMARY_HEADERS : SUMMARY_HEADERS;
+		try (SequenceWriter csv = CSVStream.newCSVWriter(summaryOutput, CSVStream.buildSchema(headers));) {
+			List<String> nextLine = new ArrayList<>(headers.size());
+			for (int i = 0; i < fieldNames.size(); i++) {
+				int uniqueValueCount = valueCounts.get(i).size();
+				boolean hasValues = nonEmptyCounts[i] > 0;
+				nextLine.add(fieldNames.get(i));
+				nextLine.add(Integer.toString(emptyCounts[i]));
+				nextLine.add(Integer.toString(nonEmptyCounts[i]));
+				if (scaleFactor > 0) {
+					nextLine.add(Long.toString(Math.round(emptyCounts[i] * scaleFactor)));
+					nextLine.add(Long.toString(Math.round(nonEmptyCounts[i] * scaleFactor)));
+				}
+				nextLine.add(Integer.toString(uniqueValueCount));
+				nextLine.add(Boolean.toString(hasValues && emptyCounts[i] == 0 && uniqueValueCount == rowCount));
+				nextLine.add(Boolean.toString(hasValues && possiblyInteger[i]));
+				nextLine.add(Boolean.toString(hasValues && possiblyFloatingPoint[i]));
+				nextLine.add(getSampleValues(valueCounts.get(i)));
+				csv.write(nextLine);
+				nextLine.clear();
+			}
+		}
+	}
+
+	/**
+	 * Write a mapping template to the given output, with one row for each field
+	 * that maps the field through to itself.
+	 *
+	 * @param mappingOutput
+	 *            The output to write the mapping template to.
+	 * @throws IOException
+	 *             If there is an error writing the mapping template.
+	 */
+	public void writeMappingTemplate(Writer mappingOutput) throws IOException {
+		try (SequenceWriter csv = CSVStream.newCSVWriter(mappingOutput, CSVStream.buildSchema(MAPPING_HEADERS));) {
+			for (String nextField : fieldNames) {
+				csv.write(Arrays.asList(nextField, nextField, "yes", "", "inputValue"));
+			}
+		}
+	}
+
+	private String getSampleValues(Map<String, AtomicInteger> fieldValueCounts) {
+		StringBuilder result = new StringBuilder();
+		int samplesAdded = 0;
+		for (Entry<String, AtomicInteger> nextSample : fieldValueCounts.entrySet()) {
+			if (nextSample.getKey().trim().isEmpty()) {
+				continue;
+			}
+			if (maxSampleCount >= 0 && samplesAdded >= maxSampleCount) {
+				if (samplesAdded > 0) {
+					result.append(", ...");
+				}
+				break;
+			}
+			if (samplesAdded > 0) {
+				result.append(", ");
+			}
+			result.append(nextSample.getKey());
+			if (showSampleCounts) {
+				result.append("(*").append(nextSample.getValue().get()).append(")");
+			}
+			samplesAdded++;
+		}
+		return result.toString();
+	}
+}
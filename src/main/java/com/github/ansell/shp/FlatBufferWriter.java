@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal FlatBuffers builder, with just enough of the format to write
+ * tables, strings and vectors of scalars or tables. Like the FlatBuffers
+ * library, the buffer is built from the end towards the start, so that child
+ * objects are written before the offsets that refer to them. The buffer is
+ * reused after {@link #clear()} to avoid allocating for each feature.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+final class FlatBufferWriter {
+
+	private ByteBuffer buffer;
+	private int space;
+	private int minAlign = 1;
+	private int[] vtable = new int[16];
+	private int vtableInUse = 0;
+	private int objectStart = 0;
+	private int vectorElements = 0;
+
+	FlatBufferWriter(int initialSize) {
+		this.buffer = ByteBuffer.allocate(Math.max(initialSize, 64)).order(ByteOrder.LITTLE_ENDIAN);
+		this.space = buffer.capacity();
+	}
+
+	/**
+	 * Discard the contents, keeping the allocated buffer.
+	 */
+	void clear() {
+		space = buffer.capacity();
+		minAlign = 1;
+		vtableInUse = 0;
+	}
+
+	/**
+	 * @return The current size of the contents, which is used as the offset of
+	 *         the last object that was written.
+	 */
+	int offset() {
+		return buffer.capacity() - space;
+	}
+
+	/**
+	 * Add padding so that the next value of the given size, written after the
+	 * given number of extra bytes, is aligned.
+	 */
+	private void prep(int size, int additionalBytes) {
+		if (size > minAlign) {
+			minAlign = size;
+		}
+		int alignSize = (~(buffer.capacity() - space + additionalBytes) + 1) & (size - 1);
+		while (space < alignSize + size + additionalBytes) {
+			int oldCapacity = buffer.capacity();
+			ByteBuffer grown = ByteBuffer.allocate(oldCapacity * 2).order(ByteOrder.LITTLE_ENDIAN);
+			grown.position(oldCapacity);
+			buffer.position(0);
+			grown.put(buffer);
+			buffer = grown;
+			space += oldCapacity;
+		}
+		for (int i = 0; i < alignSize; i++) {
+			buffer.put(--space, (byte) 0);
+		}
+	}
+
+	void addByte(byte value) {
+		prep(1, 0);
+		buffer.put(--space, value);
+	}
+
+	void addShort(short value) {
+		prep(2, 0);
+		space -= 2;
+		buffer.putShort(space, value);
+	}
+
+	void addInt(int value) {
+		prep(4, 0);
+		space -= 4;
+		buffer.putInt(space, value);
+	}
+
+	void addLong(long value) {
+		prep(8, 0);
+		space -= 8;
+		buffer.putLong(space, value);
+	}
+
+	void addDouble(double value) {
+		prep(8, 0);
+		space -= 8;
+		buffer.putDouble(space, value);
+	}
+
+	/**
+	 * Add an offset to an object that was written earlier, relative to the
+	 * position of the offset itself.
+	 */
+	void addOffset(int target) {
+		prep(4, 0);
+		addInt(offset() - target + 4);
+	}
+
+	void startVector(int elementSize, int elementCount, int alignment) {
+		vectorElements = elementCount;
+		prep(4, elementSize * elementCount);
+		prep(alignment, elementSize * elementCount);
+	}
+
+	int endVector() {
+		addInt(vectorElements);
+		return offset();
+	}
+
+	int createString(String value) {
+		return createString(value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	int createString(byte[] utf8) {
+		addByte((byte) 0);
+		return createByteVector(utf8, 0, utf8.length);
+	}
+
+	int createByteVector(byte[] bytes, int start, int length) {
+		startVector(1, length, 1);
+		space -= length;
+		buffer.position(space);
+		buffer.put(bytes, start, length);
+		return endVector();
+	}
+
+	int createDoubleVector(double[] values, int start, int length) {
+		startVector(8, length, 8);
+		for (int i = start + length - 1; i >= start; i--) {
+			addDouble(values[i]);
+		}
+		return endVector();
+	}
+
+	int createIntVector(int[] values, int start, int length) {
+		startVector(4, length, 4);
+		for (int i = start + length - 1; i >= start; i--) {
+			addInt(values[i]);
+		}
+		return endVector();
+	}
+
+	int createOffsetVector(int[] offsets, int start, int length) {
+		startVector(4, length, 4);
+		for (int i = start + length - 1; i >= start; i--) {
+			addOffset(offsets[i]);
+		}
+		return endVector();
+	}
+
+	void startTable(int fieldCount) {
+		if (vtable.length < fieldCount) {
+			vtable = new int[fieldCount];
+		}
+		Arrays.fill(vtable, 0, fieldCount, 0);
+		vtableInUse = fieldCount;
+		objectStart = offset();
+	}
+
+	private void slot(int field) {
+		vtable[field] = offset();
+	}
+
+	void addFieldByte(int field, byte value, byte defaultValue) {
+		if (value != defaultValue) {
+			addByte(value);
+			slot(field);
+		}
+	}
+
+	void addFieldBoolean(int field, boolean value, boolean defaultValue) {
+		addFieldByte(field, (byte) (value ? 1 : 0), (byte) (defaultValue ? 1 : 0));
+	}
+
+	void addFieldShort(int field, short value, short defaultValue) {
+		if (value != defaultValue) {
+			addShort(value);
+			slot(field);
+		}
+	}
+
+	void addFieldInt(int field, int value, int defaultValue) {
+		if (value != defaultValue) {
+			addInt(value);
+			slot(field);
+		}
+	}
+
+	void addFieldLong(int field, long value, long defaultValue) {
+		if (value != defaultValue) {
+			addLong(value);
+			slot(field);
+		}
+	}
+
+	/**
+	 * Add an offset field, unless the offset is 0, which marks an absent
+	 * object.
+	 */
+	void addFieldOffset(int field, int target) {
+		if (target != 0) {
+			addOffset(target);
+			slot(field);
+		}
+	}
+
+	int endTable() {
+		addInt(0);
+		int tableOffset = offset();
+		int lastField = vtableInUse - 1;
+		while (lastField >= 0 && vtable[lastField] == 0) {
+			lastField--;
+		}
+		for (int i = lastField; i >= 0; i--) {
+			addShort((short) (vtable[i] != 0 ? tableOffset - vtable[i] : 0));
+		}
+		addShort((short) (tableOffset - objectStart));
+		addShort((short) ((lastField + 1 + 2) * 2));
+		// The table starts with the signed distance back to its vtable
+		buffer.putInt(buffer.capacity() - tableOffset, offset() - tableOffset);
+		vtableInUse = 0;
+		return tableOffset;
+	}
+
+	/**
+	 * Finish the buffer with the given root table, preceded by the size of the
+	 * buffer as FlatGeobuf requires.
+	 */
+	void finishSizePrefixed(int rootTable) {
+		prep(minAlign, 8);
+		addOffset(rootTable);
+		addInt(offset());
+	}
+
+	/**
+	 * @return The number of bytes that have been written.
+	 */
+	int size() {
+		return offset();
+	}
+
+	/**
+	 * Write the finished contents to the given stream.
+	 */
+	void writeTo(OutputStream output) throws IOException {
+		output.write(buffer.array(), space, buffer.capacity() - space);
+	}
+
+	/**
+	 * @return A view of the finished contents, which is only valid until the
+	 *         next call that changes this builder.
+	 */
+	ByteBuffer getContents() {
+		ByteBuffer result = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		result.position(space);
+		result.limit(buffer.capacity());
+		return result;
+	}
+}
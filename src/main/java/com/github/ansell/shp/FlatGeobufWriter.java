@@ -0,0 +1,736 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryCollection;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Writes features in the FlatGeobuf format, with a packed Hilbert R-tree index
+ * so that readers can fetch the features in a bounding box with range
+ * requests.
+ * <p>
+ * The index must be written before the features, and the features must be in
+ * the same order as the leaves of the index, so each feature is encoded once
+ * into a temporary file next to the output while its bounding box is recorded.
+ * The features are then sorted by the Hilbert curve index of the centre of
+ * their bounding boxes, and copied into the output after the index.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class FlatGeobufWriter {
+
+	/**
+	 * The magic bytes at the start of every FlatGeobuf file, for version 3 of
+	 * the format.
+	 */
+	static final byte[] MAGIC = { 'f', 'g', 'b', 3, 'f', 'g', 'b', 0 };
+
+	/**
+	 * The default number of children for each node of the index.
+	 */
+	public static final int DEFAULT_NODE_SIZE = 16;
+
+	/**
+	 * The length of each node in the index, as four doubles for the bounding
+	 * box and an unsigned long offset.
+	 */
+	static final int NODE_LENGTH = 40;
+
+	static final byte GEOMETRY_UNKNOWN = 0;
+	static final byte GEOMETRY_POINT = 1;
+	static final byte GEOMETRY_LINESTRING = 2;
+	static final byte GEOMETRY_POLYGON = 3;
+	static final byte GEOMETRY_MULTIPOINT = 4;
+	static final byte GEOMETRY_MULTILINESTRING = 5;
+	static final byte GEOMETRY_MULTIPOLYGON = 6;
+	static final byte GEOMETRY_COLLECTION = 7;
+
+	static final byte COLUMN_BYTE = 0;
+	static final byte COLUMN_BOOL = 2;
+	static final byte COLUMN_SHORT = 3;
+	static final byte COLUMN_INT = 5;
+	static final byte COLUMN_LONG = 7;
+	static final byte COLUMN_FLOAT = 9;
+	static final byte COLUMN_DOUBLE = 10;
+	static final byte COLUMN_STRING = 11;
+	static final byte COLUMN_DATETIME = 13;
+
+	private final int nodeSize;
+
+	private final FlatBufferWriter builder = new FlatBufferWriter(1024);
+	private ByteBuffer properties = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+	private double[] xy = new double[1024];
+	private int xyLength;
+	private int[] ends = new int[16];
+	private int endsLength;
+
+	private SimpleFeatureType schema;
+	private byte geometryType;
+	private int[] attributeIndexes;
+	private byte[] columnTypes;
+
+	/**
+	 * @param nodeSize
+	 *            The number of children for each node of the index, or 0 to
+	 *            write the features in their original order without an index.
+	 */
+	public FlatGeobufWriter(int nodeSize) {
+		if (nodeSize == 1 || nodeSize < 0 || nodeSize > 0xFFFF) {
+			throw new IllegalArgumentException("Node size must be 0 or between 2 and 65535: " + nodeSize);
+		}
+		this.nodeSize = nodeSize;
+	}
+
+	/**
+	 * Write the features to a new FlatGeobuf file.
+	 *
+	 * @param features
+	 *            The features to write, which are iterated once.
+	 * @param outputPath
+	 *            The file to create, which must not already exist.
+	 * @return The number of features that were written.
+	 * @throws IOException
+	 *             If there is an error reading the features or writing the file.
+	 */
+	public long write(SimpleFeatureCollection features, Path outputPath) throws IOException {
+		setSchema(features.getSchema());
+		if (nodeSize == 0) {
+			return writeUnindexed(features, outputPath);
+		}
+
+		Path tempPath = Files.createTempFile(outputPath.toAbsolutePath().getParent(),
+				outputPath.getFileName().toString(), ".tmp");
+		try {
+			FeatureBounds bounds = new FeatureBounds();
+			try (OutputStream temp = new BufferedOutputStream(Files.newOutputStream(tempPath));
+					SimpleFeatureIterator iterator = features.features();) {
+				long nextOffset = 0;
+				while (iterator.hasNext()) {
+					Geometry geometry = encodeFeature(iterator.next());
+					bounds.add(geometry, nextOffset, builder.size());
+					builder.writeTo(temp);
+					nextOffset += builder.size();
+				}
+			}
+
+			int count = bounds.count;
+			long[] order = bounds.sort();
+			try (OutputStream output = new BufferedOutputStream(
+					Files.newOutputStream(outputPath, StandardOpenOption.CREATE_NEW));
+					FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.READ);) {
+				output.write(MAGIC);
+				encodeHeader(bounds.getExtent(), count, count > 0 ? nodeSize : 0);
+				builder.writeTo(output);
+				if (count > 0) {
+					writeIndex(bounds, order, output);
+				}
+				ByteBuffer copyBuffer = ByteBuffer.allocate(64 * 1024);
+				for (int i = 0; i < count; i++) {
+					int next = (int) order[i];
+					copyFeature(tempChannel, bounds.offsets[next], bounds.lengths[next], copyBuffer, output);
+				}
+			}
+			return count;
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+	}
+
+	/**
+	 * Write the features directly to the output in their original order. The
+	 * feature count and extent are left out of the header, as they are not
+	 * known until all of the features have been written.
+	 */
+	private long writeUnindexed(SimpleFeatureCollection features, Path outputPath) throws IOException {
+		long count = 0;
+		try (OutputStream output = new BufferedOutputStream(
+				Files.newOutputStream(outputPath, StandardOpenOption.CREATE_NEW));
+				SimpleFeatureIterator iterator = features.features();) {
+			output.write(MAGIC);
+			encodeHeader(null, 0, 0);
+			builder.writeTo(output);
+			while (iterator.hasNext()) {
+				encodeFeature(iterator.next());
+				builder.writeTo(output);
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static void copyFeature(FileChannel source, long offset, int length, ByteBuffer copyBuffer,
+			OutputStream output) throws IOException {
+		int remaining = length;
+		long position = offset;
+		while (remaining > 0) {
+			copyBuffer.clear();
+			copyBuffer.limit(Math.min(remaining, copyBuffer.capacity()));
+			int read = source.read(copyBuffer, position);
+			if (read < 0) {
+				throw new IOException("Temporary feature file was truncated at: " + position);
+			}
+			output.write(copyBuffer.array(), 0, read);
+			remaining -= read;
+			position += read;
+		}
+	}
+
+	private void setSchema(SimpleFeatureType schema) {
+		this.schema = schema;
+		GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
+		this.geometryType = geometryDescriptor == null ? GEOMETRY_UNKNOWN
+				: getGeometryType(geometryDescriptor.getType().getBinding());
+		List<AttributeDescriptor> descriptors = schema.getAttributeDescriptors();
+		int columnCount = 0;
+		for (AttributeDescriptor descriptor : descriptors) {
+			if (!(descriptor instanceof GeometryDescriptor)) {
+				columnCount++;
+			}
+		}
+		this.attributeIndexes = new int[columnCount];
+		this.columnTypes = new byte[columnCount];
+		int nextColumn = 0;
+		for (int i = 0; i < descriptors.size(); i++) {
+			if (!(descriptors.get(i) instanceof GeometryDescriptor)) {
+				attributeIndexes[nextColumn] = i;
+				columnTypes[nextColumn] = getColumnType(descriptors.get(i).getType().getBinding());
+				nextColumn++;
+			}
+		}
+	}
+
+	static byte getGeometryType(Class<?> binding) {
+		if (MultiPolygon.class.isAssignableFrom(binding)) {
+			return GEOMETRY_MULTIPOLYGON;
+		} else if (MultiLineString.class.isAssignableFrom(binding)) {
+			return GEOMETRY_MULTILINESTRING;
+		} else if (MultiPoint.class.isAssignableFrom(binding)) {
+			return GEOMETRY_MULTIPOINT;
+		} else if (Polygon.class.isAssignableFrom(binding)) {
+			return GEOMETRY_POLYGON;
+		} else if (LineString.class.isAssignableFrom(binding)) {
+			return GEOMETRY_LINESTRING;
+		} else if (Point.class.isAssignableFrom(binding)) {
+			return GEOMETRY_POINT;
+		}
+		return GEOMETRY_UNKNOWN;
+	}
+
+	static byte getColumnType(Class<?> binding) {
+		if (Boolean.class.equals(binding)) {
+			return COLUMN_BOOL;
+		} else if (Byte.class.equals(binding)) {
+			return COLUMN_BYTE;
+		} else if (Short.class.equals(binding)) {
+			return COLUMN_SHORT;
+		} else if (Integer.class.equals(binding)) {
+			return COLUMN_INT;
+		} else if (Long.class.equals(binding)) {
+			return COLUMN_LONG;
+		} else if (Float.class.equals(binding)) {
+			return COLUMN_FLOAT;
+		} else if (Number.class.isAssignableFrom(binding)) {
+			return COLUMN_DOUBLE;
+		} else if (Date.class.isAssignableFrom(binding)) {
+			return COLUMN_DATETIME;
+		}
+		return COLUMN_STRING;
+	}
+
+	private void encodeHeader(Envelope extent, long featureCount, int headerNodeSize) {
+		builder.clear();
+		int nameOffset = builder.createString(schema.getTypeName());
+		int envelopeOffset = 0;
+		if (extent != null && !extent.isNull()) {
+			double[] envelope = { extent.getMinX(), extent.getMinY(), extent.getMaxX(), extent.getMaxY() };
+			envelopeOffset = builder.createDoubleVector(envelope, 0, envelope.length);
+		}
+		List<AttributeDescriptor> descriptors = schema.getAttributeDescriptors();
+		int[] columnOffsets = new int[attributeIndexes.length];
+		for (int i = 0; i < attributeIndexes.length; i++) {
+			int columnName = builder.createString(descriptors.get(attributeIndexes[i]).getLocalName());
+			builder.startTable(2);
+			builder.addFieldOffset(0, columnName);
+			builder.addFieldByte(1, columnTypes[i], COLUMN_BYTE);
+			columnOffsets[i] = builder.endTable();
+		}
+		int columnsOffset = builder.createOffsetVector(columnOffsets, 0, columnOffsets.length);
+		int crsOffset = encodeCrs(schema.getCoordinateReferenceSystem());
+
+		builder.startTable(11);
+		builder.addFieldLong(8, featureCount, 0);
+		builder.addFieldOffset(0, nameOffset);
+		builder.addFieldOffset(1, envelopeOffset);
+		builder.addFieldOffset(7, columnsOffset);
+		builder.addFieldOffset(10, crsOffset);
+		builder.addFieldShort(9, (short) headerNodeSize, (short) DEFAULT_NODE_SIZE);
+		builder.addFieldByte(2, geometryType, GEOMETRY_UNKNOWN);
+		builder.finishSizePrefixed(builder.endTable());
+	}
+
+	private int encodeCrs(CoordinateReferenceSystem crs) {
+		if (crs == null) {
+			return 0;
+		}
+		int code = 0;
+		try {
+			Integer epsgCode = CRS.lookupEpsgCode(crs, false);
+			if (epsgCode != null) {
+				code = epsgCode;
+			}
+		} catch (Exception e) {
+			// Fall back to the WKT if the code could not be found
+		}
+		int wktOffset = 0;
+		try {
+			wktOffset = builder.createString(crs.toWKT());
+		} catch (UnsupportedOperationException e) {
+			// Some coordinate reference systems can not be formatted as WKT
+		}
+		int orgOffset = code != 0 ? builder.createString("EPSG") : 0;
+		builder.startTable(5);
+		builder.addFieldOffset(0, orgOffset);
+		builder.addFieldInt(1, code, 0);
+		builder.addFieldOffset(4, wktOffset);
+		return builder.endTable();
+	}
+
+	/**
+	 * Encode a single feature into the builder, ready to be written.
+	 *
+	 * @return The geometry of the feature, which may be null.
+	 */
+	private Geometry encodeFeature(SimpleFeature feature) {
+		builder.clear();
+		Object value = feature.getDefaultGeometry();
+		Geometry geometry = value instanceof Geometry ? (Geometry) value : null;
+		int geometryOffset = 0;
+		if (geometry != null && !geometry.isEmpty()) {
+			geometryOffset = encodeGeometry(geometry, geometryType, false);
+		}
+		int propertiesOffset = 0;
+		if (encodeProperties(feature)) {
+			propertiesOffset = builder.createByteVector(properties.array(), 0, properties.position());
+		}
+		builder.startTable(2);
+		builder.addFieldOffset(0, geometryOffset);
+		builder.addFieldOffset(1, propertiesOffset);
+		builder.finishSizePrefixed(builder.endTable());
+		return geometry;
+	}
+
+	/**
+	 * Encode a geometry table. Multi-polygons and collections are written as a
+	 * list of parts, while other geometries are written as a flat list of
+	 * coordinates along with the end of each line or ring.
+	 *
+	 * @param geometry
+	 *            The geometry to encode.
+	 * @param type
+	 *            The type from the header, or {@link #GEOMETRY_UNKNOWN} if the
+	 *            type must be written with the geometry.
+	 * @param part
+	 *            True if the geometry is a part of another geometry, which
+	 *            always has its type written.
+	 * @return The offset of the geometry table.
+	 */
+	private int encodeGeometry(Geometry geometry, byte type, boolean part) {
+		byte actualType = type;
+		if (actualType == GEOMETRY_UNKNOWN) {
+			actualType = getGeometryType(geometry.getClass());
+			if (actualType == GEOMETRY_UNKNOWN && geometry instanceof GeometryCollection) {
+				actualType = GEOMETRY_COLLECTION;
+			}
+		}
+		boolean writeType = part || type == GEOMETRY_UNKNOWN;
+
+		if (actualType == GEOMETRY_MULTIPOLYGON || actualType == GEOMETRY_COLLECTION) {
+			int[] partOffsets = new int[geometry.getNumGeometries()];
+			for (int i = 0; i < partOffsets.length; i++) {
+				Geometry nextPart = geometry.getGeometryN(i);
+				partOffsets[i] = encodeGeometry(nextPart,
+						actualType == GEOMETRY_MULTIPOLYGON ? GEOMETRY_POLYGON : GEOMETRY_UNKNOWN, true);
+			}
+			int partsOffset = builder.createOffsetVector(partOffsets, 0, partOffsets.length);
+			builder.startTable(8);
+			builder.addFieldOffset(7, partsOffset);
+			if (writeType) {
+				builder.addFieldByte(6, actualType, GEOMETRY_UNKNOWN);
+			}
+			return builder.endTable();
+		}
+
+		xyLength = 0;
+		endsLength = 0;
+		addCoordinates(geometry);
+		int xyOffset = builder.createDoubleVector(xy, 0, xyLength);
+		int endsOffset = 0;
+		if (endsLength > 1) {
+			endsOffset = builder.createIntVector(ends, 0, endsLength);
+		}
+		builder.startTable(8);
+		builder.addFieldOffset(0, endsOffset);
+		builder.addFieldOffset(1, xyOffset);
+		if (writeType) {
+			builder.addFieldByte(6, actualType, GEOMETRY_UNKNOWN);
+		}
+		return builder.endTable();
+	}
+
+	/**
+	 * Add the coordinates of a point, line or polygon, or the parts of a
+	 * multi-point or multi-line, to the coordinate buffer, recording the end of
+	 * each line or ring as a count of coordinates.
+	 */
+	private void addCoordinates(Geometry geometry) {
+		if (geometry instanceof Polygon) {
+			Polygon polygon = (Polygon) geometry;
+			addSequence(polygon.getExteriorRing().getCoordinateSequence());
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				addSequence(polygon.getInteriorRingN(i).getCoordinateSequence());
+			}
+		} else if (geometry instanceof LineString) {
+			addSequence(((LineString) geometry).getCoordinateSequence());
+		} else if (geometry instanceof Point) {
+			addSequence(((Point) geometry).getCoordinateSequence());
+		} else if (geometry instanceof MultiPoint) {
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				addSequence(((Point) geometry.getGeometryN(i)).getCoordinateSequence());
+			}
+			// The points in a multi-point are not separate lines
+			endsLength = 0;
+		} else {
+			for (int i = 0; i < geometry.getNumGeometries(); i++) {
+				addCoordinates(geometry.getGeometryN(i));
+			}
+		}
+	}
+
+	private void addSequence(CoordinateSequence sequence) {
+		int size = sequence.size();
+		if (xy.length < xyLength + size * 2) {
+			xy = Arrays.copyOf(xy, Math.max(xy.length * 2, xyLength + size * 2));
+		}
+		for (int i = 0; i < size; i++) {
+			xy[xyLength++] = sequence.getX(i);
+			xy[xyLength++] = sequence.getY(i);
+		}
+		if (endsLength == ends.length) {
+			ends = Arrays.copyOf(ends, ends.length * 2);
+		}
+		ends[endsLength++] = xyLength / 2;
+	}
+
+	/**
+	 * Encode the non-null attributes of the feature into the properties buffer,
+	 * as the index of each column followed by its value.
+	 *
+	 * @return True if any properties were encoded.
+	 */
+	private boolean encodeProperties(SimpleFeature feature) {
+		properties.clear();
+		for (int i = 0; i < attributeIndexes.length; i++) {
+			Object value = feature.getAttribute(attributeIndexes[i]);
+			if (value == null) {
+				continue;
+			}
+			int start = properties.position();
+			ensureProperties(2 + 8);
+			properties.putShort((short) i);
+			if (!encodeValue(columnTypes[i], value)) {
+				// Values that do not match the column type are written as nulls
+				properties.position(start);
+			}
+		}
+		return properties.position() > 0;
+	}
+
+	private boolean encodeValue(byte columnType, Object value) {
+		try {
+			switch (columnType) {
+			case COLUMN_BOOL:
+				if (!(value instanceof Boolean)) {
+					return false;
+				}
+				properties.put((byte) (((Boolean) value) ? 1 : 0));
+				return true;
+			case COLUMN_BYTE:
+				properties.put(value instanceof Number ? ((Number) value).byteValue()
+						: Byte.parseByte(value.toString().trim()));
+				return true;
+			case COLUMN_SHORT:
+				properties.putShort(value instanceof Number ? ((Number) value).shortValue()
+						: Short.parseShort(value.toString().trim()));
+				return true;
+			case COLUMN_INT:
+				properties.putInt(value instanceof Number ? ((Number) value).intValue()
+						: Integer.parseInt(value.toString().trim()));
+				return true;
+			case COLUMN_LONG:
+				properties.putLong(value instanceof Number ? ((Number) value).longValue()
+						: Long.parseLong(value.toString().trim()));
+				return true;
+			case COLUMN_FLOAT:
+				properties.putFloat(value instanceof Number ? ((Number) value).floatValue()
+						: Float.parseFloat(value.toString().trim()));
+				return true;
+			case COLUMN_DOUBLE:
+				properties.putDouble(value instanceof Number ? ((Number) value).doubleValue()
+						: Double.parseDouble(value.toString().trim()));
+				return true;
+			case COLUMN_DATETIME:
+				if (!(value instanceof Date)) {
+					return false;
+				}
+				putString(((Date) value).toInstant().toString());
+				return true;
+			default:
+				putString(value.toString());
+				return true;
+			}
+		} catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private void putString(String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		ensureProperties(4 + bytes.length);
+		properties.putInt(bytes.length);
+		properties.put(bytes);
+	}
+
+	private void ensureProperties(int required) {
+		if (properties.remaining() < required) {
+			ByteBuffer grown = ByteBuffer.allocate(Math.max(properties.capacity() * 2, properties.position() + required))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			properties.flip();
+			grown.put(properties);
+			properties = grown;
+		}
+	}
+
+	/**
+	 * Write the packed Hilbert R-tree, with the root node first and the leaves,
+	 * which refer to the features in sorted order, last.
+	 */
+	private void writeIndex(FeatureBounds bounds, long[] order, OutputStream output) throws IOException {
+		int count = bounds.count;
+		long[][] levels = getLevelBounds(count, nodeSize);
+		int nodeCount = (int) levels[0][1];
+		double[] nodeMinX = new double[nodeCount];
+		double[] nodeMinY = new double[nodeCount];
+		double[] nodeMaxX = new double[nodeCount];
+		double[] nodeMaxY = new double[nodeCount];
+		long[] nodeOffsets = new long[nodeCount];
+
+		int leafStart = (int) levels[0][0];
+		long featureOffset = 0;
+		for (int i = 0; i < count; i++) {
+			int next = (int) order[i];
+			int node = leafStart + i;
+			nodeMinX[node] = bounds.minX[next];
+			nodeMinY[node] = bounds.minY[next];
+			nodeMaxX[node] = bounds.maxX[next];
+			nodeMaxY[node] = bounds.maxY[next];
+			nodeOffsets[node] = featureOffset;
+			featureOffset += bounds.lengths[next];
+		}
+		for (int level = 0; level < levels.length - 1; level++) {
+			int child = (int) levels[level][0];
+			int childEnd = (int) levels[level][1];
+			for (int parent = (int) levels[level + 1][0]; parent < levels[level + 1][1]; parent++) {
+				nodeOffsets[parent] = child;
+				nodeMinX[parent] = Double.POSITIVE_INFINITY;
+				nodeMinY[parent] = Double.POSITIVE_INFINITY;
+				nodeMaxX[parent] = Double.NEGATIVE_INFINITY;
+				nodeMaxY[parent] = Double.NEGATIVE_INFINITY;
+				for (int i = 0; i < nodeSize && child < childEnd; i++, child++) {
+					nodeMinX[parent] = Math.min(nodeMinX[parent], nodeMinX[child]);
+					nodeMinY[parent] = Math.min(nodeMinY[parent], nodeMinY[child]);
+					nodeMaxX[parent] = Math.max(nodeMaxX[parent], nodeMaxX[child]);
+					nodeMaxY[parent] = Math.max(nodeMaxY[parent], nodeMaxY[child]);
+				}
+			}
+		}
+
+		ByteBuffer nodeBuffer = ByteBuffer.allocate(NODE_LENGTH * 1024).order(ByteOrder.LITTLE_ENDIAN);
+		for (int node = 0; node < nodeCount; node++) {
+			if (!nodeBuffer.hasRemaining()) {
+				output.write(nodeBuffer.array(), 0, nodeBuffer.position());
+				nodeBuffer.clear();
+			}
+			nodeBuffer.putDouble(nodeMinX[node]);
+			nodeBuffer.putDouble(nodeMinY[node]);
+			nodeBuffer.putDouble(nodeMaxX[node]);
+			nodeBuffer.putDouble(nodeMaxY[node]);
+			nodeBuffer.putLong(nodeOffsets[node]);
+		}
+		output.write(nodeBuffer.array(), 0, nodeBuffer.position());
+	}
+
+	/**
+	 * Find the range of node positions for each level of a packed R-tree, from
+	 * the leaves to the root, where the root is at position 0 and the leaves are
+	 * at the end.
+	 *
+	 * @param itemCount
+	 *            The number of items in the tree, which must be at least 1.
+	 * @param nodeSize
+	 *            The number of children for each node.
+	 * @return An array with the start and end of each level, starting with the
+	 *         leaves. The end of the leaf level is the total number of nodes.
+	 */
+	static long[][] getLevelBounds(long itemCount, int nodeSize) {
+		int levelCount = 1;
+		long n = itemCount;
+		long nodeCount = n;
+		do {
+			n = (n + nodeSize - 1) / nodeSize;
+			nodeCount += n;
+			levelCount++;
+		} while (n != 1);
+
+		long[][] result = new long[levelCount][];
+		n = itemCount;
+		long levelEnd = nodeCount;
+		for (int level = 0; level < levelCount; level++) {
+			result[level] = new long[] { levelEnd - n, levelEnd };
+			levelEnd -= n;
+			n = (n + nodeSize - 1) / nodeSize;
+		}
+		return result;
+	}
+
+	/**
+	 * @return The length in bytes of a packed R-tree with the given number of
+	 *         items and node size.
+	 */
+	static long getIndexLength(long itemCount, int nodeSize) {
+		if (itemCount == 0 || nodeSize == 0) {
+			return 0;
+		}
+		long[][] levels = getLevelBounds(itemCount, nodeSize);
+		return levels[0][1] * NODE_LENGTH;
+	}
+
+	/**
+	 * The bounding box, position and length of each encoded feature, kept in
+	 * primitive arrays to avoid an object for each feature.
+	 */
+	private static final class FeatureBounds {
+
+		private int count;
+		private double[] minX = new double[1024];
+		private double[] minY = new double[1024];
+		private double[] maxX = new double[1024];
+		private double[] maxY = new double[1024];
+		private long[] offsets = new long[1024];
+		private int[] lengths = new int[1024];
+		private final Envelope extent = new Envelope();
+
+		private void add(Geometry geometry, long offset, int length) {
+			if (count == Integer.MAX_VALUE - 8) {
+				throw new IllegalStateException("Too many features to index: " + count);
+			}
+			if (count == offsets.length) {
+				int newLength = (int) Math.min(Integer.MAX_VALUE - 8, count * 2L);
+				minX = Arrays.copyOf(minX, newLength);
+				minY = Arrays.copyOf(minY, newLength);
+				maxX = Arrays.copyOf(maxX, newLength);
+				maxY = Arrays.copyOf(maxY, newLength);
+				offsets = Arrays.copyOf(offsets, newLength);
+				lengths = Arrays.copyOf(lengths, newLength);
+			}
+			if (geometry == null || geometry.isEmpty()) {
+				// An inverted box does not extend the bounds of any node
+				minX[count] = Double.POSITIVE_INFINITY;
+				minY[count] = Double.POSITIVE_INFINITY;
+				maxX[count] = Double.NEGATIVE_INFINITY;
+				maxY[count] = Double.NEGATIVE_INFINITY;
+			} else {
+				Envelope envelope = geometry.getEnvelopeInternal();
+				minX[count] = envelope.getMinX();
+				minY[count] = envelope.getMinY();
+				maxX[count] = envelope.getMaxX();
+				maxY[count] = envelope.getMaxY();
+				extent.expandToInclude(envelope);
+			}
+			offsets[count] = offset;
+			lengths[count] = length;
+			count++;
+		}
+
+		private Envelope getExtent() {
+			return extent;
+		}
+
+		/**
+		 * Sort the features in descending order of the Hilbert curve index of
+		 * the centre of their bounding boxes, as the reference implementation
+		 * does, keeping the original order for features with the same index.
+		 *
+		 * @return The indexes of the features in sorted order, in the lower 32
+		 *         bits of each value.
+		 */
+		private long[] sort() {
+			HilbertCurve curve = new HilbertCurve(extent);
+			long[] keys = new long[count];
+			for (int i = 0; i < count; i++) {
+				long hilbert = curve.index(minX[i], minY[i], maxX[i], maxY[i]) & 0xFFFFFFFFL;
+				// Flip the sign bit so that the signed sort matches the unsigned order
+				keys[i] = (((0xFFFFFFFFL - hilbert) << 32) | i) ^ Long.MIN_VALUE;
+			}
+			Arrays.parallelSort(keys);
+			for (int i = 0; i < count; i++) {
+				keys[i] &= 0xFFFFFFFFL;
+			}
+			return keys;
+		}
+	}
+}
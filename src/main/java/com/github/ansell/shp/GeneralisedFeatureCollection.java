@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A feature collection that generalises the geometries of a source collection
+ * to the pixel size of the image they will be rendered into, so that the time
+ * to render depends on the size of the image rather than the number of
+ * vertices in the input.
+ * <p>
+ * Geometries are simplified to half of a pixel on a fork-join pool, so edges
+ * may move by up to half a pixel, and anti-aliased edges may be drawn
+ * slightly differently. Features that are smaller than a pixel are not
+ * simplified, and only the first of them in each pixel is returned, so the
+ * image is an approximation where features overlap: the later features in a
+ * pixel are not drawn, even if they would have been drawn in a different
+ * colour or would have spilled into the neighbouring pixels.
+ * <p>
+ * The fork-join pool is shared by all of the iterations, and is shut down by
+ * {@link #close()}. Each iteration generalises the source again, unless the
+ * collection is created to cache the features, in which case the features
+ * from the first complete iteration are held in memory and returned by later
+ * iterations.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class GeneralisedFeatureCollection extends AbstractFeatureCollection implements Closeable {
+
+	/**
+	 * The number of features simplified by each worker task.
+	 */
+	private static final int BATCH_SIZE = 1000;
+
+	/**
+	 * The largest number of pixels that are tracked to remove features that are
+	 * smaller than a pixel. Larger images do not remove any features.
+	 */
+	private static final long MAX_TRACKED_PIXELS = 1L << 28;
+
+	private final SimpleFeatureCollection source;
+	private final int threads;
+	private final double pixelSize;
+	private final double minX;
+	private final double maxY;
+	private final int imageWidth;
+	private final int imageHeight;
+	private final boolean cacheFeatures;
+	private ForkJoinPool pool;
+	private volatile List<SimpleFeature> cachedFeatures;
+
+	private final AtomicLong inputVertices = new AtomicLong();
+	private final AtomicLong outputVertices = new AtomicLong();
+	private final AtomicLong culledFeatures = new AtomicLong();
+
+	/**
+	 * @param source
+	 *            The features to generalise.
+	 * @param renderBounds
+	 *            The bounds of the image that the features will be rendered
+	 *            into.
+	 * @param imageWidth
+	 *            The width of the image in pixels.
+	 * @param threads
+	 *            The number of threads to simplify geometries with.
+	 */
+	public GeneralisedFeatureCollection(SimpleFeatureCollection source, ReferencedEnvelope renderBounds,
+			int imageWidth, int threads) {
+		this(source, renderBounds, imageWidth, threads, false);
+	}
+
+	/**
+	 * @param source
+	 *            The features to generalise.
+	 * @param renderBounds
+	 *            The bounds of the image that the features will be rendered
+	 *            into.
+	 * @param imageWidth
+	 *            The width of the image in pixels.
+	 * @param threads
+	 *            The number of threads to simplify geometries with.
+	 * @param cacheFeatures
+	 *            True to hold the generalised features in memory after the first
+	 *            complete iteration, so callers that iterate more than once, such
+	 *            as tiled renders, only generalise the source once.
+	 */
+	public GeneralisedFeatureCollection(SimpleFeatureCollection source, ReferencedEnvelope renderBounds,
+			int imageWidth, int threads, boolean cacheFeatures) {
+		super(source.getSchema());
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+		}
+		if (imageWidth < 1) {
+			throw new IllegalArgumentException("Image width must be at least 1: " + imageWidth);
+		}
+		this.source = source;
+		this.threads = threads;
+		this.imageWidth = imageWidth;
+		// Use the same image height as SHPUtils.renderImage
+		this.imageHeight = (int) Math.round(imageWidth * renderBounds.getSpan(1) / renderBounds.getSpan(0));
+		this.pixelSize = renderBounds.getSpan(0) / imageWidth;
+		this.minX = renderBounds.getMinX();
+		this.maxY = renderBounds.getMaxY();
+		this.cacheFeatures = cacheFeatures;
+	}
+
+	/**
+	 * @return The size of a pixel in the units of the coordinate reference
+	 *         system.
+	 */
+	public double getPixelSize() {
+		return pixelSize;
+	}
+
+	/**
+	 * @return The number of vertices read from the source, for all of the
+	 *         iterations so far.
+	 */
+	public long getInputVertices() {
+		return inputVertices.get();
+	}
+
+	/**
+	 * @return The number of vertices after simplifying, including features that
+	 *         were then removed, for all of the iterations so far.
+	 */
+	public long getOutputVertices() {
+		return outputVertices.get();
+	}
+
+	/**
+	 * @return The number of features that were not returned because another
+	 *         feature smaller than a pixel had already been returned in the same
+	 *         pixel, for all of the iterations so far.
+	 */
+	public long getCulledFeatures() {
+		return culledFeatures.get();
+	}
+
+	@Override
+	protected Iterator<SimpleFeature> openIterator() {
+		List<SimpleFeature> cached = cachedFeatures;
+		if (cached != null) {
+			return cached.iterator();
+		}
+		return new GeneralisingIterator(source.features(), getPool());
+	}
+
+	private synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	/**
+	 * The size of the source is returned until the features are cached, as
+	 * finding the number of features that would be removed requires a complete
+	 * pass over the source.
+	 */
+	@Override
+	public int size() {
+		List<SimpleFeature> cached = cachedFeatures;
+		if (cached != null) {
+			return cached.size();
+		}
+		return source.size();
+	}
+
+	@Override
+	public ReferencedEnvelope getBounds() {
+		return source.getBounds();
+	}
+
+	/**
+	 * Shut down the threads used to simplify geometries. Iterations that were
+	 * cached can still be read after this collection is closed.
+	 */
+	@Override
+	public synchronized void close() {
+		if (pool != null) {
+			pool.shutdownNow();
+			pool = null;
+		}
+	}
+
+	/**
+	 * Simplify the geometries in a batch of features, recording the pixel that
+	 * contains each feature that is smaller than a pixel.
+	 */
+	private Batch generaliseBatch(List<SimpleFeature> features) {
+		Batch result = new Batch(features.size());
+		for (SimpleFeature nextFeature : features) {
+			long pixel = -1;
+			SimpleFeature generalised = nextFeature;
+			Object value = nextFeature.getDefaultGeometry();
+			if (value instanceof Geometry && !((Geometry) value).isEmpty()) {
+				Geometry geometry = (Geometry) value;
+				int vertexCount = geometry.getNumPoints();
+				result.inputVertices += vertexCount;
+				Envelope envelope = geometry.getEnvelopeInternal();
+				if (envelope.getWidth() < pixelSize && envelope.getHeight() < pixelSize) {
+					pixel = getPixel(envelope);
+					result.outputVertices += vertexCount;
+				} else {
+					Geometry simplified = simplify(geometry);
+					result.outputVertices += simplified.getNumPoints();
+					if (simplified != geometry) {
+						generalised = replaceGeometry(nextFeature, simplified);
+					}
+				}
+			}
+			result.features.add(generalised);
+			result.pixels[result.features.size() - 1] = pixel;
+		}
+		return result;
+	}
+
+	private Geometry simplify(Geometry geometry) {
+		if (geometry instanceof Point || geometry instanceof MultiPoint || geometry.getNumPoints() <= 4) {
+			return geometry;
+		}
+		DouglasPeuckerSimplifier simplifier = new DouglasPeuckerSimplifier(geometry);
+		simplifier.setDistanceTolerance(pixelSize / 2);
+		// Rendering does not need valid geometries, and repairing them is slow
+		simplifier.setEnsureValid(false);
+		Geometry result = simplifier.getResultGeometry();
+		// Thin shapes may collapse, but they are still drawn at full size
+		return result.isEmpty() ? geometry : result;
+	}
+
+	private static SimpleFeature replaceGeometry(SimpleFeature feature, Geometry geometry) {
+		List<Object> attributes = new ArrayList<>(feature.getAttributes());
+		int geometryIndex = feature.getFeatureType()
+				.indexOf(feature.getFeatureType().getGeometryDescriptor().getLocalName());
+		attributes.set(geometryIndex, geometry);
+		return new SimpleFeatureImpl(attributes, feature.getFeatureType(), feature.getIdentifier());
+	}
+
+	/**
+	 * @return The position of the pixel containing the centre of the envelope,
+	 *         counting across each row from the top left of the image, or -1 if
+	 *         the centre is outside of the image or the image is too large to
+	 *         track.
+	 */
+	private long getPixel(Envelope envelope) {
+		if ((long) imageWidth * imageHeight > MAX_TRACKED_PIXELS) {
+			return -1;
+		}
+		double column = Math.floor((envelope.centre().x - minX) / pixelSize);
+		double row = Math.floor((maxY - envelope.centre().y) / pixelSize);
+		if (!(column >= 0 && column < imageWidth && row >= 0 && row < imageHeight)) {
+			return -1;
+		}
+		return (long) row * imageWidth + (long) column;
+	}
+
+	private static final class Batch {
+
+		private final List<SimpleFeature> features;
+		private final long[] pixels;
+		private long inputVertices;
+		private long outputVertices;
+
+		private Batch(int size) {
+			this.features = new ArrayList<>(size);
+			this.pixels = new long[size];
+		}
+	}
+
+	/**
+	 * Submits batches of features to a fork-join pool, keeping a bounded window
+	 * of batches in flight, and returns the generalised features in their
+	 * original order.
+	 */
+	private final class GeneralisingIterator implements Iterator<SimpleFeature>, SimpleFeatureIterator {
+
+		private final SimpleFeatureIterator delegate;
+		private final ForkJoinPool pool;
+		private final Deque<Future<Batch>> pending = new ArrayDeque<>();
+		private final BitSet usedPixels = new BitSet();
+		private final List<SimpleFeature> generalisedFeatures = cacheFeatures ? new ArrayList<>() : null;
+		private Batch current = null;
+		private Iterator<SimpleFeature> currentFeatures = Collections.emptyIterator();
+		private int currentPosition = 0;
+		private SimpleFeature nextFeature;
+
+		private GeneralisingIterator(SimpleFeatureIterator delegate, ForkJoinPool pool) {
+			this.delegate = delegate;
+			this.pool = pool;
+			for (int i = 0; i < threads * 2; i++) {
+				submitNextBatch();
+			}
+		}
+
+		private void submitNextBatch() {
+			if (!delegate.hasNext()) {
+				return;
+			}
+			final List<SimpleFeature> nextBatch = new ArrayList<>(BATCH_SIZE);
+			while (nextBatch.size() < BATCH_SIZE && delegate.hasNext()) {
+				nextBatch.add(delegate.next());
+			}
+			pending.add(pool.submit(() -> generaliseBatch(nextBatch)));
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (nextFeature == null) {
+				if (!currentFeatures.hasNext()) {
+					Future<Batch> nextBatch = pending.poll();
+					if (nextBatch == null) {
+						if (generalisedFeatures != null && cachedFeatures == null) {
+							cachedFeatures = Collections.unmodifiableList(generalisedFeatures);
+						}
+						return false;
+					}
+					try {
+						current = nextBatch.get();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException("Interrupted while generalising geometries", e);
+					} catch (ExecutionException e) {
+						throw new RuntimeException("Failed to generalise geometries", e.getCause());
+					}
+					inputVertices.addAndGet(current.inputVertices);
+					outputVertices.addAndGet(current.outputVertices);
+					currentFeatures = current.features.iterator();
+					currentPosition = 0;
+					submitNextBatch();
+					continue;
+				}
+				SimpleFeature candidate = currentFeatures.next();
+				long pixel = current.pixels[currentPosition++];
+				if (pixel >= 0) {
+					if (usedPixels.get((int) pixel)) {
+						culledFeatures.incrementAndGet();
+						continue;
+					}
+					usedPixels.set((int) pixel);
+				}
+				nextFeature = candidate;
+				if (generalisedFeatures != null) {
+					generalisedFeatures.add(candidate);
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			SimpleFeature result = nextFeature;
+			nextFeature = null;
+			return result;
+		}
+
+		@Override
+		public void close() {
+			// The pool is shared with other iterations, so only the batches for
+			// this iteration are cancelled
+			for (Future<Batch> nextBatch : pending) {
+				nextBatch.cancel(true);
+			}
+			pending.clear();
+			delegate.close();
+		}
+	}
+}
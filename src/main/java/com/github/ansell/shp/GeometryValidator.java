@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.CRS;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.Polygonal;
+import org.locationtech.jts.geom.Puntal;
+import org.locationtech.jts.operation.valid.IsValidOp;
+import org.locationtech.jts.operation.valid.TopologyValidationError;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.geometry.Envelope;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * Checks the geometry of each feature for problems that prevent it from being
+ * loaded into spatial databases, using a fork-join pool to validate batches of
+ * features in parallel. Problems are written in the order of the input, and
+ * statistics about the vertex counts, areas and lengths of the geometries are
+ * collected along with the number of problems of each type.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class GeometryValidator {
+
+	public static final List<String> PROBLEM_HEADERS = Arrays.asList("featureId", "problem", "detail",
+			"vertexCount");
+
+	public static final List<String> STATISTICS_HEADERS = Arrays.asList("statistic", "key", "value");
+
+	public static final String NULL_GEOMETRY = "Null geometry";
+	public static final String EMPTY_GEOMETRY = "Empty geometry";
+	public static final String INVALID_COORDINATE = "NaN or infinite coordinate";
+	public static final String UNCLOSED_RING = "Unclosed ring";
+	public static final String EXTREME_VERTEX_COUNT = "Extreme vertex count";
+	public static final String OUTSIDE_CRS_BOUNDS = "Outside CRS bounds";
+
+	/**
+	 * The number of features validated by each worker task.
+	 */
+	public static final int BATCH_SIZE = 1000;
+
+	private final int threads;
+	private final int maxVertices;
+	private final ReferencedEnvelope crsBounds;
+
+	private long featureCount = 0;
+	private long invalidFeatureCount = 0;
+	private final Map<String, Long> problemCounts = new TreeMap<>();
+	// Bucket i counts geometries with between 2^(i-1) and 2^i - 1 vertices
+	private final long[] vertexHistogram = new long[33];
+	private final TDigest areas = new TDigest();
+	private final TDigest lengths = new TDigest();
+
+	/**
+	 * @param threads
+	 *            The number of threads to validate geometries with.
+	 * @param maxVertices
+	 *            The number of vertices above which a geometry is reported as
+	 *            having an extreme vertex count.
+	 * @param crs
+	 *            The coordinate reference system of the geometries, used to
+	 *            find geometries outside of its area of validity, or null to
+	 *            skip that check.
+	 */
+	public GeometryValidator(int threads, int maxVertices, CoordinateReferenceSystem crs) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+		}
+		this.threads = threads;
+		this.maxVertices = maxVertices;
+		Envelope bounds = crs == null ? null : CRS.getEnvelope(crs);
+		this.crsBounds = bounds == null ? null : ReferencedEnvelope.reference(bounds);
+	}
+
+	/**
+	 * Validate the geometries from the given features, writing a row for each
+	 * problem found.
+	 *
+	 * @param features
+	 *            The features to validate, which are not closed by this method.
+	 * @param problemOutput
+	 *            The output to write the problems to as CSV.
+	 * @return This validator, to access the statistics.
+	 * @throws IOException
+	 *             If there is an error writing the problems.
+	 */
+	public GeometryValidator validate(SimpleFeatureIterator features, Writer problemOutput) throws IOException {
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try (SequenceWriter csv = CSVStream.newCSVWriter(problemOutput, CSVStream.buildSchema(PROBLEM_HEADERS));) {
+			Deque<Future<Batch>> pending = new ArrayDeque<>();
+			while (features.hasNext()) {
+				final List<SimpleFeature> nextBatch = new ArrayList<>(BATCH_SIZE);
+				while (nextBatch.size() < BATCH_SIZE && features.hasNext()) {
+					nextBatch.add(features.next());
+				}
+				pending.add(pool.submit(() -> validateBatch(nextBatch)));
+				// Keep a bounded number of batches in flight
+				if (pending.size() >= threads * 2) {
+					addBatch(pending.poll(), csv);
+				}
+			}
+			while (!pending.isEmpty()) {
+				addBatch(pending.poll(), csv);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		return this;
+	}
+
+	private void addBatch(Future<Batch> future, SequenceWriter csv) throws IOException {
+		Batch batch;
+		try {
+			batch = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while validating geometries", e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException("Failed to validate geometries", e.getCause());
+		}
+		featureCount += batch.featureCount;
+		invalidFeatureCount += batch.invalidFeatureCount;
+		for (List<String> nextProblem : batch.problems) {
+			csv.write(nextProblem);
+			problemCounts.merge(nextProblem.get(1), 1L, Long::sum);
+		}
+		for (int i = 0; i < vertexHistogram.length; i++) {
+			vertexHistogram[i] += batch.vertexHistogram[i];
+		}
+		areas.merge(batch.areas);
+		lengths.merge(batch.lengths);
+	}
+
+	private Batch validateBatch(List<SimpleFeature> features) {
+		Batch result = new Batch();
+		for (SimpleFeature nextFeature : features) {
+			result.featureCount++;
+			int problemsBefore = result.problems.size();
+			validateFeature(nextFeature, result);
+			if (result.problems.size() > problemsBefore) {
+				result.invalidFeatureCount++;
+			}
+		}
+		return result;
+	}
+
+	private void validateFeature(SimpleFeature feature, Batch batch) {
+		String featureId = feature.getID();
+		Object value = feature.getDefaultGeometry();
+		if (!(value instanceof Geometry)) {
+			batch.addProblem(featureId, NULL_GEOMETRY, "", 0);
+			return;
+		}
+		Geometry geometry = (Geometry) value;
+		int vertexCount = geometry.getNumPoints();
+		batch.vertexHistogram[32 - Integer.numberOfLeadingZeros(vertexCount)]++;
+		if (geometry.isEmpty()) {
+			batch.addProblem(featureId, EMPTY_GEOMETRY, "", vertexCount);
+			return;
+		}
+		if (vertexCount > maxVertices) {
+			batch.addProblem(featureId, EXTREME_VERTEX_COUNT, "More than " + maxVertices, vertexCount);
+		}
+		for (Coordinate nextCoordinate : geometry.getCoordinates()) {
+			if (!isFinite(nextCoordinate.x) || !isFinite(nextCoordinate.y)) {
+				// Topology checks are meaningless without finite coordinates
+				batch.addProblem(featureId, INVALID_COORDINATE, nextCoordinate.toString(), vertexCount);
+				return;
+			}
+		}
+		String unclosedRing = findUnclosedRing(geometry);
+		if (unclosedRing != null) {
+			batch.addProblem(featureId, UNCLOSED_RING, unclosedRing, vertexCount);
+		}
+		if (crsBounds != null && !crsBounds.covers(geometry.getEnvelopeInternal())) {
+			batch.addProblem(featureId, OUTSIDE_CRS_BOUNDS, geometry.getEnvelopeInternal().toString(), vertexCount);
+		}
+		TopologyValidationError error = new IsValidOp(geometry).getValidationError();
+		if (error != null) {
+			batch.addProblem(featureId, error.getMessage(),
+					error.getCoordinate() == null ? "" : error.getCoordinate().toString(), vertexCount);
+		}
+		if (geometry instanceof Polygonal) {
+			batch.areas.add(geometry.getArea());
+			batch.lengths.add(geometry.getLength());
+		} else if (!(geometry instanceof Puntal)) {
+			batch.lengths.add(geometry.getLength());
+		}
+	}
+
+	/**
+	 * Rings are closed when they are created by JTS, but readers that skip the
+	 * checks can still produce open rings.
+	 */
+	private static String findUnclosedRing(Geometry geometry) {
+		for (int i = 0; i < geometry.getNumGeometries(); i++) {
+			Geometry part = geometry.getGeometryN(i);
+			if (part instanceof Polygon) {
+				Polygon polygon = (Polygon) part;
+				if (!isClosed(polygon.getExteriorRing())) {
+					return "Exterior ring of part " + i;
+				}
+				for (int j = 0; j < polygon.getNumInteriorRing(); j++) {
+					if (!isClosed(polygon.getInteriorRingN(j))) {
+						return "Interior ring " + j + " of part " + i;
+					}
+				}
+			}
+		}
+		return null;
+	}
+
+	private static boolean isClosed(LineString ring) {
+		return ring.isEmpty() || ring.getCoordinateN(0).equals2D(ring.getCoordinateN(ring.getNumPoints() - 1));
+	}
+
+	private static boolean isFinite(double value) {
+		return !Double.isNaN(value) && !Double.isInfinite(value);
+	}
+
+	public long getFeatureCount() {
+		return featureCount;
+	}
+
+	public long getInvalidFeatureCount() {
+		return invalidFeatureCount;
+	}
+
+	/**
+	 * @return The number of times each type of problem was found.
+	 */
+	public Map<String, Long> getProblemCounts() {
+		return problemCounts;
+	}
+
+	/**
+	 * Print a summary of the validation.
+	 *
+	 * @param out
+	 *            The stream to print the summary to.
+	 */
+	public void printSummary(PrintStream out) {
+		out.println("Geometries validated: " + featureCount);
+		out.println("Features with problems: " + invalidFeatureCount);
+		for (Entry<String, Long> nextProblem : problemCounts.entrySet()) {
+			out.println("  " + nextProblem.getKey() + ": " + nextProblem.getValue());
+		}
+	}
+
+	/**
+	 * Write the aggregate statistics as CSV, with one row for each statistic.
+	 *
+	 * @param output
+	 *            The output to write the statistics to.
+	 * @throws IOException
+	 *             If there is an error writing the statistics.
+	 */
+	public void writeStatistics(Writer output) throws IOException {
+		try (SequenceWriter csv = CSVStream.newCSVWriter(output, CSVStream.buildSchema(STATISTICS_HEADERS));) {
+			csv.write(Arrays.asList("featureCount", "", Long.toString(featureCount)));
+			csv.write(Arrays.asList("invalidFeatureCount", "", Long.toString(invalidFeatureCount)));
+			for (Entry<String, Long> nextProblem : problemCounts.entrySet()) {
+				csv.write(Arrays.asList("problemCount", nextProblem.getKey(), Long.toString(nextProblem.getValue())));
+			}
+			for (int i = 0; i < vertexHistogram.length; i++) {
+				if (vertexHistogram[i] > 0) {
+					long low = i == 0 ? 0 : 1L << (i - 1);
+					long high = i == 0 ? 0 : (1L << i) - 1;
+					csv.write(Arrays.asList("vertexCount", low + "-" + high, Long.toString(vertexHistogram[i])));
+				}
+			}
+			writeQuantiles(csv, "area", areas);
+			writeQuantiles(csv, "length", lengths);
+		}
+	}
+
+	private static void writeQuantiles(SequenceWriter csv, String statistic, TDigest digest) throws IOException {
+		if (digest.getTotalWeight() == 0) {
+			return;
+		}
+		for (double nextQuantile : new double[] { 0, 0.05, 0.25, 0.5, 0.75, 0.95, 1 }) {
+			csv.write(Arrays.asList(statistic, "p" + Math.round(nextQuantile * 100),
+					Double.toString(digest.quantile(nextQuantile))));
+		}
+	}
+
+	/**
+	 * The problems and statistics from a batch of features, which are merged
+	 * in order on the calling thread.
+	 */
+	private static final class Batch {
+
+		private long featureCount = 0;
+		private long invalidFeatureCount = 0;
+		private final List<List<String>> problems = new ArrayList<>();
+		private final long[] vertexHistogram = new long[33];
+		private final TDigest areas = new TDigest();
+		private final TDigest lengths = new TDigest();
+
+		private void addProblem(String featureId, String problem, String detail, int vertexCount) {
+			problems.add(Arrays.asList(featureId, problem, detail, Integer.toString(vertexCount)));
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A Space-Saving sketch that tracks the most frequent values in a stream using
+ * a fixed number of counters. Values are identified by a 64 bit key, such as
+ * the bits of a number or the hash of a string, and a label is kept for each
+ * counter to show in reports. Counts are overestimates by at most the error
+ * recorded for each counter.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class HeavyHitters {
+
+	public static final int DEFAULT_CAPACITY = 32;
+
+	private final long[] keys;
+	private final long[] counts;
+	private final long[] errors;
+	private final Object[] labels;
+	private int size = 0;
+
+	public HeavyHitters() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public HeavyHitters(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1: " + capacity);
+		}
+		this.keys = new long[capacity];
+		this.counts = new long[capacity];
+		this.errors = new long[capacity];
+		this.labels = new Object[capacity];
+	}
+
+	/**
+	 * Add an occurrence of a value.
+	 *
+	 * @param key
+	 *            The key identifying the value.
+	 * @param label
+	 *            The value to show for the key, which is only retained if the
+	 *            key is not already being counted.
+	 */
+	public void add(long key, Object label) {
+		add(key, label, 1, 0);
+	}
+
+	private void add(long key, Object label, long count, long error) {
+		for (int i = 0; i < size; i++) {
+			if (keys[i] == key) {
+				counts[i] += count;
+				errors[i] += error;
+				return;
+			}
+		}
+		if (size < keys.length) {
+			keys[size] = key;
+			counts[size] = count;
+			errors[size] = error;
+			labels[size] = label;
+			size++;
+			return;
+		}
+		// Replace the smallest counter, which becomes the error for the new key
+		int smallest = 0;
+		for (int i = 1; i < size; i++) {
+			if (counts[i] < counts[smallest]) {
+				smallest = i;
+			}
+		}
+		long replacedCount = counts[smallest];
+		keys[smallest] = key;
+		labels[smallest] = label;
+		counts[smallest] = replacedCount + count;
+		errors[smallest] = replacedCount + error;
+	}
+
+	/**
+	 * Add the counters from another sketch to this sketch.
+	 *
+	 * @param other
+	 *            The sketch to merge into this sketch.
+	 */
+	public void merge(HeavyHitters other) {
+		for (int i = 0; i < other.size; i++) {
+			add(other.keys[i], other.labels[i], other.counts[i], other.errors[i]);
+		}
+	}
+
+	/**
+	 * @param limit
+	 *            The maximum number of values to return.
+	 * @return The labels and estimated counts of the most frequent values, most
+	 *         frequent first.
+	 */
+	public List<Entry> getTop(int limit) {
+		List<Entry> result = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			result.add(new Entry(labels[i], counts[i], errors[i]));
+		}
+		result.sort(Comparator.comparingLong(Entry::getCount).reversed());
+		return result.subList(0, Math.min(limit, result.size()));
+	}
+
+	/**
+	 * A value and its estimated count.
+	 */
+	public static final class Entry {
+
+		private final Object label;
+		private final long count;
+		private final long error;
+
+		Entry(Object label, long count, long error) {
+			this.label = label;
+			this.count = count;
+			this.error = error;
+		}
+
+		public Object getLabel() {
+			return label;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return The maximum amount that the count may be overestimated by.
+		 */
+		public long getError() {
+			return error;
+		}
+
+		@Override
+		public String toString() {
+			return label + "(*" + count + ")";
+		}
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Maps positions within an extent onto a 16 by 16 bit Hilbert curve, so that
+ * sorting by the curve index keeps features that are near each other in space
+ * near each other in the sort order.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class HilbertCurve {
+
+	/**
+	 * The largest coordinate on each axis of the curve.
+	 */
+	public static final int MAX_COORDINATE = (1 << 16) - 1;
+
+	private final double minX;
+	private final double minY;
+	private final double width;
+	private final double height;
+
+	/**
+	 * @param extent
+	 *            The extent that is mapped onto the curve.
+	 */
+	public HilbertCurve(Envelope extent) {
+		this.minX = extent.getMinX();
+		this.minY = extent.getMinY();
+		this.width = extent.getWidth();
+		this.height = extent.getHeight();
+	}
+
+	/**
+	 * Find the index on the curve of the centre of a bounding box.
+	 *
+	 * @return The index on the curve, or 0 if the bounding box is empty or not
+	 *         finite.
+	 */
+	public int index(double boxMinX, double boxMinY, double boxMaxX, double boxMaxY) {
+		return index(scale((boxMinX + boxMaxX) / 2 - minX, width), scale((boxMinY + boxMaxY) / 2 - minY, height));
+	}
+
+	private static int scale(double offset, double size) {
+		if (size == 0 || Double.isNaN(offset) || Double.isInfinite(offset)) {
+			return 0;
+		}
+		return (int) Math.max(0, Math.min(MAX_COORDINATE, Math.floor(MAX_COORDINATE * offset / size)));
+	}
+
+	/**
+	 * Find the index on the curve for a position, using the branch free method
+	 * from "Hilbert curves in O(log(log n))" by rawrunprotected, which is also
+	 * used for the FlatGeobuf spatial index.
+	 *
+	 * @param x
+	 *            The position on the x axis, between 0 and
+	 *            {@link #MAX_COORDINATE}.
+	 * @param y
+	 *            The position on the y axis, between 0 and
+	 *            {@link #MAX_COORDINATE}.
+	 * @return The index on the curve, as an unsigned 32 bit value.
+	 */
+	public static int index(int x, int y) {
+		int a = x ^ y;
+		int b = 0xFFFF ^ a;
+		int c = 0xFFFF ^ (x | y);
+		int d = x & (y ^ 0xFFFF);
+
+		int nextA = a | (b >>> 1);
+		int nextB = (a >>> 1) ^ a;
+		int nextC = ((c >>> 1) ^ (b & (d >>> 1))) ^ c;
+		int nextD = ((a & (c >>> 1)) ^ (d >>> 1)) ^ d;
+
+		a = nextA;
+		b = nextB;
+		c = nextC;
+		d = nextD;
+		nextA = (a & (a >>> 2)) ^ (b & (b >>> 2));
+		nextB = (a & (b >>> 2)) ^ (b & ((a ^ b) >>> 2));
+		nextC ^= (a & (c >>> 2)) ^ (b & (d >>> 2));
+		nextD ^= (b & (c >>> 2)) ^ ((a ^ b) & (d >>> 2));
+
+		a = nextA;
+		b = nextB;
+		c = nextC;
+		d = nextD;
+		nextA = (a & (a >>> 4)) ^ (b & (b >>> 4));
+		nextB = (a & (b >>> 4)) ^ (b & ((a ^ b) >>> 4));
+		nextC ^= (a & (c >>> 4)) ^ (b & (d >>> 4));
+		nextD ^= (b & (c >>> 4)) ^ ((a ^ b) & (d >>> 4));
+
+		a = nextA;
+		b = nextB;
+		c = nextC;
+		d = nextD;
+		nextC ^= (a & (c >>> 8)) ^ (b & (d >>> 8));
+		nextD ^= (b & (c >>> 8)) ^ ((a ^ b) & (d >>> 8));
+
+		a = nextC ^ (nextC >>> 1);
+		b = nextD ^ (nextD >>> 1);
+
+		int i0 = x ^ y;
+		int i1 = b | (0xFFFF ^ (i0 | a));
+		return (interleave(i1) << 1) | interleave(i0);
+	}
+
+	/**
+	 * Spread the lower 16 bits of a value into the even bits.
+	 */
+	private static int interleave(int value) {
+		int result = value;
+		result = (result | (result << 8)) & 0x00FF00FF;
+		result = (result | (result << 4)) & 0x0F0F0F0F;
+		result = (result | (result << 2)) & 0x33333333;
+		result = (result | (result << 1)) & 0x55555555;
+		return result;
+	}
+}
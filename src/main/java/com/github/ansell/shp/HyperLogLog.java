@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+/**
+ * A HyperLogLog sketch that estimates the number of distinct values using a
+ * fixed number of one byte registers. Values are added as 64 bit hashes, and
+ * two sketches with the same precision can be merged.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class HyperLogLog {
+
+	/**
+	 * The default precision, using 2^12 registers for a standard error of
+	 * about 1.6%.
+	 */
+	public static final int DEFAULT_PRECISION = 12;
+
+	private final int precision;
+	private final byte[] registers;
+
+	public HyperLogLog() {
+		this(DEFAULT_PRECISION);
+	}
+
+	public HyperLogLog(int precision) {
+		if (precision < 4 || precision > 18) {
+			throw new IllegalArgumentException("Precision must be between 4 and 18: " + precision);
+		}
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	public int getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * Add a value to the sketch.
+	 *
+	 * @param hash
+	 *            A well mixed 64 bit hash of the value, such as one from
+	 *            {@link #hash(long)} or {@link #hash(CharSequence)}.
+	 */
+	public void addHash(long hash) {
+		int index = (int) (hash >>> (64 - precision));
+		// The marker bit bounds the rank when the remaining bits are all zero
+		long remaining = (hash << precision) | (1L << (precision - 1));
+		byte rank = (byte) (Long.numberOfLeadingZeros(remaining) + 1);
+		if (rank > registers[index]) {
+			registers[index] = rank;
+		}
+	}
+
+	/**
+	 * Add the values from another sketch to this sketch.
+	 *
+	 * @param other
+	 *            A sketch with the same precision.
+	 */
+	public void merge(HyperLogLog other) {
+		if (other.precision != precision) {
+			throw new IllegalArgumentException(
+					"Cannot merge sketches with different precisions: " + precision + " and " + other.precision);
+		}
+		for (int i = 0; i < registers.length; i++) {
+			if (other.registers[i] > registers[i]) {
+				registers[i] = other.registers[i];
+			}
+		}
+	}
+
+	/**
+	 * @return The estimated number of distinct values that have been added.
+	 */
+	public long estimate() {
+		int registerCount = registers.length;
+		double sum = 0;
+		int zeroRegisters = 0;
+		for (byte nextRegister : registers) {
+			sum += 1.0 / (1L << nextRegister);
+			if (nextRegister == 0) {
+				zeroRegisters++;
+			}
+		}
+		double alpha = 0.7213 / (1 + 1.079 / registerCount);
+		double estimate = alpha * registerCount * registerCount / sum;
+		// Linear counting is more accurate for small cardinalities
+		if (estimate <= 2.5 * registerCount && zeroRegisters > 0) {
+			estimate = registerCount * Math.log((double) registerCount / zeroRegisters);
+		}
+		return Math.round(estimate);
+	}
+
+	/**
+	 * Mix the bits of a value using the MurmurHash3 finaliser.
+	 *
+	 * @param value
+	 *            The value to hash.
+	 * @return The 64 bit hash.
+	 */
+	public static long hash(long value) {
+		long result = value;
+		result ^= result >>> 33;
+		result *= 0xff51afd7ed558ccdL;
+		result ^= result >>> 33;
+		result *= 0xc4ceb9fe1a85ec53L;
+		result ^= result >>> 33;
+		return result;
+	}
+
+	/**
+	 * Hash the characters of a value without copying them.
+	 *
+	 * @param value
+	 *            The value to hash.
+	 * @return The 64 bit hash.
+	 */
+	public static long hash(CharSequence value) {
+		// FNV-1a, with the finaliser to spread the bits
+		long result = 0xcbf29ce484222325L;
+		for (int i = 0; i < value.length(); i++) {
+			result ^= value.charAt(i);
+			result *= 0x100000001b3L;
+		}
+		return hash(result);
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Random access to a file of any size through a sliding memory mapped window,
+ * so that headers and records can be read without copying them onto the heap.
+ * Instances are not thread safe.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class MappedFile implements Closeable {
+
+	public static final long DEFAULT_WINDOW_SIZE = 64L * 1024 * 1024;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final long size;
+	private final long windowSize;
+	private ByteBuffer window;
+	private long windowStart = 0;
+	private long windowEnd = 0;
+
+	private MappedFile(Path path, FileChannel channel, long windowSize) throws IOException {
+		this.path = path;
+		this.channel = channel;
+		this.size = channel.size();
+		this.windowSize = windowSize;
+	}
+
+	public static MappedFile open(Path path) throws IOException {
+		return open(path, DEFAULT_WINDOW_SIZE);
+	}
+
+	public static MappedFile open(Path path, long windowSize) throws IOException {
+		return new MappedFile(path, FileChannel.open(path, StandardOpenOption.READ), windowSize);
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Make sure that the given region is inside the current window, mapping a
+	 * new window starting at the position if it is not.
+	 */
+	private void ensureMapped(long position, int length) throws IOException {
+		if (position < 0 || position + length > size) {
+			throw new EOFException("Attempted to read " + length + " bytes at " + position + " past the end of "
+					+ path + " with size " + size);
+		}
+		if (window == null || position < windowStart || position + length > windowEnd) {
+			long mapLength = Math.min(Math.max(windowSize, length), size - position);
+			window = channel.map(MapMode.READ_ONLY, position, mapLength);
+			windowStart = position;
+			windowEnd = position + mapLength;
+		}
+	}
+
+	/**
+	 * @param position
+	 *            The position in the file.
+	 * @param length
+	 *            The number of bytes that will be read.
+	 * @return A big endian view of the mapped window, positioned at the given
+	 *         file position with its limit at the end of the region.
+	 * @throws IOException
+	 *             If the region is outside of the file or could not be mapped.
+	 */
+	public ByteBuffer slice(long position, int length) throws IOException {
+		ensureMapped(position, length);
+		ByteBuffer result = window.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int start = (int) (position - windowStart);
+		result.limit(start + length);
+		result.position(start);
+		return result;
+	}
+
+	public byte get(long position) throws IOException {
+		ensureMapped(position, 1);
+		return window.get((int) (position - windowStart));
+	}
+
+	public int getInt(long position, ByteOrder order) throws IOException {
+		ensureMapped(position, 4);
+		return window.order(order).getInt((int) (position - windowStart));
+	}
+
+	public short getShort(long position, ByteOrder order) throws IOException {
+		ensureMapped(position, 2);
+		return window.order(order).getShort((int) (position - windowStart));
+	}
+
+	public double getDouble(long position, ByteOrder order) throws IOException {
+		ensureMapped(position, 8);
+		return window.order(order).getDouble((int) (position - windowStart));
+	}
+
+	@Override
+	public void close() throws IOException {
+		window = null;
+		channel.close();
+	}
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Writes PNG tiles into a single PMTiles version 3 archive, which can be read
+ * from a local file or with HTTP range requests without a tile server or a
+ * SQLite database.
+ * <p>
+ * Tiles may be written in any order, from any thread. They are appended to a
+ * temporary file next to the output, and tiles with the same contents are
+ * stored once. When the writer is closed the tiles are copied into the archive
+ * in the order of their tile IDs, after the directories that locate them.
+ * Directories are written without compression. If the tiles could not all be
+ * rendered, {@link #abort()} discards them so that a partial archive is not
+ * written.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class PMTilesWriter implements TilePyramid.TileSink, Closeable {
+
+	static final byte[] MAGIC = "PMTiles".getBytes(StandardCharsets.US_ASCII);
+
+	static final int VERSION = 3;
+
+	static final int HEADER_LENGTH = 127;
+
+	/**
+	 * The header and root directory must fit in the first 16 kilobytes, so that
+	 * clients can fetch them with a single request.
+	 */
+	static final int MAX_ROOT_LENGTH = 16384 - HEADER_LENGTH;
+
+	static final byte COMPRESSION_NONE = 1;
+
+	static final byte TILE_TYPE_PNG = 2;
+
+	private final Path outputPath;
+	private final Path tempPath;
+	private final OutputStream tempOutput;
+	private final String name;
+	private final int minZoom;
+	private final int maxZoom;
+	private final Envelope bounds;
+	private final MessageDigest digest;
+	private final Map<ByteBuffer, Entry> contents = new HashMap<>();
+	private final List<Entry> entries = new ArrayList<>();
+	private long tempLength = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param outputPath
+	 *            The archive to create, which must not already exist.
+	 * @param name
+	 *            The name to record in the metadata.
+	 * @param minZoom
+	 *            The lowest zoom level in the archive.
+	 * @param maxZoom
+	 *            The highest zoom level in the archive.
+	 * @param bounds
+	 *            The longitude and latitude bounds of the tiles.
+	 * @throws IOException
+	 *             If the temporary file could not be created.
+	 */
+	public PMTilesWriter(Path outputPath, String name, int minZoom, int maxZoom, Envelope bounds)
+			throws IOException {
+		if (Files.exists(outputPath)) {
+			throw new IOException("Output file already exists: " + outputPath);
+		}
+		this.outputPath = outputPath;
+		this.name = name;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.bounds = bounds;
+		try {
+			this.digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not supported", e);
+		}
+		this.tempPath = Files.createTempFile(outputPath.toAbsolutePath().getParent(),
+				outputPath.getFileName().toString(), ".tmp");
+		this.tempOutput = new BufferedOutputStream(Files.newOutputStream(tempPath));
+	}
+
+	@Override
+	public synchronized void writeTile(int zoom, int x, int y, byte[] png) throws IOException {
+		long tileId = getTileId(zoom, x, y);
+		ByteBuffer hash = ByteBuffer.wrap(digest.digest(png));
+		Entry existing = contents.get(hash);
+		Entry entry;
+		if (existing == null) {
+			entry = new Entry(tileId, tempLength, png.length);
+			tempOutput.write(png);
+			tempLength += png.length;
+			contents.put(hash, entry);
+		} else {
+			entry = new Entry(tileId, existing.offset, existing.length);
+		}
+		entries.add(entry);
+	}
+
+	/**
+	 * @return The number of tiles that have been written.
+	 */
+	public synchronized int getTileCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return The number of distinct tile images that have been written.
+	 */
+	public synchronized int getContentCount() {
+		return contents.size();
+	}
+
+	/**
+	 * Discard the tiles that have been written and delete the temporary file,
+	 * without writing the archive. Closing the writer after it was aborted has
+	 * no effect.
+	 *
+	 * @throws IOException
+	 *             If the temporary file could not be deleted.
+	 */
+	public synchronized void abort() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			tempOutput.close();
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+	}
+
+	/**
+	 * Write the archive and delete the temporary file.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			tempOutput.close();
+			writeArchive();
+		} finally {
+			Files.deleteIfExists(tempPath);
+		}
+	}
+
+	private void writeArchive() throws IOException {
+		entries.sort(Comparator.comparingLong(e -> e.tileId));
+
+		// Lay out the tile data in tile ID order, sharing repeated contents
+		// and merging runs of consecutive tiles with the same contents
+		List<Entry> directoryEntries = new ArrayList<>();
+		List<Entry> copies = new ArrayList<>();
+		Map<Long, Long> newOffsets = new HashMap<>();
+		long dataLength = 0;
+		for (Entry nextEntry : entries) {
+			Long newOffset = newOffsets.get(nextEntry.offset);
+			if (newOffset == null) {
+				newOffset = dataLength;
+				newOffsets.put(nextEntry.offset, newOffset);
+				copies.add(nextEntry);
+				dataLength += nextEntry.length;
+			}
+			Entry last = directoryEntries.isEmpty() ? null : directoryEntries.get(directoryEntries.size() - 1);
+			if (last != null && last.offset == newOffset && last.tileId + last.runLength == nextEntry.tileId) {
+				last.runLength++;
+			} else {
+				directoryEntries.add(new Entry(nextEntry.tileId, newOffset, nextEntry.length));
+			}
+		}
+
+		byte[][] directories = buildDirectories(directoryEntries);
+		byte[] rootDirectory = directories[0];
+		byte[] leafDirectories = directories[1];
+		byte[] metadata = getMetadata().getBytes(StandardCharsets.UTF_8);
+
+		long rootOffset = HEADER_LENGTH;
+		long metadataOffset = rootOffset + rootDirectory.length;
+		long leafOffset = metadataOffset + metadata.length;
+		long dataOffset = leafOffset + leafDirectories.length;
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC);
+		header.put((byte) VERSION);
+		header.putLong(rootOffset);
+		header.putLong(rootDirectory.length);
+		header.putLong(metadataOffset);
+		header.putLong(metadata.length);
+		header.putLong(leafOffset);
+		header.putLong(leafDirectories.length);
+		header.putLong(dataOffset);
+		header.putLong(dataLength);
+		header.putLong(entries.size());
+		header.putLong(directoryEntries.size());
+		header.putLong(copies.size());
+		// The tile data is clustered in tile ID order
+		header.put((byte) 1);
+		header.put(COMPRESSION_NONE);
+		header.put(COMPRESSION_NONE);
+		header.put(TILE_TYPE_PNG);
+		header.put((byte) minZoom);
+		header.put((byte) maxZoom);
+		Envelope position = bounds.isNull() ? new Envelope(-180, 180, -85, 85) : bounds;
+		header.putInt(toE7(position.getMinX()));
+		header.putInt(toE7(position.getMinY()));
+		header.putInt(toE7(position.getMaxX()));
+		header.putInt(toE7(position.getMaxY()));
+		header.put((byte) minZoom);
+		header.putInt(toE7((position.getMinX() + position.getMaxX()) / 2));
+		header.putInt(toE7((position.getMinY() + position.getMaxY()) / 2));
+
+		try (OutputStream output = new BufferedOutputStream(
+				Files.newOutputStream(outputPath, StandardOpenOption.CREATE_NEW));
+				FileChannel tempChannel = FileChannel.open(tempPath, StandardOpenOption.READ);) {
+			output.write(header.array());
+			output.write(rootDirectory);
+			output.write(metadata);
+			output.write(leafDirectories);
+			ByteBuffer copyBuffer = ByteBuffer.allocate(64 * 1024);
+			for (Entry nextCopy : copies) {
+				copyBuffer.clear();
+				if (copyBuffer.capacity() < nextCopy.length) {
+					copyBuffer = ByteBuffer.allocate(nextCopy.length);
+				}
+				copyBuffer.limit(nextCopy.length);
+				while (copyBuffer.hasRemaining()) {
+					if (tempChannel.read(copyBuffer, nextCopy.offset + copyBuffer.position()) < 0) {
+						throw new IOException("Temporary tile file was truncated: " + tempPath);
+					}
+				}
+				output.write(copyBuffer.array(), 0, nextCopy.length);
+			}
+		}
+	}
+
+	private String getMetadata() {
+		StringBuilder result = new StringBuilder();
+		result.append("{\"name\":\"").append(name.replace("\\", "\\\\").replace("\"", "\\\""));
+		result.append("\",\"format\":\"png\",\"type\":\"overlay\"");
+		result.append(",\"minzoom\":\"").append(minZoom).append("\",\"maxzoom\":\"").append(maxZoom).append('"');
+		if (!bounds.isNull()) {
+			result.append(String.format(Locale.ROOT, ",\"bounds\":\"%.7f,%.7f,%.7f,%.7f\"", bounds.getMinX(),
+					bounds.getMinY(), bounds.getMaxX(), bounds.getMaxY()));
+		}
+		result.append('}');
+		return result.toString();
+	}
+
+	private static int toE7(double degrees) {
+		return (int) Math.round(degrees * 1e7);
+	}
+
+	/**
+	 * Serialise the entries as a root directory, and if that would be too long,
+	 * split them into leaf directories that are referenced from the root, using
+	 * the same leaf sizes as the reference implementation.
+	 *
+	 * @return The root directory and the leaf directories.
+	 */
+	static byte[][] buildDirectories(List<Entry> entries) {
+		byte[] root = serializeEntries(entries);
+		if (root.length <= MAX_ROOT_LENGTH) {
+			return new byte[][] { root, new byte[0] };
+		}
+		double leafSize = Math.max(4096, entries.size() / 3500.0);
+		while (true) {
+			List<Entry> rootEntries = new ArrayList<>();
+			ByteArrayOutputStream leaves = new ByteArrayOutputStream();
+			for (int start = 0; start < entries.size(); start += (int) leafSize) {
+				List<Entry> leafEntries = entries.subList(start, Math.min(entries.size(), start + (int) leafSize));
+				byte[] leaf = serializeEntries(leafEntries);
+				Entry leafEntry = new Entry(leafEntries.get(0).tileId, leaves.size(), leaf.length);
+				// A run length of zero marks a reference to a leaf directory
+				leafEntry.runLength = 0;
+				rootEntries.add(leafEntry);
+				leaves.write(leaf, 0, leaf.length);
+			}
+			root = serializeEntries(rootEntries);
+			if (root.length <= MAX_ROOT_LENGTH) {
+				return new byte[][] { root, leaves.toByteArray() };
+			}
+			leafSize *= 1.2;
+		}
+	}
+
+	/**
+	 * Serialise directory entries as columns of variable length integers, with
+	 * tile IDs as the difference from the previous entry and offsets as zero
+	 * when the data directly follows the previous entry.
+	 */
+	static byte[] serializeEntries(List<Entry> entries) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		writeVarint(output, entries.size());
+		long lastTileId = 0;
+		for (Entry nextEntry : entries) {
+			writeVarint(output, nextEntry.tileId - lastTileId);
+			lastTileId = nextEntry.tileId;
+		}
+		for (Entry nextEntry : entries) {
+			writeVarint(output, nextEntry.runLength);
+		}
+		for (Entry nextEntry : entries) {
+			writeVarint(output, nextEntry.length);
+		}
+		for (int i = 0; i < entries.size(); i++) {
+			Entry nextEntry = entries.get(i);
+			if (i > 0 && nextEntry.offset == entries.get(i - 1).offset + entries.get(i - 1).length) {
+				writeVarint(output, 0);
+			} else {
+				writeVarint(output, nextEntry.offset + 1);
+			}
+		}
+		return output.toByteArray();
+	}
+
+	private static void writeVarint(ByteArrayOutputStream output, long value) {
+		long remaining = value;
+		while ((remaining & ~0x7FL) != 0) {
+			output.write((int) ((remaining & 0x7F) | 0x80));
+			remaining >>>= 7;
+		}
+		output.write((int) remaining);
+	}
+
+	/**
+	 * Find the ID of a tile, which counts the tiles at every lower zoom level,
+	 * then follows a Hilbert curve through the tiles at the zoom level of the
+	 * tile.
+	 *
+	 * @param zoom
+	 *            The zoom level.
+	 * @param x
+	 *            The column of the tile.
+	 * @param y
+	 *            The row of the tile.
+	 * @return The tile ID.
+	 */
+	static long getTileId(int zoom, int x, int y) {
+		if (zoom < 0 || zoom > 26) {
+			throw new IllegalArgumentException("Zoom level must be between 0 and 26: " + zoom);
+		}
+		long size = 1L << zoom;
+		if (x < 0 || y < 0 || x >= size || y >= size) {
+			throw new IllegalArgumentException("Tile is outside of zoom level " + zoom + ": " + x + "," + y);
+		}
+		// The number of tiles at all lower zoom levels, (4^zoom - 1) / 3
+		long result = ((1L << (2 * zoom)) - 1) / 3;
+		long tx = x;
+		long ty = y;
+		for (long s = size / 2; s > 0; s /= 2) {
+			int rx = (tx & s) > 0 ? 1 : 0;
+			int ry = (ty & s) > 0 ? 1 : 0;
+			result += s * s * ((3 * rx) ^ ry);
+			if (ry == 0) {
+				if (rx == 1) {
+					tx = size - 1 - tx;
+					ty = size - 1 - ty;
+				}
+				long swap = tx;
+				tx = ty;
+				ty = swap;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * A directory entry, giving the offset and length of the contents for a run
+	 * of tiles starting at a tile ID.
+	 */
+	static final class Entry {
+
+		private final long tileId;
+		private final long offset;
+		private final int length;
+		private long runLength = 1;
+
+		Entry(long tileId, long offset, int length) {
+			this.tileId = tileId;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
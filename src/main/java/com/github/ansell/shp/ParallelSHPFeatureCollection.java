@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+/**
+ * A feature collection that reads a shapefile using multiple threads. The .shx
+ * offsets and the fixed .dbf record length are used to split the file into
+ * ranges of records, each range is decoded on a fork-join worker, and the
+ * results are returned in the original record order.
+ * <p>
+ * A selection of record indexes can be given to only read those records, such
+ * as a sample from {@link RecordSampler}. Each selected record is read
+ * separately, so the rest of the file is not read.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ParallelSHPFeatureCollection extends AbstractFeatureCollection {
+
+	/**
+	 * The default number of records decoded by each worker task.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+	/**
+	 * The number of selected records read by each worker task. Each selected
+	 * record is a separate read, so smaller tasks spread the reads over the
+	 * threads.
+	 */
+	public static final int SELECTED_CHUNK_SIZE = 100;
+
+	private final Path shpPath;
+	private final Path dbfPath;
+	private final SHXIndex shxIndex;
+	private final DBFHeader dbfHeader;
+	private final Charset charset;
+	private final int threads;
+	private final int chunkSize;
+	private final int[] dbfFieldIndexes;
+	private final int[] records;
+
+	public ParallelSHPFeatureCollection(Path shpPath, SimpleFeatureType schema, int threads) throws IOException {
+		this(shpPath, schema, threads, DEFAULT_CHUNK_SIZE);
+	}
+
+	public ParallelSHPFeatureCollection(Path shpPath, SimpleFeatureType schema, int threads, int chunkSize)
+			throws IOException {
+		this(shpPath, schema, threads, chunkSize, null);
+	}
+
+	/**
+	 * @param shpPath
+	 *            The .shp file, with .shx and .dbf files next to it.
+	 * @param schema
+	 *            The schema of the shapefile.
+	 * @param threads
+	 *            The number of threads to decode records with.
+	 * @param chunkSize
+	 *            The number of records decoded by each worker task.
+	 * @param records
+	 *            The zero-based indexes of the records to read, in ascending
+	 *            order, or null to read all of the records.
+	 * @throws IOException
+	 *             If the headers could not be read.
+	 */
+	public ParallelSHPFeatureCollection(Path shpPath, SimpleFeatureType schema, int threads, int chunkSize,
+			int[] records) throws IOException {
+		super(schema);
+		this.shpPath = shpPath;
+		this.dbfPath = SHPUtils.getSiblingFile(shpPath, "dbf");
+		this.shxIndex = SHXIndex.map(SHPUtils.getSiblingFile(shpPath, "shx"));
+		try (FileChannel dbfChannel = FileChannel.open(dbfPath, StandardOpenOption.READ);) {
+			this.dbfHeader = DBFHeader.read(dbfChannel);
+		}
+		this.charset = DBFHeader.getCharset(dbfPath);
+		this.threads = threads;
+		this.chunkSize = chunkSize;
+		this.records = records;
+
+		List<AttributeDescriptor> descriptors = schema.getAttributeDescriptors();
+		this.dbfFieldIndexes = new int[descriptors.size()];
+		int nextDbfField = 0;
+		for (int i = 0; i < descriptors.size(); i++) {
+			if (descriptors.get(i) instanceof GeometryDescriptor) {
+				dbfFieldIndexes[i] = -1;
+			} else {
+				dbfFieldIndexes[i] = nextDbfField++;
+			}
+		}
+		if (nextDbfField != dbfHeader.getFields().size()) {
+			throw new RuntimeException("Schema contained " + nextDbfField + " attributes but DBF file contained "
+					+ dbfHeader.getFields().size() + " fields: " + dbfPath);
+		}
+		if (dbfHeader.getRecordCount() != shxIndex.getRecordCount()) {
+			throw new RuntimeException("DBF file contained " + dbfHeader.getRecordCount()
+					+ " records but SHX file contained " + shxIndex.getRecordCount() + " records: " + shpPath);
+		}
+		if (records != null) {
+			for (int i = 0; i < records.length; i++) {
+				if (records[i] < 0 || records[i] >= shxIndex.getRecordCount()
+						|| (i > 0 && records[i] <= records[i - 1])) {
+					throw new IllegalArgumentException("Record indexes must be in ascending order and less than "
+							+ shxIndex.getRecordCount() + ": " + records[i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks whether the given input can be read using this class, which
+	 * requires a .shp file with matching .shx and .dbf files.
+	 *
+	 * @param inputPath
+	 *            The input file.
+	 * @return True if the input is a shapefile with an index and attributes.
+	 */
+	public static boolean canRead(Path inputPath) {
+		return inputPath.getFileName().toString().toLowerCase().endsWith(".shp")
+				&& Files.exists(SHPUtils.getSiblingFile(inputPath, "shx"))
+				&& Files.exists(SHPUtils.getSiblingFile(inputPath, "dbf"));
+	}
+
+	@Override
+	protected Iterator<SimpleFeature> openIterator() {
+		try {
+			return new OrderedFeatureIterator();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public int size() {
+		return records == null ? dbfHeader.getRecordCount() : records.length;
+	}
+
+	/**
+	 * @return The number of records in the file, including any that are not
+	 *         selected.
+	 */
+	public int getRecordCount() {
+		return dbfHeader.getRecordCount();
+	}
+
+	@Override
+	public ReferencedEnvelope getBounds() {
+		SHPHeader header = shxIndex.getHeader();
+		return new ReferencedEnvelope(header.getMinX(), header.getMaxX(), header.getMinY(), header.getMaxY(),
+				getSchema().getCoordinateReferenceSystem());
+	}
+
+	/**
+	 * Decodes the features for a range of records. Deleted records are skipped.
+	 */
+	private List<SimpleFeature> readChunk(FileChannel shpChannel, FileChannel dbfChannel, int startRecord,
+			int endRecord) throws IOException {
+		long shpStart = Long.MAX_VALUE;
+		long shpEnd = 0;
+		for (int i = startRecord; i < endRecord; i++) {
+			shpStart = Math.min(shpStart, shxIndex.getOffset(i));
+			shpEnd = Math.max(shpEnd, shxIndex.getEnd(i));
+		}
+		int recordLength = dbfHeader.getRecordLength();
+		ByteBuffer shpBuffer = shpChannel.map(MapMode.READ_ONLY, shpStart, shpEnd - shpStart)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer dbfBuffer = dbfChannel.map(MapMode.READ_ONLY, dbfHeader.getRecordOffset(startRecord),
+				(long) (endRecord - startRecord) * recordLength);
+
+		RecordDecoder decoder = new RecordDecoder();
+		List<SimpleFeature> result = new ArrayList<>(endRecord - startRecord);
+		for (int i = startRecord; i < endRecord; i++) {
+			int shpPosition = (int) (shxIndex.getOffset(i) - shpStart);
+			SimpleFeature feature = decoder.decode(i, shpBuffer, shpPosition, dbfBuffer,
+					(i - startRecord) * recordLength);
+			if (feature != null) {
+				result.add(feature);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Decodes the features for a range of the selected records, reading each
+	 * record separately as they may be far apart in the file. Deleted records
+	 * are skipped.
+	 */
+	private List<SimpleFeature> readSelectedChunk(FileChannel shpChannel, FileChannel dbfChannel, int start,
+			int end) throws IOException {
+		ByteBuffer dbfBuffer = ByteBuffer.allocate(dbfHeader.getRecordLength());
+		ByteBuffer shpBuffer = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+
+		RecordDecoder decoder = new RecordDecoder();
+		List<SimpleFeature> result = new ArrayList<>(end - start);
+		for (int i = start; i < end; i++) {
+			int record = records[i];
+			dbfBuffer.clear();
+			readFully(dbfChannel, dbfBuffer, dbfHeader.getRecordOffset(record), dbfPath);
+			int shpLength = SHXIndex.RECORD_LENGTH + shxIndex.getContentLength(record);
+			if (shpBuffer.capacity() < shpLength) {
+				shpBuffer = ByteBuffer.allocate(shpLength).order(ByteOrder.LITTLE_ENDIAN);
+			}
+			shpBuffer.clear();
+			shpBuffer.limit(shpLength);
+			readFully(shpChannel, shpBuffer, shxIndex.getOffset(record), shpPath);
+			SimpleFeature feature = decoder.decode(record, shpBuffer, 0, dbfBuffer, 0);
+			if (feature != null) {
+				result.add(feature);
+			}
+		}
+		return result;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position, Path path)
+			throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException("Unexpected end of file at " + (position + buffer.position()) + ": " + path);
+			}
+		}
+	}
+
+	/**
+	 * Decodes single records, reusing a shape handler and feature builder for
+	 * all of the records in a chunk.
+	 */
+	private final class RecordDecoder {
+
+		private final ShapeHandler handler = ShapeType.forID(shxIndex.getHeader().getShapeType())
+				.getShapeHandler(new GeometryFactory());
+		private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(getSchema());
+		private final String typeName = getSchema().getTypeName();
+		private final List<DBFHeader.Field> fields = dbfHeader.getFields();
+
+		/**
+		 * @return The feature, or null if the record was deleted.
+		 */
+		private SimpleFeature decode(int recordIndex, ByteBuffer shpBuffer, int shpPosition, ByteBuffer dbfBuffer,
+				int dbfPosition) {
+			if (dbfBuffer.get(dbfPosition) == DBFHeader.DELETED_RECORD) {
+				return null;
+			}
+			int contentStart = shpPosition + SHXIndex.RECORD_LENGTH;
+			ShapeType recordShapeType = ShapeType.forID(shpBuffer.getInt(contentStart));
+			Object geometry = null;
+			if (recordShapeType != ShapeType.NULL) {
+				ByteBuffer record = shpBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+				record.limit(contentStart + shxIndex.getContentLength(recordIndex));
+				// Shape handlers expect the buffer to be positioned after the shape type
+				record.position(contentStart + 4);
+				geometry = handler.read(record, recordShapeType, false);
+			}
+			for (int j = 0; j < dbfFieldIndexes.length; j++) {
+				if (dbfFieldIndexes[j] < 0) {
+					builder.set(j, geometry);
+				} else {
+					builder.set(j, fields.get(dbfFieldIndexes[j]).readValue(dbfBuffer, dbfPosition, charset));
+				}
+			}
+			return builder.buildFeature(typeName + "." + (recordIndex + 1));
+		}
+	}
+
+	/**
+	 * Submits chunks to a fork-join pool, keeping a bounded window of chunks in
+	 * flight, and returns the features from each chunk in order.
+	 */
+	private final class OrderedFeatureIterator implements Iterator<SimpleFeature>, SimpleFeatureIterator {
+
+		private final FileChannel shpChannel;
+		private final FileChannel dbfChannel;
+		private final ForkJoinPool pool;
+		private final Deque<Future<List<SimpleFeature>>> pending = new ArrayDeque<>();
+		private final int recordCount = records == null ? shxIndex.getRecordCount() : records.length;
+		private int nextChunkStart = 0;
+		private Iterator<SimpleFeature> current = Collections.emptyIterator();
+
+		private OrderedFeatureIterator() throws IOException {
+			this.shpChannel = FileChannel.open(shpPath, StandardOpenOption.READ);
+			this.dbfChannel = FileChannel.open(dbfPath, StandardOpenOption.READ);
+			this.pool = new ForkJoinPool(threads);
+			for (int i = 0; i < threads * 2; i++) {
+				submitNextChunk();
+			}
+		}
+
+		private void submitNextChunk() {
+			if (nextChunkStart >= recordCount) {
+				return;
+			}
+			final int startRecord = nextChunkStart;
+			final int endRecord = Math.min(recordCount, startRecord + chunkSize);
+			nextChunkStart = endRecord;
+			pending.add(pool.submit(() -> records == null ? readChunk(shpChannel, dbfChannel, startRecord, endRecord)
+					: readSelectedChunk(shpChannel, dbfChannel, startRecord, endRecord)));
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!current.hasNext()) {
+				Future<List<SimpleFeature>> nextChunk = pending.poll();
+				if (nextChunk == null) {
+					return false;
+				}
+				try {
+					current = nextChunk.get().iterator();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while reading: " + shpPath, e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Failed to read records from: " + shpPath, e.getCause());
+				}
+				submitNextChunk();
+			}
+			return true;
+		}
+
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		@Override
+		public void close() {
+			pool.shutdownNow();
+			try {
+				shpChannel.close();
+				dbfChannel.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
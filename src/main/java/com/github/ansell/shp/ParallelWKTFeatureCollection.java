@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * A feature collection that converts a CSV file with a WKT geometry column into
+ * features using a pipeline. A reader thread splits the CSV rows into batches,
+ * a pool of workers each with their own {@link WKTReader} parses the batches,
+ * and the iterator returns the features in the original row order. The number
+ * of batches in flight is bounded, so the reader blocks when the consumer falls
+ * behind.
+ * <p>
+ * Each iteration parses the file again, unless the collection is created to
+ * cache the features, in which case the features from the first iteration that
+ * reaches the end of the file are held in memory and returned by later
+ * iterations.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ParallelWKTFeatureCollection extends AbstractFeatureCollection {
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+
+	private final Path csvPath;
+	private final String wktField;
+	private final int threads;
+	private final int batchSize;
+	private final boolean cacheFeatures;
+	private volatile int lastRowCount = -1;
+	private volatile List<SimpleFeature> cachedFeatures;
+
+	public ParallelWKTFeatureCollection(Path csvPath, SimpleFeatureType schema, String wktField, int threads) {
+		this(csvPath, schema, wktField, threads, DEFAULT_BATCH_SIZE);
+	}
+
+	public ParallelWKTFeatureCollection(Path csvPath, SimpleFeatureType schema, String wktField, int threads,
+			int batchSize) {
+		this(csvPath, schema, wktField, threads, batchSize, false);
+	}
+
+	/**
+	 * @param csvPath
+	 *            The CSV file to read.
+	 * @param schema
+	 *            The schema of the features.
+	 * @param wktField
+	 *            The name of the column containing the WKT geometries.
+	 * @param threads
+	 *            The number of threads to parse the WKT geometries with.
+	 * @param batchSize
+	 *            The number of rows in each batch given to a worker.
+	 * @param cacheFeatures
+	 *            True to hold the features in memory after the first complete
+	 *            iteration, so callers that iterate more than once, such as
+	 *            {@link SHPZipWriter}, only parse the file once.
+	 */
+	public ParallelWKTFeatureCollection(Path csvPath, SimpleFeatureType schema, String wktField, int threads,
+			int batchSize, boolean cacheFeatures) {
+		super(schema);
+		this.csvPath = csvPath;
+		this.wktField = wktField;
+		this.threads = threads;
+		this.batchSize = batchSize;
+		this.cacheFeatures = cacheFeatures;
+	}
+
+	@Override
+	protected Iterator<SimpleFeature> openIterator() {
+		List<SimpleFeature> cached = cachedFeatures;
+		if (cached != null) {
+			return cached.iterator();
+		}
+		return new PipelineIterator();
+	}
+
+	/**
+	 * @return The number of rows read by the last iteration that reached the end
+	 *         of the file, or -1 if no iteration has completed.
+	 */
+	public int getLastRowCount() {
+		return lastRowCount;
+	}
+
+	@Override
+	public int size() {
+		List<SimpleFeature> cached = cachedFeatures;
+		if (cached != null) {
+			return cached.size();
+		}
+		int count = 0;
+		try (SimpleFeatureIterator iterator = features();) {
+			while (iterator.hasNext()) {
+				iterator.next();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The bounds are not known without parsing every geometry, so they are
+	 * calculated by iterating over the features.
+	 */
+	@Override
+	public ReferencedEnvelope getBounds() {
+		ReferencedEnvelope bounds = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+		try (SimpleFeatureIterator iterator = features();) {
+			while (iterator.hasNext()) {
+				bounds.include(iterator.next().getBounds());
+			}
+		}
+		return bounds;
+	}
+
+	private final class PipelineIterator implements Iterator<SimpleFeature>, SimpleFeatureIterator {
+
+		private final ExecutorService workers = Executors.newFixedThreadPool(threads);
+		private final BlockingQueue<Future<List<SimpleFeature>>> batches = new ArrayBlockingQueue<>(threads * 2);
+		private final ThreadLocal<WKTReader> wktReaders = ThreadLocal.withInitial(WKTReader::new);
+		private final ThreadLocal<SimpleFeatureBuilder> builders = ThreadLocal
+				.withInitial(() -> new SimpleFeatureBuilder(getSchema()));
+		private final Map<String, Integer> headerIndexes = new HashMap<>();
+		private final Thread reader;
+		private volatile boolean closed = false;
+		private final List<SimpleFeature> parsedFeatures = cacheFeatures ? new ArrayList<>() : null;
+		private Iterator<SimpleFeature> current = Collections.emptyIterator();
+		private boolean finished = false;
+
+		private PipelineIterator() {
+			reader = new Thread(this::readBatches, "csv2shp-reader");
+			reader.setDaemon(true);
+			reader.start();
+		}
+
+		private void readBatches() {
+			final List<List<String>> batch = new ArrayList<>(batchSize);
+			final int[] rowCount = new int[1];
+			try (Reader input = Files.newBufferedReader(csvPath, StandardCharsets.UTF_8);) {
+				CSVStream.parse(input, headers -> {
+					for (int i = 0; i < headers.size(); i++) {
+						headerIndexes.put(headers.get(i), i);
+					}
+				}, (headers, line) -> new ArrayList<>(line), line -> {
+					if (closed) {
+						throw new IllegalStateException("Pipeline was closed");
+					}
+					batch.add(line);
+					rowCount[0]++;
+					if (batch.size() >= batchSize) {
+						submitBatch(new ArrayList<>(batch), rowCount[0] - batch.size());
+						batch.clear();
+					}
+				});
+				if (!batch.isEmpty()) {
+					submitBatch(new ArrayList<>(batch), rowCount[0] - batch.size());
+				}
+				lastRowCount = rowCount[0];
+				// A null batch marks the end of the file
+				putBatch(CompletableFuture.completedFuture(null));
+			} catch (Exception e) {
+				if (!closed) {
+					CompletableFuture<List<SimpleFeature>> failure = new CompletableFuture<>();
+					failure.completeExceptionally(e);
+					putBatch(failure);
+				}
+			}
+		}
+
+		private void submitBatch(List<List<String>> rows, int firstRow) {
+			putBatch(workers.submit(() -> parseBatch(rows, firstRow)));
+		}
+
+		private void putBatch(Future<List<SimpleFeature>> nextBatch) {
+			try {
+				batches.put(nextBatch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException("Interrupted while queueing batch", e);
+			}
+		}
+
+		private List<SimpleFeature> parseBatch(List<List<String>> rows, int firstRow) throws ParseException {
+			WKTReader wktReader = wktReaders.get();
+			SimpleFeatureBuilder builder = builders.get();
+			List<AttributeDescriptor> descriptors = getSchema().getAttributeDescriptors();
+			String typeName = getSchema().getTypeName();
+			List<SimpleFeature> result = new ArrayList<>(rows.size());
+			for (int i = 0; i < rows.size(); i++) {
+				List<String> row = rows.get(i);
+				for (int j = 0; j < descriptors.size(); j++) {
+					String name = descriptors.get(j).getLocalName();
+					Integer index = headerIndexes.get(name);
+					String value = index == null || index >= row.size() ? null : row.get(index);
+					if (name.equals(wktField)) {
+						builder.set(j, value == null || value.trim().isEmpty() ? null : wktReader.read(value));
+					} else {
+						builder.set(j, value);
+					}
+				}
+				result.add(builder.buildFeature(typeName + "-" + (firstRow + i + 1)));
+			}
+			return result;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!finished && !current.hasNext()) {
+				try {
+					List<SimpleFeature> nextBatch = batches.take().get();
+					if (nextBatch == null) {
+						finished = true;
+						if (parsedFeatures != null) {
+							cachedFeatures = Collections.unmodifiableList(parsedFeatures);
+						}
+					} else {
+						current = nextBatch.iterator();
+						if (parsedFeatures != null) {
+							parsedFeatures.addAll(nextBatch);
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while reading: " + csvPath, e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Failed to convert rows from: " + csvPath, e.getCause());
+				}
+			}
+			return current.hasNext();
+		}
+
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return current.next();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+			reader.interrupt();
+			workers.shutdownNow();
+			batches.clear();
+		}
+	}
+}
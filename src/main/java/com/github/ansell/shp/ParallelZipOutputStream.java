@@ -0,0 +1,397 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * A {@link ZipOutputStream} that compresses each entry in independent blocks
+ * on multiple threads, in the same way as pigz. Each block is deflated with the
+ * last 32KB of the previous block as its dictionary and ended with a sync
+ * flush, so the concatenated blocks form a single valid deflate stream.
+ * <p>
+ * This class writes the archive itself, using Zip64 extensions wherever a size,
+ * offset or entry count does not fit in the original fields, so that entries
+ * and archives larger than 4GB can be written. The sizes of an entry are only
+ * known after it has been written, so they are written in a data descriptor,
+ * which has 8 byte sizes when either size is larger than 4GB, in the same way
+ * as the JDK reads it. An entry that has its size set to 4GB or more before
+ * {@link #putNextEntry(ZipEntry)} also has a Zip64 extra field in its local
+ * header and always has 8 byte sizes in its data descriptor, for readers that
+ * look for the extra field. Only the {@link #putNextEntry(ZipEntry)},
+ * {@link #closeEntry()}, write, flush, {@link #finish()} and {@link #close()}
+ * methods are supported.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ParallelZipOutputStream extends ZipOutputStream {
+
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int END_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_VERSION = 45;
+	// Sizes are in the data descriptor, and names are UTF-8
+	private static final int FLAGS = 0x0008 | 0x0800;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+	private final OutputStream out;
+	private final int blockSize;
+	private final int level;
+	private final int maxPendingBlocks;
+	private final ExecutorService executor;
+	private final Deque<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+	private final List<EntryRecord> entries = new ArrayList<>();
+
+	private EntryRecord currentEntry;
+	private byte[] block;
+	private int blockLength;
+	private byte[] dictionary;
+	private CRC32 crc;
+	private long written = 0;
+	private boolean finished = false;
+
+	public ParallelZipOutputStream(OutputStream out, int threads) {
+		this(out, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	public ParallelZipOutputStream(OutputStream out, int threads, int blockSize, int level) {
+		super(NullOutputStream.NULL_OUTPUT_STREAM, StandardCharsets.UTF_8);
+		this.out = out;
+		this.blockSize = blockSize;
+		this.level = level;
+		this.maxPendingBlocks = threads * 2;
+		this.executor = Executors.newFixedThreadPool(threads);
+	}
+
+	@Override
+	public void putNextEntry(ZipEntry entry) throws IOException {
+		if (finished) {
+			throw new IOException("Stream has already been finished");
+		}
+		if (currentEntry != null) {
+			closeEntry();
+		}
+		byte[] name = entry.getName().getBytes(StandardCharsets.UTF_8);
+		long time = entry.getTime() == -1 ? System.currentTimeMillis() : entry.getTime();
+		boolean zip64 = entry.getSize() >= ZIP64_MAGIC || entry.getCompressedSize() >= ZIP64_MAGIC;
+		currentEntry = new EntryRecord(name, toDosTime(time), written, zip64);
+
+		ByteBuffer header = newBuffer(30 + name.length + (zip64 ? 20 : 0));
+		header.putInt(LOCAL_HEADER_SIGNATURE);
+		header.putShort((short) ZIP64_VERSION);
+		header.putShort((short) FLAGS);
+		header.putShort((short) ZipEntry.DEFLATED);
+		header.putInt((int) currentEntry.dosTime);
+		// The CRC and sizes are written in the data descriptor
+		header.putInt(0);
+		header.putInt(zip64 ? (int) ZIP64_MAGIC : 0);
+		header.putInt(zip64 ? (int) ZIP64_MAGIC : 0);
+		header.putShort((short) name.length);
+		header.putShort((short) (zip64 ? 20 : 0));
+		header.put(name);
+		if (zip64) {
+			header.putShort((short) 0x0001);
+			header.putShort((short) 16);
+			header.putLong(0);
+			header.putLong(0);
+		}
+		writeRaw(header);
+
+		block = new byte[blockSize];
+		blockLength = 0;
+		dictionary = null;
+		crc = new CRC32();
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (currentEntry == null) {
+			throw new IOException("No current entry");
+		}
+		crc.update(b, off, len);
+		currentEntry.uncompressedSize += len;
+		while (len > 0) {
+			int toCopy = Math.min(len, blockSize - blockLength);
+			System.arraycopy(b, off, block, blockLength, toCopy);
+			blockLength += toCopy;
+			off += toCopy;
+			len -= toCopy;
+			if (blockLength == blockSize) {
+				submitBlock(false);
+			}
+		}
+	}
+
+	private void submitBlock(boolean last) throws IOException {
+		final byte[] input = block;
+		final int inputLength = blockLength;
+		final byte[] inputDictionary = dictionary;
+		pendingBlocks.add(executor.submit(() -> deflate(input, inputLength, inputDictionary, last)));
+
+		dictionary = Arrays.copyOfRange(input, Math.max(0, inputLength - DICTIONARY_SIZE), inputLength);
+		block = new byte[blockSize];
+		blockLength = 0;
+
+		while (pendingBlocks.size() > maxPendingBlocks) {
+			writeNextBlock();
+		}
+	}
+
+	private byte[] deflate(byte[] input, int inputLength, byte[] inputDictionary, boolean last) {
+		Deflater deflater = new Deflater(level, true);
+		try {
+			if (inputDictionary != null && inputDictionary.length > 0) {
+				deflater.setDictionary(inputDictionary);
+			}
+			deflater.setInput(input, 0, inputLength);
+			ByteArrayOutputStream output = new ByteArrayOutputStream(inputLength / 2 + 64);
+			byte[] buffer = new byte[64 * 1024];
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					int count = deflater.deflate(buffer);
+					output.write(buffer, 0, count);
+				}
+			} else {
+				int count;
+				do {
+					count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+					output.write(buffer, 0, count);
+				} while (count == buffer.length);
+			}
+			return output.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	private void writeNextBlock() throws IOException {
+		try {
+			byte[] compressed = pendingBlocks.poll().get();
+			out.write(compressed);
+			written += compressed.length;
+			currentEntry.compressedSize += compressed.length;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress block", e.getCause());
+		}
+	}
+
+	@Override
+	public void closeEntry() throws IOException {
+		if (currentEntry == null) {
+			return;
+		}
+		submitBlock(true);
+		while (!pendingBlocks.isEmpty()) {
+			writeNextBlock();
+		}
+		currentEntry.crc = crc.getValue();
+
+		ByteBuffer descriptor = newBuffer(24);
+		descriptor.putInt(DATA_DESCRIPTOR_SIGNATURE);
+		descriptor.putInt((int) currentEntry.crc);
+		if (currentEntry.zip64 || currentEntry.compressedSize > ZIP64_MAGIC
+				|| currentEntry.uncompressedSize > ZIP64_MAGIC) {
+			descriptor.putLong(currentEntry.compressedSize);
+			descriptor.putLong(currentEntry.uncompressedSize);
+		} else {
+			descriptor.putInt((int) currentEntry.compressedSize);
+			descriptor.putInt((int) currentEntry.uncompressedSize);
+		}
+		writeRaw(descriptor);
+
+		entries.add(currentEntry);
+		currentEntry = null;
+		block = null;
+		dictionary = null;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		closeEntry();
+		long centralDirectoryStart = written;
+		for (EntryRecord entry : entries) {
+			// The Zip64 extra field has only the values that are too large for
+			// their field in the header, in this order
+			boolean zip64Sizes = entry.zip64 || entry.uncompressedSize >= ZIP64_MAGIC
+					|| entry.compressedSize >= ZIP64_MAGIC;
+			boolean zip64Offset = entry.localHeaderOffset >= ZIP64_MAGIC;
+			int extraDataLength = (zip64Sizes ? 16 : 0) + (zip64Offset ? 8 : 0);
+			int extraLength = extraDataLength > 0 ? 4 + extraDataLength : 0;
+			ByteBuffer header = newBuffer(46 + entry.name.length + extraLength);
+			header.putInt(CENTRAL_HEADER_SIGNATURE);
+			header.putShort((short) ZIP64_VERSION);
+			header.putShort((short) ZIP64_VERSION);
+			header.putShort((short) FLAGS);
+			header.putShort((short) ZipEntry.DEFLATED);
+			header.putInt((int) entry.dosTime);
+			header.putInt((int) entry.crc);
+			header.putInt((int) (zip64Sizes ? ZIP64_MAGIC : entry.compressedSize));
+			header.putInt((int) (zip64Sizes ? ZIP64_MAGIC : entry.uncompressedSize));
+			header.putShort((short) entry.name.length);
+			header.putShort((short) extraLength);
+			// Comment length, disk number, internal and external attributes
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putShort((short) 0);
+			header.putInt(0);
+			header.putInt((int) (zip64Offset ? ZIP64_MAGIC : entry.localHeaderOffset));
+			header.put(entry.name);
+			if (extraLength > 0) {
+				header.putShort((short) 0x0001);
+				header.putShort((short) extraDataLength);
+				if (zip64Sizes) {
+					header.putLong(entry.uncompressedSize);
+					header.putLong(entry.compressedSize);
+				}
+				if (zip64Offset) {
+					header.putLong(entry.localHeaderOffset);
+				}
+			}
+			writeRaw(header);
+		}
+		long centralDirectorySize = written - centralDirectoryStart;
+		long zip64EndStart = written;
+		boolean zip64End = entries.size() >= 0xFFFF || centralDirectorySize >= ZIP64_MAGIC
+				|| centralDirectoryStart >= ZIP64_MAGIC;
+
+		ByteBuffer end = newBuffer(56 + 20 + 22);
+		if (zip64End) {
+			end.putInt(ZIP64_END_SIGNATURE);
+			end.putLong(44);
+			end.putShort((short) ZIP64_VERSION);
+			end.putShort((short) ZIP64_VERSION);
+			end.putInt(0);
+			end.putInt(0);
+			end.putLong(entries.size());
+			end.putLong(entries.size());
+			end.putLong(centralDirectorySize);
+			end.putLong(centralDirectoryStart);
+
+			end.putInt(ZIP64_LOCATOR_SIGNATURE);
+			end.putInt(0);
+			end.putLong(zip64EndStart);
+			end.putInt(1);
+		}
+
+		end.putInt(END_SIGNATURE);
+		end.putShort((short) 0);
+		end.putShort((short) 0);
+		end.putShort((short) Math.min(entries.size(), 0xFFFF));
+		end.putShort((short) Math.min(entries.size(), 0xFFFF));
+		end.putInt((int) Math.min(centralDirectorySize, ZIP64_MAGIC));
+		end.putInt((int) Math.min(centralDirectoryStart, ZIP64_MAGIC));
+		end.putShort((short) 0);
+		writeRaw(end);
+		out.flush();
+		finished = true;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			finish();
+			out.close();
+		} finally {
+			executor.shutdownNow();
+			super.close();
+		}
+	}
+
+	private static ByteBuffer newBuffer(int capacity) {
+		return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private void writeRaw(ByteBuffer buffer) throws IOException {
+		out.write(buffer.array(), 0, buffer.position());
+		written += buffer.position();
+	}
+
+	private static long toDosTime(long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21)
+				| (calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+				| (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+	}
+
+	private static final class EntryRecord {
+
+		private final byte[] name;
+		private final long dosTime;
+		private final long localHeaderOffset;
+		private final boolean zip64;
+		private long crc;
+		private long compressedSize = 0;
+		private long uncompressedSize = 0;
+
+		private EntryRecord(byte[] name, long dosTime, long localHeaderOffset, boolean zip64) {
+			this.name = name;
+			this.dosTime = dosTime;
+			this.localHeaderOffset = localHeaderOffset;
+			this.zip64 = zip64;
+		}
+	}
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * 64-bit hashes of the geometry and attributes of every record in a
+ * shapefile, computed directly from memory mapped ranges of the .shp and .dbf
+ * files without decoding any features.
+ * <p>
+ * The geometry hash covers the content of the .shp record, not including the
+ * record number. The attribute hash covers a chosen list of fields, with the
+ * padding removed from both sides of numbers and from the end of other
+ * values, so that two files can be compared on the fields they have in common
+ * even if the field widths or order have changed. Leading spaces in character
+ * values are part of the value, so they are not removed.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class RecordHashes {
+
+	/**
+	 * The number of records hashed by each worker task.
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 10000;
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final Path shpPath;
+	private final Path dbfPath;
+	private final SHXIndex shxIndex;
+	private final DBFHeader dbfHeader;
+	private final int[] fieldIndexes;
+	private final int keyFieldIndex;
+	private final boolean[] deleted;
+	private final long[] geometryHashes;
+	private final long[] attributeHashes;
+	private final long[] keyHashes;
+
+	private RecordHashes(Path shpPath, List<String> fieldNames, String keyField) throws IOException {
+		this.shpPath = shpPath;
+		this.dbfPath = SHPUtils.getSiblingFile(shpPath, "dbf");
+		this.shxIndex = SHXIndex.map(SHPUtils.getSiblingFile(shpPath, "shx"));
+		try (FileChannel dbfChannel = FileChannel.open(dbfPath, StandardOpenOption.READ);) {
+			this.dbfHeader = DBFHeader.read(dbfChannel);
+		}
+		if (dbfHeader.getRecordCount() != shxIndex.getRecordCount()) {
+			throw new RuntimeException("DBF file contained " + dbfHeader.getRecordCount()
+					+ " records but SHX file contained " + shxIndex.getRecordCount() + " records: " + shpPath);
+		}
+		this.fieldIndexes = new int[fieldNames.size()];
+		for (int i = 0; i < fieldIndexes.length; i++) {
+			fieldIndexes[i] = getFieldIndex(dbfHeader, fieldNames.get(i), dbfPath);
+		}
+		this.keyFieldIndex = keyField == null ? -1 : getFieldIndex(dbfHeader, keyField, dbfPath);
+		int recordCount = shxIndex.getRecordCount();
+		this.deleted = new boolean[recordCount];
+		this.geometryHashes = new long[recordCount];
+		this.attributeHashes = new long[recordCount];
+		this.keyHashes = keyField == null ? null : new long[recordCount];
+	}
+
+	/**
+	 * Hash every record in a shapefile.
+	 *
+	 * @param shpPath
+	 *            The .shp file, with .shx and .dbf files next to it.
+	 * @param fieldNames
+	 *            The names of the fields to include in the attribute hashes.
+	 * @param keyField
+	 *            The name of a field to hash separately to match records by, or
+	 *            null if records are not matched by a key.
+	 * @param threads
+	 *            The number of threads to hash records with.
+	 * @return The hashes for every record.
+	 * @throws IOException
+	 *             If the files could not be read.
+	 */
+	public static RecordHashes compute(Path shpPath, List<String> fieldNames, String keyField, int threads)
+			throws IOException {
+		RecordHashes result = new RecordHashes(shpPath, fieldNames, keyField);
+		result.computeAll(threads);
+		return result;
+	}
+
+	private static int getFieldIndex(DBFHeader dbfHeader, String fieldName, Path dbfPath) {
+		List<DBFHeader.Field> fields = dbfHeader.getFields();
+		for (int i = 0; i < fields.size(); i++) {
+			if (fields.get(i).getName().equals(fieldName)) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("Field not found: " + fieldName + " in " + dbfPath);
+	}
+
+	private void computeAll(int threads) throws IOException {
+		int recordCount = shxIndex.getRecordCount();
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try (FileChannel shpChannel = FileChannel.open(shpPath, StandardOpenOption.READ);
+				FileChannel dbfChannel = FileChannel.open(dbfPath, StandardOpenOption.READ);) {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int start = 0; start < recordCount; start += DEFAULT_CHUNK_SIZE) {
+				final int startRecord = start;
+				final int endRecord = Math.min(recordCount, start + DEFAULT_CHUNK_SIZE);
+				tasks.add(() -> {
+					hashChunk(shpChannel, dbfChannel, startRecord, endRecord);
+					return null;
+				});
+			}
+			// Each task writes to its own range of the arrays
+			for (Future<Void> nextTask : pool.invokeAll(tasks)) {
+				try {
+					nextTask.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while hashing: " + shpPath, e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Failed to hash records from: " + shpPath, e.getCause());
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void hashChunk(FileChannel shpChannel, FileChannel dbfChannel, int startRecord, int endRecord)
+			throws IOException {
+		long shpStart = Long.MAX_VALUE;
+		long shpEnd = 0;
+		for (int i = startRecord; i < endRecord; i++) {
+			shpStart = Math.min(shpStart, shxIndex.getOffset(i));
+			shpEnd = Math.max(shpEnd, shxIndex.getEnd(i));
+		}
+		int recordLength = dbfHeader.getRecordLength();
+		ByteBuffer shpBuffer = shpChannel.map(MapMode.READ_ONLY, shpStart, shpEnd - shpStart)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer dbfBuffer = dbfChannel.map(MapMode.READ_ONLY, dbfHeader.getRecordOffset(startRecord),
+				(long) (endRecord - startRecord) * recordLength).order(ByteOrder.LITTLE_ENDIAN);
+		List<DBFHeader.Field> fields = dbfHeader.getFields();
+		for (int i = startRecord; i < endRecord; i++) {
+			int dbfPosition = (i - startRecord) * recordLength;
+			if (dbfBuffer.get(dbfPosition) == DBFHeader.DELETED_RECORD) {
+				deleted[i] = true;
+				continue;
+			}
+			int contentStart = (int) (shxIndex.getOffset(i) - shpStart) + SHXIndex.RECORD_LENGTH;
+			geometryHashes[i] = hash(shpBuffer, contentStart, contentStart + shxIndex.getContentLength(i));
+			long attributeHash = fieldIndexes.length;
+			for (int nextField : fieldIndexes) {
+				attributeHash = Long.rotateLeft(attributeHash, 31) * C1
+						^ hashField(fields.get(nextField), dbfBuffer, dbfPosition);
+			}
+			attributeHashes[i] = mix(attributeHash);
+			if (keyHashes != null) {
+				keyHashes[i] = hashField(fields.get(keyFieldIndex), dbfBuffer, dbfPosition);
+			}
+		}
+	}
+
+	/**
+	 * Hash the value of a field, ignoring its padding.
+	 */
+	static long hashField(DBFHeader.Field field, ByteBuffer buffer, int recordStart) {
+		int start = valueStart(field, buffer, recordStart);
+		int end = valueEnd(field, buffer, start, recordStart);
+		return hash(buffer, start, end);
+	}
+
+	/**
+	 * Compare the values of a field in two records, ignoring their padding.
+	 *
+	 * @return True if the values are the same.
+	 */
+	static boolean fieldEquals(DBFHeader.Field firstField, ByteBuffer firstBuffer, int firstRecordStart,
+			DBFHeader.Field secondField, ByteBuffer secondBuffer, int secondRecordStart) {
+		int firstStart = valueStart(firstField, firstBuffer, firstRecordStart);
+		int firstEnd = valueEnd(firstField, firstBuffer, firstStart, firstRecordStart);
+		int secondStart = valueStart(secondField, secondBuffer, secondRecordStart);
+		int secondEnd = valueEnd(secondField, secondBuffer, secondStart, secondRecordStart);
+		if (firstEnd - firstStart != secondEnd - secondStart) {
+			return false;
+		}
+		for (int i = 0; i < firstEnd - firstStart; i++) {
+			if (firstBuffer.get(firstStart + i) != secondBuffer.get(secondStart + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return The position of the start of the value of a field, after the
+	 *         padding that right aligns numbers.
+	 */
+	private static int valueStart(DBFHeader.Field field, ByteBuffer buffer, int recordStart) {
+		int start = recordStart + field.getOffset();
+		if (field.getType() == 'N' || field.getType() == 'F') {
+			int end = start + field.getLength();
+			while (start < end && isPadding(buffer.get(start))) {
+				start++;
+			}
+		}
+		return start;
+	}
+
+	/**
+	 * @return The position after the end of the value of a field, before the
+	 *         padding that fills the rest of the field.
+	 */
+	private static int valueEnd(DBFHeader.Field field, ByteBuffer buffer, int valueStart, int recordStart) {
+		int end = recordStart + field.getOffset() + field.getLength();
+		while (end > valueStart && isPadding(buffer.get(end - 1))) {
+			end--;
+		}
+		return end;
+	}
+
+	private static boolean isPadding(byte value) {
+		return value == ' ' || value == 0;
+	}
+
+	/**
+	 * A 64-bit hash of a range of a buffer, in the style of MurmurHash3, reading
+	 * eight bytes at a time.
+	 *
+	 * @param buffer
+	 *            A little endian buffer.
+	 * @param start
+	 *            The position of the first byte to hash.
+	 * @param end
+	 *            The position after the last byte to hash.
+	 * @return The hash of the bytes.
+	 */
+	static long hash(ByteBuffer buffer, int start, int end) {
+		long h = end - start;
+		int position = start;
+		for (; position + 8 <= end; position += 8) {
+			long k = buffer.getLong(position);
+			h ^= Long.rotateLeft(k * C1, 31) * C2;
+			h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+		}
+		long k = 0;
+		for (int shift = 0; position < end; position++, shift += 8) {
+			k |= (buffer.get(position) & 0xFFL) << shift;
+		}
+		h ^= Long.rotateLeft(k * C1, 31) * C2;
+		return mix(h);
+	}
+
+	private static long mix(long value) {
+		long h = value;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public Path getShpPath() {
+		return shpPath;
+	}
+
+	public Path getDbfPath() {
+		return dbfPath;
+	}
+
+	public SHXIndex getShxIndex() {
+		return shxIndex;
+	}
+
+	public DBFHeader getDbfHeader() {
+		return dbfHeader;
+	}
+
+	public int getRecordCount() {
+		return deleted.length;
+	}
+
+	public boolean isDeleted(int recordIndex) {
+		return deleted[recordIndex];
+	}
+
+	public long getGeometryHash(int recordIndex) {
+		return geometryHashes[recordIndex];
+	}
+
+	public long getAttributeHash(int recordIndex) {
+		return attributeHashes[recordIndex];
+	}
+
+	/**
+	 * @param recordIndex
+	 *            The zero-based index of the record.
+	 * @return The hash of the key field of the record.
+	 * @throws IllegalStateException
+	 *             If the hashes were computed without a key field.
+	 */
+	public long getKeyHash(int recordIndex) {
+		if (keyHashes == null) {
+			throw new IllegalStateException("Hashes were computed without a key field: " + shpPath);
+		}
+		return keyHashes[recordIndex];
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Chooses a sample of record indexes from a file with a known number of
+ * records, so that only the sampled records need to be read using the .shx
+ * offsets and the fixed length .dbf records.
+ * <p>
+ * The indexes are returned in ascending order so that the records are read in
+ * the order they appear in the file.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class RecordSampler {
+
+	public enum Method {
+		/**
+		 * Every record has the same chance of being sampled.
+		 */
+		RANDOM,
+
+		/**
+		 * The records are split into equal ranges, and one record is sampled at
+		 * random from each range. Shapefiles are usually written in the order of
+		 * a source system or a spatial index, so this spreads the sample over the
+		 * regions of the file instead of leaving gaps by chance.
+		 */
+		STRATIFIED;
+
+		public static Method fromString(String value) {
+			try {
+				return valueOf(value.trim().toUpperCase(Locale.ROOT));
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(
+						"Sample method must be one of " + Arrays.toString(values()) + ": " + value, e);
+			}
+		}
+	}
+
+	private RecordSampler() {
+	}
+
+	/**
+	 * Choose a sample of records.
+	 *
+	 * @param recordCount
+	 *            The number of records in the file.
+	 * @param sampleSize
+	 *            The number of records to sample. If this is not less than the
+	 *            number of records, all of the records are returned.
+	 * @param method
+	 *            The method to choose the records with.
+	 * @param seed
+	 *            The seed for the random number generator, so that the same
+	 *            options choose the same records.
+	 * @return The zero-based indexes of the sampled records, in ascending order.
+	 */
+	public static int[] sample(int recordCount, int sampleSize, Method method, long seed) {
+		if (recordCount < 0) {
+			throw new IllegalArgumentException("Record count must not be negative: " + recordCount);
+		}
+		if (sampleSize < 1) {
+			throw new IllegalArgumentException("Sample size must be at least 1: " + sampleSize);
+		}
+		if (sampleSize >= recordCount) {
+			int[] result = new int[recordCount];
+			for (int i = 0; i < recordCount; i++) {
+				result[i] = i;
+			}
+			return result;
+		}
+		Random random = new Random(seed);
+		switch (method) {
+		case RANDOM:
+			return sampleRandom(recordCount, sampleSize, random);
+		case STRATIFIED:
+			return sampleStratified(recordCount, sampleSize, random);
+		default:
+			throw new IllegalArgumentException("Unsupported sample method: " + method);
+		}
+	}
+
+	/**
+	 * Floyd's algorithm, which only needs one random number for each sampled
+	 * record, however many records there are.
+	 */
+	private static int[] sampleRandom(int recordCount, int sampleSize, Random random) {
+		Set<Integer> chosen = new HashSet<>(sampleSize * 2);
+		for (int i = recordCount - sampleSize; i < recordCount; i++) {
+			int candidate = random.nextInt(i + 1);
+			if (!chosen.add(candidate)) {
+				chosen.add(i);
+			}
+		}
+		int[] result = new int[sampleSize];
+		int next = 0;
+		for (Integer nextRecord : chosen) {
+			result[next++] = nextRecord;
+		}
+		Arrays.sort(result);
+		return result;
+	}
+
+	private static int[] sampleStratified(int recordCount, int sampleSize, Random random) {
+		int[] result = new int[sampleSize];
+		for (int i = 0; i < sampleSize; i++) {
+			int start = (int) ((long) recordCount * i / sampleSize);
+			int end = (int) ((long) recordCount * (i + 1) / sampleSize);
+			result[i] = start + random.nextInt(end - start);
+		}
+		return result;
+	}
+}
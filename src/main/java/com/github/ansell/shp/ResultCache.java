@@ -0,0 +1,494 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * An on-disk cache of the outputs of a run, keyed by a hash of the contents of
+ * the input shapefile and the options that affect the outputs. Outputs are
+ * copied into and out of the cache, so modifying an output never changes the
+ * cached copy. Entries are evicted in least recently used order when the cache
+ * grows larger than its maximum size.
+ * <p>
+ * The cache directory may be shared by several processes, so each operation
+ * holds a lock on a file in the cache directory. Outputs are copied into a
+ * temporary entry before the lock is taken, and cached outputs are hard
+ * linked into a temporary snapshot under the lock and copied from it after
+ * the lock is released, so that large outputs do not block other users of
+ * the cache while they are copied. The hit, miss and eviction
+ * counts are kept in a small properties file next to the cache log, and the
+ * log is rotated when it grows larger than {@link #MAX_LOG_BYTES}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ResultCache {
+
+	/**
+	 * The files next to the .shp file that are included in the key.
+	 */
+	public static final List<String> KEY_EXTENSIONS = Arrays.asList("shp", "shx", "dbf", "prj", "cpg");
+
+	public static final String LOG_FILE = "cache-log.csv";
+
+	public static final List<String> LOG_HEADERS = Arrays.asList("time", "key", "input", "result", "bytes");
+
+	/**
+	 * The size at which the cache log is moved aside and a new log started.
+	 */
+	public static final long MAX_LOG_BYTES = 10 * 1024 * 1024;
+
+	private static final String LOCK_FILE = "cache.lock";
+
+	private static final String COUNTS_FILE = "cache-counts.properties";
+
+	// File locks are held by the whole JVM, and fail if the same JVM asks for
+	// them twice, so threads that share a cache directory are serialised first
+	private static final ConcurrentMap<Path, Object> JVM_LOCKS = new ConcurrentHashMap<>();
+
+	private static final String HIT = "hit";
+	private static final String MISS = "miss";
+	private static final String EVICT = "evict";
+	private static final List<String> RESULTS = Arrays.asList(HIT, MISS, EVICT);
+
+	private final Path cacheDir;
+	private final long maxBytes;
+
+	/**
+	 * An operation on the cache directory, which is run while holding the
+	 * cache lock.
+	 */
+	@FunctionalInterface
+	private interface LockedOperation<T> {
+		T run() throws IOException;
+	}
+
+	public ResultCache(Path cacheDir, long maxBytes) throws IOException {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("Maximum cache size must not be negative: " + maxBytes);
+		}
+		this.cacheDir = cacheDir;
+		this.maxBytes = maxBytes;
+		Files.createDirectories(cacheDir);
+	}
+
+	/**
+	 * Compute the key for an input and the options for the run. The key
+	 * depends on the name of the .shp file, as the type name is used in some
+	 * of the output file names, but not on the directory it is in.
+	 *
+	 * @param inputPath
+	 *            The .shp file.
+	 * @param options
+	 *            The name and value of each option that changes the outputs.
+	 * @return A hex encoded SHA-256 hash of the inputs and options.
+	 * @throws IOException
+	 *             If the input files could not be read.
+	 */
+	public static String computeKey(Path inputPath, SortedMap<String, String> options) throws IOException {
+		List<Path> inputs = KEY_EXTENSIONS.stream().map(e -> SHPUtils.getSiblingFile(inputPath, e))
+				.filter(Files::exists).collect(Collectors.toList());
+		// Hash the files at the same time, as the .shp and .dbf files are
+		// usually similar sizes
+		List<String> fileHashes;
+		try {
+			fileHashes = inputs.parallelStream().map(p -> {
+				try {
+					return hashFile(p);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}).collect(Collectors.toList());
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		MessageDigest digest = newDigest();
+		update(digest, inputPath.getFileName().toString());
+		for (int i = 0; i < inputs.size(); i++) {
+			update(digest, inputs.get(i).getFileName().toString());
+			update(digest, fileHashes.get(i));
+		}
+		for (Entry<String, String> nextOption : options.entrySet()) {
+			update(digest, nextOption.getKey());
+			update(digest, nextOption.getValue());
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * Copy the cached outputs for the given key into the output directory, if
+	 * they are in the cache.
+	 *
+	 * @param key
+	 *            The key from {@link #computeKey(Path, SortedMap)}.
+	 * @param inputPath
+	 *            The input, for the cache log.
+	 * @param outputPath
+	 *            The output directory.
+	 * @param prefix
+	 *            The prefix for the output file names.
+	 * @return True if the outputs were found in the cache, and false otherwise.
+	 * @throws IOException
+	 *             If the outputs could not be restored, or if one of them
+	 *             already exists in the output directory.
+	 */
+	public boolean restore(String key, Path inputPath, Path outputPath, String prefix) throws IOException {
+		Path snapshot = withLock(() -> snapshotLocked(key, inputPath, outputPath, prefix));
+		if (snapshot == null) {
+			return false;
+		}
+		try {
+			// The snapshot cannot be evicted, so it is copied without the lock
+			for (Path nextCached : listFiles(snapshot)) {
+				Path target = outputPath.resolve(prefix + snapshot.relativize(nextCached).toString());
+				if (Files.isDirectory(nextCached)) {
+					Files.createDirectory(target);
+				} else {
+					Files.copy(nextCached, target);
+				}
+			}
+		} finally {
+			deleteRecursively(snapshot);
+		}
+		return true;
+	}
+
+	/**
+	 * Link the files of a cache entry into a new temporary snapshot, copying
+	 * them if the file system does not support hard links.
+	 *
+	 * @return The snapshot, or null if the key is not in the cache.
+	 */
+	private Path snapshotLocked(String key, Path inputPath, Path outputPath, String prefix) throws IOException {
+		Path entry = cacheDir.resolve(key);
+		if (!Files.isDirectory(entry)) {
+			log(key, inputPath, MISS, 0);
+			return null;
+		}
+		List<Path> cachedFiles = listFiles(entry);
+		for (Path nextCached : cachedFiles) {
+			Path target = outputPath.resolve(prefix + entry.relativize(nextCached).toString());
+			if (Files.exists(target)) {
+				throw new FileAlreadyExistsException(target.toString());
+			}
+		}
+		Path snapshot = newTempEntry(key);
+		try {
+			for (Path nextCached : cachedFiles) {
+				Path snapshotFile = snapshot.resolve(entry.relativize(nextCached).toString());
+				if (Files.isDirectory(nextCached)) {
+					Files.createDirectory(snapshotFile);
+				} else {
+					try {
+						Files.createLink(snapshotFile, nextCached);
+					} catch (UnsupportedOperationException | IOException e) {
+						Files.deleteIfExists(snapshotFile);
+						Files.copy(nextCached, snapshotFile);
+					}
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			deleteRecursively(snapshot);
+			throw e;
+		}
+		// The modification time of the entry directory records its last use
+		Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+		log(key, inputPath, HIT, RunMetrics.sizeOf(entry));
+		return snapshot;
+	}
+
+	/**
+	 * Add the outputs of a run to the cache, and evict the least recently used
+	 * entries if the cache is larger than its maximum size.
+	 *
+	 * @param key
+	 *            The key from {@link #computeKey(Path, SortedMap)}.
+	 * @param outputPath
+	 *            The output directory.
+	 * @param prefix
+	 *            The prefix for the output file names, which is removed from the
+	 *            names in the cache.
+	 * @param outputs
+	 *            The output files and directories, which must all be in the
+	 *            output directory and start with the prefix.
+	 * @throws IOException
+	 *             If the outputs could not be added to the cache.
+	 */
+	public void store(String key, Path outputPath, String prefix, List<Path> outputs) throws IOException {
+		Path entry = cacheDir.resolve(key);
+		if (Files.exists(entry)) {
+			return;
+		}
+		// Temporary entries are not seen by other users of the cache, so the
+		// outputs are copied without the lock
+		Path tempEntry = newTempEntry(key);
+		try {
+			for (Path nextOutput : outputs) {
+				String fileName = nextOutput.getFileName().toString();
+				if (!fileName.startsWith(prefix)) {
+					throw new IllegalArgumentException(
+							"Output did not start with the prefix (" + prefix + "): " + nextOutput);
+				}
+				Path cachedOutput = tempEntry.resolve(fileName.substring(prefix.length()));
+				if (Files.isDirectory(nextOutput)) {
+					Files.createDirectory(cachedOutput);
+					try (Stream<Path> files = Files.list(nextOutput);) {
+						for (Path nextFile : files.sorted().collect(Collectors.toList())) {
+							Files.copy(nextFile, cachedOutput.resolve(nextFile.getFileName().toString()));
+						}
+					}
+				} else {
+					Files.copy(nextOutput, cachedOutput);
+				}
+			}
+			withLock(() -> {
+				// Another run may have stored the same outputs while these were
+				// being copied
+				if (!Files.exists(entry)) {
+					Files.move(tempEntry, entry, StandardCopyOption.ATOMIC_MOVE);
+					evict();
+				}
+				return null;
+			});
+		} finally {
+			deleteRecursively(tempEntry);
+		}
+	}
+
+	private Path newTempEntry(String key) throws IOException {
+		return Files.createDirectory(cacheDir.resolve(key + ".tmp-" + UUID.randomUUID()));
+	}
+
+	private static List<Path> listFiles(Path entry) throws IOException {
+		try (Stream<Path> paths = Files.walk(entry);) {
+			return paths.filter(p -> !p.equals(entry)).sorted().collect(Collectors.toList());
+		}
+	}
+
+	/**
+	 * Summarise the cache log.
+	 *
+	 * @return The number of hits, misses and evictions recorded in the cache
+	 *         log, including those rotated out of the log, in that order.
+	 * @throws IOException
+	 *             If the counts could not be read.
+	 */
+	public long[] getLogCounts() throws IOException {
+		return withLock(this::readCounts);
+	}
+
+	/**
+	 * @return The total size of the entries in the cache.
+	 * @throws IOException
+	 *             If the cache directory could not be read.
+	 */
+	public long getSize() throws IOException {
+		return withLock(() -> {
+			long result = 0;
+			for (Path nextEntry : getEntries()) {
+				result += RunMetrics.sizeOf(nextEntry);
+			}
+			return result;
+		});
+	}
+
+	private <T> T withLock(LockedOperation<T> operation) throws IOException {
+		synchronized (JVM_LOCKS.computeIfAbsent(cacheDir.toAbsolutePath().normalize(), k -> new Object())) {
+			try (FileChannel channel = FileChannel.open(cacheDir.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE); FileLock lock = channel.lock();) {
+				return operation.run();
+			}
+		}
+	}
+
+	private void evict() throws IOException {
+		List<Path> entries = getEntries();
+		entries.sort(Comparator.comparing(p -> {
+			try {
+				return Files.getLastModifiedTime(p);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}));
+		long totalBytes = 0;
+		long[] entryBytes = new long[entries.size()];
+		for (int i = 0; i < entries.size(); i++) {
+			entryBytes[i] = RunMetrics.sizeOf(entries.get(i));
+			totalBytes += entryBytes[i];
+		}
+		// The most recent entry is always kept, even if it is larger than the
+		// maximum size on its own
+		for (int i = 0; i < entries.size() - 1 && totalBytes > maxBytes; i++) {
+			deleteRecursively(entries.get(i));
+			totalBytes -= entryBytes[i];
+			log(entries.get(i).getFileName().toString(), null, EVICT, entryBytes[i]);
+		}
+	}
+
+	private List<Path> getEntries() throws IOException {
+		try (Stream<Path> paths = Files.list(cacheDir);) {
+			return paths.filter(Files::isDirectory).filter(p -> !p.getFileName().toString().contains(".tmp-"))
+					.collect(Collectors.toList());
+		}
+	}
+
+	private void log(String key, Path inputPath, String result, long bytes) throws IOException {
+		long[] counts = readCounts();
+		counts[RESULTS.indexOf(result)]++;
+		writeCounts(counts);
+
+		Path logPath = cacheDir.resolve(LOG_FILE);
+		if (Files.exists(logPath) && Files.size(logPath) >= MAX_LOG_BYTES) {
+			Files.move(logPath, cacheDir.resolve(LOG_FILE + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		}
+		boolean newLog = !Files.exists(logPath);
+		try (Writer writer = Files.newBufferedWriter(logPath, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND);
+				SequenceWriter csv = CSVStream.newCSVWriter(writer, newLog ? CSVStream.buildSchema(LOG_HEADERS)
+						: CSVStream.buildSchema(LOG_HEADERS).withoutHeader());) {
+			csv.write(Arrays.asList(Long.toString(System.currentTimeMillis()), key,
+					inputPath == null ? "" : inputPath.toAbsolutePath().toString(), result, Long.toString(bytes)));
+		}
+	}
+
+	/**
+	 * Read the hit, miss and eviction counts, counting the results in the
+	 * cache log if the counts were not recorded by an earlier version.
+	 */
+	private long[] readCounts() throws IOException {
+		long[] result = new long[RESULTS.size()];
+		Path countsPath = cacheDir.resolve(COUNTS_FILE);
+		if (Files.exists(countsPath)) {
+			Properties properties = new Properties();
+			try (Reader reader = Files.newBufferedReader(countsPath, StandardCharsets.UTF_8);) {
+				properties.load(reader);
+			}
+			for (int i = 0; i < RESULTS.size(); i++) {
+				result[i] = Long.parseLong(properties.getProperty(RESULTS.get(i), "0"));
+			}
+			return result;
+		}
+		Path logPath = cacheDir.resolve(LOG_FILE);
+		if (Files.exists(logPath)) {
+			List<String> results = new ArrayList<>();
+			try (Reader reader = Files.newBufferedReader(logPath, StandardCharsets.UTF_8);) {
+				CSVStream.parse(reader, h -> {
+				}, (h, l) -> l.get(h.indexOf("result")), results::add);
+			}
+			for (String nextResult : results) {
+				int index = RESULTS.indexOf(nextResult);
+				if (index >= 0) {
+					result[index]++;
+				}
+			}
+		}
+		return result;
+	}
+
+	private void writeCounts(long[] counts) throws IOException {
+		Properties properties = new Properties();
+		for (int i = 0; i < RESULTS.size(); i++) {
+			properties.setProperty(RESULTS.get(i), Long.toString(counts[i]));
+		}
+		Path countsPath = cacheDir.resolve(COUNTS_FILE);
+		Path tempPath = cacheDir.resolve(COUNTS_FILE + ".tmp");
+		try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8);) {
+			properties.store(writer, "SHPDump cache counts");
+		}
+		Files.move(tempPath, countsPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void deleteRecursively(Path path) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(path);) {
+			for (Path nextPath : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(nextPath);
+			}
+		}
+	}
+
+	private static String hashFile(Path path) throws IOException {
+		MessageDigest digest = newDigest();
+		byte[] buffer = new byte[1 << 20];
+		try (InputStream in = Files.newInputStream(path);) {
+			int read;
+			while ((read = in.read(buffer)) >= 0) {
+				digest.update(buffer, 0, read);
+			}
+		}
+		return toHex(digest.digest());
+	}
+
+	private static void update(MessageDigest digest, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		// The length separates the values so that different splits of the same
+		// characters give different hashes
+		digest.update((byte) (bytes.length >>> 24));
+		digest.update((byte) (bytes.length >>> 16));
+		digest.update((byte) (bytes.length >>> 8));
+		digest.update((byte) bytes.length);
+		digest.update(bytes);
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("SHA-256 is not available", e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder result = new StringBuilder(bytes.length * 2);
+		for (byte nextByte : bytes) {
+			result.append(Character.forDigit((nextByte >> 4) & 0xF, 16)).append(Character.forDigit(nextByte & 0xF, 16));
+		}
+		return result.toString();
+	}
+}
@@ -0,0 +1,433 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Records the wall time, throughput, bytes read and written, peak heap and
+ * garbage collection time for each phase of a run, and writes them as a JSON
+ * report.
+ * 
+ * Phases can either be timed as a block, using {@link #startPhase(String)}
+ * with try-with-resources, or accumulated from many short intervals, using
+ * {@link Phase#addNanos(long)}, for work that is interleaved inside a single
+ * loop. Only block phases record garbage collection and peak heap figures.
+ * <p>
+ * The heap and garbage collection figures are measured for the whole JVM, so
+ * they are left out of the report for any block phase that ran at the same
+ * time as a block phase from another run in the same JVM, such as concurrent
+ * batch or daemon jobs, and the phase is marked as sharing the process
+ * instead.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class RunMetrics {
+
+	/**
+	 * The block phases from every run in this JVM that are currently running.
+	 */
+	private static final Set<Phase> RUNNING_PHASES = new HashSet<>();
+
+	private final String program;
+	private final Instant startTime = Instant.now();
+	private final long startNanos = System.nanoTime();
+	private final long startGcTimeMillis = currentGcTimeMillis();
+	private final long startGcCount = currentGcCount();
+	private final Map<String, String> properties = new LinkedHashMap<>();
+	private final Map<String, Phase> phases = new LinkedHashMap<>();
+
+	/**
+	 * @param program
+	 *            The name of the program being measured, which is included in
+	 *            the report.
+	 */
+	public RunMetrics(String program) {
+		this.program = program;
+	}
+
+	/**
+	 * Get the phase with the given name, creating it if this is the first time
+	 * it has been used. Phases are reported in the order they were created.
+	 * 
+	 * @param name
+	 *            The name of the phase.
+	 * @return The phase with the given name.
+	 */
+	public synchronized Phase phase(String name) {
+		return phases.computeIfAbsent(name, nextName -> new Phase(this, nextName));
+	}
+
+	/**
+	 * Start timing a block phase. The phase should be closed when the block
+	 * finishes, typically using try-with-resources.
+	 * 
+	 * @param name
+	 *            The name of the phase.
+	 * @return The phase, which has been started.
+	 */
+	public Phase startPhase(String name) {
+		return phase(name).start();
+	}
+
+	/**
+	 * Add a property describing the run, such as the input file, to the
+	 * report.
+	 */
+	public synchronized void setProperty(String key, Object value) {
+		properties.put(key, String.valueOf(value));
+	}
+
+	private synchronized List<Phase> getPhases() {
+		return new ArrayList<>(phases.values());
+	}
+
+	/**
+	 * Write the report to a new file.
+	 * 
+	 * @param reportFile
+	 *            The file to write, which must not already exist.
+	 * @throws IOException
+	 *             If the report could not be written.
+	 */
+	public void writeReport(Path reportFile) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE_NEW);) {
+			writeReport(writer);
+		}
+	}
+
+	/**
+	 * Write the report as JSON to the given writer.
+	 * 
+	 * @param writer
+	 *            The writer to write the report to.
+	 * @throws IOException
+	 *             If the report could not be written.
+	 */
+	public void writeReport(Writer writer) throws IOException {
+		List<Phase> phaseList = getPhases();
+		long peakHeapBytes = currentPeakHeapBytes();
+		boolean sharedProcess = false;
+		for (Phase nextPhase : phaseList) {
+			peakHeapBytes = Math.max(peakHeapBytes, nextPhase.getPeakHeapBytes());
+			sharedProcess |= nextPhase.isSharedProcess();
+		}
+		try (JsonGenerator json = new JsonFactory().createGenerator(writer);) {
+			json.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+			json.useDefaultPrettyPrinter();
+			json.writeStartObject();
+			json.writeStringField("program", program);
+			json.writeStringField("startTime", startTime.toString());
+			json.writeNumberField("wallTimeMillis", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+			if (sharedProcess) {
+				json.writeBooleanField("sharedProcess", true);
+			} else {
+				json.writeNumberField("peakHeapBytes", peakHeapBytes);
+				json.writeNumberField("gcTimeMillis", currentGcTimeMillis() - startGcTimeMillis);
+				json.writeNumberField("gcCount", currentGcCount() - startGcCount);
+			}
+			json.writeNumberField("availableProcessors", Runtime.getRuntime().availableProcessors());
+			json.writeNumberField("maxHeapBytes", Runtime.getRuntime().maxMemory());
+			json.writeObjectFieldStart("properties");
+			synchronized (this) {
+				for (Entry<String, String> nextProperty : properties.entrySet()) {
+					json.writeStringField(nextProperty.getKey(), nextProperty.getValue());
+				}
+			}
+			json.writeEndObject();
+			json.writeArrayFieldStart("phases");
+			for (Phase nextPhase : phaseList) {
+				json.writeStartObject();
+				json.writeStringField("name", nextPhase.getName());
+				json.writeNumberField("wallTimeMillis", nextPhase.getWallTimeMillis());
+				json.writeNumberField("records", nextPhase.getRecords());
+				json.writeNumberField("recordsPerSecond", nextPhase.getRecordsPerSecond());
+				json.writeNumberField("bytesRead", nextPhase.getBytesRead());
+				json.writeNumberField("bytesWritten", nextPhase.getBytesWritten());
+				if (nextPhase.isSharedProcess()) {
+					json.writeBooleanField("sharedProcess", true);
+				} else if (nextPhase.isBlock()) {
+					json.writeNumberField("peakHeapBytes", nextPhase.getPeakHeapBytes());
+					json.writeNumberField("gcTimeMillis", nextPhase.getGcTimeMillis());
+					json.writeNumberField("gcCount", nextPhase.getGcCount());
+				}
+				json.writeEndObject();
+			}
+			json.writeEndArray();
+			json.writeEndObject();
+		}
+		writer.flush();
+	}
+
+	/**
+	 * Print a one line summary of each phase.
+	 * 
+	 * @param out
+	 *            The stream to print the summary to.
+	 */
+	public void printSummary(PrintStream out) {
+		for (Phase nextPhase : getPhases()) {
+			StringBuilder line = new StringBuilder();
+			line.append(nextPhase.getName()).append(": ").append(nextPhase.getWallTimeMillis()).append(" ms");
+			if (nextPhase.getRecords() > 0) {
+				line.append(", ").append(nextPhase.getRecords()).append(" records (")
+						.append(Math.round(nextPhase.getRecordsPerSecond())).append("/s)");
+			}
+			if (nextPhase.getBytesRead() > 0) {
+				line.append(", ").append(nextPhase.getBytesRead()).append(" bytes read");
+			}
+			if (nextPhase.getBytesWritten() > 0) {
+				line.append(", ").append(nextPhase.getBytesWritten()).append(" bytes written");
+			}
+			out.println(line);
+		}
+	}
+
+	/**
+	 * Find the total size of the given files, including the contents of
+	 * directories, ignoring any that do not exist.
+	 * 
+	 * @param paths
+	 *            The files or directories to measure.
+	 * @return The total size in bytes.
+	 * @throws IOException
+	 *             If the size of a file could not be read.
+	 */
+	public static long sizeOf(Path... paths) throws IOException {
+		long result = 0;
+		for (Path nextPath : paths) {
+			if (nextPath == null || !Files.exists(nextPath)) {
+				continue;
+			}
+			if (Files.isDirectory(nextPath)) {
+				try (Stream<Path> children = Files.walk(nextPath);) {
+					result += children.filter(Files::isRegularFile).mapToLong(p -> p.toFile().length()).sum();
+				}
+			} else {
+				result += Files.size(nextPath);
+			}
+		}
+		return result;
+	}
+
+	private static long currentGcTimeMillis() {
+		long result = 0;
+		for (GarbageCollectorMXBean nextBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			result += Math.max(0, nextBean.getCollectionTime());
+		}
+		return result;
+	}
+
+	private static long currentGcCount() {
+		long result = 0;
+		for (GarbageCollectorMXBean nextBean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			result += Math.max(0, nextBean.getCollectionCount());
+		}
+		return result;
+	}
+
+	/**
+	 * The sum of the peak usage of each heap pool since the peaks were last
+	 * reset. The pools may not have peaked at the same time, so this is an upper
+	 * bound on the true peak.
+	 */
+	private static long currentPeakHeapBytes() {
+		long result = 0;
+		for (MemoryPoolMXBean nextPool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (nextPool.getType() == MemoryType.HEAP && nextPool.isValid()) {
+				MemoryUsage peak = nextPool.getPeakUsage();
+				if (peak != null) {
+					result += peak.getUsed();
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean nextPool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (nextPool.getType() == MemoryType.HEAP && nextPool.isValid()) {
+				nextPool.resetPeakUsage();
+			}
+		}
+	}
+
+	/**
+	 * The metrics for a single phase. The counters may be updated from
+	 * multiple threads.
+	 */
+	public static final class Phase implements AutoCloseable {
+
+		private final RunMetrics owner;
+		private final String name;
+		private final LongAdder nanos = new LongAdder();
+		private final LongAdder records = new LongAdder();
+		private final LongAdder bytesRead = new LongAdder();
+		private final LongAdder bytesWritten = new LongAdder();
+		private boolean block = false;
+		private long blockStartNanos = -1;
+		private long blockStartGcTimeMillis;
+		private long blockStartGcCount;
+		private long gcTimeMillis;
+		private long gcCount;
+		private long peakHeapBytes;
+		private volatile boolean sharedProcess = false;
+
+		private Phase(RunMetrics owner, String name) {
+			this.owner = owner;
+			this.name = name;
+		}
+
+		private synchronized Phase start() {
+			if (blockStartNanos >= 0) {
+				throw new IllegalStateException("Phase already started: " + name);
+			}
+			block = true;
+			synchronized (RUNNING_PHASES) {
+				boolean otherRuns = false;
+				for (Phase nextPhase : RUNNING_PHASES) {
+					if (nextPhase.owner != owner) {
+						nextPhase.sharedProcess = true;
+						otherRuns = true;
+					}
+				}
+				sharedProcess |= otherRuns;
+				// Resetting the peak while another run is measuring would hide
+				// its peak
+				if (!otherRuns) {
+					resetPeakHeap();
+				}
+				RUNNING_PHASES.add(this);
+			}
+			blockStartGcTimeMillis = currentGcTimeMillis();
+			blockStartGcCount = currentGcCount();
+			blockStartNanos = System.nanoTime();
+			return this;
+		}
+
+		/**
+		 * Finish timing a block phase that was started using
+		 * {@link RunMetrics#startPhase(String)}.
+		 */
+		@Override
+		public synchronized void close() {
+			if (blockStartNanos < 0) {
+				return;
+			}
+			nanos.add(System.nanoTime() - blockStartNanos);
+			gcTimeMillis += currentGcTimeMillis() - blockStartGcTimeMillis;
+			gcCount += currentGcCount() - blockStartGcCount;
+			peakHeapBytes = Math.max(peakHeapBytes, currentPeakHeapBytes());
+			blockStartNanos = -1;
+			synchronized (RUNNING_PHASES) {
+				RUNNING_PHASES.remove(this);
+			}
+		}
+
+		public void addNanos(long elapsedNanos) {
+			nanos.add(elapsedNanos);
+		}
+
+		public void addRecords(long count) {
+			records.add(count);
+		}
+
+		public void addBytesRead(long count) {
+			bytesRead.add(count);
+		}
+
+		public void addBytesWritten(long count) {
+			bytesWritten.add(count);
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getWallTimeMillis() {
+			return TimeUnit.NANOSECONDS.toMillis(nanos.sum());
+		}
+
+		public long getRecords() {
+			return records.sum();
+		}
+
+		public double getRecordsPerSecond() {
+			long elapsed = nanos.sum();
+			return elapsed > 0 ? records.sum() * 1e9 / elapsed : 0;
+		}
+
+		public long getBytesRead() {
+			return bytesRead.sum();
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten.sum();
+		}
+
+		public synchronized boolean isBlock() {
+			return block;
+		}
+
+		public synchronized long getGcTimeMillis() {
+			return gcTimeMillis;
+		}
+
+		public synchronized long getGcCount() {
+			return gcCount;
+		}
+
+		public synchronized long getPeakHeapBytes() {
+			return peakHeapBytes;
+		}
+
+		/**
+		 * @return True if this phase ran at the same time as a block phase from
+		 *         another run in this JVM, so its heap and garbage collection
+		 *         figures include the other run.
+		 */
+		public boolean isSharedProcess() {
+			return sharedProcess;
+		}
+	}
+}
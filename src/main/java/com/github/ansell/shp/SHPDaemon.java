@@ -0,0 +1,525 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geotools.data.DataStoreFinder;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.renderer.lite.StreamingRenderer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * A long running local service that accepts SHPDump and CSV2SHP jobs over
+ * HTTP, so that a single warm JVM can be shared by many callers without paying
+ * the GeoTools startup and JIT warm up cost for each file.
+ * 
+ * Jobs are submitted by POSTing a JSON array of command line arguments to
+ * <code>/jobs/dump</code> or <code>/jobs/convert</code>. The response contains
+ * the job identifier, which can be polled using <code>GET /jobs/{id}</code>.
+ * Adding <code>?wait=true</code> to the submission waits for the job to
+ * finish before responding. <code>POST /shutdown</code> stops the service
+ * after the running jobs finish.
+ * 
+ * POST requests must have a <code>Content-Type</code> of
+ * <code>application/json</code>, and requests with an <code>Origin</code>
+ * header are rejected, so that web pages opened in a browser on the same
+ * machine cannot submit jobs or shut down the service.
+ * 
+ * The console output of each job is written to its own log file in the log
+ * directory, which is reported in the job status, so that the output of jobs
+ * that run at the same time is not interleaved.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPDaemon {
+
+	private static final int MAX_RETAINED_JOBS = 1000;
+
+	private static final String JSON_CONTENT_TYPE = "application/json";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final ThreadPoolExecutor executor;
+	// Requests that wait for their job hold a thread until it finishes, so
+	// requests are not handled on the single dispatcher thread
+	private final ExecutorService requestExecutor = Executors.newCachedThreadPool();
+	private final Map<String, BatchRunner.Program> programs;
+	private final Path logDir;
+	private final int maxRetainedJobs;
+	private final AtomicLong nextJobId = new AtomicLong();
+	// Insertion ordered, so the oldest finished jobs are found first
+	private final Map<Long, Job> jobs = Collections.synchronizedMap(new LinkedHashMap<>());
+	// The log of the job running on each thread, which the console output of
+	// that thread is sent to
+	private final ThreadLocal<OutputStream> jobLogs = new ThreadLocal<>();
+	private final CountDownLatch shutdown = new CountDownLatch(1);
+	private PrintStream originalOut;
+	private PrintStream originalErr;
+
+	/**
+	 * @param threads
+	 *            The number of jobs to run at the same time.
+	 * @param queueSize
+	 *            The number of jobs that can wait to run.
+	 * @param logDir
+	 *            The directory to write the log of each job to.
+	 */
+	public SHPDaemon(int threads, int queueSize, Path logDir) {
+		this(threads, queueSize, defaultPrograms(), logDir, MAX_RETAINED_JOBS);
+	}
+
+	/**
+	 * @param threads
+	 *            The number of jobs to run at the same time.
+	 * @param queueSize
+	 *            The number of jobs that can wait to run.
+	 * @param programs
+	 *            The programs that jobs can be submitted for, keyed by the last
+	 *            element of the submission path.
+	 * @param logDir
+	 *            The directory to write the log of each job to.
+	 * @param maxRetainedJobs
+	 *            The number of jobs to keep the status of. The oldest finished
+	 *            jobs are forgotten first, and queued or running jobs are always
+	 *            kept.
+	 */
+	SHPDaemon(int threads, int queueSize, Map<String, BatchRunner.Program> programs, Path logDir,
+			int maxRetainedJobs) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+		}
+		if (queueSize < 1) {
+			throw new IllegalArgumentException("Queue size must be at least 1: " + queueSize);
+		}
+		this.programs = programs;
+		this.logDir = logDir;
+		this.maxRetainedJobs = maxRetainedJobs;
+		this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueSize));
+	}
+
+	public static void main(String... args) throws Exception {
+		final OptionParser parser = new OptionParser();
+
+		final OptionSpec<Void> help = parser.accepts("help").forHelp();
+		final OptionSpec<Integer> port = parser.accepts("port").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(8765).describedAs("The port to listen on");
+		final OptionSpec<String> bind = parser.accepts("bind").withRequiredArg().ofType(String.class)
+				.defaultsTo("127.0.0.1").describedAs("The address to listen on. Defaults to only local connections.");
+		final OptionSpec<Integer> threads = parser.accepts("threads").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(Runtime.getRuntime().availableProcessors())
+				.describedAs("The number of jobs to run at the same time");
+		final OptionSpec<Integer> queueSize = parser.accepts("queue-size").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(100).describedAs("The number of jobs that can wait to run before new jobs are rejected");
+		final OptionSpec<File> logDir = parser.accepts("log-dir").withRequiredArg().ofType(File.class).describedAs(
+				"The directory to write the console output of each job to. Defaults to a new temporary directory.");
+
+		OptionSet options = null;
+
+		try {
+			options = parser.parse(args);
+		} catch (final OptionException e) {
+			System.out.println(e.getMessage());
+			parser.printHelpOn(System.out);
+			throw e;
+		}
+
+		if (options.has(help)) {
+			parser.printHelpOn(System.out);
+			return;
+		}
+
+		if (queueSize.value(options) < 1) {
+			System.out.println("Queue size must be at least 1: " + queueSize.value(options));
+			parser.printHelpOn(System.out);
+			throw new IllegalArgumentException("Queue size must be at least 1: " + queueSize.value(options));
+		}
+
+		final Path logPath;
+		if (options.has(logDir)) {
+			logPath = logDir.value(options).toPath();
+			Files.createDirectories(logPath);
+		} else {
+			logPath = Files.createTempDirectory("shp-daemon-logs");
+		}
+		System.out.println("Writing job logs to " + logPath);
+
+		SHPDaemon daemon = new SHPDaemon(threads.value(options), queueSize.value(options), logPath);
+		daemon.warmUp();
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getByName(bind.value(options)),
+				port.value(options));
+		daemon.run(address);
+	}
+
+	private static Map<String, BatchRunner.Program> defaultPrograms() {
+		Map<String, BatchRunner.Program> result = new LinkedHashMap<>();
+		result.put("dump", SHPDump::main);
+		result.put("convert", CSV2SHP::main);
+		return result;
+	}
+
+	/**
+	 * Load the GeoTools plugins and referencing factories before accepting
+	 * jobs, so that the first job does not pay for them.
+	 */
+	void warmUp() throws Exception {
+		long start = System.currentTimeMillis();
+		DataStoreFinder.getAvailableDataStores();
+		CRS.parseWKT(DefaultGeographicCRS.WGS84.toWKT());
+		new StreamingRenderer();
+		System.out.println("Loaded GeoTools factories in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Listen for jobs on the given address until a shutdown request is
+	 * received.
+	 */
+	void run(InetSocketAddress address) throws IOException, InterruptedException {
+		awaitShutdown(start(address));
+	}
+
+	/**
+	 * Start listening for jobs on the given address.
+	 * 
+	 * @return The server, which is listening on the given port, or on a free
+	 *         port if the port is 0.
+	 */
+	HttpServer start(InetSocketAddress address) throws IOException {
+		HttpServer server = HttpServer.create(address, 0);
+		server.setExecutor(requestExecutor);
+		server.createContext("/jobs", this::handleJobs);
+		server.createContext("/shutdown", exchange -> {
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendJson(exchange, 405, Collections.singletonMap("error", "Use POST to shut down"));
+				return;
+			}
+			if (!checkPost(exchange)) {
+				return;
+			}
+			sendJson(exchange, 200, Collections.singletonMap("status", "shutting down"));
+			requestShutdown();
+		});
+		// Jobs print to the console, so the console sends the output of each job
+		// to its own log
+		originalOut = System.out;
+		originalErr = System.err;
+		System.setOut(new PrintStream(new JobConsole(originalOut, jobLogs), true));
+		System.setErr(new PrintStream(new JobConsole(originalErr, jobLogs), true));
+		server.start();
+		System.out.println("Listening for jobs on http://" + address.getHostString() + ":"
+				+ server.getAddress().getPort() + "/jobs");
+		return server;
+	}
+
+	/**
+	 * Stop the service after the running jobs finish, as if a shutdown request
+	 * had been received.
+	 */
+	void requestShutdown() {
+		shutdown.countDown();
+	}
+
+	/**
+	 * Wait for a shutdown request, and then stop the server and wait for the
+	 * running jobs to finish.
+	 */
+	void awaitShutdown(HttpServer server) throws InterruptedException {
+		try {
+			shutdown.await();
+		} finally {
+			server.stop(1);
+			requestExecutor.shutdown();
+			executor.shutdown();
+			executor.awaitTermination(1, TimeUnit.HOURS);
+			if (originalOut != null) {
+				System.setOut(originalOut);
+				System.setErr(originalErr);
+			}
+		}
+	}
+
+	/**
+	 * Check that a request was not sent by a web page, as browsers add an
+	 * Origin header to cross origin requests.
+	 * 
+	 * @return True if the request can be handled, or false if an error
+	 *         response has been sent.
+	 */
+	private boolean checkOrigin(HttpExchange exchange) throws IOException {
+		if (exchange.getRequestHeaders().containsKey("Origin")) {
+			sendJson(exchange, 403, Collections.singletonMap("error", "Requests from web pages are not accepted"));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check that a POST request could not have been sent by a web page, as
+	 * browsers cannot send a JSON content type to another origin without
+	 * asking the server first.
+	 * 
+	 * @return True if the request can be handled, or false if an error
+	 *         response has been sent.
+	 */
+	private boolean checkPost(HttpExchange exchange) throws IOException {
+		if (!checkOrigin(exchange)) {
+			return false;
+		}
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		String mediaType = contentType == null ? "" : contentType.split(";", 2)[0].trim();
+		if (!JSON_CONTENT_TYPE.equalsIgnoreCase(mediaType)) {
+			sendJson(exchange, 415,
+					Collections.singletonMap("error", "Content-Type must be " + JSON_CONTENT_TYPE));
+			return false;
+		}
+		return true;
+	}
+
+	private void handleJobs(HttpExchange exchange) throws IOException {
+		try {
+			URI uri = exchange.getRequestURI();
+			String[] pathElements = uri.getPath().replaceAll("/+$", "").split("/");
+			if (pathElements.length != 3) {
+				sendJson(exchange, 404, Collections.singletonMap("error", "Unknown path: " + uri.getPath()));
+				return;
+			}
+			String target = pathElements[2];
+			if (!checkOrigin(exchange)) {
+				return;
+			}
+			if ("GET".equals(exchange.getRequestMethod())) {
+				Job job;
+				try {
+					job = jobs.get(Long.parseLong(target));
+				} catch (NumberFormatException e) {
+					job = null;
+				}
+				if (job == null) {
+					sendJson(exchange, 404, Collections.singletonMap("error", "Unknown job: " + target));
+				} else {
+					sendJson(exchange, 200, job.toMap());
+				}
+				return;
+			}
+			if (!"POST".equals(exchange.getRequestMethod())) {
+				sendJson(exchange, 405, Collections.singletonMap("error", "Use POST to submit jobs"));
+				return;
+			}
+			BatchRunner.Program program = programs.get(target);
+			if (program == null) {
+				sendJson(exchange, 404, Collections.singletonMap("error", "Unknown job type: " + target));
+				return;
+			}
+			if (!checkPost(exchange)) {
+				return;
+			}
+			String[] jobArgs;
+			try (InputStream body = exchange.getRequestBody();) {
+				jobArgs = mapper.readValue(body, String[].class);
+			} catch (IOException e) {
+				sendJson(exchange, 400, Collections.singletonMap("error",
+						"Request body must be a JSON array of arguments: " + e.getMessage()));
+				return;
+			}
+			long jobId = nextJobId.incrementAndGet();
+			Job job = new Job(jobId, target, jobArgs, logDir.resolve("job-" + jobId + ".log"));
+			try {
+				job.future = executor.submit(() -> job.run(program, jobLogs));
+			} catch (RejectedExecutionException e) {
+				sendJson(exchange, 503, Collections.singletonMap("error", "Job queue is full"));
+				return;
+			}
+			addJob(job);
+			String query = uri.getQuery();
+			if (query != null && query.contains("wait=true")) {
+				try {
+					job.future.get();
+				} catch (Exception e) {
+					// The job records its own failure
+				}
+				sendJson(exchange, "failed".equals(job.getStatus()) ? 500 : 200, job.toMap());
+			} else {
+				sendJson(exchange, 202, job.toMap());
+			}
+		} catch (RuntimeException e) {
+			sendJson(exchange, 500, Collections.singletonMap("error", String.valueOf(e)));
+		}
+	}
+
+	/**
+	 * Add a job, and forget the oldest finished jobs if there are too many.
+	 * Queued and running jobs are never forgotten, and there can only be as
+	 * many of those as the threads and the queue allow.
+	 */
+	private void addJob(Job job) {
+		synchronized (jobs) {
+			jobs.put(job.id, job);
+			Iterator<Job> oldestJobs = jobs.values().iterator();
+			while (jobs.size() > maxRetainedJobs && oldestJobs.hasNext()) {
+				if (oldestJobs.next().isFinished()) {
+					oldestJobs.remove();
+				}
+			}
+		}
+	}
+
+	private void sendJson(HttpExchange exchange, int status, Map<String, ?> body) throws IOException {
+		byte[] response = mapper.writeValueAsBytes(body);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, response.length);
+		try (OutputStream out = exchange.getResponseBody();) {
+			out.write(response);
+		}
+	}
+
+	/**
+	 * A single submitted job and its current status.
+	 */
+	private static final class Job {
+
+		private final long id;
+		private final String type;
+		private final String[] args;
+		private final Path log;
+		private volatile String status = "queued";
+		private volatile long millis = -1;
+		private volatile String message;
+		private volatile Future<?> future;
+
+		private Job(long id, String type, String[] args, Path log) {
+			this.id = id;
+			this.type = type;
+			this.args = args;
+			this.log = log;
+		}
+
+		private void run(BatchRunner.Program program, ThreadLocal<OutputStream> jobLogs) {
+			status = "running";
+			long start = System.currentTimeMillis();
+			try (OutputStream logOutput = Files.newOutputStream(log);) {
+				jobLogs.set(logOutput);
+				try {
+					program.main(args);
+					status = "succeeded";
+				} catch (Throwable e) {
+					message = String.valueOf(e);
+					e.printStackTrace();
+					status = "failed";
+				} finally {
+					jobLogs.remove();
+				}
+			} catch (IOException e) {
+				message = "Could not write job log: " + e;
+				status = "failed";
+			} finally {
+				millis = System.currentTimeMillis() - start;
+			}
+			if ("failed".equals(status)) {
+				System.err.println("Job " + id + " failed: " + message);
+			}
+		}
+
+		private String getStatus() {
+			return status;
+		}
+
+		private boolean isFinished() {
+			return "succeeded".equals(status) || "failed".equals(status);
+		}
+
+		private Map<String, Object> toMap() {
+			Map<String, Object> result = new LinkedHashMap<>();
+			result.put("id", id);
+			result.put("type", type);
+			result.put("status", status);
+			result.put("log", log.toString());
+			if (millis >= 0) {
+				result.put("millis", millis);
+			}
+			if (message != null) {
+				result.put("message", message);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Sends console output from a thread that is running a job to the log of
+	 * that job, and all other output to the original console.
+	 */
+	private static final class JobConsole extends OutputStream {
+
+		private final OutputStream console;
+		private final ThreadLocal<OutputStream> jobLogs;
+
+		private JobConsole(OutputStream console, ThreadLocal<OutputStream> jobLogs) {
+			this.console = console;
+			this.jobLogs = jobLogs;
+		}
+
+		private OutputStream target() {
+			OutputStream jobLog = jobLogs.get();
+			return jobLog == null ? console : jobLog;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			target().write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			target().write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			target().flush();
+		}
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.geotools.data.FileDataStore;
+import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * Tool for finding the records that changed between two deliveries of the
+ * same shapefile, by comparing hashes of the raw .shp and .dbf records.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPDiff {
+
+	/**
+	 * The field added to the shapefile of changes to record whether each
+	 * feature was added, removed or modified.
+	 */
+	public static final String CHANGE_FIELD = "DIFF_TYPE";
+
+	public static void main(String... args) throws Exception {
+		final OptionParser parser = new OptionParser();
+
+		final OptionSpec<Void> help = parser.accepts("help").forHelp();
+		final OptionSpec<File> oldInput = parser.accepts("old").withRequiredArg().ofType(File.class).required()
+				.describedAs("The earlier version of the shapefile");
+		final OptionSpec<File> newInput = parser.accepts("new").withRequiredArg().ofType(File.class).required()
+				.describedAs("The later version of the shapefile");
+		final OptionSpec<File> output = parser.accepts("output").withRequiredArg().ofType(File.class).required()
+				.describedAs("The output directory to write the changes to");
+		final OptionSpec<String> outputPrefix = parser.accepts("prefix").withRequiredArg().ofType(String.class)
+				.defaultsTo("diff").describedAs("The prefix for the output files");
+		final OptionSpec<String> key = parser.accepts("key").withRequiredArg().ofType(String.class).describedAs(
+				"A field that identifies each record in both versions. If this is not given, records are matched by the hashes of their geometry and attributes.");
+		final OptionSpec<Integer> threads = parser.accepts("threads").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(Runtime.getRuntime().availableProcessors())
+				.describedAs("The number of threads to hash records with");
+		final OptionSpec<Boolean> writeShapefile = parser.accepts("write-shapefile").withRequiredArg()
+				.ofType(Boolean.class).defaultsTo(Boolean.TRUE).describedAs(
+						"Set to false to only write the CSV files, without writing the changed features to a prefix-changes shapefile.");
+
+		OptionSet options = null;
+
+		try {
+			options = parser.parse(args);
+		} catch (final OptionException e) {
+			System.out.println(e.getMessage());
+			parser.printHelpOn(System.out);
+			throw e;
+		}
+
+		if (options.has(help)) {
+			parser.printHelpOn(System.out);
+			return;
+		}
+
+		final Path oldPath = oldInput.value(options).toPath();
+		final Path newPath = newInput.value(options).toPath();
+		for (Path nextInput : Arrays.asList(oldPath, newPath)) {
+			if (!ParallelSHPFeatureCollection.canRead(nextInput)) {
+				throw new FileNotFoundException("Could not find a .shp file with .shx and .dbf files: " + nextInput);
+			}
+		}
+
+		final Path outputPath = output.value(options).toPath();
+		if (!Files.exists(outputPath)) {
+			throw new FileNotFoundException("Output directory does not exist: " + outputPath.toString());
+		}
+		final String prefix = outputPrefix.value(options);
+		final String keyField = options.has(key) ? key.value(options) : null;
+		final int threadsInt = threads.value(options);
+
+		long start = System.currentTimeMillis();
+		ShapefileDiff diff = new ShapefileDiff(oldPath, newPath, keyField, threadsInt);
+		try (Writer changesOutput = Files.newBufferedWriter(outputPath.resolve(prefix + "-Changes.csv"),
+				StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);) {
+			diff.compare(changesOutput);
+		}
+		try (Writer fieldsOutput = Files.newBufferedWriter(outputPath.resolve(prefix + "-FieldChanges.csv"),
+				StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);) {
+			diff.writeFieldChanges(fieldsOutput);
+		}
+		try (Writer summaryOutput = Files.newBufferedWriter(outputPath.resolve(prefix + "-Summary.csv"),
+				StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);) {
+			diff.writeSummary(summaryOutput);
+		}
+		System.out.println("Compared in " + (System.currentTimeMillis() - start) + " ms: " + diff.getUnchangedCount()
+				+ " unchanged, " + diff.getModifiedCount() + " modified, " + diff.getAddedCount() + " added, "
+				+ diff.getRemovedCount() + " removed");
+
+		if (writeShapefile.value(options)) {
+			Path changesPath = outputPath.resolve(prefix + "-changes");
+			Files.createDirectory(changesPath);
+			FileDataStore oldStore = FileDataStoreFinder.getDataStore(oldPath.toFile());
+			FileDataStore newStore = FileDataStoreFinder.getDataStore(newPath.toFile());
+			try {
+				SimpleFeatureType oldSchema = oldStore.getSchema();
+				SimpleFeatureType newSchema = newStore.getSchema();
+				// Removed features are written using the attributes of the later
+				// version that they share
+				List<SimpleFeatureCollection> sources = Arrays.asList(
+						new ParallelSHPFeatureCollection(newPath, newSchema, threadsInt,
+								ParallelSHPFeatureCollection.SELECTED_CHUNK_SIZE, diff.getAddedRecords()),
+						new ParallelSHPFeatureCollection(newPath, newSchema, threadsInt,
+								ParallelSHPFeatureCollection.SELECTED_CHUNK_SIZE, diff.getModifiedRecords()),
+						new ParallelSHPFeatureCollection(oldPath, oldSchema, threadsInt,
+								ParallelSHPFeatureCollection.SELECTED_CHUNK_SIZE, diff.getRemovedRecords()));
+				List<String> changes = Arrays.asList(ShapefileDiff.ADDED, ShapefileDiff.MODIFIED,
+						ShapefileDiff.REMOVED);
+				SHPUtils.writeShapefile(
+						new ChangeFeatureCollection(getChangeSchema(newSchema, prefix + "-changes"), sources, changes),
+						changesPath);
+			} finally {
+				oldStore.dispose();
+				newStore.dispose();
+			}
+			System.out.println("Wrote changed features to: " + changesPath);
+		}
+	}
+
+	static SimpleFeatureType getChangeSchema(SimpleFeatureType schema, String typeName) {
+		if (schema.getDescriptor(CHANGE_FIELD) != null) {
+			throw new IllegalArgumentException("Shapefile already contains a field named " + CHANGE_FIELD);
+		}
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.init(schema);
+		builder.setName(typeName);
+		builder.length(8).add(CHANGE_FIELD, String.class);
+		return builder.buildFeatureType();
+	}
+
+	/**
+	 * Streams the features from each source in turn, converting them to the
+	 * change schema and recording the kind of change for each source.
+	 */
+	private static final class ChangeFeatureCollection extends AbstractFeatureCollection {
+
+		private final List<SimpleFeatureCollection> sources;
+		private final List<String> changes;
+
+		private ChangeFeatureCollection(SimpleFeatureType changeSchema, List<SimpleFeatureCollection> sources,
+				List<String> changes) {
+			super(changeSchema);
+			this.sources = sources;
+			this.changes = changes;
+		}
+
+		@Override
+		protected Iterator<SimpleFeature> openIterator() {
+			return new ChangeFeatureIterator();
+		}
+
+		@Override
+		public int size() {
+			return sources.stream().mapToInt(SimpleFeatureCollection::size).sum();
+		}
+
+		@Override
+		public ReferencedEnvelope getBounds() {
+			ReferencedEnvelope result = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+			for (SimpleFeatureCollection nextSource : sources) {
+				result.expandToInclude(nextSource.getBounds());
+			}
+			return result;
+		}
+
+		private final class ChangeFeatureIterator implements Iterator<SimpleFeature>, SimpleFeatureIterator {
+
+			private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(getSchema());
+			private int nextSource = 0;
+			private SimpleFeatureIterator current = null;
+
+			@Override
+			public boolean hasNext() {
+				while (current == null || !current.hasNext()) {
+					if (current != null) {
+						current.close();
+						current = null;
+					}
+					if (nextSource >= sources.size()) {
+						return false;
+					}
+					current = sources.get(nextSource++).features();
+				}
+				return true;
+			}
+
+			@Override
+			public SimpleFeature next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				SimpleFeature feature = current.next();
+				for (AttributeDescriptor nextAttribute : getSchema().getAttributeDescriptors()) {
+					String name = nextAttribute.getLocalName();
+					if (name.equals(CHANGE_FIELD)) {
+						builder.set(name, changes.get(nextSource - 1));
+					} else if (nextAttribute instanceof GeometryDescriptor) {
+						builder.set(name, feature.getDefaultGeometry());
+					} else {
+						builder.set(name, feature.getAttribute(name));
+					}
+				}
+				return builder.buildFeature(null);
+			}
+
+			@Override
+			public void close() {
+				if (current != null) {
+					current.close();
+					current = null;
+				}
+			}
+		}
+	}
+}
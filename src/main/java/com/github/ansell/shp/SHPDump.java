@@ -18,44 +18,58 @@ package com.github.ansell.shp;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.io.output.NullWriter;
 import org.geotools.data.FileDataStore;
 import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.Query;
 import org.geotools.data.collection.CollectionFeatureSource;
 import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.shapefile.ShapefileDataStore;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.data.simple.SimpleFeatureIterator;
 import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.feature.NameImpl;
+import org.geotools.filter.text.ecql.ECQL;
+import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.FeatureLayer;
 import org.geotools.map.Layer;
 import org.geotools.map.MapContent;
-import org.geotools.styling.SLD;
 import org.geotools.styling.Style;
 import org.jooq.lambda.Unchecked;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.AttributeDescriptor;
 import org.opengis.feature.type.Name;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory2;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import com.fasterxml.jackson.databind.SequenceWriter;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
 import com.github.ansell.csv.stream.CSVStream;
@@ -74,6 +88,15 @@ import joptsimple.OptionSpec;
  */
 public class SHPDump {
 
+	/**
+	 * The options that do not change the contents of the outputs, and so are
+	 * not part of the cache key.
+	 */
+	private static final Set<String> UNCACHED_OPTIONS = new LinkedHashSet<>(Arrays.asList("help", "input",
+			"output", "prefix", "threads", "render-threads", "zip-threads", "checkpoint-interval", "resume",
+			"cache-dir", "cache-max-size", "batch-threads", "metrics", "validate-threads", "sort-memory",
+			"sort-temp-dir", "generalise-threads", "tile-threads"));
+
 	public static void main(String... args) throws Exception {
 		final OptionParser parser = new OptionParser();
 
@@ -102,6 +125,109 @@ public class SHPDump {
 		final OptionSpec<Boolean> overrideShapefileChecks = parser.accepts("override-shapefile-checks")
 				.withRequiredArg().ofType(Boolean.class).defaultsTo(Boolean.FALSE)
 				.describedAs("Set to true to make the shapefile field name length and field count checks non-fatal.");
+		final OptionSpec<Boolean> streaming = parser.accepts("streaming").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to stream features from the input for each output instead of holding all of the features in memory.");
+		final OptionSpec<Boolean> writeCsv = parser.accepts("write-csv").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.TRUE).describedAs(
+						"Set to false to skip writing the CSV file. The summary is then created while reading the features.");
+		final OptionSpec<Boolean> inlineSummary = parser.accepts("inline-summary").withRequiredArg()
+				.ofType(Boolean.class).defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to create the summary while reading the features instead of parsing the CSV file again.");
+		final OptionSpec<Boolean> csvEncoder = parser.accepts("csv-encoder").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.TRUE).describedAs(
+						"Set to false to write the CSV file using the general purpose CSV writer instead of encoding rows directly from the feature attributes. The direct encoder is not used with the inline summary.");
+		final OptionSpec<Boolean> typedSummary = parser.accepts("typed-summary").withRequiredArg()
+				.ofType(Boolean.class).defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to also write prefix-TypeName-TypedSummary.csv, with statistics based on the type of each attribute, using a fixed amount of memory for each attribute.");
+		final OptionSpec<Boolean> validate = parser.accepts("validate").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to check every geometry for problems, writing prefix-TypeName-Validation.csv and prefix-TypeName-ValidationStatistics.csv");
+		final OptionSpec<Integer> validateThreads = parser.accepts("validate-threads").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors())
+				.describedAs("The number of threads to use to validate geometries.");
+		final OptionSpec<Integer> maxVertices = parser.accepts("max-vertices").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(1000000)
+				.describedAs("The number of vertices above which validation reports a geometry as too large.");
+		final OptionSpec<Integer> threads = parser.accepts("threads").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(1).describedAs(
+						"The number of threads to use to read records from the shapefile. Values above 1 require .shx and .dbf files next to the input.");
+		final OptionSpec<Integer> renderThreads = parser.accepts("render-threads").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(1).describedAs(
+						"The number of threads to render the image with. Images are rendered in tiles if this is more than 1 or the resolution is more than "
+								+ SHPUtils.MAX_SINGLE_IMAGE_WIDTH
+								+ ". Features held in memory, and streamed features once they are generalised, are spatially indexed for tiled images, so each tile only reads the features it contains.");
+		final OptionSpec<Integer> renderTileSize = parser.accepts("render-tile-size").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(SHPUtils.DEFAULT_TILE_SIZE)
+				.describedAs("The width and height in pixels of each tile when rendering in tiles");
+		final OptionSpec<Boolean> generalise = parser.accepts("generalise").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.TRUE).describedAs(
+						"Set to false to render the full resolution geometries, instead of simplifying them to the pixel size of the image and skipping features that would be drawn over a pixel that is already drawn. Generalised images are an approximation, as edges may move by up to half a pixel and only the first feature in each pixel is drawn.");
+		final OptionSpec<Integer> generaliseThreads = parser.accepts("generalise-threads").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors())
+				.describedAs("The number of threads to simplify geometries with before rendering.");
+		final OptionSpec<Boolean> directZip = parser.accepts("direct-zip").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to write the shapefile straight into the zip file instead of writing a -dump directory first. Shapefiles that are too large for a single .shp or .dbf file are still written to a -dump directory, where they are split into several files.");
+		final OptionSpec<Integer> zipThreads = parser.accepts("zip-threads").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(1).describedAs("The number of threads to compress the zip file with");
+		final OptionSpec<Boolean> flatgeobuf = parser.accepts("flatgeobuf").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to also write the features to prefix-TypeName.fgb in the FlatGeobuf format, with a spatial index.");
+		final OptionSpec<Integer> flatgeobufNodeSize = parser.accepts("flatgeobuf-node-size").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(FlatGeobufWriter.DEFAULT_NODE_SIZE).describedAs(
+						"The number of children for each node of the FlatGeobuf spatial index. Set to 0 to write the features in their original order without an index.");
+		final OptionSpec<String> tiles = parser.accepts("tiles").withRequiredArg().ofType(String.class).describedAs(
+				"Set to directory to also render XYZ map tiles to a prefix-TypeName-tiles directory of zoom/x/y.png files, or to pmtiles to write the tiles to a single prefix-TypeName.pmtiles archive.");
+		final OptionSpec<Integer> tileMinZoom = parser.accepts("tile-min-zoom").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(0).describedAs("The lowest zoom level to render tiles for with --tiles.");
+		final OptionSpec<Integer> tileMaxZoom = parser.accepts("tile-max-zoom").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(8).describedAs("The highest zoom level to render tiles for with --tiles.");
+		final OptionSpec<Integer> tileThreads = parser.accepts("tile-threads").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors())
+				.describedAs("The number of threads to render tiles with.");
+		final OptionSpec<Integer> sample = parser.accepts("sample").withRequiredArg().ofType(Integer.class).describedAs(
+				"Only read a sample of this many records, using the .shx offsets and fixed length .dbf records to read each sampled record directly. The summary includes counts estimated for the whole file, and the details of the sample are written to prefix-TypeName-Sample.csv.");
+		final OptionSpec<String> sampleMethod = parser.accepts("sample-method").withRequiredArg().ofType(String.class)
+				.defaultsTo("random").describedAs(
+						"How to choose the records for --sample. Either random, where every record has the same chance of being chosen, or stratified, where one record is chosen from each of the equal ranges of records through the file.");
+		final OptionSpec<Long> sampleSeed = parser.accepts("sample-seed").withRequiredArg().ofType(Long.class)
+				.defaultsTo(0L).describedAs("The seed used to choose the records for --sample.");
+		final OptionSpec<Boolean> spatialSort = parser.accepts("spatial-sort").withRequiredArg()
+				.ofType(Boolean.class).defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to write the features in the order of a Hilbert curve through the centres of their envelopes, so that features that are near each other in space are near each other in the output files.");
+		final OptionSpec<Long> sortMemory = parser.accepts("sort-memory").withRequiredArg().ofType(Long.class)
+				.defaultsTo(256L).describedAs(
+						"The number of megabytes of features to sort in memory for --spatial-sort before writing a sorted run to disk.");
+		final OptionSpec<File> sortTempDir = parser.accepts("sort-temp-dir").withRequiredArg().ofType(File.class)
+				.describedAs("The directory to write sorted runs to for --spatial-sort. Defaults to the output directory.");
+		final OptionSpec<Boolean> scan = parser.accepts("scan").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to only check the structure of the .shp, .shx and .dbf files, without reading any features.");
+		final OptionSpec<String> bbox = parser.accepts("bbox").withRequiredArg().ofType(String.class).describedAs(
+				"Only read features that intersect the box minX,minY,maxX,maxY, in the coordinates of the input. A .qix spatial index is created next to the input if it does not exist, and the image shows only the box.");
+		final OptionSpec<String> where = parser.accepts("where").withRequiredArg().ofType(String.class).describedAs(
+				"An ECQL filter, such as \"STATE = 'NSW' AND AREA > 10\", that features must match to be read.");
+		final OptionSpec<String> columns = parser.accepts("columns").withRequiredArg().ofType(String.class)
+				.withValuesSeparatedBy(',').describedAs(
+						"A comma separated list of the attributes to read. The geometry is always read, and any --remove-if-empty fields must be included. Defaults to all attributes.");
+		final OptionSpec<Integer> checkpointInterval = parser.accepts("checkpoint-interval").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(0).describedAs(
+						"The number of records between checkpoints that allow a failed run to be resumed. Defaults to 0, which disables checkpoints.");
+		final OptionSpec<Boolean> resume = parser.accepts("resume").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.FALSE).describedAs(
+						"Set to true to continue a failed run from its checkpoint, using the same options as the failed run.");
+		final OptionSpec<File> cacheDir = parser.accepts("cache-dir").withRequiredArg().ofType(File.class).describedAs(
+				"A directory to cache outputs in, so that an unchanged input run with the same options is served from the cache instead of being processed again.");
+		final OptionSpec<Long> cacheMaxSize = parser.accepts("cache-max-size").withRequiredArg().ofType(Long.class)
+				.defaultsTo(10240L).describedAs(
+						"The maximum size of the cache in megabytes. The least recently used outputs are removed when the cache is larger than this.");
+		final OptionSpec<Integer> batchThreads = parser.accepts("batch-threads").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(Runtime.getRuntime().availableProcessors()).describedAs(
+						"The number of files to process at the same time when the input is a directory or a glob pattern. Each file uses the prefix followed by the file name.");
+		final OptionSpec<Boolean> metrics = parser.accepts("metrics").withRequiredArg().ofType(Boolean.class)
+				.defaultsTo(Boolean.TRUE).describedAs(
+						"Set to false to disable writing the timing and throughput report for each phase to prefix-Metrics.json");
 
 		OptionSet options = null;
 
@@ -118,6 +244,29 @@ public class SHPDump {
 			return;
 		}
 
+		final String inputValue = input.value(options).getPath();
+		if (BatchRunner.isBatchInput(inputValue)) {
+			final Path batchOutputPath = output.value(options).toPath();
+			if (!Files.exists(batchOutputPath)) {
+				throw new FileNotFoundException("Output directory does not exist: " + batchOutputPath.toString());
+			}
+			if (options.has(outputMappingTemplate)) {
+				throw new IllegalArgumentException("Output mapping template is not supported for batch inputs");
+			}
+			final List<Path> batchInputs = BatchRunner.findInputs(inputValue, "shp");
+			if (batchInputs.isEmpty()) {
+				throw new FileNotFoundException("Could not find any shapefiles for batch input: " + inputValue);
+			}
+			System.out.println("Processing " + batchInputs.size() + " shapefiles using up to "
+					+ batchThreads.value(options) + " threads");
+			int failures = new BatchRunner(SHPDump::main, parser, batchThreads.value(options)).run(args, batchInputs,
+					outputPrefix.value(options), batchOutputPath, "batch-threads");
+			if (failures > 0) {
+				throw new RuntimeException(failures + " of " + batchInputs.size() + " batch jobs failed");
+			}
+			return;
+		}
+
 		final Path inputPath = input.value(options).toPath();
 		if (!Files.exists(inputPath)) {
 			throw new FileNotFoundException("Could not find input SHP file: " + inputPath.toString());
@@ -152,6 +301,129 @@ public class SHPDump {
 		final boolean showSampleCountsBoolean = showSampleCounts.value(options);
 		final boolean overrideShapefileChecksBoolean = overrideShapefileChecks.value(options);
 		final int samplesToShowInt = samplesToShow.value(options);
+		final boolean streamingBoolean = streaming.value(options);
+		final boolean writeCsvBoolean = writeCsv.value(options);
+		final int sampleSizeInt = options.has(sample) ? sample.value(options) : 0;
+		if (options.has(sample) && sampleSizeInt < 1) {
+			throw new IllegalArgumentException("Sample size must be at least 1: " + sampleSizeInt);
+		}
+		final RecordSampler.Method sampleMethodValue = RecordSampler.Method.fromString(sampleMethod.value(options));
+		// The estimated counts for the sample are only available from the inline
+		// summary
+		final boolean inlineSummaryBoolean = inlineSummary.value(options) || !writeCsvBoolean || sampleSizeInt > 0;
+		final boolean typedSummaryBoolean = typedSummary.value(options);
+		final boolean csvEncoderBoolean = csvEncoder.value(options);
+		final boolean validateBoolean = validate.value(options);
+		final boolean spatialSortBoolean = spatialSort.value(options);
+		final boolean directZipBoolean = directZip.value(options);
+		final int zipThreadsInt = zipThreads.value(options);
+		final int threadsInt = threads.value(options);
+		if (threadsInt < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threadsInt);
+		}
+		final double[] bboxValues = options.has(bbox) ? SHPUtils.parseBoundingBox(bbox.value(options)) : null;
+		final Filter whereFilter = options.has(where) ? ECQL.toFilter(where.value(options)) : null;
+		final List<String> columnList = columns.values(options);
+		final boolean hasQuery = bboxValues != null || whereFilter != null || !columnList.isEmpty();
+		if (sampleSizeInt > 0 && hasQuery) {
+			throw new IllegalArgumentException("Samples cannot be combined with the bbox, where or columns options");
+		}
+		if (!columnList.isEmpty()) {
+			for (String nextFilterField : filterFields) {
+				if (!columnList.contains(nextFilterField)) {
+					throw new IllegalArgumentException(
+							"Fields in --remove-if-empty must also be listed in --columns: " + nextFilterField);
+				}
+			}
+		}
+		if (sampleSizeInt > 0 && !ParallelSHPFeatureCollection.canRead(inputPath)) {
+			throw new IllegalArgumentException("Samples can only be read from a shapefile with .shx and .dbf files: "
+					+ inputPath);
+		}
+		final boolean parallelRead = threadsInt > 1 && !hasQuery && ParallelSHPFeatureCollection.canRead(inputPath);
+		if (threadsInt > 1 && hasQuery) {
+			System.err.println("Queries are run by the shapefile data store, reading using a single thread");
+		} else if (threadsInt > 1 && !parallelRead) {
+			System.err.println("Input is not a shapefile with .shx and .dbf files, reading using a single thread");
+		}
+
+		final boolean metricsBoolean = metrics.value(options);
+		final RunMetrics runMetrics = new RunMetrics("shpdump");
+		runMetrics.setProperty("input", inputPath.toAbsolutePath());
+		runMetrics.setProperty("threads", threadsInt);
+		runMetrics.setProperty("streaming", streamingBoolean);
+		runMetrics.setProperty("directZip", directZipBoolean);
+		if (bboxValues != null) {
+			runMetrics.setProperty("bbox", bbox.value(options));
+		}
+		if (whereFilter != null) {
+			runMetrics.setProperty("where", where.value(options));
+		}
+		if (!columnList.isEmpty()) {
+			runMetrics.setProperty("columns", String.join(",", columnList));
+		}
+		if (sampleSizeInt > 0) {
+			runMetrics.setProperty("sample", sampleSizeInt);
+			runMetrics.setProperty("sampleMethod", sampleMethodValue.name().toLowerCase(Locale.ROOT));
+			runMetrics.setProperty("sampleSeed", sampleSeed.value(options));
+		}
+		final long inputBytes = RunMetrics.sizeOf(inputPath, SHPUtils.getSiblingFile(inputPath, "shx"),
+				SHPUtils.getSiblingFile(inputPath, "dbf"));
+
+		if (scan.value(options)) {
+			try (RunMetrics.Phase scanPhase = runMetrics.startPhase("scan");) {
+				SHPScanner scanner = new SHPScanner(inputPath).scan();
+				scanPhase.addRecords(scanner.getShpRecordCount());
+				scanPhase.addBytesRead(inputBytes);
+				scanner.printSummary(System.out);
+				try (Writer scanOutput = Files.newBufferedWriter(outputPath.resolve(prefix + "-Scan.csv"),
+						StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);) {
+					scanner.writeProblems(scanOutput);
+				}
+			}
+			if (metricsBoolean) {
+				runMetrics.writeReport(outputPath.resolve(prefix + "-Metrics.json"));
+			}
+			return;
+		}
+
+		final ResultCache resultCache;
+		final String cacheKey;
+		if (options.has(cacheDir) && options.has(outputMappingTemplate)) {
+			System.err.println("Output mapping templates are not cached, ignoring the cache");
+			resultCache = null;
+			cacheKey = null;
+		} else if (options.has(cacheDir)) {
+			resultCache = new ResultCache(cacheDir.value(options).toPath(), cacheMaxSize.value(options) * 1024 * 1024);
+			cacheKey = ResultCache.computeKey(inputPath, getCacheOptions(options));
+			if (!resume.value(options) && resultCache.restore(cacheKey, inputPath, outputPath, prefix)) {
+				System.out.println("Cache hit, outputs restored from: " + cacheDir.value(options));
+				printCacheReport(resultCache);
+				return;
+			}
+			System.out.println("Cache miss: " + cacheKey);
+			runMetrics.setProperty("cacheKey", cacheKey);
+		} else {
+			resultCache = null;
+			cacheKey = null;
+		}
+		final List<Path> cacheOutputs = new ArrayList<>();
+
+		final int checkpointIntervalInt = checkpointInterval.value(options);
+		final Path checkpointPath = outputPath.resolve(prefix + "-Checkpoint.properties");
+		final Checkpoint checkpoint;
+		if (resume.value(options)) {
+			if (!Files.exists(checkpointPath)) {
+				throw new FileNotFoundException("Could not find checkpoint to resume from: " + checkpointPath);
+			}
+			checkpoint = Checkpoint.load(checkpointPath, inputPath, getCacheOptions(options).toString());
+			System.out.println("Resuming from checkpoint after record " + checkpoint.getRecords());
+		} else if (checkpointIntervalInt > 0) {
+			checkpoint = Checkpoint.create(checkpointPath, inputPath, getCacheOptions(options).toString());
+		} else {
+			checkpoint = null;
+		}
+		final boolean resumed = checkpoint != null && checkpoint.isResumed();
 
 		FileDataStore store = FileDataStoreFinder.getDataStore(inputPath.toFile());
 
@@ -160,16 +432,76 @@ public class SHPDump {
 					"Could not read the given input as an ESRI Shapefile: " + inputPath.toAbsolutePath().toString());
 		}
 
+		if (bboxValues != null && store instanceof ShapefileDataStore) {
+			// The .qix quadtree is created on the first bounding box query if it
+			// is missing or older than the .shp file
+			((ShapefileDataStore) store).setIndexed(true);
+			((ShapefileDataStore) store).setIndexCreationEnabled(true);
+		}
+
 		for (String typeName : new LinkedHashSet<>(Arrays.asList(store.getTypeNames()))) {
 			System.out.println("");
 			System.out.println("Type: " + typeName);
 			SimpleFeatureSource featureSource = store.getFeatureSource(typeName);
-			SimpleFeatureType schema = featureSource.getSchema();
+			SimpleFeatureType sourceSchema = featureSource.getSchema();
+
+			ReferencedEnvelope queryBounds = null;
+			List<Filter> queryFilters = new ArrayList<>();
+			FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
+			if (bboxValues != null) {
+				queryBounds = new ReferencedEnvelope(bboxValues[0], bboxValues[2], bboxValues[1], bboxValues[3],
+						sourceSchema.getCoordinateReferenceSystem());
+				queryFilters.add(filterFactory.bbox(
+						filterFactory.property(sourceSchema.getGeometryDescriptor().getLocalName()), queryBounds));
+			}
+			if (whereFilter != null) {
+				queryFilters.add(whereFilter);
+			}
+			SimpleFeatureCollection collection;
+			int inputRecordCount = 0;
+			int sampledRecordCount = 0;
+			if (sampleSizeInt > 0) {
+				inputRecordCount = SHXIndex.map(SHPUtils.getSiblingFile(inputPath, "shx")).getRecordCount();
+				int[] sampleRecords = RecordSampler.sample(inputRecordCount, sampleSizeInt, sampleMethodValue,
+						sampleSeed.value(options));
+				sampledRecordCount = sampleRecords.length;
+				System.out.println("SAMPLED: reading " + sampledRecordCount + " of " + inputRecordCount
+						+ " records using " + sampleMethodValue.name().toLowerCase(Locale.ROOT) + " sampling");
+				collection = new ParallelSHPFeatureCollection(inputPath, sourceSchema, threadsInt,
+						ParallelSHPFeatureCollection.SELECTED_CHUNK_SIZE, sampleRecords);
+			} else if (parallelRead) {
+				collection = new ParallelSHPFeatureCollection(inputPath, sourceSchema, threadsInt);
+			} else if (queryFilters.isEmpty() && columnList.isEmpty()) {
+				collection = featureSource.getFeatures();
+			} else {
+				// The filters and columns are pushed down to the data store, so
+				// rejected rows and unused columns are not decoded
+				Query query = new Query(typeName, queryFilters.isEmpty() ? Filter.INCLUDE
+						: queryFilters.size() == 1 ? queryFilters.get(0) : filterFactory.and(queryFilters));
+				if (!columnList.isEmpty()) {
+					List<String> queryColumns = new ArrayList<>();
+					queryColumns.add(sourceSchema.getGeometryDescriptor().getLocalName());
+					for (String nextColumn : columnList) {
+						if (sourceSchema.getDescriptor(nextColumn) == null) {
+							throw new IllegalArgumentException("Column not found in " + typeName + ": " + nextColumn);
+						}
+						if (!queryColumns.contains(nextColumn)) {
+							queryColumns.add(nextColumn);
+						}
+					}
+					query.setPropertyNames(queryColumns);
+				}
+				collection = featureSource.getFeatures(query);
+			}
+			// Selecting columns changes the schema of the features that are read
+			SimpleFeatureType schema = collection.getSchema();
 
 			Name outputSchemaName = new NameImpl(schema.getName().getNamespaceURI(),
 					schema.getName().getLocalPart().replace(" ", "").replace("%20", ""));
 			System.out.println("Replacing name on schema: " + schema.getName() + " with " + outputSchemaName);
 			SimpleFeatureType outputSchema = SHPUtils.changeSchemaName(schema, outputSchemaName);
+			OutputContext context = new OutputContext(outputPath, prefix, outputSchema, runMetrics, checkpoint,
+					cacheOutputs);
 
 			List<String> attributeList = new ArrayList<>();
 			for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
@@ -201,90 +533,656 @@ public class SHPDump {
 
 			CsvSchema csvSchema = CSVStream.buildSchema(attributeList);
 
-			SimpleFeatureCollection collection = featureSource.getFeatures();
 			int featureCount = 0;
 			Path nextCSVFile = outputPath.resolve(prefix + ".csv");
-			Path nextSummaryCSVFile = outputPath.resolve(prefix + "-" + outputSchema.getTypeName() + "-Summary.csv");
-			List<SimpleFeature> outputFeatureList = new CopyOnWriteArrayList<>();
-
-			try (SimpleFeatureIterator iterator = collection.features();
-					Writer bufferedWriter = Files.newBufferedWriter(nextCSVFile, StandardCharsets.UTF_8,
-							StandardOpenOption.CREATE_NEW);
-					SequenceWriter csv = CSVStream.newCSVWriter(bufferedWriter, csvSchema);) {
-				List<String> nextLine = new ArrayList<>();
-				while (iterator.hasNext()) {
-					SimpleFeature feature = iterator.next();
-					featureCount++;
-					if (featureCount <= 2) {
-						System.out.println("");
-						System.out.println(feature.getIdentifier());
-					} else if (featureCount % 100 == 0) {
-						System.out.print(".");
+			Path nextSummaryCSVFile = context.resolve("-Summary.csv");
+			List<SimpleFeature> outputFeatureList = new ArrayList<>();
+			FeatureSummariser summariser = inlineSummaryBoolean
+					? new FeatureSummariser(attributeList, samplesToShowInt, showSampleCountsBoolean)
+					: null;
+			// The number of records in the input for each record that was read
+			final double sampleScaleFactor = sampledRecordCount > 0 ? (double) inputRecordCount / sampledRecordCount
+					: 1.0;
+			if (summariser != null && sampleSizeInt > 0) {
+				summariser.setSampled(sampleScaleFactor);
+			}
+			TypedFeatureSummariser typedSummariser = typedSummaryBoolean ? new TypedFeatureSummariser(schema) : null;
+			// Features from before the checkpoint are not in memory after resuming,
+			// so they are streamed from the input again for the later phases
+			final boolean streamOutput = streamingBoolean || resumed;
+			// The CSV file is the record of the progress through the feature loop,
+			// so without it the loop restarts from the first record
+			final boolean summaryComplete = resumed && checkpoint.isComplete(Checkpoint.SUMMARY_PHASE);
+			final boolean typedSummaryComplete = resumed && checkpoint.isComplete(Checkpoint.TYPED_SUMMARY_PHASE);
+			final boolean skipFeatureLoop = resumed && checkpoint.isComplete(Checkpoint.FEATURES_PHASE)
+					&& (writeCsvBoolean || summaryComplete) && (!typedSummaryBoolean || typedSummaryComplete);
+			final long resumeRecords = resumed && writeCsvBoolean ? checkpoint.getRecords() : 0;
+			if (resumeRecords > 0) {
+				try (FileChannel csvChannel = FileChannel.open(nextCSVFile, StandardOpenOption.WRITE);) {
+					csvChannel.truncate(checkpoint.getCsvBytes());
+				}
+				if (summariser != null && !summaryComplete) {
+					try (Reader csvReader = Files.newBufferedReader(nextCSVFile, StandardCharsets.UTF_8);) {
+						CSVStream.parse(csvReader, h -> {
+						}, (h, l) -> l, summariser::addRow);
 					}
-					boolean filterThisFeature = false;
-					for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
-						String featureString = Optional.ofNullable(feature.getAttribute(attribute.getName())).orElse("")
-								.toString();
-						nextLine.add(featureString);
-						if (filterFields.contains(attribute.getName().toString()) && featureString.trim().isEmpty()) {
-							filterThisFeature = true;
-						}
-						if (featureString.length() > 100) {
-							featureString = featureString.substring(0, 100) + "...";
+				}
+			} else if (resumed && !skipFeatureLoop) {
+				Files.deleteIfExists(nextCSVFile);
+			}
+			// These phases are interleaved inside the feature loop, so they are
+			// accumulated from the time spent in each call
+			RunMetrics.Phase decodePhase = runMetrics.phase("decode");
+			RunMetrics.Phase csvPhase = runMetrics.phase("csv");
+			RunMetrics.Phase inlineSummaryPhase = runMetrics.phase("inline-summary");
+			RunMetrics.Phase typedSummaryPhase = runMetrics.phase("typed-summary");
+
+			if (skipFeatureLoop) {
+				featureCount = (int) checkpoint.getRecords();
+			} else {
+				// The inline summary needs the string form of every value, so the
+				// rows are only encoded directly when it is not used
+				final boolean encodeRows = writeCsvBoolean && csvEncoderBoolean && summariser == null;
+				final StandardOpenOption csvOpenOption = resumeRecords > 0 ? StandardOpenOption.APPEND
+						: StandardOpenOption.CREATE_NEW;
+				try (RunMetrics.Phase featureLoopPhase = runMetrics.startPhase("feature-loop");
+						SimpleFeatureIterator iterator = collection.features();
+						CSVRowEncoder rowEncoder = encodeRows
+								? new CSVRowEncoder(schema, filterFields, Files.newOutputStream(nextCSVFile, csvOpenOption))
+								: null;
+						Writer bufferedWriter = writeCsvBoolean && !encodeRows
+								? Files.newBufferedWriter(nextCSVFile, StandardCharsets.UTF_8, csvOpenOption)
+								: null;
+						SequenceWriter csv = bufferedWriter != null ? CSVStream.newCSVWriter(bufferedWriter,
+								resumeRecords > 0 ? csvSchema.withoutHeader() : csvSchema) : null;) {
+					if (rowEncoder != null && resumeRecords == 0) {
+						rowEncoder.writeHeader(attributeList);
+					}
+					List<String> nextLine = new ArrayList<>();
+					// Records before the checkpoint are already in the CSV output
+					while (featureCount < resumeRecords && iterator.hasNext()) {
+						SimpleFeature feature = iterator.next();
+						featureCount++;
+						if (typedSummariser != null && !SHPUtils.hasEmptyFilterField(feature, filterFields)) {
+							typedSummariser.addFeature(feature);
 						}
+					}
+					long decodeStart = System.nanoTime();
+					while (iterator.hasNext()) {
+						SimpleFeature feature = iterator.next();
+						decodePhase.addNanos(System.nanoTime() - decodeStart);
+						featureCount++;
 						if (featureCount <= 2) {
-							System.out.print(attribute.getName() + "=");
-							System.out.println(featureString);
+							System.out.println("");
+							System.out.println(feature.getIdentifier());
+						} else if (featureCount % 100 == 0) {
+							System.out.print(".");
+						}
+						boolean filterThisFeature = false;
+						if (rowEncoder != null && featureCount > 2) {
+							filterThisFeature = rowEncoder.isFiltered(feature);
+						} else {
+							for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
+								String featureString = Optional.ofNullable(feature.getAttribute(attribute.getName()))
+										.orElse("").toString();
+								nextLine.add(featureString);
+								if (filterFields.contains(attribute.getName().toString())
+										&& featureString.trim().isEmpty()) {
+									filterThisFeature = true;
+								}
+								if (featureString.length() > 100) {
+									featureString = featureString.substring(0, 100) + "...";
+								}
+								if (featureCount <= 2) {
+									System.out.print(attribute.getName() + "=");
+									System.out.println(featureString);
+								}
+							}
+						}
+						if (!filterThisFeature) {
+							if (!streamOutput) {
+								outputFeatureList.add(SHPUtils.changeSchemaName(feature, outputSchema));
+							}
+							if (rowEncoder != null) {
+								long csvStart = System.nanoTime();
+								rowEncoder.writeRow(feature);
+								csvPhase.addNanos(System.nanoTime() - csvStart);
+								csvPhase.addRecords(1);
+							} else if (csv != null) {
+								long csvStart = System.nanoTime();
+								csv.write(nextLine);
+								csvPhase.addNanos(System.nanoTime() - csvStart);
+								csvPhase.addRecords(1);
+							}
+							if (summariser != null) {
+								long summaryStart = System.nanoTime();
+								summariser.addRow(nextLine);
+								inlineSummaryPhase.addNanos(System.nanoTime() - summaryStart);
+								inlineSummaryPhase.addRecords(1);
+							}
+							if (typedSummariser != null) {
+								long typedSummaryStart = System.nanoTime();
+								typedSummariser.addFeature(feature);
+								typedSummaryPhase.addNanos(System.nanoTime() - typedSummaryStart);
+								typedSummaryPhase.addRecords(1);
+							}
+						}
+						nextLine.clear();
+						if (writeCsvBoolean && checkpointIntervalInt > 0 && featureCount % checkpointIntervalInt == 0) {
+							if (rowEncoder != null) {
+								rowEncoder.flush();
+							} else {
+								csv.flush();
+								bufferedWriter.flush();
+							}
+							checkpoint.recordProgress(featureCount, Files.size(nextCSVFile));
 						}
+						decodeStart = System.nanoTime();
 					}
-					if (!filterThisFeature) {
-						outputFeatureList.add(SHPUtils.changeSchemaName(feature, outputSchema));
-						csv.write(nextLine);
+					decodePhase.addRecords(featureCount);
+					featureLoopPhase.addRecords(featureCount);
+					featureLoopPhase.addBytesRead(inputBytes);
+				}
+				if (checkpoint != null) {
+					checkpoint.recordProgress(featureCount, RunMetrics.sizeOf(nextCSVFile));
+					checkpoint.markComplete(Checkpoint.FEATURES_PHASE);
+				}
+			}
+			csvPhase.addBytesWritten(RunMetrics.sizeOf(nextCSVFile));
+			if (writeCsvBoolean) {
+				cacheOutputs.add(nextCSVFile);
+			}
+			cacheOutputs.add(nextSummaryCSVFile);
+			if (resumed && !summaryComplete) {
+				Files.deleteIfExists(nextSummaryCSVFile);
+			}
+			if (!summaryComplete) {
+				try (RunMetrics.Phase summaryPhase = runMetrics.startPhase("summary");
+						Writer summaryOutput = Files.newBufferedWriter(nextSummaryCSVFile, StandardCharsets.UTF_8,
+						StandardOpenOption.CREATE_NEW);
+						final Writer mappingWriter = options.has(outputMappingTemplate)
+								? Files.newBufferedWriter(outputMappingPath, StandardCharsets.UTF_8)
+								: NullWriter.NULL_WRITER) {
+					if (summariser != null) {
+						summariser.writeSummary(summaryOutput);
+						summariser.writeMappingTemplate(mappingWriter);
+					} else {
+						try (Reader csvReader = Files.newBufferedReader(nextCSVFile, StandardCharsets.UTF_8);) {
+							CSVSummariser.runSummarise(csvReader, summaryOutput, mappingWriter, samplesToShowInt,
+									showSampleCountsBoolean, false, null, 1);
+						}
+						summaryPhase.addBytesRead(RunMetrics.sizeOf(nextCSVFile));
 					}
-					nextLine.clear();
+					summaryPhase.addRecords(featureCount);
+				}
+				runMetrics.phase("summary").addBytesWritten(RunMetrics.sizeOf(nextSummaryCSVFile));
+				if (checkpoint != null) {
+					checkpoint.markComplete(Checkpoint.SUMMARY_PHASE);
 				}
 			}
-			try (Reader csvReader = Files.newBufferedReader(nextCSVFile, StandardCharsets.UTF_8);
-					Writer summaryOutput = Files.newBufferedWriter(nextSummaryCSVFile, StandardCharsets.UTF_8,
-							StandardOpenOption.CREATE_NEW);
-					final Writer mappingWriter = options.has(outputMappingTemplate)
-							? Files.newBufferedWriter(outputMappingPath, StandardCharsets.UTF_8)
-							: NullWriter.NULL_WRITER) {
-				CSVSummariser.runSummarise(csvReader, summaryOutput, mappingWriter, samplesToShowInt,
-						showSampleCountsBoolean, false, null, 1);
+			if (typedSummariser != null) {
+				writeTypedSummary(context, typedSummariser, typedSummaryPhase, typedSummaryComplete);
 			}
 			if (featureCount > 100) {
 				System.out.println("");
 			}
 			System.out.println("");
 			System.out.println("Feature count: " + featureCount);
+			if (sampleSizeInt > 0) {
+				writeSampleReport(context, sampleMethodValue, sampleSeed.value(options), inputRecordCount,
+						sampledRecordCount, featureCount, sampleScaleFactor);
+			}
+
+			SimpleFeatureCollection outputCollection = streamOutput
+					? new StreamingFeatureCollection(collection, outputSchema, filterFields)
+					: new ListFeatureCollection(outputSchema, outputFeatureList);
+			// Validate the features that are written, after --remove-if-empty
+			if (validateBoolean) {
+				writeValidation(context, outputCollection, validateThreads.value(options), maxVertices.value(options),
+						schema.getCoordinateReferenceSystem(), inputBytes);
+			}
 
-			SimpleFeatureCollection outputCollection = new ListFeatureCollection(outputSchema, outputFeatureList);
-			Path outputShapefilePath = outputPath.resolve(prefix + "-" + outputSchema.getTypeName() + "-dump");
+			SpatialSortFeatureCollection spatialSortCollection = spatialSortBoolean
+					? sortFeatures(context, outputCollection,
+							options.has(sortTempDir) ? sortTempDir.value(options).toPath() : outputPath,
+							sortMemory.value(options) * 1024 * 1024)
+					: null;
+			try {
+				if (spatialSortCollection != null) {
+					outputCollection = spatialSortCollection;
+				}
+				writeShapefile(context, outputCollection, directZipBoolean, zipThreadsInt);
+				if (flatgeobuf.value(options)) {
+					writeFlatGeobuf(context, outputCollection, flatgeobufNodeSize.value(options));
+				}
+				if (options.has(tiles)) {
+					writeTiles(context, outputCollection, tiles.value(options), tileMinZoom.value(options),
+							tileMaxZoom.value(options), tileThreads.value(options));
+				}
+				writeImage(context, outputCollection, SHPUtils.getSimpleStyle(featureSource.getSchema()), queryBounds,
+						streamOutput, format.value(options), resolution.value(options), renderThreads.value(options),
+						renderTileSize.value(options), generalise.value(options), generaliseThreads.value(options));
+			} finally {
+				if (spatialSortCollection != null) {
+					spatialSortCollection.close();
+				}
+			}
+		}
+
+		System.out.println("");
+		runMetrics.printSummary(System.out);
+		if (metricsBoolean) {
+			Path metricsPath = outputPath.resolve(prefix + "-Metrics.json");
+			if (resumed) {
+				Files.deleteIfExists(metricsPath);
+			}
+			runMetrics.writeReport(metricsPath);
+		}
+		if (resultCache != null) {
+			resultCache.store(cacheKey, outputPath, prefix, cacheOutputs);
+			printCacheReport(resultCache);
+		}
+		if (checkpoint != null) {
+			checkpoint.delete();
+		}
+	}
+
+	private static SortedMap<String, String> getCacheOptions(OptionSet options) {
+		SortedMap<String, String> result = new TreeMap<>();
+		for (Entry<OptionSpec<?>, List<?>> nextOption : options.asMap().entrySet()) {
+			for (String nextName : nextOption.getKey().options()) {
+				if (!UNCACHED_OPTIONS.contains(nextName)) {
+					result.put(nextName, nextOption.getValue().toString());
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void printCacheReport(ResultCache resultCache) throws IOException {
+		long[] counts = resultCache.getLogCounts();
+		System.out.println("Cache hits: " + counts[0] + " misses: " + counts[1] + " evictions: " + counts[2]
+				+ " size: " + resultCache.getSize() + " bytes");
+	}
+
+	private static void deleteDirectory(Path directory) throws IOException {
+		if (!Files.exists(directory)) {
+			return;
+		}
+		try (Stream<Path> paths = Files.walk(directory);) {
+			for (Path nextPath : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+				Files.delete(nextPath);
+			}
+		}
+	}
+
+	/**
+	 * Write the typed summary of the features that were read.
+	 */
+	private static void writeTypedSummary(OutputContext context, TypedFeatureSummariser typedSummariser,
+			RunMetrics.Phase typedSummaryPhase, boolean typedSummaryComplete) throws IOException {
+		Path nextTypedSummaryCSVFile = context.resolve("-TypedSummary.csv");
+		context.addOutput(nextTypedSummaryCSVFile);
+		if (typedSummaryComplete) {
+			return;
+		}
+		if (context.isResumed()) {
+			Files.deleteIfExists(nextTypedSummaryCSVFile);
+		}
+		try (Writer typedSummaryOutput = Files.newBufferedWriter(nextTypedSummaryCSVFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE_NEW);) {
+			long typedSummaryStart = System.nanoTime();
+			typedSummariser.writeSummary(typedSummaryOutput);
+			typedSummaryPhase.addNanos(System.nanoTime() - typedSummaryStart);
+		}
+		typedSummaryPhase.addBytesWritten(RunMetrics.sizeOf(nextTypedSummaryCSVFile));
+		context.markComplete(Checkpoint.TYPED_SUMMARY_PHASE);
+	}
+
+	/**
+	 * Write the statistics for a sampled run, including the estimated number of
+	 * features in the whole input.
+	 */
+	private static void writeSampleReport(OutputContext context, RecordSampler.Method sampleMethod, long sampleSeed,
+			int inputRecordCount, int sampledRecordCount, int featureCount, double sampleScaleFactor)
+			throws IOException {
+		long estimatedFeatureCount = Math.round(featureCount * sampleScaleFactor);
+		System.out.println("SAMPLED: " + featureCount + " features from " + sampledRecordCount + " of "
+				+ inputRecordCount + " records, estimated feature count: " + estimatedFeatureCount);
+		Path sampleCSVFile = context.resolve("-Sample.csv");
+		context.addOutput(sampleCSVFile);
+		if (context.isResumed()) {
+			Files.deleteIfExists(sampleCSVFile);
+		}
+		try (Writer sampleOutput = Files.newBufferedWriter(sampleCSVFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE_NEW);
+				SequenceWriter csv = CSVStream.newCSVWriter(sampleOutput,
+						CSVStream.buildSchema(Arrays.asList("statistic", "value")));) {
+			csv.write(Arrays.asList("sampleMethod", sampleMethod.name().toLowerCase(Locale.ROOT)));
+			csv.write(Arrays.asList("sampleSeed", Long.toString(sampleSeed)));
+			csv.write(Arrays.asList("inputRecords", Integer.toString(inputRecordCount)));
+			csv.write(Arrays.asList("sampledRecords", Integer.toString(sampledRecordCount)));
+			csv.write(Arrays.asList("sampledFeatures", Integer.toString(featureCount)));
+			csv.write(Arrays.asList("scaleFactor", Double.toString(sampleScaleFactor)));
+			csv.write(Arrays.asList("estimatedFeatures", Long.toString(estimatedFeatureCount)));
+		}
+	}
+
+	/**
+	 * Validate the geometries of the features that are written.
+	 */
+	private static void writeValidation(OutputContext context, SimpleFeatureCollection outputCollection,
+			int validateThreads, int maxVertices, CoordinateReferenceSystem crs, long inputBytes) throws IOException {
+		Path validationCSVFile = context.resolve("-Validation.csv");
+		Path validationStatisticsCSVFile = context.resolve("-ValidationStatistics.csv");
+		context.addOutput(validationCSVFile);
+		context.addOutput(validationStatisticsCSVFile);
+		if (!context.isPending(Checkpoint.VALIDATE_PHASE)) {
+			return;
+		}
+		if (context.isResumed()) {
+			Files.deleteIfExists(validationCSVFile);
+			Files.deleteIfExists(validationStatisticsCSVFile);
+		}
+		try (RunMetrics.Phase validatePhase = context.runMetrics.startPhase("validate");
+				SimpleFeatureIterator iterator = outputCollection.features();
+				Writer validationOutput = Files.newBufferedWriter(validationCSVFile, StandardCharsets.UTF_8,
+						StandardOpenOption.CREATE_NEW);
+				Writer validationStatisticsOutput = Files.newBufferedWriter(validationStatisticsCSVFile,
+						StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);) {
+			GeometryValidator validator = new GeometryValidator(validateThreads, maxVertices, crs).validate(iterator,
+					validationOutput);
+			validator.writeStatistics(validationStatisticsOutput);
+			validator.printSummary(System.out);
+			validatePhase.addRecords(validator.getFeatureCount());
+			validatePhase.addBytesRead(inputBytes);
+		}
+		context.markComplete(Checkpoint.VALIDATE_PHASE);
+	}
+
+	/**
+	 * Sort the features along a Hilbert curve, spilling to the temporary
+	 * directory when they do not fit in the given memory.
+	 *
+	 * @return The sorted collection, which must be closed by the caller.
+	 */
+	private static SpatialSortFeatureCollection sortFeatures(OutputContext context,
+			SimpleFeatureCollection outputCollection, Path tempDir, long memoryBytes) throws IOException {
+		SpatialSortFeatureCollection spatialSortCollection = new SpatialSortFeatureCollection(outputCollection,
+				tempDir, memoryBytes);
+		try (RunMetrics.Phase sortPhase = context.runMetrics.startPhase("spatial-sort");) {
+			spatialSortCollection.sort();
+			sortPhase.addRecords(spatialSortCollection.size());
+			sortPhase.addBytesWritten(spatialSortCollection.getSpilledBytes());
+		} catch (IOException | RuntimeException e) {
+			spatialSortCollection.close();
+			throw e;
+		}
+		return spatialSortCollection;
+	}
+
+	/**
+	 * Write the features to a zipped shapefile, either directly or through a
+	 * directory that allows the shapefile to be split.
+	 */
+	private static void writeShapefile(OutputContext context, SimpleFeatureCollection outputCollection,
+			boolean directZip, int zipThreads) throws IOException {
+		Path outputShapefileZipPath = context.resolve("-dump.zip");
+		context.addOutput(outputShapefileZipPath);
+		boolean shapefileZipWritten = false;
+		if (directZip) {
+			if (context.isPending(Checkpoint.ZIP_PHASE)) {
+				if (context.isResumed()) {
+					Files.deleteIfExists(outputShapefileZipPath);
+				}
+				try (RunMetrics.Phase shapefilePhase = context.runMetrics.startPhase("shapefile-zip");) {
+					shapefileZipWritten = SHPUtils.writeShapefileZip(outputCollection, outputShapefileZipPath,
+							zipThreads);
+					if (shapefileZipWritten) {
+						shapefilePhase.addBytesWritten(RunMetrics.sizeOf(outputShapefileZipPath));
+					}
+				}
+				if (shapefileZipWritten) {
+					context.markComplete(Checkpoint.SHAPEFILE_PHASE);
+					context.markComplete(Checkpoint.ZIP_PHASE);
+				} else {
+					System.out.println(
+							"Shapefile is too large for a single .shp or .dbf file, writing it to a directory to split it");
+				}
+			} else {
+				shapefileZipWritten = true;
+			}
+		}
+		if (shapefileZipWritten) {
+			return;
+		}
+
+		Path outputShapefilePath = context.resolve("-dump");
+		context.addOutput(outputShapefilePath);
+		if (context.isPending(Checkpoint.SHAPEFILE_PHASE)) {
+			if (context.isResumed()) {
+				deleteDirectory(outputShapefilePath);
+			}
 			if (!Files.exists(outputShapefilePath)) {
 				Files.createDirectory(outputShapefilePath);
 			}
-			SHPUtils.writeShapefile(outputCollection, outputShapefilePath);
+			try (RunMetrics.Phase shapefilePhase = context.runMetrics.startPhase("shapefile");) {
+				SHPUtils.writeShapefile(outputCollection, outputShapefilePath);
+				shapefilePhase.addBytesWritten(RunMetrics.sizeOf(outputShapefilePath));
+			}
+			context.markComplete(Checkpoint.SHAPEFILE_PHASE);
+		}
+
+		// Create ZIP file from the contents to keep the subfiles together
+		if (context.isPending(Checkpoint.ZIP_PHASE)) {
+			if (context.isResumed()) {
+				Files.deleteIfExists(outputShapefileZipPath);
+			}
+			try (RunMetrics.Phase zipPhase = context.runMetrics.startPhase("zip");) {
+				try (final OutputStream out = Files.newOutputStream(outputShapefileZipPath,
+						StandardOpenOption.CREATE_NEW);
+						final ZipOutputStream zip = SHPUtils.newZipOutputStream(out, zipThreads);) {
+					Files.list(outputShapefilePath).forEachOrdered(Unchecked.consumer(e -> {
+						zip.putNextEntry(new ZipEntry(e.getFileName().toString()));
+						Files.copy(e, zip);
+						zip.closeEntry();
+					}));
+				}
+				zipPhase.addBytesRead(RunMetrics.sizeOf(outputShapefilePath));
+				zipPhase.addBytesWritten(RunMetrics.sizeOf(outputShapefileZipPath));
+			}
+			context.markComplete(Checkpoint.ZIP_PHASE);
+		}
+	}
 
-			// Create ZIP file from the contents to keep the subfiles together
-			Path outputShapefileZipPath = outputPath.resolve(prefix + "-" + outputSchema.getTypeName() + "-dump.zip");
-			try (final OutputStream out = Files.newOutputStream(outputShapefileZipPath, StandardOpenOption.CREATE_NEW);
-					final ZipOutputStream zip = new ZipOutputStream(out, StandardCharsets.UTF_8);) {
-				Files.list(outputShapefilePath).forEachOrdered(Unchecked.consumer(e -> {
-					zip.putNextEntry(new ZipEntry(e.getFileName().toString()));
-					Files.copy(e, zip);
-					zip.closeEntry();
-				}));
+	/**
+	 * Write the features to a FlatGeobuf file with a packed Hilbert R-tree.
+	 */
+	private static void writeFlatGeobuf(OutputContext context, SimpleFeatureCollection outputCollection,
+			int nodeSize) throws IOException {
+		Path outputFlatGeobufPath = context.resolve(".fgb");
+		context.addOutput(outputFlatGeobufPath);
+		if (!context.isPending(Checkpoint.FLATGEOBUF_PHASE)) {
+			return;
+		}
+		if (context.isResumed()) {
+			Files.deleteIfExists(outputFlatGeobufPath);
+		}
+		try (RunMetrics.Phase flatgeobufPhase = context.runMetrics.startPhase("flatgeobuf");) {
+			flatgeobufPhase.addRecords(SHPUtils.writeFlatGeobuf(outputCollection, outputFlatGeobufPath, nodeSize));
+			flatgeobufPhase.addBytesWritten(RunMetrics.sizeOf(outputFlatGeobufPath));
+		}
+		context.markComplete(Checkpoint.FLATGEOBUF_PHASE);
+	}
+
+	/**
+	 * Write the features to a pyramid of vector tiles, either in a directory or
+	 * in a PMTiles archive.
+	 */
+	private static void writeTiles(OutputContext context, SimpleFeatureCollection outputCollection, String tiles,
+			int minZoom, int maxZoom, int threads) throws IOException {
+		boolean tileArchive = tiles.equalsIgnoreCase("pmtiles");
+		if (!tileArchive && !tiles.equalsIgnoreCase("directory")) {
+			throw new IllegalArgumentException("Tiles must be written to either directory or pmtiles: " + tiles);
+		}
+		Path outputTilesPath = context.resolve(tileArchive ? ".pmtiles" : "-tiles");
+		context.addOutput(outputTilesPath);
+		if (!context.isPending(Checkpoint.TILES_PHASE)) {
+			return;
+		}
+		if (context.isResumed()) {
+			deleteDirectory(outputTilesPath);
+		}
+		try (RunMetrics.Phase tilesPhase = context.runMetrics.startPhase("tiles");) {
+			TilePyramid pyramid = new TilePyramid(context.outputSchema, minZoom, maxZoom, threads);
+			pyramid.addFeatures(outputCollection);
+			if (tileArchive) {
+				try (PMTilesWriter writer = new PMTilesWriter(outputTilesPath, context.getTitle(), pyramid.getMinZoom(),
+						pyramid.getMaxZoom(), pyramid.getGeographicBounds());) {
+					try {
+						pyramid.render(writer);
+					} catch (IOException | RuntimeException e) {
+						// Do not leave an archive with some of the tiles missing
+						writer.abort();
+						throw e;
+					}
+				}
+			} else {
+				pyramid.render(TilePyramid.directorySink(outputTilesPath));
 			}
+			tilesPhase.addRecords(pyramid.getFeatureCount());
+			tilesPhase.addBytesWritten(RunMetrics.sizeOf(outputTilesPath));
+			System.out.println("Wrote " + pyramid.getTileCount() + " tiles and skipped " + pyramid.getEmptyTileCount()
+					+ " empty tiles for zoom levels " + pyramid.getMinZoom() + " to " + pyramid.getMaxZoom());
+			if (pyramid.getSkippedFeatureCount() > 0) {
+				System.err.println("Could not project " + pyramid.getSkippedFeatureCount() + " features for tiles");
+			}
+		}
+		context.markComplete(Checkpoint.TILES_PHASE);
+	}
 
-			try (final OutputStream outputStream = Files.newOutputStream(
-					outputPath.resolve(prefix + "." + format.value(options)), StandardOpenOption.CREATE_NEW);) {
+	/**
+	 * Render the features to an image.
+	 *
+	 * @param queryBounds
+	 *            The bounds of the --bbox query, or null to render the bounds of
+	 *            the features.
+	 * @param streamOutput
+	 *            True if the features are read from the input each time they are
+	 *            iterated, rather than from memory.
+	 * @param generalise
+	 *            True to simplify the features to the pixel size of the image,
+	 *            and false to render them at full resolution.
+	 */
+	private static void writeImage(OutputContext context, SimpleFeatureCollection outputCollection, Style style,
+			ReferencedEnvelope queryBounds, boolean streamOutput, String format, int resolution, int renderThreads,
+			int renderTileSize, boolean generalise, int generaliseThreads) throws IOException {
+		Path outputImagePath = context.outputPath.resolve(context.prefix + "." + format);
+		context.addOutput(outputImagePath);
+		if (context.isResumed()) {
+			Files.deleteIfExists(outputImagePath);
+		}
+		try (RunMetrics.Phase renderPhase = context.runMetrics.startPhase("render");) {
+			try (final OutputStream outputStream = Files.newOutputStream(outputImagePath,
+					StandardOpenOption.CREATE_NEW);) {
 				MapContent map = new MapContent();
-				map.setTitle(prefix + "-" + outputSchema.getTypeName());
-				Style style = SLD.createSimpleStyle(featureSource.getSchema());
-				Layer layer = new FeatureLayer(new CollectionFeatureSource(outputCollection), style);
+				map.setTitle(context.getTitle());
+				SimpleFeatureCollection renderCollection = outputCollection;
+				GeneralisedFeatureCollection generalisedCollection = null;
+				if (generalise) {
+					// The map has a single layer, so its bounds are the bounds of the collection
+					generalisedCollection = new GeneralisedFeatureCollection(outputCollection,
+							queryBounds != null ? queryBounds : outputCollection.getBounds(), resolution,
+							generaliseThreads, !streamOutput);
+					renderCollection = generalisedCollection;
+				}
+				SimpleFeatureSource renderSource;
+				if (streamOutput && generalisedCollection == null) {
+					// The full resolution streamed features may not fit in memory,
+					// so they are not copied into a spatial index for tiled renders
+					if (SHPUtils.isTiledRender(resolution, renderThreads)) {
+						System.err.println(
+								"WARNING: Each tile of the image reads every streamed feature when --generalise is false. Set --generalise to true, or --render-threads to 1 with a resolution of at most "
+										+ SHPUtils.MAX_SINGLE_IMAGE_WIDTH + ", to read the features once.");
+					}
+					renderSource = new CollectionFeatureSource(renderCollection);
+				} else {
+					// Generalised features are read once into the spatial index for
+					// tiled renders, even when the input is streamed
+					renderSource = SHPUtils.getRenderSource(renderCollection, resolution, renderThreads);
+				}
+				Layer layer = new FeatureLayer(renderSource, style);
 				map.addLayer(layer);
-				SHPUtils.renderImage(map, outputStream, resolution.value(options), format.value(options));
+				try {
+					SHPUtils.renderImage(map, queryBounds != null ? queryBounds : map.getMaxBounds(), outputStream,
+							resolution, format, renderThreads, renderTileSize);
+				} finally {
+					if (generalisedCollection != null) {
+						generalisedCollection.close();
+					}
+				}
+				if (generalisedCollection != null) {
+					System.out.println("Generalised " + generalisedCollection.getInputVertices() + " vertices to "
+							+ generalisedCollection.getOutputVertices() + " and skipped "
+							+ generalisedCollection.getCulledFeatures() + " features smaller than a pixel");
+				}
+			}
+			renderPhase.addBytesWritten(RunMetrics.sizeOf(outputImagePath));
+		}
+	}
+
+	/**
+	 * The location of the outputs for one type, and the metrics, checkpoint and
+	 * cached outputs that each output phase updates.
+	 */
+	private static final class OutputContext {
+		private final Path outputPath;
+		private final String prefix;
+		private final SimpleFeatureType outputSchema;
+		private final RunMetrics runMetrics;
+		private final Checkpoint checkpoint;
+		private final List<Path> cacheOutputs;
+
+		private OutputContext(Path outputPath, String prefix, SimpleFeatureType outputSchema, RunMetrics runMetrics,
+				Checkpoint checkpoint, List<Path> cacheOutputs) {
+			this.outputPath = outputPath;
+			this.prefix = prefix;
+			this.outputSchema = outputSchema;
+			this.runMetrics = runMetrics;
+			this.checkpoint = checkpoint;
+			this.cacheOutputs = cacheOutputs;
+		}
+
+		/**
+		 * @return The name of the outputs for this type, without a suffix.
+		 */
+		private String getTitle() {
+			return prefix + "-" + outputSchema.getTypeName();
+		}
+
+		private Path resolve(String suffix) {
+			return outputPath.resolve(getTitle() + suffix);
+		}
+
+		private void addOutput(Path output) {
+			cacheOutputs.add(output);
+		}
+
+		private boolean isResumed() {
+			return checkpoint != null && checkpoint.isResumed();
+		}
+
+		/**
+		 * @return True unless the phase was completed before the run that is
+		 *         being resumed.
+		 */
+		private boolean isPending(String phase) {
+			return !isResumed() || !checkpoint.isComplete(phase);
+		}
+
+		private void markComplete(String phase) throws IOException {
+			if (checkpoint != null) {
+				checkpoint.markComplete(phase);
 			}
 		}
 	}
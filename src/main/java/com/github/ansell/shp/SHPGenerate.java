@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.github.ansell.shp.SyntheticFeatureCollection.Distribution;
+import com.github.ansell.shp.SyntheticFeatureCollection.GeometryKind;
+
+import joptsimple.OptionException;
+import joptsimple.OptionParser;
+import joptsimple.OptionSet;
+import joptsimple.OptionSpec;
+
+/**
+ * Tool for generating reproducible synthetic shapefiles of any size, for load
+ * and scale testing without using real data.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPGenerate {
+
+	public static void main(String... args) throws Exception {
+		final OptionParser parser = new OptionParser();
+
+		final OptionSpec<Void> help = parser.accepts("help").forHelp();
+		final OptionSpec<File> output = parser.accepts("output").withRequiredArg().ofType(File.class).required()
+				.describedAs("The output directory to create the shapefile in");
+		final OptionSpec<String> outputPrefix = parser.accepts("prefix").withRequiredArg().ofType(String.class)
+				.defaultsTo("generated").describedAs("The name of the shapefile to create");
+		final OptionSpec<Long> count = parser.accepts("count").withRequiredArg().ofType(Long.class).required()
+				.describedAs("The number of features to generate");
+		final OptionSpec<Long> seed = parser.accepts("seed").withRequiredArg().ofType(Long.class).defaultsTo(1L)
+				.describedAs("The seed to generate the features from. The same seed and options always give the same shapefile.");
+		final OptionSpec<String> geometryType = parser.accepts("geometry-type").withRequiredArg()
+				.ofType(String.class).defaultsTo("polygon")
+				.describedAs("The type of geometry to generate: point, polyline or polygon");
+		final OptionSpec<Integer> vertices = parser.accepts("vertices").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(16).describedAs("The number of vertices in each polyline or polygon ring");
+		final OptionSpec<Integer> fields = parser.accepts("fields").withRequiredArg().ofType(Integer.class)
+				.defaultsTo(10).describedAs(
+						"The number of DBF fields, including the ID field, up to " + SyntheticFeatureCollection.MAX_FIELDS);
+		final OptionSpec<Integer> stringWidth = parser.accepts("string-width").withRequiredArg()
+				.ofType(Integer.class).defaultsTo(20).describedAs("The maximum width of the string fields");
+		final OptionSpec<Double> nullRatio = parser.accepts("null-ratio").withRequiredArg().ofType(Double.class)
+				.defaultsTo(0.0).describedAs("The probability, between 0 and 1, that each non-ID value is empty");
+		final OptionSpec<String> distribution = parser.accepts("distribution").withRequiredArg()
+				.ofType(String.class).defaultsTo("uniform")
+				.describedAs("The spatial distribution of the features: uniform, clustered or grid");
+		final OptionSpec<Double> featureSize = parser.accepts("feature-size").withRequiredArg().ofType(Double.class)
+				.defaultsTo(0.01).describedAs("The approximate width of each polyline and polygon, in degrees");
+
+		OptionSet options = null;
+
+		try {
+			options = parser.parse(args);
+		} catch (final OptionException e) {
+			System.out.println(e.getMessage());
+			parser.printHelpOn(System.out);
+			throw e;
+		}
+
+		if (options.has(help)) {
+			parser.printHelpOn(System.out);
+			return;
+		}
+
+		final Path outputPath = output.value(options).toPath();
+		if (!Files.exists(outputPath)) {
+			throw new FileNotFoundException("Output directory does not exist: " + outputPath.toString());
+		}
+
+		final String prefix = outputPrefix.value(options);
+		if (Files.exists(outputPath.resolve(prefix + ".shp"))) {
+			throw new IllegalArgumentException(
+					"Output shapefile already exists: " + outputPath.resolve(prefix + ".shp").toString());
+		}
+
+		final GeometryKind geometryKind;
+		final Distribution distributionValue;
+		try {
+			geometryKind = GeometryKind.valueOf(geometryType.value(options).toUpperCase(Locale.ENGLISH));
+			distributionValue = Distribution.valueOf(distribution.value(options).toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			parser.printHelpOn(System.out);
+			throw e;
+		}
+
+		SyntheticFeatureCollection collection = new SyntheticFeatureCollection(prefix, seed.value(options),
+				count.value(options), geometryKind, vertices.value(options), fields.value(options),
+				stringWidth.value(options), nullRatio.value(options), distributionValue, featureSize.value(options));
+
+		System.out.println("Generating " + collection.getFeatureCount() + " " + geometryKind + " features with "
+				+ fields.value(options) + " fields using seed " + seed.value(options));
+		Set<Path> existingShapefiles = listShapefiles(outputPath);
+		long start = System.currentTimeMillis();
+		// The features are generated as the dumper iterates, so memory use does
+		// not depend on the number of features
+		SHPUtils.writeShapefile(collection, outputPath);
+		// The dumper splits large outputs into several numbered shapefiles
+		List<Path> writtenShapefiles = listShapefiles(outputPath).stream()
+				.filter(p -> !existingShapefiles.contains(p)).sorted().collect(Collectors.toList());
+		System.out.println("Generated " + writtenShapefiles.size() + " shapefile(s) in "
+				+ (System.currentTimeMillis() - start) + " ms:");
+		for (Path writtenShapefile : writtenShapefiles) {
+			System.out.println(writtenShapefile);
+		}
+	}
+
+	private static Set<Path> listShapefiles(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory);) {
+			return files.filter(p -> p.getFileName().toString().toLowerCase(Locale.ENGLISH).endsWith(".shp"))
+					.collect(Collectors.toSet());
+		}
+	}
+}
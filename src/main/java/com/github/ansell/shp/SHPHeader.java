@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The fixed 100 byte header that is shared by the .shp and .shx files.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPHeader {
+
+	public static final int HEADER_LENGTH = 100;
+
+	public static final int FILE_CODE = 9994;
+
+	public static final int VERSION = 1000;
+
+	private final int fileCode;
+	private final long fileLength;
+	private final int version;
+	private final int shapeType;
+	private final double minX;
+	private final double minY;
+	private final double maxX;
+	private final double maxY;
+
+	private SHPHeader(int fileCode, long fileLength, int version, int shapeType, double minX, double minY,
+			double maxX, double maxY) {
+		this.fileCode = fileCode;
+		this.fileLength = fileLength;
+		this.version = version;
+		this.shapeType = shapeType;
+		this.minX = minX;
+		this.minY = minY;
+		this.maxX = maxX;
+		this.maxY = maxY;
+	}
+
+	/**
+	 * Read the header from the start of the given buffer, without changing the
+	 * position or byte order of the buffer.
+	 *
+	 * @param buffer
+	 *            A buffer containing at least the first 100 bytes of a .shp or
+	 *            .shx file.
+	 * @return The parsed header.
+	 */
+	public static SHPHeader read(ByteBuffer buffer) {
+		if (buffer.limit() < HEADER_LENGTH) {
+			throw new IllegalArgumentException("Header requires " + HEADER_LENGTH + " bytes but only found "
+					+ buffer.limit());
+		}
+		ByteBuffer header = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		int fileCode = header.getInt(0);
+		// The file length is stored as a count of 16-bit words
+		long fileLength = (header.getInt(24) & 0xFFFFFFFFL) * 2;
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		int version = header.getInt(28);
+		int shapeType = header.getInt(32);
+		return new SHPHeader(fileCode, fileLength, version, shapeType, header.getDouble(36), header.getDouble(44),
+				header.getDouble(52), header.getDouble(60));
+	}
+
+	public int getFileCode() {
+		return fileCode;
+	}
+
+	/**
+	 * @return The length of the file in bytes, as recorded in the header.
+	 */
+	public long getFileLength() {
+		return fileLength;
+	}
+
+	public int getVersion() {
+		return version;
+	}
+
+	public int getShapeType() {
+		return shapeType;
+	}
+
+	public double getMinX() {
+		return minX;
+	}
+
+	public double getMinY() {
+		return minY;
+	}
+
+	public double getMaxX() {
+		return maxX;
+	}
+
+	public double getMaxY() {
+		return maxY;
+	}
+
+	@Override
+	public String toString() {
+		return "SHPHeader [fileCode=" + fileCode + ", fileLength=" + fileLength + ", version=" + version
+				+ ", shapeType=" + shapeType + ", minX=" + minX + ", minY=" + minY + ", maxX=" + maxX + ", maxY="
+				+ maxY + "]";
+	}
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * Checks the structure of the .shp, .shx and .dbf files in a shapefile by
+ * walking the headers and record headers through memory mapped windows,
+ * without decoding any geometries or attribute values.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPScanner {
+
+	public static final List<String> PROBLEM_HEADERS = Arrays.asList("file", "record", "problem");
+
+	/**
+	 * The maximum number of individual problems to keep, after which problems
+	 * are only counted.
+	 */
+	public static final int MAX_PROBLEMS = 10000;
+
+	private static final Set<Integer> VALID_SHAPE_TYPES = new HashSet<>(
+			Arrays.asList(0, 1, 3, 5, 8, 11, 13, 15, 18, 21, 23, 25, 28, 31));
+
+	private static final Set<Integer> POINT_SHAPE_TYPES = new HashSet<>(Arrays.asList(1, 11, 21));
+
+	private static final String VALID_FIELD_TYPES = "CNFDLM@IOB+YTG0";
+
+	private final Path shpPath;
+	private final Path shxPath;
+	private final Path dbfPath;
+	private final List<Problem> problems = new ArrayList<>();
+	private long problemCount = 0;
+	private long shpRecordCount = 0;
+	private long shxRecordCount = -1;
+	private long dbfRecordCount = -1;
+	private long deletedRecordCount = 0;
+	private long nullShapeCount = 0;
+
+	public SHPScanner(Path shpPath) {
+		this.shpPath = shpPath;
+		this.shxPath = SHPUtils.getSiblingFile(shpPath, "shx");
+		this.dbfPath = SHPUtils.getSiblingFile(shpPath, "dbf");
+	}
+
+	/**
+	 * Scan the .shp file and the .shx and .dbf files next to it.
+	 * 
+	 * @return This scanner, to access the results of the scan.
+	 * @throws IOException
+	 *             If the files could not be read.
+	 */
+	public SHPScanner scan() throws IOException {
+		SHPHeader shpHeader;
+		try (MappedFile shp = MappedFile.open(shpPath);) {
+			if (shp.size() < SHPHeader.HEADER_LENGTH) {
+				addProblem(shpPath, -1, "File is shorter than the " + SHPHeader.HEADER_LENGTH + " byte header");
+				return this;
+			}
+			shpHeader = SHPHeader.read(shp.slice(0, SHPHeader.HEADER_LENGTH));
+			checkHeader(shpPath, shpHeader, shp.size());
+
+			SHXIndex shxIndex = null;
+			if (Files.exists(shxPath)) {
+				try {
+					shxIndex = SHXIndex.map(shxPath);
+				} catch (IllegalArgumentException e) {
+					// A truncated index is reported and the rest of the scan continues
+					// without it
+					addProblem(shxPath, -1, "Could not read header: " + e.getMessage());
+				}
+			} else {
+				addProblem(shxPath, -1, "File not found");
+			}
+			if (shxIndex != null) {
+				shxRecordCount = shxIndex.getRecordCount();
+				long shxSize = Files.size(shxPath);
+				checkHeader(shxPath, shxIndex.getHeader(), shxSize);
+				if ((shxSize - SHPHeader.HEADER_LENGTH) % SHXIndex.RECORD_LENGTH != 0) {
+					addProblem(shxPath, -1, "File size " + shxSize + " is not a whole number of index records");
+				}
+				if (shxIndex.getHeader().getShapeType() != shpHeader.getShapeType()) {
+					addProblem(shxPath, -1, "Shape type " + shxIndex.getHeader().getShapeType()
+							+ " does not match .shp shape type " + shpHeader.getShapeType());
+				}
+				if (shxIndex.getHeader().getMinX() != shpHeader.getMinX()
+						|| shxIndex.getHeader().getMinY() != shpHeader.getMinY()
+						|| shxIndex.getHeader().getMaxX() != shpHeader.getMaxX()
+						|| shxIndex.getHeader().getMaxY() != shpHeader.getMaxY()) {
+					addProblem(shxPath, -1, "Bounding box does not match .shp bounding box");
+				}
+			}
+
+			scanRecords(shp, shpHeader, shxIndex);
+		}
+
+		if (Files.exists(dbfPath)) {
+			scanDbf();
+		} else {
+			addProblem(dbfPath, -1, "File not found");
+		}
+
+		if (shxRecordCount >= 0 && shxRecordCount != shpRecordCount) {
+			addProblem(shxPath, -1,
+					"Index contains " + shxRecordCount + " records but .shp contains " + shpRecordCount);
+		}
+		if (dbfRecordCount >= 0 && dbfRecordCount != shpRecordCount) {
+			addProblem(dbfPath, -1,
+					"Header declares " + dbfRecordCount + " records but .shp contains " + shpRecordCount);
+		}
+		return this;
+	}
+
+	private void checkHeader(Path path, SHPHeader header, long actualSize) {
+		if (header.getFileCode() != SHPHeader.FILE_CODE) {
+			addProblem(path, -1, "File code " + header.getFileCode() + " is not " + SHPHeader.FILE_CODE);
+		}
+		if (header.getVersion() != SHPHeader.VERSION) {
+			addProblem(path, -1, "Version " + header.getVersion() + " is not " + SHPHeader.VERSION);
+		}
+		if (header.getFileLength() != actualSize) {
+			addProblem(path, -1,
+					"Header file length " + header.getFileLength() + " does not match actual size " + actualSize);
+		}
+		if (!VALID_SHAPE_TYPES.contains(header.getShapeType())) {
+			addProblem(path, -1, "Unknown shape type " + header.getShapeType());
+		}
+	}
+
+	private void scanRecords(MappedFile shp, SHPHeader shpHeader, SHXIndex shxIndex) throws IOException {
+		double minX = Double.POSITIVE_INFINITY;
+		double minY = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY;
+		double maxY = Double.NEGATIVE_INFINITY;
+
+		long position = SHPHeader.HEADER_LENGTH;
+		long size = shp.size();
+		while (position < size) {
+			long recordIndex = shpRecordCount;
+			if (position + SHXIndex.RECORD_LENGTH > size) {
+				addProblem(shpPath, recordIndex, "Truncated record header at offset " + position);
+				break;
+			}
+			int recordNumber = shp.getInt(position, ByteOrder.BIG_ENDIAN);
+			long contentLength = shp.getInt(position + 4, ByteOrder.BIG_ENDIAN) * 2L;
+			if (recordNumber != recordIndex + 1) {
+				addProblem(shpPath, recordIndex,
+						"Record number " + recordNumber + " is not the expected " + (recordIndex + 1));
+			}
+			if (contentLength < 4) {
+				addProblem(shpPath, recordIndex, "Content length " + contentLength + " is too short for a shape type");
+				break;
+			}
+			long contentStart = position + SHXIndex.RECORD_LENGTH;
+			if (contentStart + contentLength > size) {
+				addProblem(shpPath, recordIndex, "Content length " + contentLength + " at offset " + position
+						+ " extends past the end of the file");
+				break;
+			}
+			if (shxIndex != null) {
+				if (recordIndex >= shxIndex.getRecordCount()) {
+					if (recordIndex == shxIndex.getRecordCount()) {
+						addProblem(shxPath, recordIndex, "Index has no entry for this record or any later records");
+					}
+				} else {
+					int shxRecord = (int) recordIndex;
+					if (shxIndex.getOffset(shxRecord) != position) {
+						addProblem(shxPath, recordIndex,
+								"Offset " + shxIndex.getOffset(shxRecord) + " does not match record offset " + position);
+					}
+					if (shxIndex.getContentLength(shxRecord) != contentLength) {
+						addProblem(shxPath, recordIndex, "Content length " + shxIndex.getContentLength(shxRecord)
+								+ " does not match record content length " + contentLength);
+					}
+				}
+			}
+
+			int shapeType = shp.getInt(contentStart, ByteOrder.LITTLE_ENDIAN);
+			if (shapeType == 0) {
+				nullShapeCount++;
+			} else if (shapeType != shpHeader.getShapeType()) {
+				addProblem(shpPath, recordIndex,
+						"Shape type " + shapeType + " does not match header shape type " + shpHeader.getShapeType());
+			} else if (POINT_SHAPE_TYPES.contains(shapeType)) {
+				if (contentLength >= 20) {
+					double x = shp.getDouble(contentStart + 4, ByteOrder.LITTLE_ENDIAN);
+					double y = shp.getDouble(contentStart + 12, ByteOrder.LITTLE_ENDIAN);
+					minX = Math.min(minX, x);
+					maxX = Math.max(maxX, x);
+					minY = Math.min(minY, y);
+					maxY = Math.max(maxY, y);
+				} else {
+					addProblem(shpPath, recordIndex, "Content length " + contentLength + " is too short for a point");
+				}
+			} else {
+				if (contentLength >= 36) {
+					minX = Math.min(minX, shp.getDouble(contentStart + 4, ByteOrder.LITTLE_ENDIAN));
+					minY = Math.min(minY, shp.getDouble(contentStart + 12, ByteOrder.LITTLE_ENDIAN));
+					maxX = Math.max(maxX, shp.getDouble(contentStart + 20, ByteOrder.LITTLE_ENDIAN));
+					maxY = Math.max(maxY, shp.getDouble(contentStart + 28, ByteOrder.LITTLE_ENDIAN));
+				} else {
+					addProblem(shpPath, recordIndex,
+							"Content length " + contentLength + " is too short for a bounding box");
+				}
+			}
+
+			shpRecordCount++;
+			position = contentStart + contentLength;
+		}
+
+		if (shpRecordCount > nullShapeCount) {
+			if (!closeTo(minX, shpHeader.getMinX(), maxX - minX) || !closeTo(minY, shpHeader.getMinY(), maxY - minY)
+					|| !closeTo(maxX, shpHeader.getMaxX(), maxX - minX)
+					|| !closeTo(maxY, shpHeader.getMaxY(), maxY - minY)) {
+				addProblem(shpPath, -1,
+						"Header bounding box [" + shpHeader.getMinX() + ", " + shpHeader.getMinY() + ", "
+								+ shpHeader.getMaxX() + ", " + shpHeader.getMaxY()
+								+ "] does not match bounding box of records [" + minX + ", " + minY + ", " + maxX
+								+ ", " + maxY + "]");
+			}
+		}
+	}
+
+	private static boolean closeTo(double actual, double expected, double span) {
+		return Math.abs(actual - expected) <= Math.max(1e-9, Math.abs(span) * 1e-9);
+	}
+
+	private void scanDbf() throws IOException {
+		try (MappedFile dbf = MappedFile.open(dbfPath);) {
+			if (dbf.size() < DBFHeader.DESCRIPTOR_LENGTH) {
+				addProblem(dbfPath, -1, "File is shorter than the " + DBFHeader.DESCRIPTOR_LENGTH + " byte header");
+				return;
+			}
+			int headerLength = dbf.getShort(8, ByteOrder.LITTLE_ENDIAN) & 0xFFFF;
+			if (headerLength > dbf.size()) {
+				addProblem(dbfPath, -1, "Header length " + headerLength + " is larger than the file");
+				return;
+			}
+			DBFHeader header = DBFHeader
+					.read(dbf.slice(0, Math.max(headerLength, DBFHeader.DESCRIPTOR_LENGTH)).slice());
+			dbfRecordCount = header.getRecordCount() & 0xFFFFFFFFL;
+
+			int version = header.getVersion();
+			if ((version & 0x07) != 0x03 && version != 0x30 && version != 0x31) {
+				addProblem(dbfPath, -1, "Unrecognised version byte 0x" + Integer.toHexString(version));
+			}
+			if (header.getFields().isEmpty()) {
+				addProblem(dbfPath, -1, "Header contains no field descriptors");
+			}
+			int descriptorEnd = DBFHeader.DESCRIPTOR_LENGTH * (header.getFields().size() + 1);
+			if (descriptorEnd >= headerLength || dbf.get(descriptorEnd) != DBFHeader.HEADER_TERMINATOR) {
+				addProblem(dbfPath, -1, "Field descriptors are not terminated by 0x0D before the header length "
+						+ headerLength);
+			}
+
+			Set<String> fieldNames = new HashSet<>();
+			int fieldLengthTotal = 1;
+			for (DBFHeader.Field field : header.getFields()) {
+				fieldLengthTotal += field.getLength();
+				if (field.getName().isEmpty()) {
+					addProblem(dbfPath, -1, "Field at offset " + field.getOffset() + " has an empty name");
+				} else if (!fieldNames.add(field.getName().toUpperCase())) {
+					addProblem(dbfPath, -1, "Duplicate field name: " + field.getName());
+				}
+				if (VALID_FIELD_TYPES.indexOf(field.getType()) < 0) {
+					addProblem(dbfPath, -1, "Field " + field.getName() + " has unknown type: " + field.getType());
+				}
+				if (field.getLength() == 0) {
+					addProblem(dbfPath, -1, "Field " + field.getName() + " has zero length");
+				}
+				if (field.getType() == 'D' && field.getLength() != 8) {
+					addProblem(dbfPath, -1,
+							"Date field " + field.getName() + " has length " + field.getLength() + " instead of 8");
+				}
+				if ((field.getType() == 'N' || field.getType() == 'F') && field.getDecimalCount() >= field.getLength()
+						&& field.getDecimalCount() > 0) {
+					addProblem(dbfPath, -1, "Numeric field " + field.getName() + " has decimal count "
+							+ field.getDecimalCount() + " that does not fit in length " + field.getLength());
+				}
+			}
+			if (fieldLengthTotal != header.getRecordLength()) {
+				addProblem(dbfPath, -1, "Record length " + header.getRecordLength()
+						+ " does not match the total of the field lengths " + fieldLengthTotal);
+			}
+
+			long expectedSize = header.getRecordOffset(dbfRecordCount);
+			if (dbf.size() != expectedSize && dbf.size() != expectedSize + 1) {
+				addProblem(dbfPath, -1, "File size " + dbf.size() + " does not match the expected size "
+						+ expectedSize + " for " + dbfRecordCount + " records");
+			}
+
+			if (header.getRecordLength() > 0) {
+				long availableRecords = Math.min(dbfRecordCount,
+						(dbf.size() - headerLength) / header.getRecordLength());
+				for (long i = 0; i < availableRecords; i++) {
+					byte flag = dbf.get(header.getRecordOffset(i));
+					if (flag == DBFHeader.DELETED_RECORD) {
+						deletedRecordCount++;
+					} else if (flag != ' ') {
+						addProblem(dbfPath, i, "Invalid deletion flag 0x" + Integer.toHexString(flag & 0xFF));
+					}
+				}
+			}
+		}
+	}
+
+	private void addProblem(Path path, long record, String message) {
+		problemCount++;
+		if (problems.size() < MAX_PROBLEMS) {
+			problems.add(new Problem(path.getFileName().toString(), record, message));
+		}
+	}
+
+	public List<Problem> getProblems() {
+		return Collections.unmodifiableList(problems);
+	}
+
+	public long getProblemCount() {
+		return problemCount;
+	}
+
+	public long getShpRecordCount() {
+		return shpRecordCount;
+	}
+
+	public long getShxRecordCount() {
+		return shxRecordCount;
+	}
+
+	public long getDbfRecordCount() {
+		return dbfRecordCount;
+	}
+
+	public long getDeletedRecordCount() {
+		return deletedRecordCount;
+	}
+
+	public long getNullShapeCount() {
+		return nullShapeCount;
+	}
+
+	/**
+	 * Print a summary of the scan, including the first few problems.
+	 * 
+	 * @param out
+	 *            The stream to print the summary to.
+	 */
+	public void printSummary(PrintStream out) {
+		out.println("SHP records: " + shpRecordCount);
+		out.println("SHX records: " + shxRecordCount);
+		out.println("DBF records: " + dbfRecordCount);
+		out.println("Deleted DBF records: " + deletedRecordCount);
+		out.println("Null shapes: " + nullShapeCount);
+		out.println("Problems found: " + problemCount);
+		problems.stream().limit(20).forEachOrdered(out::println);
+		if (problemCount > 20) {
+			out.println("...");
+		}
+	}
+
+	/**
+	 * Write the problems found by the scan as CSV.
+	 * 
+	 * @param output
+	 *            The output to write the problems to.
+	 * @throws IOException
+	 *             If there is an error writing the problems.
+	 */
+	public void writeProblems(Writer output) throws IOException {
+		try (SequenceWriter csv = CSVStream.newCSVWriter(output, CSVStream.buildSchema(PROBLEM_HEADERS));) {
+			for (Problem problem : problems) {
+				csv.write(Arrays.asList(problem.getFile(),
+						problem.getRecord() < 0 ? "" : Long.toString(problem.getRecord()), problem.getMessage()));
+			}
+		}
+	}
+
+	/**
+	 * A structural problem found in one of the files.
+	 */
+	public static final class Problem {
+
+		private final String file;
+		private final long record;
+		private final String message;
+
+		Problem(String file, long record, String message) {
+			this.file = file;
+			this.record = record;
+			this.message = message;
+		}
+
+		public String getFile() {
+			return file;
+		}
+
+		/**
+		 * @return The zero-based record index, or -1 if the problem is in a header.
+		 */
+		public long getRecord() {
+			return record;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+
+		@Override
+		public String toString() {
+			return file + (record < 0 ? "" : " record " + record) + ": " + message;
+		}
+	}
+}
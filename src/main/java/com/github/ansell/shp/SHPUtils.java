@@ -20,23 +20,37 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipOutputStream;
 
 import javax.imageio.ImageIO;
 
+import org.geotools.data.collection.CollectionFeatureSource;
+import org.geotools.data.collection.SpatialIndexFeatureCollection;
+import org.geotools.data.collection.SpatialIndexFeatureSource;
 import org.geotools.data.shapefile.ShapefileDumper;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.feature.simple.SimpleFeatureImpl;
 import org.geotools.feature.simple.SimpleFeatureTypeImpl;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.MapContent;
 import org.geotools.renderer.GTRenderer;
 import org.geotools.renderer.lite.StreamingRenderer;
+import org.geotools.styling.SLD;
+import org.geotools.styling.Style;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.feature.type.Name;
 
 /**
@@ -46,12 +60,35 @@ import org.opengis.feature.type.Name;
  */
 public class SHPUtils {
 
+	/**
+	 * The largest image width that will be rendered into a single image.
+	 * Larger images are rendered in tiles.
+	 */
+	public static final int MAX_SINGLE_IMAGE_WIDTH = 16384;
+
+	/**
+	 * The default width and height of each tile for tiled rendering.
+	 */
+	public static final int DEFAULT_TILE_SIZE = 256;
+
+	/**
+	 * The size of the .dbf file at which a shapefile is split into several
+	 * files.
+	 */
+	public static final long MAX_DBF_SIZE = 1000 * 1024 * 1024;
+
+	private static final Map<String, Style> SIMPLE_STYLES = new ConcurrentHashMap<>();
+
 	public static void renderImage(final MapContent map, final OutputStream output, final int imageWidth, String format)
 			throws IOException {
+		renderImage(map, map.getMaxBounds(), output, imageWidth, format);
+	}
+
+	private static void renderImage(final MapContent map, final ReferencedEnvelope mapBounds,
+			final OutputStream output, final int imageWidth, String format) throws IOException {
 		GTRenderer renderer = new StreamingRenderer();
 		renderer.setMapContent(map);
 
-		ReferencedEnvelope mapBounds = map.getMaxBounds();
 		double heightToWidth = mapBounds.getSpan(1) / mapBounds.getSpan(0);
 		Rectangle imageBounds = new Rectangle(0, 0, imageWidth, (int) Math.round(imageWidth * heightToWidth));
 
@@ -65,15 +102,264 @@ public class SHPUtils {
 		ImageIO.write(image, format, output);
 	}
 
+	/**
+	 * Render the map using the given number of threads, splitting the image
+	 * into tiles if more than one thread is used or the image is too large to
+	 * render in one piece. Tiled images are streamed to the image writer in
+	 * strips, so the full image does not need to fit in memory for formats
+	 * such as PNG that are written row by row.
+	 * 
+	 * @param map
+	 *            The map to render. The layers must support concurrent reads if
+	 *            more than one thread is used.
+	 * @param output
+	 *            The stream to write the image to.
+	 * @param imageWidth
+	 *            The width of the image in pixels.
+	 * @param format
+	 *            The image format name.
+	 * @param threads
+	 *            The number of threads to render tiles with.
+	 * @param tileSize
+	 *            The width and height of each tile in pixels.
+	 * @throws IOException
+	 *             If there is an error writing the image.
+	 */
+	public static void renderImage(final MapContent map, final OutputStream output, final int imageWidth, String format,
+			int threads, int tileSize) throws IOException {
+		renderImage(map, map.getMaxBounds(), output, imageWidth, format, threads, tileSize);
+	}
+
+	/**
+	 * Render the given area of the map, using the given number of threads.
+	 * 
+	 * @param map
+	 *            The map to render.
+	 * @param mapBounds
+	 *            The area of the map to render, which sets the aspect ratio of
+	 *            the image.
+	 * @param output
+	 *            The stream to write the image to.
+	 * @param imageWidth
+	 *            The width of the image in pixels.
+	 * @param format
+	 *            The image format name.
+	 * @param threads
+	 *            The number of threads to render tiles with.
+	 * @param tileSize
+	 *            The width and height of each tile in pixels.
+	 * @throws IOException
+	 *             If there is an error writing the image.
+	 * @see #renderImage(MapContent, OutputStream, int, String, int, int)
+	 */
+	public static void renderImage(final MapContent map, final ReferencedEnvelope mapBounds,
+			final OutputStream output, final int imageWidth, String format, int threads, int tileSize)
+			throws IOException {
+		if (!isTiledRender(imageWidth, threads)) {
+			renderImage(map, mapBounds, output, imageWidth, format);
+			return;
+		}
+		double heightToWidth = mapBounds.getSpan(1) / mapBounds.getSpan(0);
+		int imageHeight = (int) Math.round(imageWidth * heightToWidth);
+		try (TiledMapImage image = new TiledMapImage(map, mapBounds, imageWidth, imageHeight, tileSize,
+				Math.max(1, threads));) {
+			if (!ImageIO.write(image, format, output)) {
+				throw new IOException("Could not find an image writer for format: " + format);
+			}
+		}
+	}
+
+	/**
+	 * @param imageWidth
+	 *            The width of the image in pixels.
+	 * @param threads
+	 *            The number of threads to render tiles with.
+	 * @return True if
+	 *         {@link #renderImage(MapContent, ReferencedEnvelope, OutputStream, int, String, int, int)}
+	 *         renders the image in tiles.
+	 */
+	public static boolean isTiledRender(int imageWidth, int threads) {
+		return threads > 1 || imageWidth > MAX_SINGLE_IMAGE_WIDTH;
+	}
+
+	/**
+	 * Create a feature source to render the given features from. Each tile of
+	 * a tiled image queries the source for the features in the tile, so for
+	 * tiled images the features are copied into a spatial index and each tile
+	 * only reads the features that intersect it, instead of every tile reading
+	 * the whole collection.
+	 * 
+	 * @param fc
+	 *            The features to render. These must fit in memory if the image
+	 *            is tiled.
+	 * @param imageWidth
+	 *            The width of the image in pixels.
+	 * @param threads
+	 *            The number of threads to render tiles with.
+	 * @return A feature source for the features, which supports concurrent
+	 *         reads if the image is tiled.
+	 * @throws IOException
+	 *             If there is an error reading the features.
+	 */
+	public static SimpleFeatureSource getRenderSource(SimpleFeatureCollection fc, int imageWidth, int threads)
+			throws IOException {
+		if (!isTiledRender(imageWidth, threads)) {
+			return new CollectionFeatureSource(fc);
+		}
+		SpatialIndexFeatureCollection indexedCollection = new SpatialIndexFeatureCollection(fc);
+		// The index is built by the first query, which must not happen
+		// concurrently from the tile threads
+		indexedCollection.features().close();
+		return new SpatialIndexFeatureSource(indexedCollection);
+	}
+
+	/**
+	 * Parse a bounding box given as minX,minY,maxX,maxY.
+	 * 
+	 * @param bbox
+	 *            The comma separated bounding box.
+	 * @return An array containing minX, minY, maxX and maxY.
+	 * @throws IllegalArgumentException
+	 *             If the bounding box could not be parsed or is empty.
+	 */
+	public static double[] parseBoundingBox(String bbox) {
+		String[] parts = bbox.split(",");
+		if (parts.length != 4) {
+			throw new IllegalArgumentException("Bounding box must be in the form minX,minY,maxX,maxY: " + bbox);
+		}
+		double[] result = new double[4];
+		for (int i = 0; i < 4; i++) {
+			try {
+				result[i] = Double.parseDouble(parts[i].trim());
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bounding box contained an invalid number: " + bbox, e);
+			}
+		}
+		if (result[0] >= result[2] || result[1] >= result[3]) {
+			throw new IllegalArgumentException("Bounding box minimums must be less than the maximums: " + bbox);
+		}
+		return result;
+	}
+
+	/**
+	 * Get a simple style for rendering the given schema. The styles only depend
+	 * on the geometry attribute, so they are cached and shared between all of
+	 * the schemas with the same geometry name and type, which avoids rebuilding
+	 * them for each file when many files are processed in the same JVM.
+	 * 
+	 * @param schema
+	 *            The schema to render.
+	 * @return A simple style for the schema.
+	 */
+	public static Style getSimpleStyle(SimpleFeatureType schema) {
+		GeometryDescriptor geometry = schema.getGeometryDescriptor();
+		if (geometry == null) {
+			return SLD.createSimpleStyle(schema);
+		}
+		String key = geometry.getLocalName() + ":" + geometry.getType().getBinding().getName();
+		return SIMPLE_STYLES.computeIfAbsent(key, k -> SLD.createSimpleStyle(schema));
+	}
+
 	public static void writeShapefile(SimpleFeatureCollection fc, Path outputDir) throws IOException {
 		ShapefileDumper dumper = new ShapefileDumper(outputDir.toFile());
 		dumper.setCharset(StandardCharsets.UTF_8);
-		// split when shp or dbf reaches 1000MB
-		int maxSize = 1000 * 1024 * 1024;
-		dumper.setMaxDbfSize(maxSize);
+		// split when shp reaches 2GB or dbf reaches 1000MB
+		dumper.setMaxDbfSize(MAX_DBF_SIZE);
 		dumper.dump(fc);
 	}
 
+	/**
+	 * Find one of the other files that make up a shapefile, such as the .shx or
+	 * .dbf file next to a .shp file.
+	 * 
+	 * @param path
+	 *            The path to one of the files in the shapefile.
+	 * @param extension
+	 *            The extension of the file to find, without the leading period.
+	 * @return The path to the file with the given extension, using the upper case
+	 *         form of the extension if only that file exists.
+	 */
+	public static Path getSiblingFile(Path path, String extension) {
+		String fileName = path.getFileName().toString();
+		int lastPeriod = fileName.lastIndexOf('.');
+		String baseName = lastPeriod > 0 ? fileName.substring(0, lastPeriod) : fileName;
+		Path lowerCasePath = path.resolveSibling(baseName + "." + extension.toLowerCase());
+		Path upperCasePath = path.resolveSibling(baseName + "." + extension.toUpperCase());
+		if (!Files.exists(lowerCasePath) && Files.exists(upperCasePath)) {
+			return upperCasePath;
+		}
+		return lowerCasePath;
+	}
+
+	/**
+	 * Write the features as a shapefile directly into a new ZIP archive, without
+	 * writing the parts of the shapefile to disk first.
+	 * 
+	 * @param fc
+	 *            The features to write, which will be iterated four times,
+	 *            although the first iteration stops at the first non-empty
+	 *            geometry.
+	 * @param zipPath
+	 *            The path of the ZIP archive to create.
+	 * @param threads
+	 *            The number of threads to compress the archive with.
+	 * @return True if the archive was written, or false if the shapefile would
+	 *         be too large for a single .shp or .dbf file, in which case the
+	 *         archive is not created and the shapefile should be written with
+	 *         {@link #writeShapefile(SimpleFeatureCollection, Path)}, which
+	 *         splits it into several files.
+	 * @throws IOException
+	 *             If there is an error writing the archive.
+	 */
+	public static boolean writeShapefileZip(SimpleFeatureCollection fc, Path zipPath, int threads) throws IOException {
+		SHPZipWriter writer = new SHPZipWriter(fc, StandardCharsets.UTF_8);
+		if (writer.isSplitRequired()) {
+			return false;
+		}
+		try (final OutputStream out = new BufferedOutputStream(
+				Files.newOutputStream(zipPath, StandardOpenOption.CREATE_NEW));
+				final ZipOutputStream zip = newZipOutputStream(out, threads);) {
+			writer.write(zip);
+		}
+		return true;
+	}
+
+	/**
+	 * Write the features to a new FlatGeobuf file, with a packed Hilbert R-tree
+	 * index unless the node size is 0.
+	 * 
+	 * @param fc
+	 *            The features to write, which will be iterated once.
+	 * @param outputPath
+	 *            The path of the file to create.
+	 * @param nodeSize
+	 *            The number of children for each node of the index, or 0 to
+	 *            write the features without an index.
+	 * @return The number of features that were written.
+	 * @throws IOException
+	 *             If there is an error writing the file.
+	 */
+	public static long writeFlatGeobuf(SimpleFeatureCollection fc, Path outputPath, int nodeSize) throws IOException {
+		return new FlatGeobufWriter(nodeSize).write(fc, outputPath);
+	}
+
+	/**
+	 * Create a ZIP output stream, which compresses on multiple threads if more
+	 * than one thread is requested.
+	 * 
+	 * @param out
+	 *            The stream to write the archive to.
+	 * @param threads
+	 *            The number of threads to compress the archive with.
+	 * @return A new ZIP output stream.
+	 */
+	public static ZipOutputStream newZipOutputStream(OutputStream out, int threads) {
+		if (threads > 1) {
+			return new ParallelZipOutputStream(out, threads);
+		}
+		return new ZipOutputStream(out, StandardCharsets.UTF_8);
+	}
+
 	public static SimpleFeatureTypeImpl cloneSchema(SimpleFeatureType schema) {
 		return changeSchemaName(schema, schema.getName());
 	}
@@ -88,4 +374,28 @@ public class SHPUtils {
 		return new SimpleFeatureImpl(feature.getAttributes(), outputSchema, feature.getIdentifier());
 	}
 
+	/**
+	 * Checks whether any of the given filter fields, which are present in the
+	 * schema for the feature, have an empty value on the given feature.
+	 * 
+	 * @param feature
+	 *            The feature to check.
+	 * @param filterFields
+	 *            The names of the fields that must not be empty.
+	 * @return True if the feature has an empty value in any of the filter fields,
+	 *         and false otherwise.
+	 */
+	public static boolean hasEmptyFilterField(SimpleFeature feature, Set<String> filterFields) {
+		for (String nextFilterField : filterFields) {
+			if (feature.getFeatureType().getDescriptor(nextFilterField) == null) {
+				continue;
+			}
+			Object value = feature.getAttribute(nextFilterField);
+			if (value == null || value.toString().trim().isEmpty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 }
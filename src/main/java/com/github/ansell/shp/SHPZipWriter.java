@@ -0,0 +1,335 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.geotools.data.shapefile.dbf.DbaseFileHeader;
+import org.geotools.data.shapefile.dbf.DbaseFileWriter;
+import org.geotools.data.shapefile.shp.JTSUtilities;
+import org.geotools.data.shapefile.shp.ShapeHandler;
+import org.geotools.data.shapefile.shp.ShapeType;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureTypes;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiLineString;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+
+/**
+ * Writes a feature collection as the .shp, .shx, .dbf, .prj and .cpg entries
+ * of a ZIP archive, without writing the parts to disk first.
+ * <p>
+ * The .shp and .shx headers need the bounds and size of the file before the
+ * records, so the constructor makes one pass over the features to find them
+ * and to remember the length of each record, after a partial pass that stops
+ * at the first non-empty geometry to find the shape type. The .shp and .dbf
+ * entries then each take one more pass, and the .shx entry is built from the
+ * remembered record lengths.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPZipWriter {
+
+	/**
+	 * The largest .shp file that will be written, as many readers do not
+	 * support files larger than 2GB.
+	 */
+	public static final long MAX_SHP_SIZE = Integer.MAX_VALUE;
+
+	/**
+	 * The largest .dbf file that will be written, which is the size at which
+	 * {@link SHPUtils#writeShapefile(SimpleFeatureCollection, java.nio.file.Path)}
+	 * splits the shapefile.
+	 */
+	public static final long MAX_DBF_SIZE = SHPUtils.MAX_DBF_SIZE;
+
+	private final SimpleFeatureCollection features;
+	private final SimpleFeatureType schema;
+	private final Charset charset;
+	private final ShapeType shapeType;
+	private final ShapeHandler handler;
+	private final Envelope bounds = new Envelope();
+	private int[] contentLengths = new int[1024];
+	private int recordCount = 0;
+	private long shpLength = SHPHeader.HEADER_LENGTH;
+	private final DbaseFileHeader dbfHeader = new DbaseFileHeader();
+	private final List<Integer> attributeIndexes = new ArrayList<>();
+	private final long dbfLength;
+
+	public SHPZipWriter(SimpleFeatureCollection features, Charset charset) throws IOException {
+		this.features = features;
+		this.schema = features.getSchema();
+		this.charset = charset;
+		this.shapeType = findShapeType();
+		this.handler = shapeType.getShapeHandler(new GeometryFactory());
+
+		try (SimpleFeatureIterator iterator = features.features();) {
+			while (iterator.hasNext()) {
+				Geometry geometry = getGeometry(iterator.next());
+				int contentLength = geometry == null ? 4 : handler.getLength(geometry);
+				if (geometry != null) {
+					bounds.expandToInclude(geometry.getEnvelopeInternal());
+				}
+				if (recordCount == contentLengths.length) {
+					contentLengths = Arrays.copyOf(contentLengths, contentLengths.length * 2);
+				}
+				contentLengths[recordCount++] = contentLength;
+				shpLength += SHXIndex.RECORD_LENGTH + contentLength;
+			}
+		}
+
+		List<AttributeDescriptor> descriptors = schema.getAttributeDescriptors();
+		for (int i = 0; i < descriptors.size(); i++) {
+			AttributeDescriptor descriptor = descriptors.get(i);
+			if (descriptor instanceof GeometryDescriptor) {
+				continue;
+			}
+			addColumn(dbfHeader, descriptor);
+			attributeIndexes.add(i);
+		}
+		dbfHeader.setNumRecords(recordCount);
+		dbfLength = dbfHeader.getHeaderLength() + (long) dbfHeader.getRecordLength() * recordCount;
+	}
+
+	/**
+	 * @return True if the .shp or .dbf file would be larger than a single file
+	 *         supports, in which case nothing can be written and the shapefile
+	 *         must be written to a directory, where it is split into several
+	 *         files.
+	 */
+	public boolean isSplitRequired() {
+		return shpLength > MAX_SHP_SIZE || dbfLength > MAX_DBF_SIZE;
+	}
+
+	/**
+	 * Work out the shape type from the geometry binding, or from the first
+	 * geometry if the binding does not determine it.
+	 */
+	private ShapeType findShapeType() {
+		GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
+		if (geometryDescriptor == null) {
+			throw new IllegalArgumentException("Schema has no geometry attribute: " + schema.getTypeName());
+		}
+		Geometry firstGeometry = null;
+		try (SimpleFeatureIterator iterator = features.features();) {
+			while (firstGeometry == null && iterator.hasNext()) {
+				Object nextGeometry = iterator.next().getDefaultGeometry();
+				if (nextGeometry instanceof Geometry && !((Geometry) nextGeometry).isEmpty()) {
+					firstGeometry = (Geometry) nextGeometry;
+				}
+			}
+		}
+		Class<?> binding = geometryDescriptor.getType().getBinding();
+		if (binding == Geometry.class && firstGeometry != null) {
+			binding = firstGeometry.getClass();
+		}
+		boolean hasZ = firstGeometry != null && !Double.isNaN(firstGeometry.getCoordinate().z);
+		if (Point.class.isAssignableFrom(binding)) {
+			return hasZ ? ShapeType.POINTZ : ShapeType.POINT;
+		} else if (MultiPoint.class.isAssignableFrom(binding)) {
+			return hasZ ? ShapeType.MULTIPOINTZ : ShapeType.MULTIPOINT;
+		} else if (LineString.class.isAssignableFrom(binding) || MultiLineString.class.isAssignableFrom(binding)) {
+			return hasZ ? ShapeType.ARCZ : ShapeType.ARC;
+		} else if (Polygon.class.isAssignableFrom(binding) || MultiPolygon.class.isAssignableFrom(binding)) {
+			return hasZ ? ShapeType.POLYGONZ : ShapeType.POLYGON;
+		} else if (firstGeometry == null) {
+			return ShapeType.NULL;
+		}
+		throw new IllegalArgumentException("Cannot write geometries of type " + binding.getName()
+				+ " to a single shapefile. Write the shapefile to a directory instead.");
+	}
+
+	private Geometry getGeometry(SimpleFeature feature) {
+		Object geometry = feature.getDefaultGeometry();
+		if (!(geometry instanceof Geometry) || ((Geometry) geometry).isEmpty() || shapeType == ShapeType.NULL) {
+			return null;
+		}
+		return JTSUtilities.convertToCollection((Geometry) geometry, shapeType);
+	}
+
+	/**
+	 * Write the shapefile entries to the archive.
+	 * 
+	 * @param zip
+	 *            The archive to add the entries to.
+	 * @throws IOException
+	 *             If there is an error writing the entries.
+	 * @throws IllegalStateException
+	 *             If {@link #isSplitRequired()} is true.
+	 */
+	public void write(ZipOutputStream zip) throws IOException {
+		if (isSplitRequired()) {
+			throw new IllegalStateException("Shapefile would need " + shpLength + " bytes for the .shp file and "
+					+ dbfLength + " bytes for the .dbf file, which is larger than a single file supports.");
+		}
+		String typeName = schema.getTypeName();
+
+		zip.putNextEntry(new ZipEntry(typeName + ".shp"));
+		zip.write(createHeader(shpLength));
+		ByteBuffer record = ByteBuffer.allocate(1024);
+		try (SimpleFeatureIterator iterator = features.features();) {
+			int recordIndex = 0;
+			while (iterator.hasNext()) {
+				Geometry geometry = getGeometry(iterator.next());
+				int contentLength = contentLengths[recordIndex];
+				if (record.capacity() < SHXIndex.RECORD_LENGTH + contentLength) {
+					record = ByteBuffer.allocate(SHXIndex.RECORD_LENGTH + contentLength);
+				}
+				record.clear();
+				record.order(ByteOrder.BIG_ENDIAN);
+				record.putInt(recordIndex + 1);
+				record.putInt(contentLength / 2);
+				record.order(ByteOrder.LITTLE_ENDIAN);
+				if (geometry == null) {
+					record.putInt(ShapeType.NULL.id);
+				} else {
+					record.putInt(shapeType.id);
+					handler.write(record, geometry);
+				}
+				zip.write(record.array(), 0, record.position());
+				recordIndex++;
+			}
+			if (recordIndex != recordCount) {
+				throw new IOException(
+						"Features changed while writing, expected " + recordCount + " but found " + recordIndex);
+			}
+		}
+		zip.closeEntry();
+
+		zip.putNextEntry(new ZipEntry(typeName + ".shx"));
+		zip.write(createHeader(SHPHeader.HEADER_LENGTH + (long) recordCount * SHXIndex.RECORD_LENGTH));
+		ByteBuffer index = ByteBuffer.allocate(SHXIndex.RECORD_LENGTH).order(ByteOrder.BIG_ENDIAN);
+		long offset = SHPHeader.HEADER_LENGTH;
+		for (int i = 0; i < recordCount; i++) {
+			index.clear();
+			index.putInt((int) (offset / 2));
+			index.putInt(contentLengths[i] / 2);
+			zip.write(index.array());
+			offset += SHXIndex.RECORD_LENGTH + contentLengths[i];
+		}
+		zip.closeEntry();
+
+		writeDbf(zip, typeName);
+
+		CoordinateReferenceSystem crs = schema.getCoordinateReferenceSystem();
+		if (crs != null) {
+			zip.putNextEntry(new ZipEntry(typeName + ".prj"));
+			zip.write(crs.toWKT().getBytes(charset));
+			zip.closeEntry();
+		}
+
+		zip.putNextEntry(new ZipEntry(typeName + ".cpg"));
+		zip.write(charset.name().getBytes(charset));
+		zip.closeEntry();
+	}
+
+	private byte[] createHeader(long fileLength) {
+		ByteBuffer header = ByteBuffer.allocate(SHPHeader.HEADER_LENGTH);
+		header.order(ByteOrder.BIG_ENDIAN);
+		header.putInt(SHPHeader.FILE_CODE);
+		header.position(24);
+		header.putInt((int) (fileLength / 2));
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(SHPHeader.VERSION);
+		header.putInt(shapeType.id);
+		if (bounds.isNull()) {
+			header.putDouble(0).putDouble(0).putDouble(0).putDouble(0);
+		} else {
+			header.putDouble(bounds.getMinX()).putDouble(bounds.getMinY()).putDouble(bounds.getMaxX())
+					.putDouble(bounds.getMaxY());
+		}
+		// The Z and M ranges are left as zero
+		return header.array();
+	}
+
+	private void writeDbf(ZipOutputStream zip, String typeName) throws IOException {
+		zip.putNextEntry(new ZipEntry(typeName + ".dbf"));
+		// Closing the writer closes its channel, which must not close the archive
+		DbaseFileWriter dbfWriter = new DbaseFileWriter(dbfHeader,
+				Channels.newChannel(new CloseShieldOutputStream(zip)), charset);
+		try (SimpleFeatureIterator iterator = features.features();) {
+			Object[] values = new Object[attributeIndexes.size()];
+			while (iterator.hasNext()) {
+				SimpleFeature feature = iterator.next();
+				for (int i = 0; i < values.length; i++) {
+					values[i] = feature.getAttribute(attributeIndexes.get(i));
+				}
+				dbfWriter.write(values);
+			}
+		} finally {
+			dbfWriter.close();
+		}
+		zip.closeEntry();
+	}
+
+	/**
+	 * Add a column for the attribute, using the same types and lengths as the
+	 * GeoTools shapefile writer.
+	 */
+	private static void addColumn(DbaseFileHeader header, AttributeDescriptor descriptor) throws IOException {
+		Class<?> binding = descriptor.getType().getBinding();
+		String name = descriptor.getLocalName();
+		int fieldLength = FeatureTypes.getFieldLength(descriptor);
+		if (fieldLength <= 0) {
+			fieldLength = 255;
+		}
+		if (binding == Integer.class || binding == Short.class || binding == Byte.class) {
+			header.addColumn(name, 'N', Math.min(fieldLength, 9), 0);
+		} else if (binding == Long.class) {
+			header.addColumn(name, 'N', Math.min(fieldLength, 19), 0);
+		} else if (binding == BigInteger.class) {
+			header.addColumn(name, 'N', Math.min(fieldLength, 33), 0);
+		} else if (Number.class.isAssignableFrom(binding)) {
+			int length = Math.min(fieldLength, 33);
+			header.addColumn(name, 'N', length, Math.max(length - 2, 0));
+		} else if (Date.class.isAssignableFrom(binding) || Calendar.class.isAssignableFrom(binding)) {
+			header.addColumn(name, 'D', 8, 0);
+		} else if (binding == Boolean.class) {
+			header.addColumn(name, 'L', 1, 0);
+		} else if (CharSequence.class.isAssignableFrom(binding) || binding == UUID.class) {
+			header.addColumn(name, 'C', Math.min(254, fieldLength), 0);
+		} else {
+			throw new IOException("Unable to write attribute " + name + " of type " + binding.getName());
+		}
+	}
+}
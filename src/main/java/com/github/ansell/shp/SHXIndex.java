@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A memory mapped view of a .shx file, giving the byte offset and content
+ * length of each record in the matching .shp file without reading the index
+ * onto the heap.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHXIndex {
+
+	/**
+	 * The length of each record in the .shx file and of each record header in
+	 * the .shp file.
+	 */
+	public static final int RECORD_LENGTH = 8;
+
+	private final SHPHeader header;
+	private final ByteBuffer buffer;
+	private final int recordCount;
+
+	public SHXIndex(ByteBuffer buffer) {
+		this.header = SHPHeader.read(buffer);
+		this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		this.recordCount = (buffer.limit() - SHPHeader.HEADER_LENGTH) / RECORD_LENGTH;
+	}
+
+	/**
+	 * Memory map the given .shx file.
+	 *
+	 * @param shxPath
+	 *            The path to the .shx file.
+	 * @return An index backed by a read-only mapping of the file.
+	 * @throws IOException
+	 *             If the file could not be mapped.
+	 */
+	public static SHXIndex map(Path shxPath) throws IOException {
+		try (FileChannel channel = FileChannel.open(shxPath, StandardOpenOption.READ);) {
+			// The mapping stays valid after the channel is closed
+			return new SHXIndex(channel.map(MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	public SHPHeader getHeader() {
+		return header;
+	}
+
+	public int getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * @param recordIndex
+	 *            The zero-based index of the record.
+	 * @return The byte offset of the record header in the .shp file.
+	 */
+	public long getOffset(int recordIndex) {
+		return (buffer.getInt(SHPHeader.HEADER_LENGTH + recordIndex * RECORD_LENGTH) & 0xFFFFFFFFL) * 2;
+	}
+
+	/**
+	 * @param recordIndex
+	 *            The zero-based index of the record.
+	 * @return The length in bytes of the record content in the .shp file, not
+	 *         including the 8 byte record header.
+	 */
+	public int getContentLength(int recordIndex) {
+		return buffer.getInt(SHPHeader.HEADER_LENGTH + recordIndex * RECORD_LENGTH + 4) * 2;
+	}
+
+	/**
+	 * @param recordIndex
+	 *            The zero-based index of the record.
+	 * @return The byte offset in the .shp file directly after the end of the
+	 *         record.
+	 */
+	public long getEnd(int recordIndex) {
+		return getOffset(recordIndex) + RECORD_LENGTH + getContentLength(recordIndex);
+	}
+}
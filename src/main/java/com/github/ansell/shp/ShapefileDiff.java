@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * Finds the records that were added, removed or modified between two versions
+ * of a shapefile, using {@link RecordHashes} so that only the records that
+ * changed are ever read again.
+ * <p>
+ * Records are matched by the value of a key field if one is given, comparing
+ * the key values of records with the same key hash, as different keys may have
+ * the same hash. Otherwise records with the same geometry and attributes are
+ * matched first, then the remaining records are matched by geometry alone, and
+ * then by attributes alone, so that a record where only one of them changed is
+ * reported as modified instead of as a removal and an addition. As unrelated
+ * records often have the same attributes, records are only matched by
+ * attributes alone if no other remaining record in either version has the same
+ * attributes. Records with the same key or hash are matched in the order they
+ * appear in each file.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ShapefileDiff {
+
+	public static final String ADDED = "added";
+	public static final String REMOVED = "removed";
+	public static final String MODIFIED = "modified";
+
+	/**
+	 * The name used in the field change counts for changes to the geometry.
+	 */
+	public static final String GEOMETRY_FIELD = "(geometry)";
+
+	public static final List<String> CHANGE_HEADERS = Arrays.asList("change", "key", "oldRecord", "newRecord",
+			"geometryChanged", "changedFields");
+
+	public static final List<String> FIELD_HEADERS = Arrays.asList("fieldName", "status", "changedRecords");
+
+	public static final List<String> SUMMARY_HEADERS = Arrays.asList("statistic", "value");
+
+	private final Path oldPath;
+	private final Path newPath;
+	private final String keyField;
+	private final int threads;
+
+	private List<String> commonFields;
+	private List<String> removedFields;
+	private List<String> addedFields;
+	private RecordHashes oldHashes;
+	private RecordHashes newHashes;
+	private int[] fieldChangeCounts;
+	private int geometryChangeCount = 0;
+	private int unchangedCount = 0;
+	private final IntList addedRecords = new IntList();
+	private final IntList removedRecords = new IntList();
+	private final IntList modifiedOldRecords = new IntList();
+	private final IntList modifiedNewRecords = new IntList();
+
+	/**
+	 * @param oldPath
+	 *            The .shp file for the earlier version.
+	 * @param newPath
+	 *            The .shp file for the later version.
+	 * @param keyField
+	 *            The name of a field that identifies each record in both
+	 *            versions, or null to match records by their hashes.
+	 * @param threads
+	 *            The number of threads to hash records with.
+	 */
+	public ShapefileDiff(Path oldPath, Path newPath, String keyField, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+		}
+		this.oldPath = oldPath;
+		this.newPath = newPath;
+		this.keyField = keyField;
+		this.threads = threads;
+	}
+
+	/**
+	 * Hash both versions, match the records, and write a row for each change.
+	 *
+	 * @param changesOutput
+	 *            The output to write the changes CSV to.
+	 * @return This object, to read the counts from.
+	 * @throws IOException
+	 *             If either version could not be read, or the output could not
+	 *             be written.
+	 */
+	public ShapefileDiff compare(Writer changesOutput) throws IOException {
+		List<String> oldFields = getFieldNames(oldPath);
+		List<String> newFields = getFieldNames(newPath);
+		commonFields = new ArrayList<>(oldFields);
+		commonFields.retainAll(newFields);
+		removedFields = new ArrayList<>(oldFields);
+		removedFields.removeAll(newFields);
+		addedFields = new ArrayList<>(newFields);
+		addedFields.removeAll(oldFields);
+		if (keyField != null && !commonFields.contains(keyField)) {
+			throw new IllegalArgumentException("Key field must be in both versions: " + keyField);
+		}
+
+		oldHashes = RecordHashes.compute(oldPath, commonFields, keyField, threads);
+		newHashes = RecordHashes.compute(newPath, commonFields, keyField, threads);
+
+		boolean[] oldMatched = new boolean[oldHashes.getRecordCount()];
+		boolean[] newMatched = new boolean[newHashes.getRecordCount()];
+		if (keyField != null) {
+			matchKeys(oldMatched, newMatched);
+		} else {
+			for (HashType nextType : Arrays.asList(HashType.RECORD, HashType.GEOMETRY, HashType.ATTRIBUTES)) {
+				LongMultiIndex index = buildIndex(oldHashes, oldMatched, nextType);
+				LongMultiIndex newIndex = nextType == HashType.ATTRIBUTES
+						? buildIndex(newHashes, newMatched, nextType)
+						: null;
+				for (int i = 0; i < newMatched.length; i++) {
+					if (newMatched[i] || newHashes.isDeleted(i)) {
+						continue;
+					}
+					long hash = nextType.get(newHashes, i);
+					if (newIndex != null && !(index.isUnique(hash) && newIndex.isUnique(hash))) {
+						continue;
+					}
+					int oldRecord = index.take(hash);
+					if (oldRecord >= 0) {
+						match(oldRecord, i, oldMatched, newMatched);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < newMatched.length; i++) {
+			if (!newMatched[i] && !newHashes.isDeleted(i)) {
+				addedRecords.add(i);
+			}
+		}
+		for (int i = 0; i < oldMatched.length; i++) {
+			if (!oldMatched[i] && !oldHashes.isDeleted(i)) {
+				removedRecords.add(i);
+			}
+		}
+
+		writeChanges(changesOutput);
+		return this;
+	}
+
+	/**
+	 * Match records with the same key, reading the key of each record that has
+	 * a candidate to check that the key values and not just their hashes are
+	 * the same.
+	 */
+	private void matchKeys(boolean[] oldMatched, boolean[] newMatched) throws IOException {
+		LongMultiIndex index = buildIndex(oldHashes, oldMatched, HashType.KEY);
+		DBFHeader.Field oldKey = getField(oldHashes.getDbfHeader(), keyField);
+		DBFHeader.Field newKey = getField(newHashes.getDbfHeader(), keyField);
+		try (RecordReader oldReader = new RecordReader(oldHashes);
+				RecordReader newReader = new RecordReader(newHashes);) {
+			for (int i = 0; i < newMatched.length; i++) {
+				long keyHash = newHashes.getKeyHash(i);
+				if (newHashes.isDeleted(i) || !index.contains(keyHash)) {
+					continue;
+				}
+				ByteBuffer newBuffer = newReader.read(i);
+				int oldRecord = index.take(keyHash, nextOld -> {
+					try {
+						return RecordHashes.fieldEquals(oldKey, oldReader.read(nextOld), 0, newKey, newBuffer, 0);
+					} catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+				if (oldRecord >= 0) {
+					match(oldRecord, i, oldMatched, newMatched);
+				}
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	private void match(int oldRecord, int newRecord, boolean[] oldMatched, boolean[] newMatched) {
+		oldMatched[oldRecord] = true;
+		newMatched[newRecord] = true;
+		if (oldHashes.getGeometryHash(oldRecord) == newHashes.getGeometryHash(newRecord)
+				&& oldHashes.getAttributeHash(oldRecord) == newHashes.getAttributeHash(newRecord)) {
+			unchangedCount++;
+		} else {
+			modifiedOldRecords.add(oldRecord);
+			modifiedNewRecords.add(newRecord);
+		}
+	}
+
+	private static LongMultiIndex buildIndex(RecordHashes hashes, boolean[] matched, HashType type) {
+		LongMultiIndex result = new LongMultiIndex(hashes.getRecordCount());
+		// Records are added in reverse so that they are taken in file order
+		for (int i = hashes.getRecordCount() - 1; i >= 0; i--) {
+			if (!matched[i] && !hashes.isDeleted(i)) {
+				result.add(type.get(hashes, i), i);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Write the modified records, then the added records, then the removed
+	 * records, reading the attributes of each changed record to find the key
+	 * and the fields that changed.
+	 */
+	private void writeChanges(Writer changesOutput) throws IOException {
+		List<DBFHeader.Field> oldFields = new ArrayList<>();
+		List<DBFHeader.Field> newFields = new ArrayList<>();
+		for (String nextField : commonFields) {
+			oldFields.add(getField(oldHashes.getDbfHeader(), nextField));
+			newFields.add(getField(newHashes.getDbfHeader(), nextField));
+		}
+		fieldChangeCounts = new int[commonFields.size()];
+		try (RecordReader oldReader = new RecordReader(oldHashes);
+				RecordReader newReader = new RecordReader(newHashes);
+				SequenceWriter csv = CSVStream.newCSVWriter(changesOutput, CSVStream.buildSchema(CHANGE_HEADERS));) {
+			List<String> changedFields = new ArrayList<>();
+			for (int i = 0; i < modifiedNewRecords.size(); i++) {
+				int oldRecord = modifiedOldRecords.get(i);
+				int newRecord = modifiedNewRecords.get(i);
+				ByteBuffer oldBuffer = oldReader.read(oldRecord);
+				ByteBuffer newBuffer = newReader.read(newRecord);
+				boolean geometryChanged = oldHashes.getGeometryHash(oldRecord) != newHashes
+						.getGeometryHash(newRecord);
+				if (geometryChanged) {
+					geometryChangeCount++;
+				}
+				changedFields.clear();
+				for (int j = 0; j < oldFields.size(); j++) {
+					if (!RecordHashes.fieldEquals(oldFields.get(j), oldBuffer, 0, newFields.get(j), newBuffer, 0)) {
+						fieldChangeCounts[j]++;
+						changedFields.add(commonFields.get(j));
+					}
+				}
+				csv.write(Arrays.asList(MODIFIED, newReader.readKey(), Integer.toString(oldRecord + 1),
+						Integer.toString(newRecord + 1), Boolean.toString(geometryChanged),
+						String.join(";", changedFields)));
+			}
+			for (int i = 0; i < addedRecords.size(); i++) {
+				int newRecord = addedRecords.get(i);
+				newReader.read(newRecord);
+				csv.write(Arrays.asList(ADDED, newReader.readKey(), "", Integer.toString(newRecord + 1), "", ""));
+			}
+			for (int i = 0; i < removedRecords.size(); i++) {
+				int oldRecord = removedRecords.get(i);
+				oldReader.read(oldRecord);
+				csv.write(Arrays.asList(REMOVED, oldReader.readKey(), Integer.toString(oldRecord + 1), "", "", ""));
+			}
+		}
+	}
+
+	/**
+	 * Write the number of records where each field changed, along with the
+	 * fields that were only in one of the versions.
+	 *
+	 * @param fieldsOutput
+	 *            The output to write the field changes CSV to.
+	 * @throws IOException
+	 *             If the output could not be written.
+	 */
+	public void writeFieldChanges(Writer fieldsOutput) throws IOException {
+		try (SequenceWriter csv = CSVStream.newCSVWriter(fieldsOutput, CSVStream.buildSchema(FIELD_HEADERS));) {
+			csv.write(Arrays.asList(GEOMETRY_FIELD, "common", Integer.toString(geometryChangeCount)));
+			for (int i = 0; i < commonFields.size(); i++) {
+				csv.write(Arrays.asList(commonFields.get(i), "common", Integer.toString(fieldChangeCounts[i])));
+			}
+			for (String nextField : removedFields) {
+				csv.write(Arrays.asList(nextField, REMOVED, ""));
+			}
+			for (String nextField : addedFields) {
+				csv.write(Arrays.asList(nextField, ADDED, ""));
+			}
+		}
+	}
+
+	/**
+	 * Write the number of records in each version and of each kind of change.
+	 *
+	 * @param summaryOutput
+	 *            The output to write the summary CSV to.
+	 * @throws IOException
+	 *             If the output could not be written.
+	 */
+	public void writeSummary(Writer summaryOutput) throws IOException {
+		try (SequenceWriter csv = CSVStream.newCSVWriter(summaryOutput, CSVStream.buildSchema(SUMMARY_HEADERS));) {
+			csv.write(Arrays.asList("oldRecords", Integer.toString(oldHashes.getRecordCount())));
+			csv.write(Arrays.asList("newRecords", Integer.toString(newHashes.getRecordCount())));
+			csv.write(Arrays.asList("matchedBy", keyField != null ? keyField : "hash"));
+			csv.write(Arrays.asList("unchanged", Integer.toString(unchangedCount)));
+			csv.write(Arrays.asList(MODIFIED, Integer.toString(getModifiedCount())));
+			csv.write(Arrays.asList(ADDED, Integer.toString(getAddedCount())));
+			csv.write(Arrays.asList(REMOVED, Integer.toString(getRemovedCount())));
+		}
+	}
+
+	public int getUnchangedCount() {
+		return unchangedCount;
+	}
+
+	public int getModifiedCount() {
+		return modifiedNewRecords.size();
+	}
+
+	public int getAddedCount() {
+		return addedRecords.size();
+	}
+
+	public int getRemovedCount() {
+		return removedRecords.size();
+	}
+
+	public int getGeometryChangeCount() {
+		return geometryChangeCount;
+	}
+
+	/**
+	 * @param fieldName
+	 *            The name of a field that is in both versions.
+	 * @return The number of modified records where the field changed.
+	 */
+	public int getFieldChangeCount(String fieldName) {
+		int index = commonFields.indexOf(fieldName);
+		if (index < 0) {
+			throw new IllegalArgumentException("Field is not in both versions: " + fieldName);
+		}
+		return fieldChangeCounts[index];
+	}
+
+	/**
+	 * @return The zero-based indexes in the later version of the records that
+	 *         were added, in ascending order.
+	 */
+	public int[] getAddedRecords() {
+		return addedRecords.toArray();
+	}
+
+	/**
+	 * @return The zero-based indexes in the later version of the records that
+	 *         were modified, in ascending order.
+	 */
+	public int[] getModifiedRecords() {
+		int[] result = modifiedNewRecords.toArray();
+		Arrays.sort(result);
+		return result;
+	}
+
+	/**
+	 * @return The zero-based indexes in the earlier version of the records that
+	 *         were removed, in ascending order.
+	 */
+	public int[] getRemovedRecords() {
+		return removedRecords.toArray();
+	}
+
+	private static List<String> getFieldNames(Path shpPath) throws IOException {
+		try (FileChannel dbfChannel = FileChannel.open(SHPUtils.getSiblingFile(shpPath, "dbf"),
+				StandardOpenOption.READ);) {
+			List<String> result = new ArrayList<>();
+			for (DBFHeader.Field nextField : DBFHeader.read(dbfChannel).getFields()) {
+				result.add(nextField.getName());
+			}
+			return result;
+		}
+	}
+
+	private static DBFHeader.Field getField(DBFHeader header, String fieldName) {
+		for (DBFHeader.Field nextField : header.getFields()) {
+			if (nextField.getName().equals(fieldName)) {
+				return nextField;
+			}
+		}
+		throw new IllegalArgumentException("Field not found: " + fieldName);
+	}
+
+	/**
+	 * The hashes that records can be matched by.
+	 */
+	private enum HashType {
+		KEY, RECORD, GEOMETRY, ATTRIBUTES;
+
+		private long get(RecordHashes hashes, int recordIndex) {
+			switch (this) {
+			case KEY:
+				return hashes.getKeyHash(recordIndex);
+			case RECORD:
+				return hashes.getGeometryHash(recordIndex) * 31 + hashes.getAttributeHash(recordIndex);
+			case GEOMETRY:
+				return hashes.getGeometryHash(recordIndex);
+			case ATTRIBUTES:
+				return hashes.getAttributeHash(recordIndex);
+			default:
+				throw new IllegalStateException("Unknown hash type: " + this);
+			}
+		}
+	}
+
+	/**
+	 * Reads single .dbf records for the changed records.
+	 */
+	private final class RecordReader implements Closeable {
+
+		private final FileChannel channel;
+		private final DBFHeader header;
+		private final DBFHeader.Field key;
+		private final Charset charset;
+		private final ByteBuffer buffer;
+
+		private RecordReader(RecordHashes hashes) throws IOException {
+			this.channel = FileChannel.open(hashes.getDbfPath(), StandardOpenOption.READ);
+			this.header = hashes.getDbfHeader();
+			this.key = keyField == null ? null : getField(header, keyField);
+			this.charset = DBFHeader.getCharset(hashes.getDbfPath());
+			this.buffer = ByteBuffer.allocate(header.getRecordLength()).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		private ByteBuffer read(int recordIndex) throws IOException {
+			buffer.clear();
+			long position = header.getRecordOffset(recordIndex);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("Unexpected end of file reading record " + (recordIndex + 1));
+				}
+			}
+			return buffer;
+		}
+
+		/**
+		 * @return The key of the last record that was read, or an empty string
+		 *         if records are not matched by a key.
+		 */
+		private String readKey() {
+			return key == null ? "" : key.readString(buffer, 0, charset);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+	/**
+	 * A growable list of primitive ints.
+	 */
+	private static final class IntList {
+
+		private int[] values = new int[16];
+		private int size = 0;
+
+		private void add(int value) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = value;
+		}
+
+		private int get(int index) {
+			return values[index];
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+
+	/**
+	 * A linear probing hash table from 64-bit hashes to chains of record
+	 * indexes, using primitive arrays so that millions of records can be
+	 * indexed without boxing. Each record can only be taken once.
+	 */
+	private static final class LongMultiIndex {
+
+		private static final int EMPTY = -1;
+		private static final int EXHAUSTED = -2;
+
+		private final long[] keys;
+		private final int[] heads;
+		private final int[] next;
+		private final int mask;
+
+		private LongMultiIndex(int recordCount) {
+			int capacity = Integer.highestOneBit(Math.max(16, recordCount + recordCount / 2)) * 2;
+			this.keys = new long[capacity];
+			this.heads = new int[capacity];
+			Arrays.fill(heads, EMPTY);
+			this.next = new int[recordCount];
+			this.mask = capacity - 1;
+		}
+
+		private int slot(long key) {
+			int slot = (int) (key ^ (key >>> 32)) & mask;
+			while (heads[slot] != EMPTY && keys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void add(long key, int recordIndex) {
+			int slot = slot(key);
+			keys[slot] = key;
+			next[recordIndex] = heads[slot] < 0 ? EXHAUSTED : heads[slot];
+			heads[slot] = recordIndex;
+		}
+
+		/**
+		 * @return True if there are records left with the given key.
+		 */
+		private boolean contains(long key) {
+			return heads[slot(key)] >= 0;
+		}
+
+		/**
+		 * @return True if there is exactly one record left with the given key.
+		 */
+		private boolean isUnique(long key) {
+			int head = heads[slot(key)];
+			return head >= 0 && next[head] == EXHAUSTED;
+		}
+
+		/**
+		 * @return The next record with the given key, or -1 if there are none
+		 *         left.
+		 */
+		private int take(long key) {
+			return take(key, recordIndex -> true);
+		}
+
+		/**
+		 * @return The next record with the given key that is accepted by the
+		 *         given test, or -1 if there are none.
+		 */
+		private int take(long key, IntPredicate accept) {
+			int slot = slot(key);
+			int previous = -1;
+			for (int recordIndex = heads[slot]; recordIndex >= 0; recordIndex = next[recordIndex]) {
+				if (accept.test(recordIndex)) {
+					// Taking the last record leaves the slot occupied, so that keys
+					// that were placed after it can still be found
+					if (previous < 0) {
+						heads[slot] = next[recordIndex];
+					} else {
+						next[previous] = next[recordIndex];
+					}
+					return recordIndex;
+				}
+				previous = recordIndex;
+			}
+			return -1;
+		}
+	}
+}
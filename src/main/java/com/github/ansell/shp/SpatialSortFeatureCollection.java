@@ -0,0 +1,697 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.io.WKTWriter;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * A feature collection that returns the features of a source collection in the
+ * order of the Hilbert curve index of the centre of their envelopes, so that
+ * features that are near each other in space are near each other in the output
+ * files.
+ * <p>
+ * The source is read once, the first time this collection is iterated or
+ * {@link #sort()} is called. Features are encoded into a buffer until the
+ * memory budget is used, then the buffer is sorted and spilled to a run file in
+ * the temporary directory. Each iteration merges the sorted runs, so the
+ * complete set of features never needs to fit on the heap. Features with the
+ * same curve index keep their original order. The run files are deleted by
+ * {@link #close()}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SpatialSortFeatureCollection extends AbstractFeatureCollection implements Closeable {
+
+	/**
+	 * The largest number of run files that are merged at once. More runs than
+	 * this are first merged into longer runs.
+	 */
+	static final int MERGE_FACTOR = 64;
+
+	/**
+	 * The estimated heap used for each buffered feature, in addition to its
+	 * encoded length, for the offset and sort key.
+	 */
+	private static final int RECORD_OVERHEAD = 12;
+
+	private static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+	private static final byte NULL_VALUE = 0;
+	private static final byte STRING_VALUE = 1;
+	private static final byte INTEGER_VALUE = 2;
+	private static final byte LONG_VALUE = 3;
+	private static final byte DOUBLE_VALUE = 4;
+	private static final byte FLOAT_VALUE = 5;
+	private static final byte SHORT_VALUE = 6;
+	private static final byte BYTE_VALUE = 7;
+	private static final byte BOOLEAN_VALUE = 8;
+	private static final byte DATE_VALUE = 9;
+	private static final byte WKB_VALUE = 10;
+	private static final byte WKT_VALUE = 11;
+	private static final byte BIG_DECIMAL_VALUE = 12;
+	private static final byte BIG_INTEGER_VALUE = 13;
+	private static final byte SERIALIZED_VALUE = 14;
+
+	private final SimpleFeatureCollection source;
+	private final Path tempDir;
+	private final long memoryBudget;
+
+	private boolean sorted = false;
+	private int count = 0;
+	private long spilledBytes = 0;
+	private final List<Path> runs = new ArrayList<>();
+	private RecordBuffer memoryRun;
+	private int[] memoryRunOffsets;
+	private long[] memoryRunKeys;
+
+	/**
+	 * @param source
+	 *            The features to sort, which are read once.
+	 * @param tempDir
+	 *            The directory to write the sorted runs to when the features do
+	 *            not fit in the memory budget.
+	 * @param memoryBudget
+	 *            The number of bytes of encoded features to buffer before
+	 *            sorting and writing a run.
+	 */
+	public SpatialSortFeatureCollection(SimpleFeatureCollection source, Path tempDir, long memoryBudget) {
+		super(source.getSchema());
+		if (memoryBudget <= 0) {
+			throw new IllegalArgumentException("Memory budget must be positive: " + memoryBudget);
+		}
+		this.source = source;
+		this.tempDir = tempDir;
+		this.memoryBudget = Math.min(memoryBudget, MAX_BUFFER_SIZE);
+	}
+
+	/**
+	 * Read and sort the source features, if they have not already been sorted.
+	 *
+	 * @return This collection.
+	 * @throws IOException
+	 *             If there is an error writing the sorted runs.
+	 */
+	public synchronized SpatialSortFeatureCollection sort() throws IOException {
+		if (sorted) {
+			return this;
+		}
+		HilbertCurve curve = new HilbertCurve(getExtent(source.getBounds()));
+		RecordBuffer buffer = new RecordBuffer((int) Math.min(memoryBudget, 64 * 1024 * 1024));
+		DataOutputStream output = new DataOutputStream(buffer);
+		int[] offsets = new int[1024];
+		long[] keys = new long[1024];
+		int bufferCount = 0;
+		try (SimpleFeatureIterator iterator = source.features();) {
+			while (iterator.hasNext()) {
+				SimpleFeature feature = iterator.next();
+				if (bufferCount == offsets.length) {
+					offsets = Arrays.copyOf(offsets, bufferCount * 2);
+					keys = Arrays.copyOf(keys, bufferCount * 2);
+				}
+				offsets[bufferCount] = buffer.size();
+				encode(feature, output);
+				keys[bufferCount] = getSortKey(getCurveIndex(curve, feature), bufferCount);
+				bufferCount++;
+				count++;
+				if (buffer.size() + (long) bufferCount * RECORD_OVERHEAD >= memoryBudget) {
+					runs.add(writeRun(buffer, offsets, keys, bufferCount));
+					buffer.reset();
+					bufferCount = 0;
+				}
+			}
+		}
+		if (runs.isEmpty()) {
+			// Everything fit in the budget, so the single run stays in memory
+			sortKeys(keys, bufferCount);
+			memoryRun = buffer;
+			memoryRunOffsets = offsets;
+			memoryRunKeys = Arrays.copyOf(keys, bufferCount);
+		} else {
+			if (bufferCount > 0) {
+				runs.add(writeRun(buffer, offsets, keys, bufferCount));
+			}
+			while (runs.size() > MERGE_FACTOR) {
+				mergeRuns();
+			}
+		}
+		sorted = true;
+		return this;
+	}
+
+	/**
+	 * @return The number of bytes that were written to run files while sorting.
+	 */
+	public long getSpilledBytes() {
+		return spilledBytes;
+	}
+
+	/**
+	 * @return The number of run files that are merged for each iteration, or 0
+	 *         if the features were sorted in memory.
+	 */
+	public int getRunCount() {
+		return runs.size();
+	}
+
+	@Override
+	protected Iterator<SimpleFeature> openIterator() {
+		try {
+			sort();
+			if (memoryRun != null) {
+				return new MemoryRunIterator();
+			}
+			return new MergeIterator(runs);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	@Override
+	public int size() {
+		try {
+			sort();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return count;
+	}
+
+	@Override
+	public ReferencedEnvelope getBounds() {
+		return source.getBounds();
+	}
+
+	/**
+	 * Delete the run files.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		for (Path nextRun : runs) {
+			Files.deleteIfExists(nextRun);
+		}
+		runs.clear();
+		memoryRun = null;
+		sorted = false;
+		count = 0;
+	}
+
+	private static Envelope getExtent(ReferencedEnvelope bounds) {
+		if (bounds == null || bounds.isNull() || Double.isInfinite(bounds.getWidth())
+				|| Double.isInfinite(bounds.getHeight())) {
+			// Without usable bounds every feature has the same index, and the
+			// original order is kept
+			return new Envelope();
+		}
+		return new Envelope(bounds.getMinX(), bounds.getMaxX(), bounds.getMinY(), bounds.getMaxY());
+	}
+
+	private static int getCurveIndex(HilbertCurve curve, SimpleFeature feature) {
+		Object value = feature.getDefaultGeometry();
+		if (!(value instanceof Geometry)) {
+			return 0;
+		}
+		Envelope envelope = ((Geometry) value).getEnvelopeInternal();
+		if (envelope.isNull()) {
+			return 0;
+		}
+		return curve.index(envelope.getMinX(), envelope.getMinY(), envelope.getMaxX(), envelope.getMaxY());
+	}
+
+	/**
+	 * Combine the unsigned curve index and the position in the run into a key
+	 * that sorts in the same order as a signed long.
+	 */
+	private static long getSortKey(int curveIndex, int position) {
+		return (((curveIndex & 0xFFFFFFFFL) << 32) | position) ^ Long.MIN_VALUE;
+	}
+
+	private static void sortKeys(long[] keys, int length) {
+		Arrays.parallelSort(keys, 0, length);
+	}
+
+	/**
+	 * Sort the buffered features and write them to a new run file, with the
+	 * curve index and length before each encoded feature.
+	 */
+	private Path writeRun(RecordBuffer buffer, int[] offsets, long[] keys, int length) throws IOException {
+		sortKeys(keys, length);
+		Path runPath = Files.createTempFile(tempDir, "spatial-sort-", ".run");
+		try (DataOutputStream output = new DataOutputStream(
+				new BufferedOutputStream(Files.newOutputStream(runPath), 64 * 1024));) {
+			for (int i = 0; i < length; i++) {
+				long key = keys[i] ^ Long.MIN_VALUE;
+				int position = (int) key;
+				int start = offsets[position];
+				int end = position + 1 < length ? offsets[position + 1] : buffer.size();
+				output.writeInt((int) (key >>> 32));
+				output.writeInt(end - start);
+				output.write(buffer.getBuffer(), start, end - start);
+			}
+		}
+		spilledBytes += Files.size(runPath);
+		return runPath;
+	}
+
+	/**
+	 * Merge groups of consecutive runs into longer runs, keeping the runs in
+	 * their original order so that the sort remains stable.
+	 */
+	private void mergeRuns() throws IOException {
+		List<Path> mergedRuns = new ArrayList<>();
+		for (int start = 0; start < runs.size(); start += MERGE_FACTOR) {
+			List<Path> group = runs.subList(start, Math.min(runs.size(), start + MERGE_FACTOR));
+			if (group.size() == 1) {
+				mergedRuns.add(group.get(0));
+				continue;
+			}
+			Path mergedPath = Files.createTempFile(tempDir, "spatial-sort-", ".run");
+			try (RunMerger merger = new RunMerger(group);
+					DataOutputStream output = new DataOutputStream(
+							new BufferedOutputStream(Files.newOutputStream(mergedPath), 64 * 1024));) {
+				RunReader nextReader;
+				while ((nextReader = merger.poll()) != null) {
+					output.writeInt(nextReader.curveIndex);
+					output.writeInt(nextReader.length);
+					output.write(nextReader.record, 0, nextReader.length);
+					merger.advance(nextReader);
+				}
+			}
+			spilledBytes += Files.size(mergedPath);
+			for (Path nextRun : group) {
+				Files.delete(nextRun);
+			}
+			mergedRuns.add(mergedPath);
+		}
+		runs.clear();
+		runs.addAll(mergedRuns);
+	}
+
+	/**
+	 * Encode the identifier and attributes of the feature. Geometries are
+	 * encoded as WKB, keeping Z values.
+	 */
+	static void encode(SimpleFeature feature, DataOutputStream output) throws IOException {
+		writeString(feature.getID(), output);
+		int attributeCount = feature.getAttributeCount();
+		output.writeShort(attributeCount);
+		for (int i = 0; i < attributeCount; i++) {
+			Object value = feature.getAttribute(i);
+			if (value == null) {
+				output.writeByte(NULL_VALUE);
+			} else if (value instanceof String) {
+				output.writeByte(STRING_VALUE);
+				writeString((String) value, output);
+			} else if (value instanceof Integer) {
+				output.writeByte(INTEGER_VALUE);
+				output.writeInt((Integer) value);
+			} else if (value instanceof Long) {
+				output.writeByte(LONG_VALUE);
+				output.writeLong((Long) value);
+			} else if (value instanceof Double) {
+				output.writeByte(DOUBLE_VALUE);
+				output.writeDouble((Double) value);
+			} else if (value instanceof Float) {
+				output.writeByte(FLOAT_VALUE);
+				output.writeFloat((Float) value);
+			} else if (value instanceof Short) {
+				output.writeByte(SHORT_VALUE);
+				output.writeShort((Short) value);
+			} else if (value instanceof Byte) {
+				output.writeByte(BYTE_VALUE);
+				output.writeByte((Byte) value);
+			} else if (value instanceof Boolean) {
+				output.writeByte(BOOLEAN_VALUE);
+				output.writeBoolean((Boolean) value);
+			} else if (value.getClass() == Date.class) {
+				output.writeByte(DATE_VALUE);
+				output.writeLong(((Date) value).getTime());
+			} else if (value instanceof Geometry) {
+				Geometry geometry = (Geometry) value;
+				if (geometry.isEmpty()) {
+					// Empty points can not be written as WKB
+					output.writeByte(WKT_VALUE);
+					writeString(new WKTWriter().write(geometry), output);
+				} else {
+					output.writeByte(WKB_VALUE);
+					byte[] wkb = new WKBWriter(3).write(geometry);
+					output.writeInt(wkb.length);
+					output.write(wkb);
+				}
+			} else if (value instanceof BigDecimal) {
+				output.writeByte(BIG_DECIMAL_VALUE);
+				writeString(value.toString(), output);
+			} else if (value instanceof BigInteger) {
+				output.writeByte(BIG_INTEGER_VALUE);
+				writeString(value.toString(), output);
+			} else {
+				output.writeByte(SERIALIZED_VALUE);
+				ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+				try (ObjectOutputStream objectOutput = new ObjectOutputStream(serialized);) {
+					objectOutput.writeObject(value);
+				}
+				output.writeInt(serialized.size());
+				serialized.writeTo(output);
+			}
+		}
+	}
+
+	/**
+	 * Decode a feature that was encoded by
+	 * {@link #encode(SimpleFeature, DataOutputStream)}.
+	 */
+	static SimpleFeature decode(DataInputStream input, SimpleFeatureBuilder builder, GeometryFactory geometryFactory)
+			throws IOException {
+		String id = readString(input);
+		int attributeCount = input.readUnsignedShort();
+		for (int i = 0; i < attributeCount; i++) {
+			byte tag = input.readByte();
+			switch (tag) {
+			case NULL_VALUE:
+				builder.set(i, null);
+				break;
+			case STRING_VALUE:
+				builder.set(i, readString(input));
+				break;
+			case INTEGER_VALUE:
+				builder.set(i, input.readInt());
+				break;
+			case LONG_VALUE:
+				builder.set(i, input.readLong());
+				break;
+			case DOUBLE_VALUE:
+				builder.set(i, input.readDouble());
+				break;
+			case FLOAT_VALUE:
+				builder.set(i, input.readFloat());
+				break;
+			case SHORT_VALUE:
+				builder.set(i, input.readShort());
+				break;
+			case BYTE_VALUE:
+				builder.set(i, input.readByte());
+				break;
+			case BOOLEAN_VALUE:
+				builder.set(i, input.readBoolean());
+				break;
+			case DATE_VALUE:
+				builder.set(i, new Date(input.readLong()));
+				break;
+			case WKB_VALUE:
+				byte[] wkb = new byte[input.readInt()];
+				input.readFully(wkb);
+				try {
+					builder.set(i, new WKBReader(geometryFactory).read(wkb));
+				} catch (ParseException e) {
+					throw new IOException("Could not decode sorted geometry", e);
+				}
+				break;
+			case WKT_VALUE:
+				try {
+					builder.set(i, new WKTReader(geometryFactory).read(readString(input)));
+				} catch (ParseException e) {
+					throw new IOException("Could not decode sorted geometry", e);
+				}
+				break;
+			case BIG_DECIMAL_VALUE:
+				builder.set(i, new BigDecimal(readString(input)));
+				break;
+			case BIG_INTEGER_VALUE:
+				builder.set(i, new BigInteger(readString(input)));
+				break;
+			case SERIALIZED_VALUE:
+				byte[] serialized = new byte[input.readInt()];
+				input.readFully(serialized);
+				try (ObjectInputStream objectInput = new ObjectInputStream(new ByteArrayInputStream(serialized));) {
+					builder.set(i, objectInput.readObject());
+				} catch (ClassNotFoundException e) {
+					throw new IOException("Could not decode sorted value", e);
+				}
+				break;
+			default:
+				throw new IOException("Unknown value type in sorted run: " + tag);
+			}
+		}
+		return builder.buildFeature(id);
+	}
+
+	private static void writeString(String value, DataOutputStream output) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		output.writeInt(bytes.length);
+		output.write(bytes);
+	}
+
+	private static String readString(DataInputStream input) throws IOException {
+		byte[] bytes = new byte[input.readInt()];
+		input.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * A byte array output stream that exposes its buffer, so that records can be
+	 * written to run files without copying.
+	 */
+	private static final class RecordBuffer extends ByteArrayOutputStream {
+
+		private RecordBuffer(int initialSize) {
+			super(initialSize);
+		}
+
+		private byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	/**
+	 * Reads the records from one run file in order.
+	 */
+	private static final class RunReader implements Closeable {
+
+		private final DataInputStream input;
+		private final int runIndex;
+		private byte[] record = new byte[1024];
+		private int curveIndex;
+		private int length;
+
+		private RunReader(Path runPath, int runIndex) throws IOException {
+			this.input = new DataInputStream(new BufferedInputStream(Files.newInputStream(runPath), 64 * 1024));
+			this.runIndex = runIndex;
+		}
+
+		/**
+		 * @return True if another record was read, or false at the end of the run.
+		 */
+		private boolean advance() throws IOException {
+			try {
+				curveIndex = input.readInt();
+			} catch (EOFException e) {
+				return false;
+			}
+			length = input.readInt();
+			if (record.length < length) {
+				record = new byte[Math.max(length, record.length * 2)];
+			}
+			input.readFully(record, 0, length);
+			return true;
+		}
+
+		@Override
+		public void close() throws IOException {
+			input.close();
+		}
+	}
+
+	/**
+	 * Merges the records from a list of runs, ordered by curve index and then by
+	 * the position of the run in the list.
+	 */
+	private static final class RunMerger implements Closeable {
+
+		private final List<RunReader> readers = new ArrayList<>();
+		private final PriorityQueue<RunReader> queue = new PriorityQueue<>((a, b) -> {
+			int result = Integer.compareUnsigned(a.curveIndex, b.curveIndex);
+			return result != 0 ? result : Integer.compare(a.runIndex, b.runIndex);
+		});
+
+		private RunMerger(List<Path> runPaths) throws IOException {
+			try {
+				for (int i = 0; i < runPaths.size(); i++) {
+					RunReader reader = new RunReader(runPaths.get(i), i);
+					readers.add(reader);
+					if (reader.advance()) {
+						queue.add(reader);
+					}
+				}
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		/**
+		 * @return The reader holding the next record, which must be passed to
+		 *         {@link #advance(RunReader)} once the record has been used, or
+		 *         null if all of the runs have been read.
+		 */
+		private RunReader poll() {
+			return queue.poll();
+		}
+
+		private void advance(RunReader reader) throws IOException {
+			if (reader.advance()) {
+				queue.add(reader);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			IOException failure = null;
+			for (RunReader nextReader : readers) {
+				try {
+					nextReader.close();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+	private final class MemoryRunIterator implements Iterator<SimpleFeature>, SimpleFeatureIterator {
+
+		private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(getSchema());
+		private final GeometryFactory geometryFactory = new GeometryFactory();
+		private final RecordBuffer buffer = memoryRun;
+		private final int[] offsets = memoryRunOffsets;
+		private final long[] keys = memoryRunKeys;
+		private int next = 0;
+
+		@Override
+		public boolean hasNext() {
+			return next < keys.length;
+		}
+
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int position = (int) (keys[next++] ^ Long.MIN_VALUE);
+			int start = offsets[position];
+			int end = position + 1 < keys.length ? offsets[position + 1] : buffer.size();
+			InputStream input = new ByteArrayInputStream(buffer.getBuffer(), start, end - start);
+			try {
+				return decode(new DataInputStream(input), builder, geometryFactory);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private final class MergeIterator implements Iterator<SimpleFeature>, SimpleFeatureIterator {
+
+		private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(getSchema());
+		private final GeometryFactory geometryFactory = new GeometryFactory();
+		private final RunMerger merger;
+		private SimpleFeature nextFeature;
+
+		private MergeIterator(List<Path> runPaths) throws IOException {
+			this.merger = new RunMerger(runPaths);
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (nextFeature == null) {
+				try {
+					RunReader reader = merger.poll();
+					if (reader != null) {
+						nextFeature = decode(
+								new DataInputStream(new ByteArrayInputStream(reader.record, 0, reader.length)),
+								builder, geometryFactory);
+						merger.advance(reader);
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			return nextFeature != null;
+		}
+
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			SimpleFeature result = nextFeature;
+			nextFeature = null;
+			return result;
+		}
+
+		@Override
+		public void close() {
+			try {
+				merger.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * A lazy, re-iterable feature collection that reads from a source collection
+ * each time it is iterated, instead of buffering all of the features in memory.
+ * Features with empty values in any of the filter fields are skipped, and the
+ * remaining features are renamed to the output schema as they are streamed.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class StreamingFeatureCollection extends AbstractFeatureCollection {
+
+	private final SimpleFeatureCollection source;
+	private final Set<String> filterFields;
+	private volatile ReferencedEnvelope filteredBounds;
+
+	public StreamingFeatureCollection(SimpleFeatureCollection source, SimpleFeatureType outputSchema,
+			Set<String> filterFields) {
+		super(outputSchema);
+		this.source = source;
+		this.filterFields = filterFields;
+	}
+
+	@Override
+	protected Iterator<SimpleFeature> openIterator() {
+		return new StreamingFeatureIterator(source.features());
+	}
+
+	@Override
+	public int size() {
+		if (filterFields.isEmpty()) {
+			return source.size();
+		}
+		int count = 0;
+		try (SimpleFeatureIterator iterator = features();) {
+			while (iterator.hasNext()) {
+				iterator.next();
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The bounds of the source collection are used when no features are
+	 * filtered. Otherwise the bounds of the remaining features are calculated
+	 * by iterating over them once, and reused for later calls.
+	 */
+	@Override
+	public ReferencedEnvelope getBounds() {
+		if (filterFields.isEmpty()) {
+			return source.getBounds();
+		}
+		ReferencedEnvelope result = filteredBounds;
+		if (result == null) {
+			result = new ReferencedEnvelope(getSchema().getCoordinateReferenceSystem());
+			try (SimpleFeatureIterator iterator = features();) {
+				while (iterator.hasNext()) {
+					result.include(iterator.next().getBounds());
+				}
+			}
+			filteredBounds = result;
+		}
+		return new ReferencedEnvelope(result);
+	}
+
+	private final class StreamingFeatureIterator implements Iterator<SimpleFeature>, SimpleFeatureIterator {
+
+		private final SimpleFeatureIterator delegate;
+		private SimpleFeature nextFeature;
+
+		private StreamingFeatureIterator(SimpleFeatureIterator delegate) {
+			this.delegate = delegate;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (nextFeature == null && delegate.hasNext()) {
+				SimpleFeature feature = delegate.next();
+				if (!SHPUtils.hasEmptyFilterField(feature, filterFields)) {
+					nextFeature = SHPUtils.changeSchemaName(feature, getSchema());
+				}
+			}
+			return nextFeature != null;
+		}
+
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			SimpleFeature result = nextFeature;
+			nextFeature = null;
+			return result;
+		}
+
+		@Override
+		public void close() {
+			delegate.close();
+		}
+	}
+}
@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.collection.AbstractFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * A feature collection that generates reproducible synthetic features as it
+ * is iterated, so that arbitrarily large shapefiles can be written without
+ * holding the features in memory. Each feature is generated from the seed and
+ * its own index, so every iteration returns exactly the same features.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SyntheticFeatureCollection extends AbstractFeatureCollection {
+
+	/**
+	 * The maximum number of fields in a DBF file, including the ID field.
+	 */
+	public static final int MAX_FIELDS = 255;
+
+	/**
+	 * The name of the field containing the sequential identifier.
+	 */
+	public static final String ID_FIELD = "ID";
+
+	/**
+	 * The name of the geometry attribute.
+	 */
+	public static final String GEOMETRY_FIELD = "the_geom";
+
+	private static final char[] STRING_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789 "
+			.toCharArray();
+
+	private static final int CLUSTER_COUNT = 16;
+
+	private static final long MIN_DATE = TimeUnit.DAYS.toMillis(10957);
+
+	private static final long DATE_RANGE_DAYS = 365L * 30;
+
+	/**
+	 * The type of geometry to generate.
+	 */
+	public enum GeometryKind {
+		POINT, POLYLINE, POLYGON
+	}
+
+	/**
+	 * The way the features are placed within the extent.
+	 */
+	public enum Distribution {
+		/**
+		 * Features are placed uniformly at random across the extent.
+		 */
+		UNIFORM,
+
+		/**
+		 * Features are placed in a fixed number of normally distributed clusters.
+		 */
+		CLUSTERED,
+
+		/**
+		 * Features are placed in order on a regular grid covering the extent.
+		 */
+		GRID
+	}
+
+	private final long seed;
+	private final long featureCount;
+	private final GeometryKind geometryKind;
+	private final int vertexCount;
+	private final int fieldCount;
+	private final int stringWidth;
+	private final double nullRatio;
+	private final Distribution distribution;
+	private final double featureSize;
+	private final ReferencedEnvelope extent;
+	private final double[] clusterCentres;
+	private final long gridColumns;
+
+	/**
+	 * @param typeName
+	 *            The name of the feature type, which is used as the shapefile
+	 *            name.
+	 * @param seed
+	 *            The seed that all of the features are generated from.
+	 * @param featureCount
+	 *            The number of features to generate.
+	 * @param geometryKind
+	 *            The type of geometry to generate.
+	 * @param vertexCount
+	 *            The number of vertices in each polyline or polygon ring.
+	 * @param fieldCount
+	 *            The number of DBF fields, including the ID field, between 1 and
+	 *            {@link #MAX_FIELDS}.
+	 * @param stringWidth
+	 *            The maximum width of the string fields.
+	 * @param nullRatio
+	 *            The probability, between 0 and 1, that each value other than the
+	 *            ID is null.
+	 * @param distribution
+	 *            The way the features are placed in the extent.
+	 * @param featureSize
+	 *            The approximate width of each polyline and polygon, in degrees.
+	 */
+	public SyntheticFeatureCollection(String typeName, long seed, long featureCount, GeometryKind geometryKind,
+			int vertexCount, int fieldCount, int stringWidth, double nullRatio, Distribution distribution,
+			double featureSize) {
+		super(createSchema(typeName, geometryKind, fieldCount, stringWidth));
+		if (featureCount < 0) {
+			throw new IllegalArgumentException("Feature count must not be negative: " + featureCount);
+		}
+		int minimumVertices = geometryKind == GeometryKind.POLYGON ? 3
+				: geometryKind == GeometryKind.POLYLINE ? 2 : 1;
+		if (geometryKind != GeometryKind.POINT && vertexCount < minimumVertices) {
+			throw new IllegalArgumentException(
+					"A " + geometryKind + " requires at least " + minimumVertices + " vertices: " + vertexCount);
+		}
+		if (stringWidth < 1 || stringWidth > 254) {
+			throw new IllegalArgumentException("String width must be between 1 and 254: " + stringWidth);
+		}
+		if (nullRatio < 0 || nullRatio > 1) {
+			throw new IllegalArgumentException("Null ratio must be between 0 and 1: " + nullRatio);
+		}
+		if (featureSize < 0) {
+			throw new IllegalArgumentException("Feature size must not be negative: " + featureSize);
+		}
+		this.seed = seed;
+		this.featureCount = featureCount;
+		this.geometryKind = geometryKind;
+		this.vertexCount = vertexCount;
+		this.fieldCount = fieldCount;
+		this.stringWidth = stringWidth;
+		this.nullRatio = nullRatio;
+		this.distribution = distribution;
+		this.featureSize = featureSize;
+		this.extent = new ReferencedEnvelope(-180, 180, -90, 90, DefaultGeographicCRS.WGS84);
+
+		Random clusterRandom = new Random(seed);
+		this.clusterCentres = new double[CLUSTER_COUNT * 2];
+		for (int i = 0; i < CLUSTER_COUNT; i++) {
+			clusterCentres[i * 2] = extent.getMinX() + clusterRandom.nextDouble() * extent.getWidth();
+			clusterCentres[i * 2 + 1] = extent.getMinY() + clusterRandom.nextDouble() * extent.getHeight();
+		}
+		this.gridColumns = Math.max(1, (long) Math.ceil(Math.sqrt(featureCount)));
+	}
+
+	/**
+	 * Create the schema for the generated features. The first field is a long
+	 * identifier, and the remaining fields cycle through string, integer,
+	 * floating point and date fields.
+	 */
+	private static SimpleFeatureType createSchema(String typeName, GeometryKind geometryKind, int fieldCount,
+			int stringWidth) {
+		if (fieldCount < 1 || fieldCount > MAX_FIELDS) {
+			throw new IllegalArgumentException("Field count must be between 1 and " + MAX_FIELDS + ": " + fieldCount);
+		}
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(typeName);
+		builder.setCRS(DefaultGeographicCRS.WGS84);
+		switch (geometryKind) {
+		case POINT:
+			builder.add(GEOMETRY_FIELD, Point.class);
+			break;
+		case POLYLINE:
+			builder.add(GEOMETRY_FIELD, LineString.class);
+			break;
+		default:
+			builder.add(GEOMETRY_FIELD, Polygon.class);
+			break;
+		}
+		builder.add(ID_FIELD, Long.class);
+		for (int i = 1; i < fieldCount; i++) {
+			String name = String.format("FIELD%03d", i);
+			switch (i % 4) {
+			case 1:
+				builder.length(stringWidth).add(name, String.class);
+				break;
+			case 2:
+				builder.add(name, Integer.class);
+				break;
+			case 3:
+				builder.add(name, Double.class);
+				break;
+			default:
+				builder.add(name, Date.class);
+				break;
+			}
+		}
+		return builder.buildFeatureType();
+	}
+
+	@Override
+	protected Iterator<SimpleFeature> openIterator() {
+		return new SyntheticFeatureIterator();
+	}
+
+	/**
+	 * @return The number of features, or {@link Integer#MAX_VALUE} if there are
+	 *         more features than can be represented as an int.
+	 */
+	@Override
+	public int size() {
+		return (int) Math.min(featureCount, Integer.MAX_VALUE);
+	}
+
+	public long getFeatureCount() {
+		return featureCount;
+	}
+
+	/**
+	 * The extent that features are placed in, expanded by the feature size, is
+	 * used instead of the exact bounds, which would require generating all of
+	 * the features.
+	 */
+	@Override
+	public ReferencedEnvelope getBounds() {
+		ReferencedEnvelope bounds = new ReferencedEnvelope(extent);
+		bounds.expandBy(featureSize);
+		return bounds;
+	}
+
+	/**
+	 * Generate the feature with the given index.
+	 *
+	 * @param index
+	 *            The zero-based index of the feature.
+	 * @param builder
+	 *            The builder to use, which must use the schema for this
+	 *            collection.
+	 * @param geometryFactory
+	 *            The factory to create geometries with.
+	 * @return The generated feature.
+	 */
+	SimpleFeature generate(long index, SimpleFeatureBuilder builder, GeometryFactory geometryFactory) {
+		// Seeding from the index keeps each feature independent of the others
+		SplittableRandom random = new SplittableRandom(seed ^ (index * 0x9E3779B97F4A7C15L));
+		builder.add(createGeometry(index, random, geometryFactory));
+		builder.add(index + 1);
+		for (int i = 1; i < fieldCount; i++) {
+			if (nullRatio > 0 && random.nextDouble() < nullRatio) {
+				builder.add(null);
+				continue;
+			}
+			switch (i % 4) {
+			case 1:
+				int length = 1 + random.nextInt(stringWidth);
+				char[] value = new char[length];
+				for (int j = 0; j < length; j++) {
+					value[j] = STRING_CHARACTERS[random.nextInt(STRING_CHARACTERS.length)];
+				}
+				builder.add(new String(value).trim());
+				break;
+			case 2:
+				builder.add(random.nextInt(2000000) - 1000000);
+				break;
+			case 3:
+				// Round to the precision that is stored in the DBF file
+				builder.add(Math.round(random.nextDouble() * 1000000000.0) / 1000.0);
+				break;
+			default:
+				builder.add(new Date(MIN_DATE + TimeUnit.DAYS.toMillis(random.nextLong(DATE_RANGE_DAYS))));
+				break;
+			}
+		}
+		return builder.buildFeature(getSchema().getTypeName() + "." + (index + 1));
+	}
+
+	private Geometry createGeometry(long index, SplittableRandom random, GeometryFactory geometryFactory) {
+		double x;
+		double y;
+		switch (distribution) {
+		case CLUSTERED:
+			int cluster = random.nextInt(CLUSTER_COUNT);
+			x = clusterCentres[cluster * 2] + nextGaussian(random) * extent.getWidth() / 50;
+			y = clusterCentres[cluster * 2 + 1] + nextGaussian(random) * extent.getHeight() / 50;
+			break;
+		case GRID:
+			long gridRows = Math.max(1, (featureCount + gridColumns - 1) / gridColumns);
+			x = extent.getMinX() + ((index % gridColumns) + 0.5) * extent.getWidth() / gridColumns;
+			y = extent.getMinY() + ((index / gridColumns) + 0.5) * extent.getHeight() / gridRows;
+			break;
+		default:
+			x = extent.getMinX() + random.nextDouble() * extent.getWidth();
+			y = extent.getMinY() + random.nextDouble() * extent.getHeight();
+			break;
+		}
+		x = Math.max(extent.getMinX(), Math.min(extent.getMaxX(), x));
+		y = Math.max(extent.getMinY(), Math.min(extent.getMaxY(), y));
+
+		switch (geometryKind) {
+		case POINT:
+			return geometryFactory.createPoint(new Coordinate(x, y));
+		case POLYLINE:
+			Coordinate[] line = new Coordinate[vertexCount];
+			double step = featureSize / vertexCount;
+			line[0] = new Coordinate(x, y);
+			for (int i = 1; i < vertexCount; i++) {
+				double angle = random.nextDouble() * 2 * Math.PI;
+				line[i] = new Coordinate(line[i - 1].x + step * Math.cos(angle),
+						line[i - 1].y + step * Math.sin(angle));
+			}
+			return geometryFactory.createLineString(line);
+		default:
+			// Vertices at decreasing angles with varying radius give a simple,
+			// clockwise ring, which is the orientation shapefiles use for shells
+			Coordinate[] ring = new Coordinate[vertexCount + 1];
+			for (int i = 0; i < vertexCount; i++) {
+				double angle = -2 * Math.PI * i / vertexCount;
+				double radius = featureSize / 2 * (0.5 + random.nextDouble() * 0.5);
+				ring[i] = new Coordinate(x + radius * Math.cos(angle), y + radius * Math.sin(angle));
+			}
+			ring[vertexCount] = new Coordinate(ring[0]);
+			return geometryFactory.createPolygon(ring);
+		}
+	}
+
+	private static double nextGaussian(SplittableRandom random) {
+		// Box-Muller transform, as SplittableRandom has no nextGaussian
+		double u1 = 1.0 - random.nextDouble();
+		double u2 = random.nextDouble();
+		return Math.sqrt(-2 * Math.log(u1)) * Math.cos(2 * Math.PI * u2);
+	}
+
+	private final class SyntheticFeatureIterator implements Iterator<SimpleFeature>, SimpleFeatureIterator {
+
+		private final SimpleFeatureBuilder builder = new SimpleFeatureBuilder(getSchema());
+		private final GeometryFactory geometryFactory = new GeometryFactory();
+		private long nextIndex = 0;
+
+		@Override
+		public boolean hasNext() {
+			return nextIndex < featureCount;
+		}
+
+		@Override
+		public SimpleFeature next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return generate(nextIndex++, builder, geometryFactory);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
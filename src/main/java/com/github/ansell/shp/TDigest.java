@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+/**
+ * A merging t-digest that estimates quantiles of a stream of values using a
+ * bounded number of weighted centroids. Centroids near the tails are kept
+ * small, so that extreme quantiles are more accurate than the median. Two
+ * digests can be merged, so that values can be summarised on separate
+ * threads and combined.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public final class TDigest {
+
+	/**
+	 * The default compression, which keeps at most a few hundred centroids.
+	 */
+	public static final double DEFAULT_COMPRESSION = 100;
+
+	private final double compression;
+	private final double[] means;
+	private final double[] weights;
+	private int centroidCount = 0;
+	private final double[] bufferMeans;
+	private final double[] bufferWeights;
+	private final double[] sortMeans;
+	private final double[] sortWeights;
+	private int bufferCount = 0;
+	private double totalWeight = 0;
+	private double min = Double.POSITIVE_INFINITY;
+	private double max = Double.NEGATIVE_INFINITY;
+
+	public TDigest() {
+		this(DEFAULT_COMPRESSION);
+	}
+
+	public TDigest(double compression) {
+		if (compression < 10) {
+			throw new IllegalArgumentException("Compression must be at least 10: " + compression);
+		}
+		this.compression = compression;
+		int maxCentroids = (int) Math.ceil(2 * compression) + 10;
+		this.means = new double[maxCentroids];
+		this.weights = new double[maxCentroids];
+		this.bufferMeans = new double[maxCentroids * 5];
+		this.bufferWeights = new double[maxCentroids * 5];
+		this.sortMeans = new double[maxCentroids * 6];
+		this.sortWeights = new double[maxCentroids * 6];
+	}
+
+	public void add(double value) {
+		add(value, 1);
+	}
+
+	public void add(double value, double weight) {
+		if (Double.isNaN(value)) {
+			throw new IllegalArgumentException("Cannot add NaN to a t-digest");
+		}
+		if (bufferCount == bufferMeans.length) {
+			compress();
+		}
+		bufferMeans[bufferCount] = value;
+		bufferWeights[bufferCount] = weight;
+		bufferCount++;
+		totalWeight += weight;
+		min = Math.min(min, value);
+		max = Math.max(max, value);
+	}
+
+	/**
+	 * Add the values summarised by another digest to this digest.
+	 *
+	 * @param other
+	 *            The digest to merge into this digest.
+	 */
+	public void merge(TDigest other) {
+		other.compress();
+		for (int i = 0; i < other.centroidCount; i++) {
+			add(other.means[i], other.weights[i]);
+		}
+		if (other.totalWeight > 0) {
+			min = Math.min(min, other.min);
+			max = Math.max(max, other.max);
+		}
+	}
+
+	public double getTotalWeight() {
+		return totalWeight;
+	}
+
+	/**
+	 * Estimate a quantile of the values that have been added.
+	 *
+	 * @param quantile
+	 *            The quantile, between 0 and 1.
+	 * @return The estimated value at the quantile, or NaN if no values have
+	 *         been added.
+	 */
+	public double quantile(double quantile) {
+		if (quantile < 0 || quantile > 1) {
+			throw new IllegalArgumentException("Quantile must be between 0 and 1: " + quantile);
+		}
+		compress();
+		if (centroidCount == 0) {
+			return Double.NaN;
+		}
+		if (centroidCount == 1) {
+			return means[0];
+		}
+		double target = quantile * totalWeight;
+		double cumulative = 0;
+		double previousCenter = 0;
+		double previousMean = min;
+		for (int i = 0; i < centroidCount; i++) {
+			double center = cumulative + weights[i] / 2;
+			if (target < center) {
+				return interpolate(previousMean, means[i], previousCenter, center, target);
+			}
+			cumulative += weights[i];
+			previousCenter = center;
+			previousMean = means[i];
+		}
+		return interpolate(previousMean, max, previousCenter, totalWeight, target);
+	}
+
+	private static double interpolate(double fromValue, double toValue, double fromPosition, double toPosition,
+			double target) {
+		if (toPosition <= fromPosition) {
+			return toValue;
+		}
+		return fromValue + (toValue - fromValue) * (target - fromPosition) / (toPosition - fromPosition);
+	}
+
+	/**
+	 * Merge the buffered values into the centroids.
+	 */
+	private void compress() {
+		if (bufferCount == 0) {
+			return;
+		}
+		// Sort the existing centroids together with the buffered values
+		int count = centroidCount + bufferCount;
+		System.arraycopy(bufferMeans, 0, sortMeans, 0, bufferCount);
+		System.arraycopy(bufferWeights, 0, sortWeights, 0, bufferCount);
+		System.arraycopy(means, 0, sortMeans, bufferCount, centroidCount);
+		System.arraycopy(weights, 0, sortWeights, bufferCount, centroidCount);
+		sort(sortMeans, sortWeights, 0, count - 1);
+
+		centroidCount = 0;
+		double weightSoFar = 0;
+		double currentMean = sortMeans[0];
+		double currentWeight = sortWeights[0];
+		double quantileLimit = inverseScale(scale(0) + 1);
+		for (int i = 1; i < count; i++) {
+			double proposedWeight = currentWeight + sortWeights[i];
+			// The last centroid absorbs the remaining values if the limit on
+			// the number of centroids is reached
+			if ((weightSoFar + proposedWeight) / totalWeight <= quantileLimit
+					|| centroidCount == means.length - 1) {
+				currentMean += (sortMeans[i] - currentMean) * sortWeights[i] / proposedWeight;
+				currentWeight = proposedWeight;
+			} else {
+				means[centroidCount] = currentMean;
+				weights[centroidCount] = currentWeight;
+				centroidCount++;
+				weightSoFar += currentWeight;
+				quantileLimit = inverseScale(scale(weightSoFar / totalWeight) + 1);
+				currentMean = sortMeans[i];
+				currentWeight = sortWeights[i];
+			}
+		}
+		means[centroidCount] = currentMean;
+		weights[centroidCount] = currentWeight;
+		centroidCount++;
+		bufferCount = 0;
+	}
+
+	/**
+	 * The arcsine scale function, which allows each centroid to span one unit
+	 * of scale, so that centroids are smaller near the tails.
+	 */
+	private double scale(double quantile) {
+		return compression / (2 * Math.PI) * Math.asin(2 * quantile - 1);
+	}
+
+	private double inverseScale(double scale) {
+		if (scale >= compression / 4) {
+			return 1;
+		}
+		return (Math.sin(scale * 2 * Math.PI / compression) + 1) / 2;
+	}
+
+	private static void sort(double[] keys, double[] values, int low, int high) {
+		while (low < high) {
+			double pivot = keys[(low + high) >>> 1];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (keys[i] < pivot) {
+					i++;
+				}
+				while (keys[j] > pivot) {
+					j--;
+				}
+				if (i <= j) {
+					double key = keys[i];
+					keys[i] = keys[j];
+					keys[j] = key;
+					double value = values[i];
+					values[i] = values[j];
+					values[j] = value;
+					i++;
+					j--;
+				}
+			}
+			// Recurse into the smaller side to bound the stack depth
+			if (j - low < high - i) {
+				sort(keys, values, low, j);
+				low = i;
+			} else {
+				sort(keys, values, i, high);
+				high = j;
+			}
+		}
+	}
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.geometry.jts.JTS;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.MapContent;
+import org.geotools.referencing.CRS;
+import org.geotools.referencing.crs.DefaultGeographicCRS;
+import org.geotools.renderer.lite.StreamingRenderer;
+import org.geotools.styling.Style;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFilter;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.MultiPoint;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.GeometryDescriptor;
+import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+/**
+ * Renders features into a pyramid of 256 pixel PNG tiles in the XYZ scheme
+ * used by web maps, in the spherical Web Mercator projection.
+ * <p>
+ * The features are read once, projected, and simplified to the pixel size of
+ * the highest zoom level. Only the geometries are kept, not the attributes.
+ * The zoom levels are rendered one at a time, each from a
+ * {@link GeneralisedFeatureCollection} at the pixel size of that zoom level,
+ * which is added to an in-memory R-tree for that level only, so that each tile
+ * only renders the geometries near it. The tiles in each level are rendered on
+ * a work-stealing fork-join pool, and only the tiles below the tiles that had
+ * features near them are searched in the next level, so areas without any
+ * features are skipped at every zoom level below them. Tiles where nothing was
+ * drawn are not written.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class TilePyramid {
+
+	/**
+	 * The width and height of each tile in pixels.
+	 */
+	public static final int TILE_SIZE = 256;
+
+	/**
+	 * The highest zoom level that can be rendered.
+	 */
+	public static final int MAX_ZOOM = 24;
+
+	/**
+	 * The distance from the origin to the edge of the Web Mercator projection,
+	 * in metres.
+	 */
+	static final double ORIGIN_SHIFT = Math.PI * 6378137.0;
+
+	/**
+	 * The latitude of the top and bottom edges of the Web Mercator projection.
+	 */
+	static final double MAX_LATITUDE = 85.0511287798066;
+
+	/**
+	 * The number of pixels around each tile to look for features in, so that
+	 * point symbols and lines that overlap the edge of the tile are drawn.
+	 */
+	private static final int QUERY_BUFFER_PIXELS = 8;
+
+	/**
+	 * Receives each tile after it is rendered, from any of the rendering threads.
+	 */
+	public interface TileSink {
+
+		/**
+		 * @param zoom
+		 *            The zoom level of the tile.
+		 * @param x
+		 *            The column of the tile, from the west.
+		 * @param y
+		 *            The row of the tile, from the north.
+		 * @param png
+		 *            The encoded image.
+		 * @throws IOException
+		 *             If the tile could not be written.
+		 */
+		void writeTile(int zoom, int x, int y, byte[] png) throws IOException;
+	}
+
+	private final int minZoom;
+	private final int maxZoom;
+	private final int threads;
+	private final SimpleFeatureType renderSchema;
+	private final Style style;
+	private final MathTransform toGeographic;
+	private final ListFeatureCollection projectedFeatures;
+	private final Envelope extent = new Envelope();
+	private long featureCount = 0;
+	private long skippedFeatureCount = 0;
+	private final AtomicLong tileCount = new AtomicLong();
+	private final AtomicLong emptyTileCount = new AtomicLong();
+
+	/**
+	 * @param schema
+	 *            The schema of the features to render.
+	 * @param minZoom
+	 *            The lowest zoom level to write tiles for.
+	 * @param maxZoom
+	 *            The highest zoom level to write tiles for.
+	 * @param threads
+	 *            The number of threads to render tiles with.
+	 */
+	public TilePyramid(SimpleFeatureType schema, int minZoom, int maxZoom, int threads) {
+		if (minZoom < 0 || maxZoom > MAX_ZOOM || minZoom > maxZoom) {
+			throw new IllegalArgumentException("Zoom levels must be between 0 and " + MAX_ZOOM
+					+ " with the minimum no larger than the maximum: " + minZoom + "-" + maxZoom);
+		}
+		if (threads < 1) {
+			throw new IllegalArgumentException("Number of threads must be at least 1: " + threads);
+		}
+		GeometryDescriptor geometryDescriptor = schema.getGeometryDescriptor();
+		if (geometryDescriptor == null) {
+			throw new IllegalArgumentException("Schema does not have a geometry to render: " + schema.getTypeName());
+		}
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+		this.threads = threads;
+
+		// The tiles are rendered without attributes, in projected coordinates
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(schema.getTypeName());
+		builder.add(geometryDescriptor.getLocalName(), geometryDescriptor.getType().getBinding());
+		this.renderSchema = builder.buildFeatureType();
+		this.style = SHPUtils.getSimpleStyle(renderSchema);
+		this.projectedFeatures = new ListFeatureCollection(renderSchema);
+
+		CoordinateReferenceSystem crs = schema.getCoordinateReferenceSystem();
+		if (crs == null) {
+			System.err.println("No coordinate reference system for " + schema.getTypeName()
+					+ ", assuming longitude and latitude for tiles");
+			this.toGeographic = null;
+		} else {
+			try {
+				MathTransform transform = CRS.findMathTransform(crs, DefaultGeographicCRS.WGS84, true);
+				this.toGeographic = transform.isIdentity() ? null : transform;
+			} catch (FactoryException e) {
+				throw new IllegalArgumentException(
+						"Could not transform " + schema.getTypeName() + " to longitude and latitude for tiles", e);
+			}
+		}
+	}
+
+	/**
+	 * Read the features into memory, projected and simplified for the highest
+	 * zoom level.
+	 *
+	 * @param features
+	 *            The features to read, which are iterated once.
+	 * @return This pyramid.
+	 */
+	public TilePyramid addFeatures(SimpleFeatureCollection features) {
+		double tolerance = getPixelSize(maxZoom) / 2;
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(renderSchema);
+		try (SimpleFeatureIterator iterator = features.features();) {
+			while (iterator.hasNext()) {
+				SimpleFeature feature = iterator.next();
+				Object value = feature.getDefaultGeometry();
+				if (!(value instanceof Geometry) || ((Geometry) value).isEmpty()) {
+					continue;
+				}
+				Geometry projected;
+				try {
+					projected = toWebMercator((Geometry) value);
+				} catch (TransformException e) {
+					skippedFeatureCount++;
+					continue;
+				}
+				Geometry simplified = simplify(projected, tolerance);
+				projectedFeatures.add(builder.buildFeature(null, new Object[] { simplified }));
+				extent.expandToInclude(simplified.getEnvelopeInternal());
+				featureCount++;
+			}
+		}
+		return this;
+	}
+
+	private Geometry toWebMercator(Geometry geometry) throws TransformException {
+		// Transforming creates a new geometry, otherwise copy it before changing
+		// the coordinates in place
+		Geometry result = toGeographic == null ? geometry.copy() : JTS.transform(geometry, toGeographic);
+		result.apply(new CoordinateSequenceFilter() {
+			@Override
+			public void filter(CoordinateSequence sequence, int i) {
+				sequence.setOrdinate(i, 1, toMercatorY(sequence.getOrdinate(i, 1)));
+				sequence.setOrdinate(i, 0, toMercatorX(sequence.getOrdinate(i, 0)));
+			}
+
+			@Override
+			public boolean isDone() {
+				return false;
+			}
+
+			@Override
+			public boolean isGeometryChanged() {
+				return true;
+			}
+		});
+		return result;
+	}
+
+	private static Geometry simplify(Geometry geometry, double tolerance) {
+		if (geometry instanceof Point || geometry instanceof MultiPoint || geometry.getNumPoints() <= 4) {
+			return geometry;
+		}
+		DouglasPeuckerSimplifier simplifier = new DouglasPeuckerSimplifier(geometry);
+		simplifier.setDistanceTolerance(tolerance);
+		simplifier.setEnsureValid(false);
+		Geometry result = simplifier.getResultGeometry();
+		return result.isEmpty() ? geometry : result;
+	}
+
+	static double toMercatorX(double longitude) {
+		return longitude * ORIGIN_SHIFT / 180.0;
+	}
+
+	static double toMercatorY(double latitude) {
+		double clamped = Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, latitude));
+		return Math.log(Math.tan((90 + clamped) * Math.PI / 360.0)) * 6378137.0;
+	}
+
+	static double toLongitude(double mercatorX) {
+		return mercatorX * 180.0 / ORIGIN_SHIFT;
+	}
+
+	static double toLatitude(double mercatorY) {
+		return Math.toDegrees(2 * Math.atan(Math.exp(mercatorY / 6378137.0)) - Math.PI / 2);
+	}
+
+	/**
+	 * @return The size of a pixel at the given zoom level, in metres.
+	 */
+	static double getPixelSize(int zoom) {
+		return getTileSpan(zoom) / TILE_SIZE;
+	}
+
+	private static double getTileSpan(int zoom) {
+		return 2 * ORIGIN_SHIFT / (1 << zoom);
+	}
+
+	/**
+	 * @return The bounds of the tile in Web Mercator coordinates.
+	 */
+	static Envelope getTileBounds(int zoom, int x, int y) {
+		double span = getTileSpan(zoom);
+		return new Envelope(-ORIGIN_SHIFT + x * span, -ORIGIN_SHIFT + (x + 1) * span, ORIGIN_SHIFT - (y + 1) * span,
+				ORIGIN_SHIFT - y * span);
+	}
+
+	/**
+	 * @return The longitude and latitude bounds of the features that were read.
+	 */
+	public Envelope getGeographicBounds() {
+		if (extent.isNull()) {
+			return new Envelope();
+		}
+		return new Envelope(toLongitude(extent.getMinX()), toLongitude(extent.getMaxX()),
+				toLatitude(extent.getMinY()), toLatitude(extent.getMaxY()));
+	}
+
+	public int getMinZoom() {
+		return minZoom;
+	}
+
+	public int getMaxZoom() {
+		return maxZoom;
+	}
+
+	/**
+	 * @return The number of features that were read.
+	 */
+	public long getFeatureCount() {
+		return featureCount;
+	}
+
+	/**
+	 * @return The number of features that could not be projected.
+	 */
+	public long getSkippedFeatureCount() {
+		return skippedFeatureCount;
+	}
+
+	/**
+	 * @return The number of tiles that were written.
+	 */
+	public long getTileCount() {
+		return tileCount.get();
+	}
+
+	/**
+	 * @return The number of tiles that were rendered but not written, as nothing
+	 *         was drawn on them.
+	 */
+	public long getEmptyTileCount() {
+		return emptyTileCount.get();
+	}
+
+	/**
+	 * Render the tiles for every zoom level, passing each tile that is not empty
+	 * to the sink.
+	 *
+	 * @param sink
+	 *            The sink for the tiles.
+	 * @return This pyramid.
+	 * @throws IOException
+	 *             If a tile could not be written.
+	 */
+	public TilePyramid render(TileSink sink) throws IOException {
+		if (extent.isNull()) {
+			return this;
+		}
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			// The levels above the lowest zoom level are not written, so the
+			// index for the lowest zoom level is used to find the tiles below them
+			STRtree index = buildIndex(minZoom);
+			long[] tiles = { toTile(0, 0) };
+			for (int zoom = 0; zoom <= maxZoom && tiles.length > 0; zoom++) {
+				if (zoom > minZoom) {
+					index = buildIndex(zoom);
+				}
+				boolean[] occupied = new boolean[tiles.length];
+				pool.invoke(new TileTask(index, sink, zoom, zoom >= minZoom, tiles, occupied, 0, tiles.length));
+				tiles = getChildren(tiles, occupied);
+			}
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		} finally {
+			pool.shutdownNow();
+		}
+		return this;
+	}
+
+	/**
+	 * Generalise the features to the pixel size of the zoom level, and add them
+	 * to a spatial index.
+	 *
+	 * @param zoom
+	 *            The zoom level.
+	 * @return The index of the geometries to render at the zoom level.
+	 */
+	STRtree buildIndex(int zoom) {
+		STRtree result = new STRtree();
+		if (zoom == maxZoom) {
+			// The features were simplified for the highest zoom level when they were read
+			addGeometries(result, projectedFeatures);
+		} else {
+			// The bounds are extended to the edges of the pixels at this zoom level,
+			// so features smaller than a pixel are removed using the same pixels
+			// that the tiles are drawn with
+			double pixelSize = getPixelSize(zoom);
+			double minX = -ORIGIN_SHIFT + Math.floor((extent.getMinX() + ORIGIN_SHIFT) / pixelSize) * pixelSize;
+			double maxY = ORIGIN_SHIFT - Math.floor((ORIGIN_SHIFT - extent.getMaxY()) / pixelSize) * pixelSize;
+			int width = getPixelCount(extent.getMaxX() - minX, pixelSize);
+			int height = getPixelCount(maxY - extent.getMinY(), pixelSize);
+			ReferencedEnvelope bounds = new ReferencedEnvelope(minX, minX + width * pixelSize,
+					maxY - height * pixelSize, maxY, null);
+			try (GeneralisedFeatureCollection generalised = new GeneralisedFeatureCollection(projectedFeatures,
+					bounds, width, threads);) {
+				addGeometries(result, generalised);
+			}
+		}
+		result.build();
+		return result;
+	}
+
+	private static void addGeometries(STRtree index, SimpleFeatureCollection features) {
+		try (SimpleFeatureIterator iterator = features.features();) {
+			while (iterator.hasNext()) {
+				Geometry geometry = (Geometry) iterator.next().getDefaultGeometry();
+				index.insert(geometry.getEnvelopeInternal(), geometry);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of pixels across the distance, which is limited to the
+	 *         largest image width, as the size of the pixels is all that is
+	 *         needed to simplify the features.
+	 */
+	private static int getPixelCount(double distance, double pixelSize) {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.ceil(distance / pixelSize)));
+	}
+
+	private static long toTile(int x, int y) {
+		return ((long) x << 32) | y;
+	}
+
+	/**
+	 * @return The four tiles below each of the tiles that had features near
+	 *         them.
+	 */
+	private static long[] getChildren(long[] tiles, boolean[] occupied) {
+		int count = 0;
+		for (boolean nextOccupied : occupied) {
+			if (nextOccupied) {
+				count++;
+			}
+		}
+		long[] result = new long[Math.multiplyExact(count, 4)];
+		int position = 0;
+		for (int i = 0; i < tiles.length; i++) {
+			if (occupied[i]) {
+				int x = (int) (tiles[i] >>> 32);
+				int y = (int) tiles[i];
+				for (int j = 0; j < 4; j++) {
+					result[position++] = toTile(x * 2 + (j & 1), y * 2 + (j >> 1));
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param outputDir
+	 *            The directory to create, which must not already exist, so that
+	 *            tiles from an earlier render are not mixed with the new tiles.
+	 * @return A sink that writes each tile to zoom/x/y.png under the given
+	 *         directory.
+	 * @throws IOException
+	 *             If the directory already exists or could not be created.
+	 */
+	public static TileSink directorySink(Path outputDir) throws IOException {
+		Files.createDirectory(outputDir);
+		return (zoom, x, y, png) -> {
+			Path columnDir = outputDir.resolve(Integer.toString(zoom)).resolve(Integer.toString(x));
+			Files.createDirectories(columnDir);
+			Files.write(columnDir.resolve(y + ".png"), png, StandardOpenOption.CREATE_NEW);
+		};
+	}
+
+	/**
+	 * @return The encoded tile, or null if nothing was drawn.
+	 */
+	private byte[] renderTile(Envelope tileBounds, List<?> geometries) throws IOException {
+		ListFeatureCollection features = new ListFeatureCollection(renderSchema);
+		SimpleFeatureBuilder builder = new SimpleFeatureBuilder(renderSchema);
+		for (Object nextGeometry : geometries) {
+			features.add(builder.buildFeature(null, new Object[] { nextGeometry }));
+		}
+		BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+		MapContent map = new MapContent();
+		try {
+			map.addLayer(new FeatureLayer(features, style));
+			StreamingRenderer renderer = new StreamingRenderer();
+			renderer.setMapContent(map);
+			Graphics2D gr = image.createGraphics();
+			try {
+				renderer.paint(gr, new Rectangle(0, 0, TILE_SIZE, TILE_SIZE), new ReferencedEnvelope(tileBounds, null));
+			} finally {
+				gr.dispose();
+			}
+		} finally {
+			map.dispose();
+		}
+		if (isTransparent(image)) {
+			return null;
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", output);
+		return output.toByteArray();
+	}
+
+	private static boolean isTransparent(BufferedImage image) {
+		for (int pixel : ((DataBufferInt) image.getRaster().getDataBuffer()).getData()) {
+			if ((pixel >>> 24) != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Renders a range of the tiles in one zoom level, splitting the range in half
+	 * until there is a single tile to render, and records the tiles that had
+	 * features near them.
+	 */
+	private final class TileTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private final STRtree index;
+		private final TileSink sink;
+		private final int zoom;
+		private final boolean write;
+		private final long[] tiles;
+		private final boolean[] occupied;
+		private final int start;
+		private final int end;
+
+		private TileTask(STRtree index, TileSink sink, int zoom, boolean write, long[] tiles, boolean[] occupied,
+				int start, int end) {
+			this.index = index;
+			this.sink = sink;
+			this.zoom = zoom;
+			this.write = write;
+			this.tiles = tiles;
+			this.occupied = occupied;
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected void compute() {
+			if (end - start > 1) {
+				int middle = (start + end) >>> 1;
+				invokeAll(new TileTask(index, sink, zoom, write, tiles, occupied, start, middle),
+						new TileTask(index, sink, zoom, write, tiles, occupied, middle, end));
+				return;
+			}
+			int x = (int) (tiles[start] >>> 32);
+			int y = (int) tiles[start];
+			Envelope tileBounds = getTileBounds(zoom, x, y);
+			Envelope queryBounds = new Envelope(tileBounds);
+			queryBounds.expandBy(getPixelSize(zoom) * QUERY_BUFFER_PIXELS);
+			List<?> geometries = index.query(queryBounds);
+			if (geometries.isEmpty()) {
+				return;
+			}
+			occupied[start] = true;
+			if (write) {
+				try {
+					byte[] png = renderTile(tileBounds, geometries);
+					if (png == null) {
+						emptyTileCount.incrementAndGet();
+					} else {
+						sink.writeTile(zoom, x, y, png);
+						tileCount.incrementAndGet();
+					}
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.MapContent;
+import org.geotools.renderer.GTRenderer;
+import org.geotools.renderer.lite.StreamingRenderer;
+
+/**
+ * A {@link RenderedImage} for a map that is rendered lazily in horizontal
+ * strips, with each strip split into tiles that are rendered concurrently. Only
+ * the strips currently being read and prefetched are held in memory, so image
+ * writers that read the image row by row, such as the PNG writer, can encode
+ * images that are far larger than would fit in a single {@link BufferedImage}.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class TiledMapImage implements RenderedImage, Closeable {
+
+	private final MapContent map;
+	private final ReferencedEnvelope mapBounds;
+	private final int width;
+	private final int height;
+	private final int tileSize;
+	private final int prefetchStrips;
+	private final ColorModel colorModel;
+	private final SampleModel sampleModel;
+	private final ExecutorService executor;
+	private final ThreadLocal<GTRenderer> renderers;
+	private final Map<Integer, Strip> strips = new TreeMap<>();
+
+	/**
+	 * @param map
+	 *            The map to render. The layers must support concurrent reads.
+	 * @param mapBounds
+	 *            The area of the map to render.
+	 * @param width
+	 *            The width of the image in pixels.
+	 * @param height
+	 *            The height of the image in pixels.
+	 * @param tileSize
+	 *            The width and height of each tile, which is also the height of
+	 *            each strip.
+	 * @param threads
+	 *            The number of threads to render tiles with.
+	 */
+	public TiledMapImage(MapContent map, ReferencedEnvelope mapBounds, int width, int height, int tileSize,
+			int threads) {
+		this.map = map;
+		this.mapBounds = mapBounds;
+		this.width = width;
+		this.height = height;
+		this.tileSize = tileSize;
+		// Keep enough strips in flight to keep every thread busy
+		this.prefetchStrips = Math.max(1, (threads + getTilesPerStrip() - 1) / getTilesPerStrip());
+		this.colorModel = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getColorModel();
+		this.sampleModel = colorModel.createCompatibleSampleModel(width, tileSize);
+		this.executor = Executors.newFixedThreadPool(threads);
+		this.renderers = ThreadLocal.withInitial(() -> {
+			GTRenderer renderer = new StreamingRenderer();
+			renderer.setMapContent(this.map);
+			return renderer;
+		});
+	}
+
+	private int getTilesPerStrip() {
+		return (width + tileSize - 1) / tileSize;
+	}
+
+	private synchronized Strip getStrip(int stripIndex) {
+		// Strips above the requested strip are no longer needed by row-ordered
+		// readers
+		Iterator<Map.Entry<Integer, Strip>> existing = strips.entrySet().iterator();
+		while (existing.hasNext()) {
+			Map.Entry<Integer, Strip> next = existing.next();
+			if (next.getKey() < stripIndex) {
+				next.getValue().cancel();
+				existing.remove();
+			}
+		}
+		for (int i = stripIndex; i <= stripIndex + prefetchStrips && i < getNumYTiles(); i++) {
+			strips.computeIfAbsent(i, this::startStrip);
+		}
+		Strip result = strips.get(stripIndex);
+		result.await();
+		return result;
+	}
+
+	private Strip startStrip(int stripIndex) {
+		BufferedImage image = new BufferedImage(width, tileSize, BufferedImage.TYPE_INT_RGB);
+		List<Future<?>> tiles = new ArrayList<>();
+		int y = stripIndex * tileSize;
+		for (int x = 0; x < width; x += tileSize) {
+			final int tileX = x;
+			final int tileWidth = Math.min(tileSize, width - x);
+			tiles.add(executor.submit(() -> renderTile(image.getSubimage(tileX, 0, tileWidth, tileSize), tileX, y)));
+		}
+		return new Strip(image, tiles);
+	}
+
+	private void renderTile(BufferedImage tile, int x, int y) {
+		double pixelWidth = mapBounds.getSpan(0) / width;
+		double pixelHeight = mapBounds.getSpan(1) / height;
+		ReferencedEnvelope tileBounds = new ReferencedEnvelope(mapBounds.getMinX() + x * pixelWidth,
+				mapBounds.getMinX() + (x + tile.getWidth()) * pixelWidth,
+				mapBounds.getMaxY() - (y + tile.getHeight()) * pixelHeight, mapBounds.getMaxY() - y * pixelHeight,
+				mapBounds.getCoordinateReferenceSystem());
+		Rectangle tileArea = new Rectangle(0, 0, tile.getWidth(), tile.getHeight());
+		Graphics2D gr = tile.createGraphics();
+		try {
+			gr.setPaint(Color.WHITE);
+			gr.fill(tileArea);
+			renderers.get().paint(gr, tileArea, tileBounds);
+		} finally {
+			gr.dispose();
+		}
+	}
+
+	@Override
+	public Vector<RenderedImage> getSources() {
+		return null;
+	}
+
+	@Override
+	public Object getProperty(String name) {
+		return java.awt.Image.UndefinedProperty;
+	}
+
+	@Override
+	public String[] getPropertyNames() {
+		return null;
+	}
+
+	@Override
+	public ColorModel getColorModel() {
+		return colorModel;
+	}
+
+	@Override
+	public SampleModel getSampleModel() {
+		return sampleModel;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public int getMinX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinY() {
+		return 0;
+	}
+
+	@Override
+	public int getNumXTiles() {
+		return 1;
+	}
+
+	@Override
+	public int getNumYTiles() {
+		return (height + tileSize - 1) / tileSize;
+	}
+
+	@Override
+	public int getMinTileX() {
+		return 0;
+	}
+
+	@Override
+	public int getMinTileY() {
+		return 0;
+	}
+
+	@Override
+	public int getTileWidth() {
+		return width;
+	}
+
+	@Override
+	public int getTileHeight() {
+		return tileSize;
+	}
+
+	@Override
+	public int getTileGridXOffset() {
+		return 0;
+	}
+
+	@Override
+	public int getTileGridYOffset() {
+		return 0;
+	}
+
+	@Override
+	public Raster getTile(int tileX, int tileY) {
+		return getStrip(tileY).image.getRaster().createTranslatedChild(0, tileY * tileSize);
+	}
+
+	/**
+	 * Returns the entire image, which requires it all to fit in memory.
+	 */
+	@Override
+	public Raster getData() {
+		return getData(new Rectangle(0, 0, width, height));
+	}
+
+	@Override
+	public Raster getData(Rectangle rect) {
+		WritableRaster result = Raster.createWritableRaster(
+				sampleModel.createCompatibleSampleModel(rect.width, rect.height), new Point(rect.x, rect.y));
+		return copyData(result);
+	}
+
+	@Override
+	public WritableRaster copyData(WritableRaster raster) {
+		if (raster == null) {
+			raster = Raster.createWritableRaster(sampleModel.createCompatibleSampleModel(width, height), null);
+		}
+		int firstStrip = Math.max(0, raster.getMinY() / tileSize);
+		int lastStrip = Math.min(getNumYTiles() - 1, (raster.getMinY() + raster.getHeight() - 1) / tileSize);
+		for (int i = firstStrip; i <= lastStrip; i++) {
+			raster.setRect(0, i * tileSize, getStrip(i).image.getRaster());
+		}
+		return raster;
+	}
+
+	@Override
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static final class Strip {
+
+		private final BufferedImage image;
+		private final List<Future<?>> tiles;
+
+		private Strip(BufferedImage image, List<Future<?>> tiles) {
+			this.image = image;
+			this.tiles = tiles;
+		}
+
+		private void await() {
+			for (Future<?> tile : tiles) {
+				try {
+					tile.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new RuntimeException("Interrupted while rendering tile", e);
+				} catch (ExecutionException e) {
+					throw new RuntimeException("Failed to render tile", e.getCause());
+				}
+			}
+		}
+
+		private void cancel() {
+			tiles.forEach(tile -> tile.cancel(true));
+		}
+	}
+}
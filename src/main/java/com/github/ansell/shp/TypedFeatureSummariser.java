@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * Summarises the typed attribute values of features, using
+ * {@link ColumnStatistics} for each attribute. Unlike
+ * {@link FeatureSummariser}, values are not converted to strings, and the
+ * memory used for each attribute is fixed. Summarisers for the same feature
+ * type can be merged, so features can be summarised on separate threads.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class TypedFeatureSummariser {
+
+	private final SimpleFeatureType featureType;
+	private final List<ColumnStatistics> columns;
+
+	public TypedFeatureSummariser(SimpleFeatureType featureType) {
+		this.featureType = featureType;
+		List<ColumnStatistics> columnList = new ArrayList<>(featureType.getAttributeCount());
+		for (AttributeDescriptor nextDescriptor : featureType.getAttributeDescriptors()) {
+			columnList.add(new ColumnStatistics(nextDescriptor));
+		}
+		this.columns = Collections.unmodifiableList(columnList);
+	}
+
+	/**
+	 * Add the attribute values of a feature, which must have the feature type
+	 * given to the constructor.
+	 *
+	 * @param feature
+	 *            The feature to add.
+	 */
+	public void addFeature(SimpleFeature feature) {
+		for (int i = 0; i < columns.size(); i++) {
+			columns.get(i).add(feature.getAttribute(i));
+		}
+	}
+
+	/**
+	 * Add the statistics from another summariser for the same feature type.
+	 *
+	 * @param other
+	 *            The summariser to merge into this summariser.
+	 */
+	public void merge(TypedFeatureSummariser other) {
+		if (!featureType.equals(other.featureType)) {
+			throw new IllegalArgumentException("Cannot merge summaries for different feature types: "
+					+ featureType.getTypeName() + " and " + other.featureType.getTypeName());
+		}
+		for (int i = 0; i < columns.size(); i++) {
+			columns.get(i).merge(other.columns.get(i));
+		}
+	}
+
+	public List<ColumnStatistics> getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Write the statistics for each attribute to the given output, using one
+	 * row for each attribute.
+	 *
+	 * @param summaryOutput
+	 *            The output to write the summary CSV to.
+	 * @throws IOException
+	 *             If there is an error writing the summary.
+	 */
+	public void writeSummary(Writer summaryOutput) throws IOException {
+		try (SequenceWriter csv = CSVStream.newCSVWriter(summaryOutput,
+				CSVStream.buildSchema(ColumnStatistics.SUMMARY_HEADERS));) {
+			for (ColumnStatistics nextColumn : columns) {
+				csv.write(nextColumn.toSummaryRow());
+			}
+		}
+	}
+}
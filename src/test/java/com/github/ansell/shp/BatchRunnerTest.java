@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import joptsimple.OptionParser;
+
+/**
+ * Tests for {@link BatchRunner}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class BatchRunnerTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private Path inputDir;
+
+	private OptionParser parser;
+
+	@Before
+	public void setUp() throws Exception {
+		parser = new OptionParser();
+		parser.accepts("input").withRequiredArg();
+		parser.accepts("output").withRequiredArg();
+		parser.accepts("prefix").withRequiredArg();
+		parser.accepts("batch-threads").withRequiredArg();
+		parser.accepts("batch-output").withRequiredArg();
+		inputDir = tempDir.newFolder("input").toPath();
+		Files.createFile(inputDir.resolve("first.shp"));
+		Files.createFile(inputDir.resolve("second.shp"));
+		Files.createFile(inputDir.resolve("second.dbf"));
+		Files.createDirectory(inputDir.resolve("nested"));
+		Files.createFile(inputDir.resolve("nested").resolve("third.shp"));
+	}
+
+	@Test
+	public final void testFindInputsDirectory() throws Exception {
+		assertTrue(BatchRunner.isBatchInput(inputDir.toString()));
+		assertEquals(Arrays.asList(inputDir.resolve("first.shp"), inputDir.resolve("second.shp")),
+				BatchRunner.findInputs(inputDir.toString(), "shp"));
+	}
+
+	@Test
+	public final void testFindInputsGlob() throws Exception {
+		assertFalse(BatchRunner.isBatchInput(inputDir.resolve("first.shp").toString()));
+		assertTrue(BatchRunner.isBatchInput(inputDir.resolve("*.shp").toString()));
+		assertEquals(Arrays.asList(inputDir.resolve("first.shp"), inputDir.resolve("second.shp")),
+				BatchRunner.findInputs(inputDir.resolve("*.shp").toString(), "shp"));
+		assertEquals(3, BatchRunner.findInputs(inputDir.toString() + "/**.shp", "shp").size());
+	}
+
+	@Test
+	public final void testGlobCharactersInFileName() throws Exception {
+		Path bracketFile = Files.createFile(inputDir.resolve("roads[1].shp"));
+		assertFalse(BatchRunner.isBatchInput(bracketFile.toString()));
+		assertTrue(BatchRunner.isBatchInput(inputDir.resolve("roads[2].shp").toString()));
+	}
+
+	@Test
+	public final void testJobNames() throws Exception {
+		Path nsw = Files.createDirectories(inputDir.resolve("nsw"));
+		Path qld = Files.createDirectories(inputDir.resolve("qld").resolve("south east"));
+		List<Path> inputs = Arrays.asList(inputDir.resolve("first.shp"), nsw.resolve("roads.shp"),
+				qld.resolve("roads.shp"), qld.resolve("ROADS.SHP"), nsw.resolve("nsw-roads.shp"));
+		assertEquals(Arrays.asList("first", "nsw-roads", "qld-southeast-roads", "qld-southeast-ROADS-2",
+				"nsw-roads-2"), BatchRunner.getJobNames(inputs));
+	}
+
+	@Test
+	public final void testReplaceOption() {
+		assertArrayEquals(new String[] { "--output", "out", "--input", "new" },
+				BatchRunner.replaceOption(parser, new String[] { "--input", "old", "--output", "out" }, "input", "new"));
+		assertArrayEquals(new String[] { "--output", "out", "--input", "new" },
+				BatchRunner.replaceOption(parser, new String[] { "--input=old", "--output", "out" }, "input", "new"));
+		assertEquals("myfile", BatchRunner.getJobName(Paths.get("dir", "my file.shp")));
+	}
+
+	@Test
+	public final void testReplaceAbbreviatedOption() {
+		assertArrayEquals(new String[] { "--output", "out", "--prefix", "new" },
+				BatchRunner.replaceOption(parser, new String[] { "--pre", "old", "--output", "out" }, "prefix", "new"));
+		assertArrayEquals(new String[] { "--output", "out", "--batch-threads", "1" }, BatchRunner
+				.replaceOption(parser, new String[] { "--batch-t=4", "--output", "out" }, "batch-threads", "1"));
+		// An ambiguous abbreviation is not any one option
+		assertArrayEquals(new String[] { "--batch", "4", "--batch-threads", "1" },
+				BatchRunner.replaceOption(parser, new String[] { "--batch", "4" }, "batch-threads", "1"));
+		// The value of another option is not mistaken for the option
+		assertArrayEquals(new String[] { "--output", "--input", "--input", "new" },
+				BatchRunner.replaceOption(parser, new String[] { "--output", "--input" }, "input", "new"));
+	}
+
+	@Test
+	public final void testFailuresAreIsolated() throws Exception {
+		Path outputDir = tempDir.newFolder("output").toPath();
+		AtomicInteger successes = new AtomicInteger();
+		List<Path> inputs = BatchRunner.findInputs(inputDir.toString(), "shp");
+		BatchRunner runner = new BatchRunner(args -> {
+			List<String> argList = Arrays.asList(args);
+			if (argList.get(argList.indexOf("--input") + 1).endsWith("first.shp")) {
+				throw new RuntimeException("Expected failure");
+			}
+			assertEquals("batch-second", argList.get(argList.indexOf("--prefix") + 1));
+			successes.incrementAndGet();
+		}, parser, 2);
+		assertEquals(1, runner.run(new String[] { "--input", inputDir.toString(), "--output", outputDir.toString() },
+				inputs, "batch", outputDir, "batch-threads"));
+		assertEquals(1, successes.get());
+		List<String> results = Files.readAllLines(outputDir.resolve("batch-Batch.csv"));
+		assertEquals(3, results.size());
+		assertTrue(results.get(1), results.get(1).contains("failed"));
+		assertTrue(results.get(2), results.get(2).contains("success"));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.feature.type.AttributeDescriptor;
+
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.github.ansell.csv.stream.CSVStream;
+
+/**
+ * Tests for {@link CSVRowEncoder}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class CSVRowEncoderTest {
+
+	private SimpleFeatureType schema;
+
+	private List<String> headers;
+
+	private List<SimpleFeature> features;
+
+	@Before
+	public void setUp() throws Exception {
+		TestFeatures testFeatures = TestFeatures.create("encode", "the_geom", Point.class, "NAME", String.class,
+				"COUNT", Long.class, "VALUE", Double.class, "CREATED", Date.class);
+		schema = testFeatures.getSchema();
+		headers = new ArrayList<>();
+		for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
+			headers.add(attribute.getLocalName());
+		}
+
+		features = Arrays.asList(
+				testFeatures.build("1", TestFeatures.wkt("POINT (1.5 -2)"), "plain", 1L, 0.1, new Date(0)),
+				testFeatures.build("2", TestFeatures.wkt("POINT (3 4)"), "with space, comma and \"quotes\"", -42L,
+						1e-7, new Date(1500000000000L)),
+				testFeatures.build("3", null, "café 😀", null, null, null),
+				testFeatures.build("4", null, " ", Long.MAX_VALUE, Double.NaN, null),
+				testFeatures.build("5", null, "averylongnamewithoutanyspecialcharacters", Long.MIN_VALUE,
+						-1.2345678901234567E-300, null));
+	}
+
+	@Test
+	public final void testSameAsStringRows() throws Exception {
+		StringWriter expected = new StringWriter();
+		try (SequenceWriter csv = CSVStream.newCSVWriter(expected, CSVStream.buildSchema(headers));) {
+			for (SimpleFeature feature : features) {
+				List<String> nextLine = new ArrayList<>();
+				for (AttributeDescriptor attribute : schema.getAttributeDescriptors()) {
+					nextLine.add(Optional.ofNullable(feature.getAttribute(attribute.getName())).orElse("").toString());
+				}
+				csv.write(nextLine);
+			}
+		}
+
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		try (CSVRowEncoder encoder = new CSVRowEncoder(schema, Collections.emptySet(), actual);) {
+			encoder.writeHeader(headers);
+			for (SimpleFeature feature : features) {
+				encoder.writeRow(feature);
+			}
+		}
+		assertEquals(expected.toString(), new String(actual.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public final void testIsFiltered() throws Exception {
+		try (CSVRowEncoder encoder = new CSVRowEncoder(schema, Collections.singleton("NAME"),
+				new ByteArrayOutputStream());) {
+			assertFalse(encoder.isFiltered(features.get(0)));
+			assertTrue(encoder.isFiltered(features.get(3)));
+		}
+		try (CSVRowEncoder encoder = new CSVRowEncoder(schema, Collections.singleton("COUNT"),
+				new ByteArrayOutputStream());) {
+			assertFalse(encoder.isFiltered(features.get(0)));
+			assertTrue(encoder.isFiltered(features.get(2)));
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link Checkpoint}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class CheckpointTest {
+
+	private static final String OPTIONS = "{format=[png], resolution=[2048]}";
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private Path inputPath;
+
+	private Path dbfPath;
+
+	private Path checkpointPath;
+
+	@Before
+	public void setUp() throws Exception {
+		inputPath = tempDir.newFile("input.shp").toPath();
+		Files.write(inputPath, new byte[] { 1, 2, 3 });
+		dbfPath = tempDir.newFile("input.dbf").toPath();
+		Files.write(dbfPath, new byte[] { 4, 5, 6 });
+		checkpointPath = tempDir.getRoot().toPath().resolve("test-Checkpoint.properties");
+	}
+
+	@Test
+	public final void testResume() throws Exception {
+		Checkpoint checkpoint = Checkpoint.create(checkpointPath, inputPath, OPTIONS);
+		assertFalse(checkpoint.isResumed());
+		checkpoint.recordProgress(200, 4096);
+		checkpoint.markComplete(Checkpoint.FEATURES_PHASE);
+
+		Checkpoint resumed = Checkpoint.load(checkpointPath, inputPath, OPTIONS);
+		assertTrue(resumed.isResumed());
+		assertEquals(200, resumed.getRecords());
+		assertEquals(4096, resumed.getCsvBytes());
+		assertTrue(resumed.isComplete(Checkpoint.FEATURES_PHASE));
+		assertFalse(resumed.isComplete(Checkpoint.SUMMARY_PHASE));
+
+		resumed.delete();
+		assertFalse(Files.exists(checkpointPath));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public final void testCreateExisting() throws Exception {
+		Checkpoint.create(checkpointPath, inputPath, OPTIONS);
+		Checkpoint.create(checkpointPath, inputPath, OPTIONS);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public final void testLoadModifiedInput() throws Exception {
+		Checkpoint.create(checkpointPath, inputPath, OPTIONS);
+		Files.write(inputPath, new byte[] { 1, 2, 3, 4 });
+		Checkpoint.load(checkpointPath, inputPath, OPTIONS);
+	}
+
+	@Test
+	public final void testLoadModifiedDbf() throws Exception {
+		Checkpoint.create(checkpointPath, inputPath, OPTIONS);
+		Files.write(dbfPath, new byte[] { 4, 5, 6, 7 });
+		try {
+			Checkpoint.load(checkpointPath, inputPath, OPTIONS);
+			fail("Did not find expected exception");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("dbf"));
+		}
+	}
+
+	@Test
+	public final void testLoadAddedShx() throws Exception {
+		Checkpoint.create(checkpointPath, inputPath, OPTIONS);
+		Files.write(SHPUtils.getSiblingFile(inputPath, "shx"), new byte[] { 8 });
+		try {
+			Checkpoint.load(checkpointPath, inputPath, OPTIONS);
+			fail("Did not find expected exception");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("shx"));
+		}
+	}
+
+	@Test
+	public final void testLoadDifferentOptions() throws Exception {
+		Checkpoint.create(checkpointPath, inputPath, OPTIONS);
+		try {
+			Checkpoint.load(checkpointPath, inputPath, "{format=[png], resolution=[4096]}");
+			fail("Did not find expected exception");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("different options"));
+		}
+	}
+}
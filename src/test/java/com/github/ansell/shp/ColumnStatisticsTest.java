@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link ColumnStatistics} and the sketches that it uses.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ColumnStatisticsTest {
+
+	@Test
+	public final void testNumberStatistics() {
+		ColumnStatistics statistics = new ColumnStatistics("VALUE", Double.class);
+		for (int i = 1; i <= 1000; i++) {
+			statistics.add(Double.valueOf(i));
+		}
+		statistics.add(null);
+		statistics.add("not a number");
+
+		assertEquals(ColumnStatistics.Kind.NUMBER, statistics.getKind());
+		assertEquals(1000, statistics.getCount());
+		assertEquals(1, statistics.getNullCount());
+		assertEquals(1, statistics.getMalformedCount());
+		assertEquals(1.0, statistics.getMin(), 0.0);
+		assertEquals(1000.0, statistics.getMax(), 0.0);
+		assertEquals(500.5, statistics.getMean(), 1e-9);
+		assertEquals(288.819, statistics.getStdDev(), 1e-3);
+		assertEquals(1000, statistics.getApproxDistinctCount(), 30);
+		assertEquals(500, statistics.getApproxQuantile(0.5), 10);
+	}
+
+	@Test
+	public final void testMerge() {
+		ColumnStatistics first = new ColumnStatistics("VALUE", Integer.class);
+		ColumnStatistics second = new ColumnStatistics("VALUE", Integer.class);
+		ColumnStatistics all = new ColumnStatistics("VALUE", Integer.class);
+		for (int i = 0; i < 2000; i++) {
+			Integer value = i % 7 == 0 ? 7 : i;
+			(i < 500 ? first : second).add(value);
+			all.add(value);
+		}
+		first.merge(second);
+
+		assertEquals(all.getCount(), first.getCount());
+		assertEquals(all.getMin(), first.getMin(), 0.0);
+		assertEquals(all.getMax(), first.getMax(), 0.0);
+		assertEquals(all.getMean(), first.getMean(), 1e-9);
+		assertEquals(all.getStdDev(), first.getStdDev(), 1e-9);
+		assertEquals(all.getApproxDistinctCount(), first.getApproxDistinctCount());
+		assertEquals(all.getApproxQuantile(0.95), first.getApproxQuantile(0.95), 20);
+		assertEquals(Integer.valueOf(7), first.getApproxTopValues().get(0).getLabel());
+	}
+
+	@Test
+	public final void testStringAndDateStatistics() {
+		ColumnStatistics strings = new ColumnStatistics("NAME", String.class);
+		strings.add("a");
+		strings.add("abc");
+		strings.add("abc");
+		assertEquals("length", strings.getKind().getMeasure());
+		assertEquals(1.0, strings.getMin(), 0.0);
+		assertEquals(3.0, strings.getMax(), 0.0);
+		assertEquals(2, strings.getApproxDistinctCount());
+		assertEquals("abc", strings.getApproxTopValues().get(0).getLabel());
+		assertEquals(2, strings.getApproxTopValues().get(0).getCount());
+
+		ColumnStatistics dates = new ColumnStatistics("CREATED", Date.class);
+		dates.add(new Date(0));
+		dates.add(new Date(86400000L));
+		assertEquals("1970-01-02T00:00:00Z", dates.toSummaryRow().get(7));
+		assertEquals("PT16H58M14.025S", dates.toSummaryRow().get(9));
+	}
+
+	@Test
+	public final void testSummaryRow() {
+		ColumnStatistics statistics = new ColumnStatistics("VALUE", Integer.class);
+		statistics.add(Integer.valueOf(5));
+		statistics.add(null);
+		statistics.add("abc");
+		statistics.add(" 7 ");
+
+		List<String> row = statistics.toSummaryRow();
+		assertEquals(ColumnStatistics.SUMMARY_HEADERS.size(), row.size());
+		assertEquals("2", row.get(ColumnStatistics.SUMMARY_HEADERS.indexOf("nonNullCount")));
+		assertEquals("1", row.get(ColumnStatistics.SUMMARY_HEADERS.indexOf("nullCount")));
+		assertEquals("1", row.get(ColumnStatistics.SUMMARY_HEADERS.indexOf("malformedCount")));
+		assertEquals("1.4142135623730951", row.get(ColumnStatistics.SUMMARY_HEADERS.indexOf("stdDev")));
+
+		ColumnStatistics single = new ColumnStatistics("VALUE", Integer.class);
+		single.add(Integer.valueOf(5));
+		assertEquals("", single.toSummaryRow().get(ColumnStatistics.SUMMARY_HEADERS.indexOf("stdDev")));
+	}
+
+	@Test
+	public final void testTDigestQuantiles() {
+		TDigest digest = new TDigest();
+		for (int i = 0; i < 100000; i++) {
+			digest.add(i);
+		}
+		assertEquals(1000, digest.quantile(0.01), 100);
+		assertEquals(50000, digest.quantile(0.5), 500);
+		assertEquals(99000, digest.quantile(0.99), 100);
+		assertEquals(0, digest.quantile(0), 0.0);
+		assertEquals(99999, digest.quantile(1), 0.0);
+	}
+}
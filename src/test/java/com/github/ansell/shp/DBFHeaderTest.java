@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link DBFHeader}.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class DBFHeaderTest {
+
+	private static void putField(ByteBuffer buffer, String name, char type, int length, int decimalCount) {
+		int start = buffer.position();
+		buffer.put(name.getBytes(StandardCharsets.US_ASCII));
+		buffer.position(start + 11);
+		buffer.put((byte) type);
+		buffer.position(start + 16);
+		buffer.put((byte) length);
+		buffer.put((byte) decimalCount);
+		buffer.position(start + DBFHeader.DESCRIPTOR_LENGTH);
+	}
+
+	@Test
+	public final void testRead() throws Exception {
+		int headerLength = DBFHeader.DESCRIPTOR_LENGTH * 3 + 1;
+		int recordLength = 1 + 10 + 8;
+		ByteBuffer buffer = ByteBuffer.allocate(headerLength + recordLength).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put((byte) 3);
+		buffer.position(4);
+		buffer.putInt(1);
+		buffer.putShort((short) headerLength);
+		buffer.putShort((short) recordLength);
+		buffer.position(DBFHeader.DESCRIPTOR_LENGTH);
+		putField(buffer, "NAME", 'C', 10, 0);
+		putField(buffer, "CREATED", 'D', 8, 0);
+		buffer.put(DBFHeader.HEADER_TERMINATOR);
+		buffer.put((byte) ' ');
+		buffer.put("Test      20190214".getBytes(StandardCharsets.US_ASCII));
+		buffer.flip();
+
+		DBFHeader header = DBFHeader.read(buffer);
+		assertEquals(3, header.getVersion());
+		assertEquals(1, header.getRecordCount());
+		assertEquals(headerLength, header.getHeaderLength());
+		assertEquals(recordLength, header.getRecordLength());
+		assertEquals(2, header.getFields().size());
+
+		DBFHeader.Field name = header.getFields().get(0);
+		assertEquals("NAME", name.getName());
+		assertEquals('C', name.getType());
+		assertEquals(1, name.getOffset());
+		assertEquals("Test", name.readValue(buffer, headerLength, StandardCharsets.ISO_8859_1));
+
+		DBFHeader.Field created = header.getFields().get(1);
+		assertEquals(11, created.getOffset());
+		Calendar expected = Calendar.getInstance();
+		expected.clear();
+		expected.set(2019, Calendar.FEBRUARY, 14);
+		assertEquals(expected.getTime(), created.readValue(buffer, headerLength, StandardCharsets.ISO_8859_1));
+	}
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link FeatureSummariser}.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class FeatureSummariserTest {
+
+	@Test
+	public final void testWriteSummary() throws Exception {
+		FeatureSummariser summariser = new FeatureSummariser(Arrays.asList("id", "name"), 1, true);
+		summariser.addRow(Arrays.asList("1", "b"));
+		summariser.addRow(Arrays.asList("2", ""));
+		summariser.addRow(Arrays.asList("3", "a"));
+		assertEquals(3, summariser.getRowCount());
+
+		StringWriter output = new StringWriter();
+		summariser.writeSummary(output);
+		String summary = output.toString();
+		assertTrue(summary, summary.startsWith("fieldName,emptyCount,nonEmptyCount,uniqueValueCount"));
+		assertTrue(summary, summary.contains("id,0,3,3,true,true,true,\"1(*1), ...\""));
+		assertTrue(summary, summary.contains("name,1,2,3,false,false,false,\"a(*1), ...\""));
+	}
+
+	@Test
+	public final void testWriteSampledSummary() throws Exception {
+		FeatureSummariser summariser = new FeatureSummariser(Arrays.asList("id", "name"), 1, false);
+		summariser.setSampled(10.0);
+		summariser.addRow(Arrays.asList("1", "b"));
+		summariser.addRow(Arrays.asList("2", ""));
+
+		StringWriter output = new StringWriter();
+		summariser.writeSummary(output);
+		String summary = output.toString();
+		assertTrue(summary, summary.startsWith(
+				"fieldName,emptyCount,nonEmptyCount,estimatedEmptyCount,estimatedNonEmptyCount,uniqueValueCount"));
+		assertTrue(summary, summary.contains("id,0,2,0,20,2,true,true,true,"));
+		assertTrue(summary, summary.contains("name,1,1,10,10,2,false,false,false,b"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public final void testAddRowWrongSize() throws Exception {
+		FeatureSummariser summariser = new FeatureSummariser(Arrays.asList("id", "name"), 1, false);
+		summariser.addRow(Arrays.asList("1"));
+	}
+
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Point;
+
+/**
+ * Tests for {@link FlatGeobufWriter}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class FlatGeobufWriterTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private ListFeatureCollection source;
+
+	@Before
+	public void setUp() throws Exception {
+		TestFeatures features = TestFeatures.create("points", "the_geom", Point.class, "NAME", String.class, "COUNT",
+				Integer.class);
+		for (int i = 0; i < 100; i++) {
+			features.add("point." + i, TestFeatures.point(i % 10, i / 10), "name " + i, i);
+		}
+		source = features.getCollection();
+	}
+
+	@Test
+	public final void testLevelBounds() {
+		long[][] levels = FlatGeobufWriter.getLevelBounds(100, 16);
+		assertEquals(3, levels.length);
+		assertArrayEquals(new long[] { 8, 108 }, levels[0]);
+		assertArrayEquals(new long[] { 1, 8 }, levels[1]);
+		assertArrayEquals(new long[] { 0, 1 }, levels[2]);
+		assertEquals(2 * FlatGeobufWriter.NODE_LENGTH, FlatGeobufWriter.getIndexLength(1, 16));
+		assertEquals(0, FlatGeobufWriter.getIndexLength(100, 0));
+	}
+
+	@Test
+	public final void testWriteIndexed() throws Exception {
+		Path outputPath = tempDir.getRoot().toPath().resolve("points.fgb");
+		assertEquals(100, new FlatGeobufWriter(16).write(source, outputPath));
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(outputPath)).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] magic = new byte[FlatGeobufWriter.MAGIC.length];
+		buffer.get(magic);
+		assertArrayEquals(FlatGeobufWriter.MAGIC, magic);
+		int headerLength = buffer.getInt();
+		buffer.position(buffer.position() + headerLength);
+
+		// The root node covers every feature
+		int indexStart = buffer.position();
+		assertEquals(0.0, buffer.getDouble(indexStart), 0.0);
+		assertEquals(0.0, buffer.getDouble(indexStart + 8), 0.0);
+		assertEquals(9.0, buffer.getDouble(indexStart + 16), 0.0);
+		assertEquals(9.0, buffer.getDouble(indexStart + 24), 0.0);
+
+		// Each leaf points at the start of a different feature
+		int indexLength = (int) FlatGeobufWriter.getIndexLength(100, 16);
+		int featuresStart = indexStart + indexLength;
+		long[] leafOffsets = new long[100];
+		for (int i = 0; i < 100; i++) {
+			leafOffsets[i] = buffer.getLong(featuresStart - (100 - i) * FlatGeobufWriter.NODE_LENGTH + 32);
+		}
+		assertEquals(0, leafOffsets[0]);
+		long nextOffset = 0;
+		for (int i = 0; i < 100; i++) {
+			assertEquals(nextOffset, leafOffsets[i]);
+			nextOffset += 4 + buffer.getInt(featuresStart + (int) nextOffset);
+		}
+		assertEquals(buffer.limit(), featuresStart + nextOffset);
+		assertEquals(100, Arrays.stream(leafOffsets).distinct().count());
+	}
+
+	@Test
+	public final void testWriteUnindexed() throws Exception {
+		Path outputPath = tempDir.getRoot().toPath().resolve("points.fgb");
+		assertEquals(100, new FlatGeobufWriter(0).write(source, outputPath));
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(outputPath)).order(ByteOrder.LITTLE_ENDIAN);
+		int position = FlatGeobufWriter.MAGIC.length;
+		position += 4 + buffer.getInt(position);
+		int featureCount = 0;
+		while (position < buffer.limit()) {
+			position += 4 + buffer.getInt(position);
+			featureCount++;
+		}
+		assertEquals(buffer.limit(), position);
+		assertEquals(100, featureCount);
+	}
+
+	@Test
+	public final void testRoundTrip() throws Exception {
+		Path outputPath = tempDir.getRoot().toPath().resolve("points.fgb");
+		assertEquals(100, new FlatGeobufWriter(16).write(source, outputPath));
+
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(outputPath)).order(ByteOrder.LITTLE_ENDIAN);
+		int headerStart = FlatGeobufWriter.MAGIC.length;
+		Table header = Table.root(buffer, headerStart);
+		assertEquals("points", header.getString(0));
+		assertArrayEquals(new double[] { 0, 0, 9, 9 }, header.getDoubles(1), 0.0);
+		assertEquals(FlatGeobufWriter.GEOMETRY_POINT, header.getByte(2, FlatGeobufWriter.GEOMETRY_UNKNOWN));
+		assertEquals(100, header.getLong(8, 0));
+		assertEquals(16, header.getShort(9, FlatGeobufWriter.DEFAULT_NODE_SIZE));
+		List<Table> columns = header.getTables(7);
+		assertEquals(2, columns.size());
+		assertEquals("NAME", columns.get(0).getString(0));
+		assertEquals(FlatGeobufWriter.COLUMN_STRING, columns.get(0).getByte(1, FlatGeobufWriter.COLUMN_BYTE));
+		assertEquals("COUNT", columns.get(1).getString(0));
+		assertEquals(FlatGeobufWriter.COLUMN_INT, columns.get(1).getByte(1, FlatGeobufWriter.COLUMN_BYTE));
+
+		int position = headerStart + 4 + buffer.getInt(headerStart)
+				+ (int) FlatGeobufWriter.getIndexLength(100, 16);
+		Set<Integer> decoded = new HashSet<>();
+		while (position < buffer.limit()) {
+			Table feature = Table.root(buffer, position);
+			double[] xy = feature.getTable(0).getDoubles(1);
+			assertEquals(2, xy.length);
+			int expected = (int) (xy[1] * 10 + xy[0]);
+
+			ByteBuffer properties = ByteBuffer.wrap(feature.getBytes(1)).order(ByteOrder.LITTLE_ENDIAN);
+			assertEquals(0, properties.getShort());
+			byte[] name = new byte[properties.getInt()];
+			properties.get(name);
+			assertEquals("name " + expected, new String(name, StandardCharsets.UTF_8));
+			assertEquals(1, properties.getShort());
+			assertEquals(expected, properties.getInt());
+			assertFalse(properties.hasRemaining());
+
+			assertTrue("Feature was decoded twice: " + expected, decoded.add(expected));
+			position += 4 + buffer.getInt(position);
+		}
+		assertEquals(buffer.limit(), position);
+		assertEquals(100, decoded.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public final void testInvalidNodeSize() {
+		new FlatGeobufWriter(1);
+	}
+
+	/**
+	 * Reads the fields of a FlatBuffers table, to check the values that were
+	 * encoded.
+	 */
+	private static final class Table {
+
+		private final ByteBuffer buffer;
+		private final int position;
+
+		private Table(ByteBuffer buffer, int position) {
+			this.buffer = buffer;
+			this.position = position;
+		}
+
+		/**
+		 * Read the root table of a size prefixed buffer starting at the given
+		 * position.
+		 */
+		static Table root(ByteBuffer buffer, int start) {
+			int rootOffset = start + 4;
+			return new Table(buffer, rootOffset + buffer.getInt(rootOffset));
+		}
+
+		/**
+		 * @return The position of the field, or 0 if it was not written.
+		 */
+		private int field(int id) {
+			int vtable = position - buffer.getInt(position);
+			int entry = 4 + id * 2;
+			if (entry >= (buffer.getShort(vtable) & 0xFFFF)) {
+				return 0;
+			}
+			int offset = buffer.getShort(vtable + entry) & 0xFFFF;
+			return offset == 0 ? 0 : position + offset;
+		}
+
+		private int target(int id) {
+			int field = field(id);
+			assertNotEquals("Field was not written: " + id, 0, field);
+			return field + buffer.getInt(field);
+		}
+
+		int getByte(int id, int defaultValue) {
+			int field = field(id);
+			return field == 0 ? defaultValue : buffer.get(field);
+		}
+
+		int getShort(int id, int defaultValue) {
+			int field = field(id);
+			return field == 0 ? defaultValue : buffer.getShort(field) & 0xFFFF;
+		}
+
+		long getLong(int id, long defaultValue) {
+			int field = field(id);
+			return field == 0 ? defaultValue : buffer.getLong(field);
+		}
+
+		byte[] getBytes(int id) {
+			int vector = target(id);
+			byte[] result = new byte[buffer.getInt(vector)];
+			ByteBuffer contents = buffer.duplicate();
+			contents.position(vector + 4);
+			contents.get(result);
+			return result;
+		}
+
+		String getString(int id) {
+			return new String(getBytes(id), StandardCharsets.UTF_8);
+		}
+
+		double[] getDoubles(int id) {
+			int vector = target(id);
+			double[] result = new double[buffer.getInt(vector)];
+			for (int i = 0; i < result.length; i++) {
+				result[i] = buffer.getDouble(vector + 4 + i * 8);
+			}
+			return result;
+		}
+
+		Table getTable(int id) {
+			int table = target(id);
+			return new Table(buffer, table);
+		}
+
+		List<Table> getTables(int id) {
+			int vector = target(id);
+			List<Table> result = new ArrayList<>();
+			for (int i = 0; i < buffer.getInt(vector); i++) {
+				int element = vector + 4 + i * 4;
+				result.add(new Table(buffer, element + buffer.getInt(element)));
+			}
+			return result;
+		}
+	}
+}
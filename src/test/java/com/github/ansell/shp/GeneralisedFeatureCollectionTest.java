@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Tests for {@link GeneralisedFeatureCollection}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class GeneralisedFeatureCollectionTest {
+
+	private ListFeatureCollection source;
+
+	@Before
+	public void setUp() throws Exception {
+		TestFeatures features = TestFeatures.create("generalise", "the_geom", Geometry.class, "NAME", String.class);
+
+		// A line with many vertices within each pixel
+		Coordinate[] wiggle = new Coordinate[10001];
+		for (int i = 0; i < wiggle.length; i++) {
+			wiggle[i] = new Coordinate(i / 100.0, 50 + Math.sin(i) * 0.01);
+		}
+		features.add("wiggle", TestFeatures.getGeometryFactory().createLineString(wiggle), "wiggle");
+
+		// Many points within the same pixel
+		for (int i = 0; i < 100; i++) {
+			features.add("point." + i, TestFeatures.point(10.5 + i / 1000.0, 10.5), "point " + i);
+		}
+		features.add("other", TestFeatures.point(90.5, 90.5), "other");
+		features.add("null", null, "null");
+		source = features.getCollection();
+	}
+
+	@Test
+	public final void testGeneralise() throws Exception {
+		// A 100 pixel image of a 100 unit square gives a pixel size of 1
+		GeneralisedFeatureCollection generalised = new GeneralisedFeatureCollection(source,
+				new ReferencedEnvelope(0, 100, 0, 100, null), 100, 2);
+		assertEquals(1.0, generalised.getPixelSize(), 0.0);
+
+		List<SimpleFeature> features = new ArrayList<>();
+		try (SimpleFeatureIterator iterator = generalised.features();) {
+			while (iterator.hasNext()) {
+				features.add(iterator.next());
+			}
+		}
+		assertEquals(4, features.size());
+		assertEquals("wiggle", features.get(0).getID());
+		assertEquals("wiggle", features.get(0).getAttribute("NAME"));
+		Geometry line = (Geometry) features.get(0).getDefaultGeometry();
+		assertTrue(line.getNumPoints() < 10);
+		assertEquals(0.0, line.getEnvelopeInternal().getMinX(), 0.0);
+		assertEquals(100.0, line.getEnvelopeInternal().getMaxX(), 0.0);
+		assertEquals("point.0", features.get(1).getID());
+		assertEquals("other", features.get(2).getID());
+		assertEquals("null", features.get(3).getID());
+
+		assertEquals(99, generalised.getCulledFeatures());
+		assertEquals(10001 + 101, generalised.getInputVertices());
+		assertTrue(generalised.getOutputVertices() < 200);
+	}
+
+	@Test
+	public final void testLargeImageKeepsDetail() throws Exception {
+		GeneralisedFeatureCollection generalised = new GeneralisedFeatureCollection(source,
+				new ReferencedEnvelope(0, 100, 0, 100, null), 1000000, 1);
+		int count = 0;
+		try (SimpleFeatureIterator iterator = generalised.features();) {
+			while (iterator.hasNext()) {
+				iterator.next();
+				count++;
+			}
+		}
+		assertEquals(103, count);
+		assertEquals(0, generalised.getCulledFeatures());
+	}
+
+	@Test
+	public final void testCachedFeatures() throws Exception {
+		try (GeneralisedFeatureCollection generalised = new GeneralisedFeatureCollection(source,
+				new ReferencedEnvelope(0, 100, 0, 100, null), 100, 2, true);) {
+			List<SimpleFeature> first = readAll(generalised);
+			assertEquals(4, generalised.size());
+			List<SimpleFeature> second = readAll(generalised);
+			assertEquals(first, second);
+			assertSame(first.get(0), second.get(0));
+			// The source was only generalised once
+			assertEquals(10001 + 101, generalised.getInputVertices());
+			assertEquals(99, generalised.getCulledFeatures());
+		}
+	}
+
+	@Test
+	public final void testUncachedFeatures() throws Exception {
+		try (GeneralisedFeatureCollection generalised = new GeneralisedFeatureCollection(source,
+				new ReferencedEnvelope(0, 100, 0, 100, null), 100, 2);) {
+			assertEquals(4, readAll(generalised).size());
+			assertEquals(4, readAll(generalised).size());
+			assertEquals(source.size(), generalised.size());
+			assertEquals(2 * (10001 + 101), generalised.getInputVertices());
+			assertEquals(2 * 99, generalised.getCulledFeatures());
+		}
+	}
+
+	private static List<SimpleFeature> readAll(GeneralisedFeatureCollection generalised) {
+		List<SimpleFeature> result = new ArrayList<>();
+		try (SimpleFeatureIterator iterator = generalised.features();) {
+			while (iterator.hasNext()) {
+				result.add(iterator.next());
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+
+/**
+ * Tests for {@link GeometryValidator}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class GeometryValidatorTest {
+
+	private ListFeatureCollection source;
+
+	@Before
+	public void setUp() throws Exception {
+		source = TestFeatures.create("validate", "the_geom", Geometry.class)
+				.add("valid", TestFeatures.wkt("POLYGON ((0 0, 10 0, 10 10, 0 10, 0 0))"))
+				.add("bowtie", TestFeatures.wkt("POLYGON ((0 0, 10 10, 10 0, 0 10, 0 0))"))
+				.add("empty", TestFeatures.wkt("POLYGON EMPTY")).add("null", new Object[] { null })
+				.add("line", TestFeatures.wkt("LINESTRING (0 0, 3 4)")).getCollection();
+	}
+
+	@Test
+	public final void testValidate() throws Exception {
+		StringWriter problems = new StringWriter();
+		GeometryValidator validator = new GeometryValidator(2, 1000, null);
+		try (SimpleFeatureIterator iterator = source.features();) {
+			validator.validate(iterator, problems);
+		}
+		assertEquals(5, validator.getFeatureCount());
+		assertEquals(3, validator.getInvalidFeatureCount());
+		assertEquals(Long.valueOf(1), validator.getProblemCounts().get(GeometryValidator.EMPTY_GEOMETRY));
+		assertEquals(Long.valueOf(1), validator.getProblemCounts().get(GeometryValidator.NULL_GEOMETRY));
+		assertTrue(problems.toString().contains("bowtie"));
+		assertFalse(problems.toString().contains("valid,"));
+
+		StringWriter statistics = new StringWriter();
+		validator.writeStatistics(statistics);
+		assertTrue(statistics.toString().contains("length,p0,5.0"));
+		assertTrue(statistics.toString().contains("vertexCount,4-7,2"));
+	}
+
+	@Test
+	public final void testExtremeVertexCount() throws Exception {
+		GeometryValidator validator = new GeometryValidator(1, 4, null);
+		try (SimpleFeatureIterator iterator = source.features();) {
+			validator.validate(iterator, new StringWriter());
+		}
+		assertEquals(Long.valueOf(2), validator.getProblemCounts().get(GeometryValidator.EXTREME_VERTEX_COUNT));
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Envelope;
+
+/**
+ * Tests for {@link PMTilesWriter}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class PMTilesWriterTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test
+	public final void testTileId() throws Exception {
+		assertEquals(0, PMTilesWriter.getTileId(0, 0, 0));
+		assertEquals(1, PMTilesWriter.getTileId(1, 0, 0));
+		assertEquals(2, PMTilesWriter.getTileId(1, 0, 1));
+		assertEquals(3, PMTilesWriter.getTileId(1, 1, 1));
+		assertEquals(4, PMTilesWriter.getTileId(1, 1, 0));
+		assertEquals(5, PMTilesWriter.getTileId(2, 0, 0));
+		assertEquals(19078479, PMTilesWriter.getTileId(12, 3423, 1763));
+	}
+
+	@Test
+	public final void testTileIdOutsideZoom() throws Exception {
+		try {
+			PMTilesWriter.getTileId(1, 2, 0);
+			fail("Did not find expected exception");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("zoom level 1"));
+		}
+	}
+
+	@Test
+	public final void testWrite() throws Exception {
+		Path outputPath = tempDir.getRoot().toPath().resolve("test.pmtiles");
+		byte[] first = "first".getBytes(StandardCharsets.US_ASCII);
+		byte[] second = "second".getBytes(StandardCharsets.US_ASCII);
+		try (PMTilesWriter writer = new PMTilesWriter(outputPath, "test", 0, 1, new Envelope(150, 152, -35, -33));) {
+			writer.writeTile(1, 1, 0, first);
+			writer.writeTile(0, 0, 0, first);
+			writer.writeTile(1, 1, 1, second);
+			assertEquals(3, writer.getTileCount());
+			assertEquals(2, writer.getContentCount());
+		}
+		// The temporary file is removed after the archive is written
+		assertEquals(1, tempDir.getRoot().list().length);
+
+		byte[] archive = Files.readAllBytes(outputPath);
+		ByteBuffer header = ByteBuffer.wrap(archive).order(ByteOrder.LITTLE_ENDIAN);
+		assertArrayEquals(PMTilesWriter.MAGIC, Arrays.copyOf(archive, 7));
+		assertEquals(PMTilesWriter.VERSION, archive[7]);
+		assertEquals(PMTilesWriter.HEADER_LENGTH, header.getLong(8));
+		// Addressed tiles, tile entries and tile contents
+		assertEquals(3, header.getLong(72));
+		assertEquals(3, header.getLong(80));
+		assertEquals(2, header.getLong(88));
+		assertEquals(PMTilesWriter.TILE_TYPE_PNG, archive[99]);
+		assertEquals(0, archive[100]);
+		assertEquals(1, archive[101]);
+		assertEquals(1500000000, header.getInt(102));
+
+		// The contents are stored once each, in the order of the first tile ID
+		// that uses them
+		long dataOffset = header.getLong(56);
+		assertEquals(first.length + second.length, header.getLong(64));
+		assertEquals("firstsecond", new String(archive, (int) dataOffset, first.length + second.length,
+				StandardCharsets.US_ASCII));
+
+		String metadata = new String(archive, (int) header.getLong(24), (int) header.getLong(32),
+				StandardCharsets.UTF_8);
+		assertTrue(metadata.contains("\"name\":\"test\""));
+	}
+
+	@Test
+	public final void testAbort() throws Exception {
+		Path outputPath = tempDir.getRoot().toPath().resolve("test.pmtiles");
+		try (PMTilesWriter writer = new PMTilesWriter(outputPath, "test", 0, 1, new Envelope(150, 152, -35, -33));) {
+			writer.writeTile(0, 0, 0, "first".getBytes(StandardCharsets.US_ASCII));
+			writer.abort();
+		}
+		// Neither the archive nor the temporary file are left behind
+		assertEquals(0, tempDir.getRoot().list().length);
+	}
+
+	@Test
+	public final void testSerializeEntries() throws Exception {
+		PMTilesWriter.Entry first = new PMTilesWriter.Entry(0, 0, 10);
+		PMTilesWriter.Entry second = new PMTilesWriter.Entry(5, 10, 3);
+		PMTilesWriter.Entry third = new PMTilesWriter.Entry(6, 0, 10);
+		// Count, tile ID deltas, run lengths, lengths, then offsets with zero
+		// for contiguous data and one more than the offset otherwise
+		assertArrayEquals(new byte[] { 3, 0, 5, 1, 1, 1, 1, 10, 3, 10, 1, 0, 1 },
+				PMTilesWriter.serializeEntries(Arrays.asList(first, second, third)));
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.geotools.data.FileDataStore;
+import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Tests for {@link ParallelSHPFeatureCollection}, comparing the features with
+ * the features read by the shapefile data store from the same file.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ParallelSHPFeatureCollectionTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private TimeZone defaultTimeZone;
+
+	private Path shpPath;
+
+	private SimpleFeatureType schema;
+
+	private List<SimpleFeature> expected;
+
+	@Before
+	public void setUp() throws Exception {
+		// Dates must be read in the same time zone as the data store, which is
+		// not UTC here
+		defaultTimeZone = TimeZone.getDefault();
+		TimeZone.setDefault(TimeZone.getTimeZone("Australia/Brisbane"));
+
+		TestFeatures features = TestFeatures.create("parallel", "the_geom", Point.class, "NAME", String.class,
+				"COUNT", Integer.class, "AREA", Double.class, "CREATED", Date.class);
+		for (int i = 0; i < 25; i++) {
+			features.add(null, TestFeatures.point(i, -i), "name " + i, i * 7, i * 1.25,
+					new Date(1500000000000L + 86400000L * i));
+		}
+		shpPath = features.writeShapefile(tempDir.newFolder("input").toPath());
+
+		FileDataStore store = FileDataStoreFinder.getDataStore(shpPath.toFile());
+		try {
+			SimpleFeatureCollection storeFeatures = store.getFeatureSource().getFeatures();
+			schema = storeFeatures.getSchema();
+			expected = readAll(storeFeatures);
+		} finally {
+			store.dispose();
+		}
+		assertEquals(25, expected.size());
+	}
+
+	@After
+	public void tearDown() {
+		TimeZone.setDefault(defaultTimeZone);
+	}
+
+	private static List<SimpleFeature> readAll(SimpleFeatureCollection collection) {
+		List<SimpleFeature> result = new ArrayList<>();
+		try (SimpleFeatureIterator iterator = collection.features();) {
+			while (iterator.hasNext()) {
+				result.add(iterator.next());
+			}
+		}
+		return result;
+	}
+
+	private static void assertSameFeature(SimpleFeature expected, SimpleFeature actual) {
+		assertEquals(expected.getID(), actual.getID());
+		assertEquals(expected.getAttributeCount(), actual.getAttributeCount());
+		for (int i = 0; i < expected.getAttributeCount(); i++) {
+			Object expectedValue = expected.getAttribute(i);
+			Object actualValue = actual.getAttribute(i);
+			if (expectedValue instanceof Geometry) {
+				assertTrue(actual.getID() + " " + actualValue,
+						((Geometry) expectedValue).equalsExact((Geometry) actualValue));
+			} else {
+				assertEquals(actual.getID() + " attribute " + i, expectedValue, actualValue);
+			}
+		}
+	}
+
+	@Test
+	public final void testMatchesShapefileDataStore() throws Exception {
+		// A small chunk size so the records are split over several workers
+		ParallelSHPFeatureCollection collection = new ParallelSHPFeatureCollection(shpPath, schema, 3, 4);
+		assertEquals(25, collection.size());
+		List<SimpleFeature> actual = readAll(collection);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSameFeature(expected.get(i), actual.get(i));
+		}
+	}
+
+	@Test
+	public final void testSelectedRecords() throws Exception {
+		int[] records = { 0, 3, 4, 11, 17, 24 };
+		for (int chunkSize : new int[] { 2, ParallelSHPFeatureCollection.SELECTED_CHUNK_SIZE }) {
+			ParallelSHPFeatureCollection collection = new ParallelSHPFeatureCollection(shpPath, schema, 3, chunkSize,
+					records);
+			List<SimpleFeature> actual = readAll(collection);
+			assertEquals(records.length, actual.size());
+			for (int i = 0; i < records.length; i++) {
+				assertSameFeature(expected.get(records[i]), actual.get(i));
+			}
+		}
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Tests for {@link ParallelWKTFeatureCollection}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ParallelWKTFeatureCollectionTest {
+
+	private static final int ROWS = 25;
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private Path csvPath;
+
+	private SimpleFeatureType schema;
+
+	@Before
+	public void setUp() throws Exception {
+		csvPath = tempDir.newFolder("csv").toPath().resolve("rows.csv");
+		List<String> lines = new ArrayList<>();
+		lines.add("NAME,the_geom");
+		for (int i = 1; i <= ROWS; i++) {
+			lines.add("row" + i + ",POINT (" + i + " " + (i * 2) + ")");
+		}
+		Files.write(csvPath, lines, StandardCharsets.UTF_8);
+		schema = TestFeatures.create("rows", "the_geom", Point.class, "NAME", String.class).getSchema();
+	}
+
+	@Test
+	public final void testRowOrder() throws Exception {
+		// Small batches so the rows are spread over all of the workers
+		ParallelWKTFeatureCollection collection = new ParallelWKTFeatureCollection(csvPath, schema, "the_geom", 3,
+				4);
+		assertRows(collection);
+		assertEquals(ROWS, collection.getLastRowCount());
+		assertEquals(ROWS, collection.size());
+		assertEquals(1.0, collection.getBounds().getMinX(), 0.0);
+		assertEquals(50.0, collection.getBounds().getMaxY(), 0.0);
+	}
+
+	@Test
+	public final void testNotCached() throws Exception {
+		ParallelWKTFeatureCollection collection = new ParallelWKTFeatureCollection(csvPath, schema, "the_geom", 3,
+				4);
+		assertRows(collection);
+		Files.delete(csvPath);
+		try {
+			assertRows(collection);
+			fail("Did not find expected exception");
+		} catch (RuntimeException e) {
+			// Expected, as each iteration parses the file again
+		}
+	}
+
+	@Test
+	public final void testCached() throws Exception {
+		ParallelWKTFeatureCollection collection = new ParallelWKTFeatureCollection(csvPath, schema, "the_geom", 3,
+				4, true);
+		// An iteration that stops early does not fill the cache
+		try (SimpleFeatureIterator iterator = collection.features();) {
+			assertTrue(iterator.hasNext());
+			assertEquals("rows-1", iterator.next().getID());
+		}
+		assertRows(collection);
+		// Later iterations do not read the file again
+		Files.delete(csvPath);
+		assertRows(collection);
+		assertEquals(ROWS, collection.size());
+	}
+
+	private void assertRows(ParallelWKTFeatureCollection collection) {
+		int count = 0;
+		try (SimpleFeatureIterator iterator = collection.features();) {
+			while (iterator.hasNext()) {
+				SimpleFeature feature = iterator.next();
+				count++;
+				assertEquals("rows-" + count, feature.getID());
+				assertEquals("row" + count, feature.getAttribute("NAME"));
+				Point point = (Point) feature.getDefaultGeometry();
+				assertEquals(count, point.getX(), 0.0);
+				assertEquals(count * 2, point.getY(), 0.0);
+			}
+		}
+		assertEquals(ROWS, count);
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ParallelZipOutputStream}.
+ * 
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ParallelZipOutputStreamTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	@Test
+	public final void testRoundTrip() throws Exception {
+		Random random = new Random(42);
+		byte[] content = new byte[1_000_000];
+		for (int i = 0; i < content.length; i++) {
+			content[i] = (byte) ('a' + random.nextInt(8));
+		}
+
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ParallelZipOutputStream(archive, 4, 64 * 1024,
+				Deflater.DEFAULT_COMPRESSION);) {
+			zip.putNextEntry(new ZipEntry("test.shp"));
+			zip.write(content);
+			zip.closeEntry();
+			zip.putNextEntry(new ZipEntry("empty.cpg"));
+			zip.closeEntry();
+		}
+
+		try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(archive.toByteArray()));) {
+			ZipEntry first = zip.getNextEntry();
+			assertEquals("test.shp", first.getName());
+			assertArrayEquals(content, IOUtils.toByteArray(zip));
+			ZipEntry second = zip.getNextEntry();
+			assertEquals("empty.cpg", second.getName());
+			assertEquals(0, IOUtils.toByteArray(zip).length);
+			assertNull(zip.getNextEntry());
+		}
+	}
+
+	@Test
+	public final void testZip64LocalHeader() throws Exception {
+		byte[] content = "large".getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ParallelZipOutputStream(archive, 2);) {
+			// Declaring a size of 4GB or more adds a Zip64 extra field
+			ZipEntry large = new ZipEntry("large.dbf");
+			large.setSize(0x100000000L);
+			zip.putNextEntry(large);
+			zip.write(content);
+			zip.closeEntry();
+		}
+		ByteBuffer header = ByteBuffer.wrap(archive.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		int nameLength = header.getShort(26);
+		assertEquals(0xFFFFFFFF, header.getInt(18));
+		assertEquals(0xFFFFFFFF, header.getInt(22));
+		assertEquals(20, header.getShort(28));
+		assertEquals(0x0001, header.getShort(30 + nameLength));
+		assertEquals(16, header.getShort(32 + nameLength));
+
+		// The central directory has the real sizes
+		Path zipPath = tempDir.newFile("large.zip").toPath();
+		Files.write(zipPath, archive.toByteArray());
+		try (ZipFile zip = new ZipFile(zipPath.toFile());) {
+			ZipEntry entry = zip.getEntry("large.dbf");
+			assertEquals(content.length, entry.getSize());
+			try (InputStream input = zip.getInputStream(entry);) {
+				assertArrayEquals(content, IOUtils.toByteArray(input));
+			}
+		}
+	}
+
+	@Test
+	public final void testNoZip64LocalHeader() throws Exception {
+		ByteArrayOutputStream archive = new ByteArrayOutputStream();
+		try (ZipOutputStream zip = new ParallelZipOutputStream(archive, 2);) {
+			zip.putNextEntry(new ZipEntry("small.dbf"));
+			zip.write(new byte[] { 1, 2, 3 });
+			zip.closeEntry();
+		}
+		ByteBuffer header = ByteBuffer.wrap(archive.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0, header.getInt(18));
+		assertEquals(0, header.getInt(22));
+		assertEquals(0, header.getShort(28));
+	}
+
+	@Test
+	public final void testStreamedZip64Entry() throws Exception {
+		// Zeros compress well, so only the uncompressed size is larger than 4GB
+		byte[] block = new byte[ParallelZipOutputStream.DEFAULT_BLOCK_SIZE];
+		long blocks = 0x100000000L / block.length + 1;
+		Path zipPath = tempDir.newFile("streamed.zip").toPath();
+		try (ZipOutputStream zip = new ParallelZipOutputStream(Files.newOutputStream(zipPath), 4);) {
+			// The size is not set, so there is no Zip64 extra field in the local
+			// header
+			zip.putNextEntry(new ZipEntry("streamed.dbf"));
+			for (long i = 0; i < blocks; i++) {
+				zip.write(block);
+			}
+			zip.closeEntry();
+			zip.putNextEntry(new ZipEntry("after.cpg"));
+			zip.write("UTF-8".getBytes(StandardCharsets.UTF_8));
+			zip.closeEntry();
+		}
+
+		try (ZipFile zip = new ZipFile(zipPath.toFile());) {
+			assertEquals(blocks * block.length, zip.getEntry("streamed.dbf").getSize());
+			try (InputStream input = zip.getInputStream(zip.getEntry("after.cpg"));) {
+				assertEquals("UTF-8", IOUtils.toString(input, StandardCharsets.UTF_8));
+			}
+		}
+
+		// Reading the archive in order needs the 8 byte sizes in the data
+		// descriptor to find the next entry
+		try (ZipInputStream zip = new ZipInputStream(Files.newInputStream(zipPath));) {
+			assertEquals("streamed.dbf", zip.getNextEntry().getName());
+			assertEquals(blocks * block.length, IOUtils.skip(zip, Long.MAX_VALUE));
+			ZipEntry after = zip.getNextEntry();
+			assertEquals("after.cpg", after.getName());
+			assertEquals("UTF-8", IOUtils.toString(zip, StandardCharsets.UTF_8));
+			assertNull(zip.getNextEntry());
+		}
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.github.ansell.shp.RecordSampler.Method;
+
+/**
+ * Tests for {@link RecordSampler}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class RecordSamplerTest {
+
+	@Test
+	public final void testRandom() throws Exception {
+		int[] sample = RecordSampler.sample(1000000, 1000, Method.RANDOM, 42);
+		assertEquals(1000, sample.length);
+		assertTrue(sample[0] >= 0);
+		assertTrue(sample[sample.length - 1] < 1000000);
+		for (int i = 1; i < sample.length; i++) {
+			assertTrue("Records must be distinct and ascending", sample[i] > sample[i - 1]);
+		}
+		// Roughly half of a uniform sample is in each half of the file
+		long firstHalf = Arrays.stream(sample).filter(r -> r < 500000).count();
+		assertTrue(Long.toString(firstHalf), firstHalf > 400 && firstHalf < 600);
+
+		assertArrayEquals(sample, RecordSampler.sample(1000000, 1000, Method.RANDOM, 42));
+		assertFalse(Arrays.equals(sample, RecordSampler.sample(1000000, 1000, Method.RANDOM, 43)));
+	}
+
+	@Test
+	public final void testStratified() throws Exception {
+		int[] sample = RecordSampler.sample(1005, 10, Method.STRATIFIED, 1);
+		assertEquals(10, sample.length);
+		for (int i = 0; i < sample.length; i++) {
+			// One record from each range of about 100 records
+			assertTrue(Arrays.toString(sample), sample[i] >= 1005 * i / 10 && sample[i] < 1005 * (i + 1) / 10);
+		}
+	}
+
+	@Test
+	public final void testSampleAll() throws Exception {
+		assertArrayEquals(new int[] { 0, 1, 2 }, RecordSampler.sample(3, 3, Method.RANDOM, 0));
+		assertArrayEquals(new int[] { 0, 1, 2 }, RecordSampler.sample(3, 10, Method.STRATIFIED, 0));
+		assertEquals(0, RecordSampler.sample(0, 10, Method.RANDOM, 0).length);
+	}
+
+	@Test
+	public final void testMethodFromString() throws Exception {
+		assertEquals(Method.STRATIFIED, RecordSampler.Method.fromString(" Stratified"));
+		try {
+			RecordSampler.Method.fromString("systematic");
+			fail("Did not find expected exception");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("systematic"));
+		}
+	}
+}
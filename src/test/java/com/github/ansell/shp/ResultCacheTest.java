@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests for {@link ResultCache}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ResultCacheTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private Path inputPath;
+
+	private Path cacheDir;
+
+	@Before
+	public void setUp() throws Exception {
+		Path inputDir = tempDir.newFolder("input").toPath();
+		inputPath = inputDir.resolve("test.shp");
+		Files.write(inputPath, "shp".getBytes(StandardCharsets.UTF_8));
+		Files.write(inputDir.resolve("test.dbf"), "dbf".getBytes(StandardCharsets.UTF_8));
+		cacheDir = tempDir.getRoot().toPath().resolve("cache");
+	}
+
+	@Test
+	public final void testComputeKey() throws Exception {
+		SortedMap<String, String> options = new TreeMap<>();
+		options.put("resolution", "[2048]");
+		String key = ResultCache.computeKey(inputPath, options);
+		assertEquals(key, ResultCache.computeKey(inputPath, options));
+
+		options.put("resolution", "[1024]");
+		assertNotEquals(key, ResultCache.computeKey(inputPath, options));
+
+		options.put("resolution", "[2048]");
+		Files.write(SHPUtils.getSiblingFile(inputPath, "dbf"), "changed".getBytes(StandardCharsets.UTF_8));
+		assertNotEquals(key, ResultCache.computeKey(inputPath, options));
+	}
+
+	@Test
+	public final void testStoreAndRestore() throws Exception {
+		ResultCache cache = new ResultCache(cacheDir, Long.MAX_VALUE);
+		Path firstOutput = tempDir.newFolder("first").toPath();
+		assertFalse(cache.restore("abc", inputPath, firstOutput, "first"));
+
+		Files.write(firstOutput.resolve("first.csv"), "a,b".getBytes(StandardCharsets.UTF_8));
+		Path dumpDir = Files.createDirectory(firstOutput.resolve("first-test-dump"));
+		Files.write(dumpDir.resolve("test.shp"), "shp".getBytes(StandardCharsets.UTF_8));
+		cache.store("abc", firstOutput, "first",
+				Arrays.asList(firstOutput.resolve("first.csv"), firstOutput.resolve("first-test-dump")));
+
+		Path secondOutput = tempDir.newFolder("second").toPath();
+		assertTrue(cache.restore("abc", inputPath, secondOutput, "second"));
+		assertEquals("a,b", new String(Files.readAllBytes(secondOutput.resolve("second.csv")), StandardCharsets.UTF_8));
+		assertTrue(Files.exists(secondOutput.resolve("second-test-dump").resolve("test.shp")));
+		assertArrayEquals(new long[] { 1, 1, 0 }, cache.getLogCounts());
+		// The temporary entries and snapshots used for copying are removed
+		try (Stream<Path> cacheFiles = Files.list(cacheDir);) {
+			assertFalse(cacheFiles.anyMatch(p -> p.getFileName().toString().contains(".tmp-")));
+		}
+	}
+
+	@Test
+	public final void testEviction() throws Exception {
+		ResultCache cache = new ResultCache(cacheDir, 4);
+		Path output = tempDir.newFolder("output").toPath();
+		Files.write(output.resolve("old.csv"), "old".getBytes(StandardCharsets.UTF_8));
+		cache.store("old", output, "old", Arrays.asList(output.resolve("old.csv")));
+		Files.setLastModifiedTime(cacheDir.resolve("old"), FileTime.fromMillis(0));
+		Files.write(output.resolve("new.csv"), "new".getBytes(StandardCharsets.UTF_8));
+		cache.store("new", output, "new", Arrays.asList(output.resolve("new.csv")));
+
+		assertFalse(Files.exists(cacheDir.resolve("old")));
+		assertTrue(Files.exists(cacheDir.resolve("new")));
+		assertEquals(3, cache.getSize());
+		assertEquals(1, cache.getLogCounts()[2]);
+	}
+
+	@Test
+	public final void testRestoredOutputsAreCopies() throws Exception {
+		ResultCache cache = new ResultCache(cacheDir, Long.MAX_VALUE);
+		Path firstOutput = tempDir.newFolder("first").toPath();
+		Files.write(firstOutput.resolve("first.csv"), "a,b".getBytes(StandardCharsets.UTF_8));
+		cache.store("abc", firstOutput, "first", Arrays.asList(firstOutput.resolve("first.csv")));
+		// Changing the original output does not change the cache
+		Files.write(firstOutput.resolve("first.csv"), "changed".getBytes(StandardCharsets.UTF_8));
+
+		Path secondOutput = tempDir.newFolder("second").toPath();
+		assertTrue(cache.restore("abc", inputPath, secondOutput, "second"));
+		Files.write(secondOutput.resolve("second.csv"), "changed".getBytes(StandardCharsets.UTF_8));
+
+		Path thirdOutput = tempDir.newFolder("third").toPath();
+		assertTrue(cache.restore("abc", inputPath, thirdOutput, "third"));
+		assertEquals("a,b", new String(Files.readAllBytes(thirdOutput.resolve("third.csv")), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public final void testLogCounts() throws Exception {
+		// Counts from a log written before the counts were recorded separately
+		Files.createDirectories(cacheDir);
+		Files.write(cacheDir.resolve(ResultCache.LOG_FILE),
+				Arrays.asList("time,key,input,result,bytes", "1,abc,,miss,0", "2,abc,,hit,3"),
+				StandardCharsets.UTF_8);
+		ResultCache cache = new ResultCache(cacheDir, Long.MAX_VALUE);
+		assertArrayEquals(new long[] { 1, 1, 0 }, cache.getLogCounts());
+
+		Path output = tempDir.newFolder("output").toPath();
+		assertFalse(cache.restore("def", inputPath, output, "output"));
+		assertArrayEquals(new long[] { 1, 2, 0 }, cache.getLogCounts());
+
+		// The counts do not depend on the log, which may have been rotated
+		Files.delete(cacheDir.resolve(ResultCache.LOG_FILE));
+		assertArrayEquals(new long[] { 1, 2, 0 }, cache.getLogCounts());
+	}
+
+	@Test
+	public final void testSharedCacheDirectory() throws Exception {
+		ResultCache first = new ResultCache(cacheDir, Long.MAX_VALUE);
+		ResultCache second = new ResultCache(cacheDir, Long.MAX_VALUE);
+		Path output = tempDir.newFolder("output").toPath();
+		List<Path> outputs = new ArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			outputs.add(Files.write(output.resolve("job" + i + ".csv"), ("job" + i).getBytes(StandardCharsets.UTF_8)));
+		}
+		// Two caches on the same directory in the same JVM must not fail to
+		// lock it
+		IntStream.range(0, outputs.size()).parallel().forEach(i -> {
+			try {
+				(i % 2 == 0 ? first : second).store("key" + i, output, "job" + i,
+						Arrays.asList(outputs.get(i)));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		assertEquals(outputs.size() * 4, first.getSize());
+		assertArrayEquals(new long[] { 0, 0, 0 }, second.getLogCounts());
+	}
+}
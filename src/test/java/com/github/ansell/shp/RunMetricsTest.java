@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link RunMetrics}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class RunMetricsTest {
+
+	@Test
+	public final void testReport() throws Exception {
+		RunMetrics metrics = new RunMetrics("test");
+		metrics.setProperty("input", "test.shp");
+		try (RunMetrics.Phase phase = metrics.startPhase("block");) {
+			phase.addRecords(10);
+			phase.addBytesRead(100);
+			phase.addBytesWritten(200);
+		}
+		RunMetrics.Phase interleaved = metrics.phase("interleaved");
+		interleaved.addNanos(2000000000L);
+		interleaved.addRecords(4);
+
+		assertEquals(10, metrics.phase("block").getRecords());
+		assertTrue(metrics.phase("block").isBlock());
+		assertFalse(interleaved.isBlock());
+		assertEquals(2000, interleaved.getWallTimeMillis());
+		assertEquals(2.0, interleaved.getRecordsPerSecond(), 0.0001);
+
+		StringWriter output = new StringWriter();
+		metrics.writeReport(output);
+		String report = output.toString();
+		assertTrue(report, report.contains("\"program\" : \"test\""));
+		assertTrue(report, report.contains("\"input\" : \"test.shp\""));
+		assertTrue(report, report.contains("\"name\" : \"block\""));
+		assertTrue(report, report.contains("\"bytesWritten\" : 200"));
+		// Peak heap is only recorded for block phases
+		assertEquals(3, report.split("\"peakHeapBytes\"").length);
+	}
+
+	@Test
+	public final void testSharedProcess() throws Exception {
+		RunMetrics first = new RunMetrics("first");
+		RunMetrics second = new RunMetrics("second");
+		try (RunMetrics.Phase alone = first.startPhase("alone");) {
+		}
+		try (RunMetrics.Phase firstPhase = first.startPhase("overlapping");) {
+			try (RunMetrics.Phase secondPhase = second.startPhase("overlapping");) {
+				assertTrue(firstPhase.isSharedProcess());
+				assertTrue(secondPhase.isSharedProcess());
+			}
+		}
+		assertFalse(first.phase("alone").isSharedProcess());
+		// Later phases do not share the process once the other run has finished
+		try (RunMetrics.Phase after = second.startPhase("after");) {
+			assertFalse(after.isSharedProcess());
+		}
+
+		StringWriter output = new StringWriter();
+		first.writeReport(output);
+		String report = output.toString();
+		assertTrue(report, report.contains("\"sharedProcess\" : true"));
+		// Only the phase that ran alone reports the heap figures
+		assertEquals(2, report.split("\"peakHeapBytes\"").length);
+
+		// Block phases in the same run do not share the process
+		RunMetrics nested = new RunMetrics("nested");
+		try (RunMetrics.Phase outer = nested.startPhase("outer");
+				RunMetrics.Phase inner = nested.startPhase("inner");) {
+			assertFalse(outer.isSharedProcess());
+			assertFalse(inner.isSharedProcess());
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public final void testStartTwice() throws Exception {
+		RunMetrics metrics = new RunMetrics("test");
+		try (RunMetrics.Phase phase = metrics.startPhase("block");) {
+			metrics.startPhase("block");
+		}
+	}
+}
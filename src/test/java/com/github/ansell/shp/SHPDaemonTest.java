@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests for {@link SHPDaemon}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPDaemonTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private SHPDaemon daemon;
+
+	private HttpServer server;
+
+	private CompletableFuture<Void> stopped;
+
+	@Before
+	public void setUp() throws Exception {
+		Map<String, BatchRunner.Program> programs = new HashMap<>();
+		programs.put("succeed", args -> {
+		});
+		programs.put("fail", args -> {
+			throw new IllegalArgumentException("Expected failure: " + String.join(" ", args));
+		});
+		programs.put("block", args -> release.await());
+		programs.put("print", args -> System.out.println("Printed: " + String.join(" ", args)));
+		daemon = new SHPDaemon(2, 2, programs, tempDir.newFolder("logs").toPath(), 2);
+		server = daemon.start(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		stopped = CompletableFuture.runAsync(() -> {
+			try {
+				daemon.awaitShutdown(server);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		release.countDown();
+		daemon.requestShutdown();
+		stopped.get(1, TimeUnit.MINUTES);
+	}
+
+	@Test
+	public final void testSubmitAndStatus() throws Exception {
+		Response submitted = send("POST", "/jobs/succeed?wait=true", "application/json", "[\"--input\", \"a.shp\"]",
+				null);
+		assertEquals(200, submitted.status);
+		assertEquals("succeeded", submitted.body.get("status"));
+		assertEquals("succeed", submitted.body.get("type"));
+
+		Response status = send("GET", "/jobs/" + submitted.body.get("id"), null, null, null);
+		assertEquals(200, status.status);
+		assertEquals("succeeded", status.body.get("status"));
+
+		Response failed = send("POST", "/jobs/fail?wait=true", "application/json; charset=UTF-8", "[\"bad\"]", null);
+		assertEquals(500, failed.status);
+		assertEquals("failed", failed.body.get("status"));
+		assertTrue(failed.body.toString(), failed.body.get("message").toString().contains("Expected failure: bad"));
+
+		assertEquals(404, send("GET", "/jobs/999", null, null, null).status);
+		assertEquals(404, send("POST", "/jobs/unknown", "application/json", "[]", null).status);
+		assertEquals(400, send("POST", "/jobs/succeed", "application/json", "{}", null).status);
+	}
+
+	@Test
+	public final void testWaitDoesNotBlockStatus() throws Exception {
+		CompletableFuture<Response> waiting = CompletableFuture.supplyAsync(() -> {
+			try {
+				return send("POST", "/jobs/block?wait=true", "application/json", "[]", null);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		});
+		// The status of the waiting job can be read while the submission waits
+		Response status = null;
+		for (int i = 0; i < 100; i++) {
+			status = send("GET", "/jobs/1", null, null, null);
+			if (status.status == 200 && "running".equals(status.body.get("status"))) {
+				break;
+			}
+			Thread.sleep(50);
+		}
+		assertEquals(200, status.status);
+		assertEquals("running", status.body.get("status"));
+		assertFalse(waiting.isDone());
+
+		release.countDown();
+		Response finished = waiting.get(1, TimeUnit.MINUTES);
+		assertEquals(200, finished.status);
+		assertEquals("succeeded", finished.body.get("status"));
+	}
+
+	@Test
+	public final void testOldestFinishedJobsAreForgotten() throws Exception {
+		Response blocked = send("POST", "/jobs/block", "application/json", "[]", null);
+		assertEquals(202, blocked.status);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(200, send("POST", "/jobs/succeed?wait=true", "application/json", "[]", null).status);
+		}
+		// The running job is the eldest, but only finished jobs are forgotten
+		assertEquals(200, send("GET", "/jobs/1", null, null, null).status);
+		assertEquals(404, send("GET", "/jobs/2", null, null, null).status);
+		assertEquals(404, send("GET", "/jobs/3", null, null, null).status);
+		assertEquals(200, send("GET", "/jobs/4", null, null, null).status);
+	}
+
+	@Test
+	public final void testJobLog() throws Exception {
+		Response first = send("POST", "/jobs/print?wait=true", "application/json", "[\"first\"]", null);
+		Response second = send("POST", "/jobs/print?wait=true", "application/json", "[\"second\"]", null);
+		assertEquals(200, first.status);
+		assertEquals(200, second.status);
+		assertEquals("Printed: first",
+				new String(Files.readAllBytes(Paths.get(first.body.get("log").toString())), StandardCharsets.UTF_8)
+						.trim());
+		assertEquals("Printed: second",
+				new String(Files.readAllBytes(Paths.get(second.body.get("log").toString())), StandardCharsets.UTF_8)
+						.trim());
+
+		Response failed = send("POST", "/jobs/fail?wait=true", "application/json", "[\"bad\"]", null);
+		assertTrue(new String(Files.readAllBytes(Paths.get(failed.body.get("log").toString())),
+				StandardCharsets.UTF_8).contains("Expected failure: bad"));
+	}
+
+	@Test
+	public final void testRejectsBrowserRequests() throws Exception {
+		assertEquals(415, send("POST", "/jobs/succeed", "text/plain", "[]", null).status);
+		assertEquals(415, send("POST", "/jobs/succeed", null, "[]", null).status);
+		assertEquals(403,
+				send("POST", "/jobs/succeed", "application/json", "[]", "http://example.com").status);
+		assertEquals(403, send("GET", "/jobs/1", null, null, "http://example.com").status);
+		assertEquals(415, send("POST", "/shutdown", "application/x-www-form-urlencoded", "", null).status);
+		assertEquals(403, send("POST", "/shutdown", "application/json", "", "http://example.com").status);
+		assertFalse(stopped.isDone());
+	}
+
+	@Test
+	public final void testShutdown() throws Exception {
+		assertEquals(405, send("GET", "/shutdown", null, null, null).status);
+		Response response = send("POST", "/shutdown", "application/json", "", null);
+		assertEquals(200, response.status);
+		assertEquals("shutting down", response.body.get("status"));
+		stopped.get(1, TimeUnit.MINUTES);
+	}
+
+	@Test
+	public final void testInvalidQueueSize() throws Exception {
+		try {
+			SHPDaemon.main("--queue-size", "0");
+			fail("Did not find expected exception");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Queue size must be at least 1"));
+		}
+	}
+
+	/**
+	 * Send a request over a plain socket, as HttpURLConnection does not allow
+	 * the Origin header to be set.
+	 */
+	private Response send(String method, String path, String contentType, String body, String origin)
+			throws IOException {
+		byte[] content = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+		StringBuilder request = new StringBuilder();
+		request.append(method).append(" ").append(path).append(" HTTP/1.1\r\n");
+		request.append("Host: localhost\r\n");
+		request.append("Connection: close\r\n");
+		if (contentType != null) {
+			request.append("Content-Type: ").append(contentType).append("\r\n");
+		}
+		if (origin != null) {
+			request.append("Origin: ").append(origin).append("\r\n");
+		}
+		request.append("Content-Length: ").append(content.length).append("\r\n\r\n");
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getAddress().getPort());) {
+			OutputStream out = socket.getOutputStream();
+			out.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+			out.write(content);
+			out.flush();
+			String[] response = new String(IOUtils.toByteArray(socket.getInputStream()), StandardCharsets.UTF_8)
+					.split("\r\n\r\n", 2);
+			Response result = new Response();
+			result.status = Integer.parseInt(response[0].split(" ")[1]);
+			@SuppressWarnings("unchecked")
+			Map<String, Object> responseBody = mapper.readValue(response[1], Map.class);
+			result.body = responseBody;
+			return result;
+		}
+	}
+
+	private static final class Response {
+		private int status;
+		private Map<String, Object> body;
+	}
+}
@@ -5,7 +5,15 @@ package com.github.ansell.shp;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Stream;
 
 import org.junit.Rule;
 import org.junit.jupiter.api.AfterEach;
@@ -14,6 +22,7 @@ import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.migrationsupport.rules.EnableRuleMigrationSupport;
 import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Point;
 
 /**
  * Tests for SHPDump
@@ -52,6 +61,165 @@ class SHPDumpTest {
 		SHPDump.main("--help");
 	}
 
+	/**
+	 * Write a shapefile with points along the diagonal from (0,0) to (9,9), with
+	 * an empty NOTE for the odd points.
+	 */
+	private Path writeInput() throws Exception {
+		TestFeatures features = TestFeatures.create("points", "the_geom", Point.class, "NAME", String.class,
+				"COUNT", Integer.class, "NOTE", String.class);
+		for (int i = 0; i < 10; i++) {
+			features.add(null, TestFeatures.point(i, i), "point" + i, i, i % 2 == 0 ? "even" : "");
+		}
+		return features.writeShapefile(tempDir.newFolder("input").toPath());
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.github.ansell.shp.SHPDump#main(java.lang.String[])}.
+	 */
+	@Test
+	final void testMainBoundingBox() throws Exception {
+		Path inputPath = writeInput();
+		SHPDump.main("--input", inputPath.toString(), "--output", testDir.toString(), "--prefix", "bbox", "--bbox",
+				"1.5,1.5,4.5,4.5");
+
+		List<String> lines = Files.readAllLines(testDir.resolve("bbox.csv"), StandardCharsets.UTF_8);
+		assertEquals(4, lines.size(), lines.toString());
+		assertTrue(lines.get(1).contains("point2"), lines.toString());
+		assertTrue(lines.get(2).contains("point3"), lines.toString());
+		assertTrue(lines.get(3).contains("point4"), lines.toString());
+		assertTrue(Files.exists(SHPUtils.getSiblingFile(inputPath, "qix")), "Spatial index was not created");
+		assertTrue(Files.exists(testDir.resolve("bbox.png")));
+		assertTrue(Files.isDirectory(testDir.resolve("bbox-points-dump")));
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.github.ansell.shp.SHPDump#main(java.lang.String[])}.
+	 */
+	@Test
+	final void testMainStreamingTiledRender() throws Exception {
+		Path inputPath = writeInput();
+		SHPDump.main("--input", inputPath.toString(), "--output", testDir.toString(), "--prefix", "tiled",
+				"--streaming", "true", "--render-threads", "2", "--resolution", "64");
+
+		assertEquals(11, Files.readAllLines(testDir.resolve("tiled.csv"), StandardCharsets.UTF_8).size());
+		assertTrue(Files.size(testDir.resolve("tiled.png")) > 0);
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.github.ansell.shp.SHPDump#main(java.lang.String[])}.
+	 */
+	@Test
+	final void testMainResume() throws Exception {
+		Path inputPath = writeInput();
+		Path uninterruptedDir = tempDir.newFolder("uninterrupted").toPath();
+		SHPDump.main("--input", inputPath.toString(), "--output", uninterruptedDir.toString(), "--prefix",
+				"resume");
+		assertFalse(Files.exists(uninterruptedDir.resolve("resume-Checkpoint.properties")));
+
+		// An existing zip file stops the run after the feature loop
+		Files.createFile(testDir.resolve("resume-points-dump.zip"));
+		assertThrows(FileAlreadyExistsException.class, () -> SHPDump.main("--input", inputPath.toString(),
+				"--output", testDir.toString(), "--prefix", "resume", "--checkpoint-interval", "2"));
+
+		// Rewind the checkpoint to the state after a failure part of the way
+		// through the feature loop, where the CSV has rows after the last
+		// checkpoint and none of the phases are complete
+		Path checkpointPath = testDir.resolve("resume-Checkpoint.properties");
+		byte[] expectedCsv = Files.readAllBytes(uninterruptedDir.resolve("resume.csv"));
+		int csvBytes = 0;
+		for (int lines = 0; lines < 5; csvBytes++) {
+			if (expectedCsv[csvBytes] == '\n') {
+				lines++;
+			}
+		}
+		Properties properties = new Properties();
+		try (Reader reader = Files.newBufferedReader(checkpointPath, StandardCharsets.UTF_8);) {
+			properties.load(reader);
+		}
+		properties.setProperty("records", "4");
+		properties.setProperty("csvBytes", Integer.toString(csvBytes));
+		properties.setProperty("completedPhases", "");
+		try (Writer writer = Files.newBufferedWriter(checkpointPath, StandardCharsets.UTF_8);) {
+			properties.store(writer, null);
+		}
+
+		SHPDump.main("--input", inputPath.toString(), "--output", testDir.toString(), "--prefix", "resume",
+				"--resume", "true");
+
+		assertArrayEquals(expectedCsv, Files.readAllBytes(testDir.resolve("resume.csv")));
+		assertArrayEquals(Files.readAllBytes(uninterruptedDir.resolve("resume-points-Summary.csv")),
+				Files.readAllBytes(testDir.resolve("resume-points-Summary.csv")));
+		assertTrue(Files.size(testDir.resolve("resume-points-dump.zip")) > 0);
+		assertFalse(Files.exists(checkpointPath));
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.github.ansell.shp.SHPDump#main(java.lang.String[])}.
+	 */
+	@Test
+	final void testMainWhereColumns() throws Exception {
+		Path inputPath = writeInput();
+		SHPDump.main("--input", inputPath.toString(), "--output", testDir.toString(), "--prefix", "where", "--where",
+				"COUNT > 6", "--columns", "NAME");
+
+		List<String> lines = Files.readAllLines(testDir.resolve("where.csv"), StandardCharsets.UTF_8);
+		assertEquals(4, lines.size(), lines.toString());
+		assertTrue(lines.get(0).contains("NAME"), lines.get(0));
+		assertFalse(lines.get(0).contains("COUNT"), lines.get(0));
+		assertFalse(lines.get(0).contains("NOTE"), lines.get(0));
+		assertTrue(lines.get(1).contains("point7"), lines.toString());
+		assertTrue(lines.get(3).contains("point9"), lines.toString());
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.github.ansell.shp.SHPDump#main(java.lang.String[])}.
+	 */
+	@Test
+	final void testMainRemoveIfEmptyColumns() throws Exception {
+		Path inputPath = writeInput();
+		IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+				() -> SHPDump.main("--input", inputPath.toString(), "--output", testDir.toString(), "--prefix",
+						"missing", "--columns", "NAME", "--remove-if-empty", "NOTE"));
+		assertTrue(e.getMessage().contains("NOTE"), e.getMessage());
+		assertFalse(Files.exists(testDir.resolve("missing.csv")));
+
+		SHPDump.main("--input", inputPath.toString(), "--output", testDir.toString(), "--prefix", "listed",
+				"--columns", "NAME,NOTE", "--remove-if-empty", "NOTE");
+		List<String> lines = Files.readAllLines(testDir.resolve("listed.csv"), StandardCharsets.UTF_8);
+		assertEquals(6, lines.size(), lines.toString());
+		assertTrue(lines.get(0).contains("NOTE"), lines.get(0));
+		assertFalse(lines.get(0).contains("COUNT"), lines.get(0));
+		for (String nextLine : lines.subList(1, lines.size())) {
+			assertTrue(nextLine.contains("even"), nextLine);
+		}
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.github.ansell.shp.SHPDump#main(java.lang.String[])}.
+	 */
+	@Test
+	final void testMainValidateRemoveIfEmpty() throws Exception {
+		Path inputPath = writeInput();
+		SHPDump.main("--input", inputPath.toString(), "--output", testDir.toString(), "--prefix", "validate",
+				"--validate", "true", "--remove-if-empty", "NOTE");
+
+		Path statisticsFile;
+		try (Stream<Path> files = Files.list(testDir);) {
+			statisticsFile = files.filter(p -> p.getFileName().toString().startsWith("validate-")
+					&& p.getFileName().toString().endsWith("-ValidationStatistics.csv")).findFirst().get();
+		}
+		List<String> lines = Files.readAllLines(statisticsFile, StandardCharsets.UTF_8);
+		assertTrue(lines.stream().anyMatch(l -> l.startsWith("featureCount,") && l.endsWith(",5")),
+				lines.toString());
+	}
+
 	/**
 	 * Test method for
 	 * {@link com.github.ansell.shp.SHPDump#main(java.lang.String[])}.
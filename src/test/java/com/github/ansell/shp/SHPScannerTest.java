@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Point;
+
+/**
+ * Tests for {@link SHPScanner}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPScannerTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private Path shpPath;
+
+	@Before
+	public void setUp() throws Exception {
+		TestFeatures features = TestFeatures.create("scan", "the_geom", Point.class, "NAME", String.class);
+		for (int i = 0; i < 5; i++) {
+			features.add(null, TestFeatures.point(i, i), "point " + i);
+		}
+		shpPath = features.writeShapefile(tempDir.newFolder("input").toPath());
+	}
+
+	@Test
+	public final void testScanValid() throws Exception {
+		SHPScanner scanner = new SHPScanner(shpPath).scan();
+		assertEquals(scanner.getProblems().toString(), 0, scanner.getProblemCount());
+		assertEquals(5, scanner.getShpRecordCount());
+		assertEquals(5, scanner.getShxRecordCount());
+		assertEquals(5, scanner.getDbfRecordCount());
+	}
+
+	@Test
+	public final void testScanTruncatedIndex() throws Exception {
+		try (FileChannel shx = FileChannel.open(SHPUtils.getSiblingFile(shpPath, "shx"), StandardOpenOption.WRITE);) {
+			shx.truncate(50);
+		}
+		SHPScanner scanner = new SHPScanner(shpPath).scan();
+		// The .shp and .dbf files are still scanned
+		assertEquals(5, scanner.getShpRecordCount());
+		assertEquals(5, scanner.getDbfRecordCount());
+		assertEquals(-1, scanner.getShxRecordCount());
+		assertEquals(scanner.getProblems().toString(), 1, scanner.getProblemCount());
+		SHPScanner.Problem problem = scanner.getProblems().get(0);
+		assertTrue(problem.getFile(), problem.getFile().endsWith(".shx"));
+		assertTrue(problem.getMessage(), problem.getMessage().startsWith("Could not read header"));
+
+		StringWriter output = new StringWriter();
+		scanner.writeProblems(output);
+		assertTrue(output.toString(), output.toString().contains("Could not read header"));
+	}
+}
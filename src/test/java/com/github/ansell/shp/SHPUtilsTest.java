@@ -77,6 +77,25 @@ public class SHPUtilsTest {
 		assertFalse(nextSchema == clonedSchema);
 	}
 
+	/**
+	 * Test method for
+	 * {@link com.github.ansell.shp.SHPUtils#parseBoundingBox(java.lang.String)}.
+	 */
+	@Test
+	public final void testParseBoundingBox() {
+		assertArrayEquals(new double[] { 150.5, -34.1, 151.25, -33.5 },
+				SHPUtils.parseBoundingBox("150.5, -34.1,151.25,-33.5"), 0.0);
+	}
+
+	/**
+	 * Test method for
+	 * {@link com.github.ansell.shp.SHPUtils#parseBoundingBox(java.lang.String)}.
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public final void testParseBoundingBoxInverted() {
+		SHPUtils.parseBoundingBox("151.25,-33.5,150.5,-34.1");
+	}
+
 	/**
 	 * Test method for
 	 * {@link com.github.ansell.shp.SHPUtils#changeSchemaName(org.opengis.feature.simple.SimpleFeatureType, org.opengis.feature.type.Name)}.
@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.geotools.data.FileDataStore;
+import org.geotools.data.FileDataStoreFinder;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Tests for {@link SHPZipWriter}, comparing the shapefile in the archive with
+ * the shapefile written by the GeoTools shapefile writer for the same
+ * features.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SHPZipWriterTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private TestFeatures features;
+
+	@Before
+	public void setUp() throws Exception {
+		features = TestFeatures.create("zipped", "the_geom", Point.class, "NAME", String.class, "COUNT",
+				Integer.class, "AREA", Double.class);
+		for (int i = 0; i < 25; i++) {
+			features.add(null, TestFeatures.point(i * 0.5, -i), "name " + i, i * 7, i * 1.25);
+		}
+	}
+
+	@Test
+	public final void testMatchesShapefileDumper() throws Exception {
+		Path expectedPath = features.writeShapefile(tempDir.newFolder("expected").toPath());
+
+		Path zipPath = tempDir.newFolder("zip").toPath().resolve("zipped.zip");
+		// More than one thread to use the parallel archive writer
+		assertTrue(SHPUtils.writeShapefileZip(features.getCollection(), zipPath, 2));
+
+		Path actualDir = tempDir.newFolder("actual").toPath();
+		List<String> entryNames = new ArrayList<>();
+		try (ZipFile zip = new ZipFile(zipPath.toFile());) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while (entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				entryNames.add(entry.getName());
+				try (InputStream input = zip.getInputStream(entry);) {
+					Files.copy(input, actualDir.resolve(entry.getName()));
+				}
+			}
+		}
+		assertTrue(entryNames.toString(), entryNames.contains("zipped.shp"));
+		assertTrue(entryNames.toString(), entryNames.contains("zipped.shx"));
+		assertTrue(entryNames.toString(), entryNames.contains("zipped.dbf"));
+		assertTrue(entryNames.toString(), entryNames.contains("zipped.cpg"));
+		// The index is the same for the same geometries
+		assertArrayEquals(Files.readAllBytes(SHPUtils.getSiblingFile(expectedPath, "shx")),
+				Files.readAllBytes(actualDir.resolve("zipped.shx")));
+
+		List<SimpleFeature> expected = readAll(expectedPath);
+		List<SimpleFeature> actual = readAll(actualDir.resolve("zipped.shp"));
+		assertEquals(25, expected.size());
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			SimpleFeature expectedFeature = expected.get(i);
+			SimpleFeature actualFeature = actual.get(i);
+			assertEquals(expectedFeature.getAttributeCount(), actualFeature.getAttributeCount());
+			for (int j = 0; j < expectedFeature.getAttributeCount(); j++) {
+				Object expectedValue = expectedFeature.getAttribute(j);
+				Object actualValue = actualFeature.getAttribute(j);
+				if (expectedValue instanceof Geometry) {
+					assertTrue(i + " " + actualValue, ((Geometry) expectedValue).equalsExact((Geometry) actualValue));
+				} else {
+					assertEquals(i + " attribute " + j, expectedValue, actualValue);
+				}
+			}
+		}
+	}
+
+	private static List<SimpleFeature> readAll(Path shpPath) throws Exception {
+		List<SimpleFeature> result = new ArrayList<>();
+		FileDataStore store = FileDataStoreFinder.getDataStore(shpPath.toFile());
+		try (SimpleFeatureIterator iterator = store.getFeatureSource().getFeatures().features();) {
+			while (iterator.hasNext()) {
+				result.add(iterator.next());
+			}
+		} finally {
+			store.dispose();
+		}
+		return result;
+	}
+}
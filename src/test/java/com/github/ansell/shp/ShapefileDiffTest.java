@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Point;
+
+/**
+ * Tests for {@link ShapefileDiff} and {@link SHPDiff}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class ShapefileDiffTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private Path oldPath;
+	private Path newPath;
+
+	@Before
+	public void setUp() throws Exception {
+		oldPath = writeShapefile("old", new Object[][] { { 1, "one", 1.0 }, { 2, "two", 2.0 }, { 3, "three", 3.0 },
+				{ 4, "four", 4.0 } });
+		// Record 2 has a new name, record 3 has moved, record 4 was removed and
+		// record 5 was added, and the records are in a different order
+		newPath = writeShapefile("new", new Object[][] { { 1, "one", 1.0 }, { 5, "five", 5.0 }, { 2, "TWO", 2.0 },
+				{ 3, "three", 3.5 } });
+	}
+
+	private Path writeShapefile(String name, Object[][] rows) throws Exception {
+		TestFeatures features = TestFeatures.create(name, "the_geom", Point.class, "ID", Integer.class, "NAME",
+				String.class);
+		for (Object[] nextRow : rows) {
+			double x = (Double) nextRow[2];
+			features.add(null, TestFeatures.point(x, x), nextRow[0], nextRow[1]);
+		}
+		return features.writeShapefile(tempDir.newFolder(name).toPath());
+	}
+
+	@Test
+	public final void testCompareByKey() throws Exception {
+		StringWriter changes = new StringWriter();
+		ShapefileDiff diff = new ShapefileDiff(oldPath, newPath, "ID", 2).compare(changes);
+		assertEquals(1, diff.getUnchangedCount());
+		assertEquals(2, diff.getModifiedCount());
+		assertEquals(1, diff.getAddedCount());
+		assertEquals(1, diff.getRemovedCount());
+		assertEquals(1, diff.getGeometryChangeCount());
+		assertEquals(1, diff.getFieldChangeCount("NAME"));
+		assertEquals(0, diff.getFieldChangeCount("ID"));
+		assertArrayEquals(new int[] { 1 }, diff.getAddedRecords());
+		assertArrayEquals(new int[] { 2, 3 }, diff.getModifiedRecords());
+		assertArrayEquals(new int[] { 3 }, diff.getRemovedRecords());
+
+		String output = changes.toString();
+		assertTrue(output, output.startsWith("change,key,oldRecord,newRecord,geometryChanged,changedFields"));
+		assertTrue(output, output.contains("modified,2,2,3,false,NAME"));
+		assertTrue(output, output.contains("modified,3,3,4,true,"));
+		assertTrue(output, output.contains("added,5,,2,,"));
+		assertTrue(output, output.contains("removed,4,4,,,"));
+
+		StringWriter fields = new StringWriter();
+		diff.writeFieldChanges(fields);
+		assertTrue(fields.toString(), fields.toString().contains("NAME,common,1"));
+	}
+
+	@Test
+	public final void testCompareByHash() throws Exception {
+		ShapefileDiff diff = new ShapefileDiff(oldPath, newPath, null, 1).compare(new StringWriter());
+		// Records where only the geometry or only the attributes changed are
+		// still matched
+		assertEquals(1, diff.getUnchangedCount());
+		assertEquals(2, diff.getModifiedCount());
+		assertEquals(1, diff.getAddedCount());
+		assertEquals(1, diff.getRemovedCount());
+		assertArrayEquals(new int[] { 2, 3 }, diff.getModifiedRecords());
+	}
+
+	@Test
+	public final void testCompareSame() throws Exception {
+		ShapefileDiff diff = new ShapefileDiff(oldPath, oldPath, null, 2).compare(new StringWriter());
+		assertEquals(4, diff.getUnchangedCount());
+		assertEquals(0, diff.getModifiedCount() + diff.getAddedCount() + diff.getRemovedCount());
+	}
+
+	@Test
+	public final void testCompareByHashSharedAttributes() throws Exception {
+		// Every geometry moved, and only the record with ID 3 has attributes
+		// that no other record has
+		Path sharedOld = writeShapefile("sharedOld",
+				new Object[][] { { 1, "same", 1.0 }, { 1, "same", 2.0 }, { 3, "three", 3.0 } });
+		Path sharedNew = writeShapefile("sharedNew",
+				new Object[][] { { 1, "same", 10.0 }, { 1, "same", 20.0 }, { 3, "three", 30.0 } });
+		ShapefileDiff diff = new ShapefileDiff(sharedOld, sharedNew, null, 1).compare(new StringWriter());
+		assertEquals(0, diff.getUnchangedCount());
+		assertArrayEquals(new int[] { 2 }, diff.getModifiedRecords());
+		assertArrayEquals(new int[] { 0, 1 }, diff.getAddedRecords());
+		assertArrayEquals(new int[] { 0, 1 }, diff.getRemovedRecords());
+	}
+
+	@Test
+	public final void testMissingKey() throws Exception {
+		try {
+			new ShapefileDiff(oldPath, newPath, "MISSING", 1).compare(new StringWriter());
+			fail("Did not find expected exception");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("MISSING"));
+		}
+	}
+
+	@Test
+	public final void testMain() throws Exception {
+		Path outputDir = tempDir.newFolder("output").toPath();
+		SHPDiff.main("--old", oldPath.toString(), "--new", newPath.toString(), "--output", outputDir.toString(),
+				"--key", "ID", "--threads", "2");
+		String summary = new String(Files.readAllBytes(outputDir.resolve("diff-Summary.csv")),
+				StandardCharsets.UTF_8);
+		assertTrue(summary, summary.contains("modified,2"));
+		assertTrue(Files.exists(outputDir.resolve("diff-Changes.csv")));
+		assertTrue(Files.exists(outputDir.resolve("diff-FieldChanges.csv")));
+		assertTrue(Files.exists(TestFeatures.findShapefile(outputDir.resolve("diff-changes"))));
+	}
+
+	@Test
+	public final void testHash() throws Exception {
+		ByteBuffer buffer = ByteBuffer.wrap("  abcdefghij  abcdefghij".getBytes(StandardCharsets.US_ASCII))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(RecordHashes.hash(buffer, 2, 12), RecordHashes.hash(buffer, 14, 24));
+		assertNotEquals(RecordHashes.hash(buffer, 2, 12), RecordHashes.hash(buffer, 2, 11));
+		assertNotEquals(RecordHashes.hash(buffer, 0, 0), RecordHashes.hash(buffer, 0, 1));
+	}
+
+	@Test
+	public final void testFieldPadding() throws Exception {
+		DBFHeader.Field character = new DBFHeader.Field("NAME", 'C', 0, 4, 0);
+		DBFHeader.Field number = new DBFHeader.Field("COUNT", 'N', 0, 4, 0);
+		ByteBuffer trailing = ByteBuffer.wrap("12  ".getBytes(StandardCharsets.US_ASCII));
+		ByteBuffer nulls = ByteBuffer.wrap(new byte[] { '1', '2', 0, 0 });
+		ByteBuffer leading = ByteBuffer.wrap("  12".getBytes(StandardCharsets.US_ASCII));
+
+		// Only trailing padding is ignored in character fields
+		assertTrue(RecordHashes.fieldEquals(character, trailing, 0, character, nulls, 0));
+		assertEquals(RecordHashes.hashField(character, trailing, 0), RecordHashes.hashField(character, nulls, 0));
+		assertFalse(RecordHashes.fieldEquals(character, trailing, 0, character, leading, 0));
+		assertNotEquals(RecordHashes.hashField(character, trailing, 0),
+				RecordHashes.hashField(character, leading, 0));
+
+		// Numbers may be aligned either way
+		assertTrue(RecordHashes.fieldEquals(number, trailing, 0, number, leading, 0));
+		assertEquals(RecordHashes.hashField(number, trailing, 0), RecordHashes.hashField(number, leading, 0));
+	}
+}
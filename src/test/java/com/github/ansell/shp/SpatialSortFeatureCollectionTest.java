@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+
+/**
+ * Tests for {@link SpatialSortFeatureCollection}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SpatialSortFeatureCollectionTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private ListFeatureCollection source;
+
+	@Before
+	public void setUp() throws Exception {
+		TestFeatures features = TestFeatures.create("points", "the_geom", Point.class, "NAME", String.class, "COUNT",
+				Integer.class, "AREA", Double.class, "CREATED", Date.class);
+		Random random = new Random(42);
+		for (int i = 0; i < 500; i++) {
+			features.add("point." + i, TestFeatures.point(random.nextInt(50), random.nextInt(50)), "name " + i, i,
+					i % 3 == 0 ? null : i * 1.5, new Date(86400000L * i));
+		}
+		source = features.getCollection();
+	}
+
+	@Test
+	public final void testSortInMemory() throws Exception {
+		try (SpatialSortFeatureCollection sorted = new SpatialSortFeatureCollection(source,
+				tempDir.getRoot().toPath(), 64 * 1024 * 1024);) {
+			List<SimpleFeature> features = readAll(sorted);
+			assertEquals(0, sorted.getRunCount());
+			assertEquals(0, sorted.getSpilledBytes());
+			assertSorted(features);
+		}
+	}
+
+	@Test
+	public final void testSortWithSpills() throws Exception {
+		Path runDir = tempDir.newFolder("runs").toPath();
+		List<String> expectedIds = new ArrayList<>();
+		try (SpatialSortFeatureCollection sorted = new SpatialSortFeatureCollection(source,
+				tempDir.getRoot().toPath(), 64 * 1024 * 1024);) {
+			for (SimpleFeature nextFeature : readAll(sorted)) {
+				expectedIds.add(nextFeature.getID());
+			}
+		}
+
+		// A small budget gives more runs than are merged at once
+		try (SpatialSortFeatureCollection sorted = new SpatialSortFeatureCollection(source, runDir, 256);) {
+			List<SimpleFeature> features = readAll(sorted);
+			assertTrue(sorted.getRunCount() > 1);
+			assertTrue(sorted.getRunCount() <= SpatialSortFeatureCollection.MERGE_FACTOR);
+			assertTrue(sorted.getSpilledBytes() > 0);
+			assertSorted(features);
+			List<String> actualIds = new ArrayList<>();
+			for (SimpleFeature nextFeature : features) {
+				actualIds.add(nextFeature.getID());
+			}
+			assertEquals(expectedIds, actualIds);
+			// A second iteration merges the same runs again
+			assertEquals(500, readAll(sorted).size());
+		}
+		try (Stream<Path> runs = Files.list(runDir);) {
+			assertEquals(0, runs.count());
+		}
+	}
+
+	private static List<SimpleFeature> readAll(SpatialSortFeatureCollection sorted) {
+		List<SimpleFeature> result = new ArrayList<>();
+		try (SimpleFeatureIterator iterator = sorted.features();) {
+			while (iterator.hasNext()) {
+				result.add(iterator.next());
+			}
+		}
+		return result;
+	}
+
+	private void assertSorted(List<SimpleFeature> features) {
+		assertEquals(500, features.size());
+		HilbertCurve curve = new HilbertCurve(source.getBounds());
+		long previousIndex = -1;
+		int previousNumber = -1;
+		for (SimpleFeature nextFeature : features) {
+			Point point = (Point) nextFeature.getDefaultGeometry();
+			long index = curve.index(point.getX(), point.getY(), point.getX(), point.getY()) & 0xFFFFFFFFL;
+			int number = (Integer) nextFeature.getAttribute("COUNT");
+			assertTrue(index >= previousIndex);
+			if (index == previousIndex) {
+				// Features at the same position keep their original order
+				assertTrue(number > previousNumber);
+			}
+			assertEquals("point." + number, nextFeature.getID());
+			assertEquals("name " + number, nextFeature.getAttribute("NAME"));
+			assertEquals(number % 3 == 0 ? null : number * 1.5, nextFeature.getAttribute("AREA"));
+			assertEquals(new Date(86400000L * number), nextFeature.getAttribute("CREATED"));
+			previousIndex = index;
+			previousNumber = number;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.NameImpl;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Point;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Tests for {@link StreamingFeatureCollection}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class StreamingFeatureCollectionTest {
+
+	private SimpleFeatureType schema;
+	private SimpleFeatureType outputSchema;
+	private ListFeatureCollection source;
+
+	@Before
+	public void setUp() throws Exception {
+		TestFeatures features = TestFeatures.create("source schema", "name", String.class).add("1", "first")
+				.add("2", " ").add("3", "third");
+		schema = features.getSchema();
+		outputSchema = SHPUtils.changeSchemaName(schema, new NameImpl("sourceschema"));
+		source = features.getCollection();
+	}
+
+	@Test
+	public final void testUnfiltered() {
+		StreamingFeatureCollection collection = new StreamingFeatureCollection(source, outputSchema,
+				Collections.emptySet());
+		assertEquals(3, collection.size());
+		assertEquals(outputSchema, collection.getSchema());
+	}
+
+	@Test
+	public final void testFilteredIsReIterable() {
+		StreamingFeatureCollection collection = new StreamingFeatureCollection(source, outputSchema,
+				Collections.singleton("name"));
+		for (int i = 0; i < 2; i++) {
+			int count = 0;
+			try (SimpleFeatureIterator iterator = collection.features();) {
+				while (iterator.hasNext()) {
+					SimpleFeature next = iterator.next();
+					assertEquals(outputSchema, next.getFeatureType());
+					assertNotEquals(" ", next.getAttribute("name"));
+					count++;
+				}
+			}
+			assertEquals(2, count);
+		}
+		assertEquals(2, collection.size());
+	}
+
+	@Test
+	public final void testFilteredBounds() {
+		TestFeatures features = TestFeatures.create("bounds", "the_geom", Point.class, "name", String.class)
+				.add("1", TestFeatures.point(0, 0), "first").add("2", TestFeatures.point(100, 100), " ")
+				.add("3", TestFeatures.point(10, 5), "third");
+		StreamingFeatureCollection filtered = new StreamingFeatureCollection(features.getCollection(),
+				features.getSchema(), Collections.singleton("name"));
+		for (int i = 0; i < 2; i++) {
+			ReferencedEnvelope bounds = filtered.getBounds();
+			assertEquals(0, bounds.getMinX(), 0.0);
+			assertEquals(0, bounds.getMinY(), 0.0);
+			assertEquals(10, bounds.getMaxX(), 0.0);
+			assertEquals(5, bounds.getMaxY(), 0.0);
+		}
+
+		StreamingFeatureCollection unfiltered = new StreamingFeatureCollection(features.getCollection(),
+				features.getSchema(), Collections.emptySet());
+		assertEquals(100, unfiltered.getBounds().getMaxX(), 0.0);
+	}
+}
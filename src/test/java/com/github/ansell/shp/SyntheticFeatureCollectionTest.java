@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.feature.simple.SimpleFeature;
+
+import com.github.ansell.shp.SyntheticFeatureCollection.Distribution;
+import com.github.ansell.shp.SyntheticFeatureCollection.GeometryKind;
+
+/**
+ * Tests for {@link SyntheticFeatureCollection}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class SyntheticFeatureCollectionTest {
+
+	private static List<SimpleFeature> readAll(SyntheticFeatureCollection collection) {
+		List<SimpleFeature> result = new ArrayList<>();
+		try (SimpleFeatureIterator iterator = collection.features();) {
+			while (iterator.hasNext()) {
+				result.add(iterator.next());
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public final void testSameSeedGivesSameFeatures() {
+		List<SimpleFeature> first = readAll(new SyntheticFeatureCollection("test", 42L, 50, GeometryKind.POLYGON, 8,
+				20, 10, 0.2, Distribution.CLUSTERED, 0.1));
+		List<SimpleFeature> second = readAll(new SyntheticFeatureCollection("test", 42L, 50, GeometryKind.POLYGON,
+				8, 20, 10, 0.2, Distribution.CLUSTERED, 0.1));
+		assertEquals(50, first.size());
+		for (int i = 0; i < first.size(); i++) {
+			assertEquals(first.get(i).getID(), second.get(i).getID());
+			assertEquals(first.get(i).getAttributes(), second.get(i).getAttributes());
+		}
+	}
+
+	@Test
+	public final void testDifferentSeedGivesDifferentFeatures() {
+		List<SimpleFeature> first = readAll(new SyntheticFeatureCollection("test", 1L, 10, GeometryKind.POINT, 1, 5,
+				10, 0.0, Distribution.UNIFORM, 0.0));
+		List<SimpleFeature> second = readAll(new SyntheticFeatureCollection("test", 2L, 10, GeometryKind.POINT, 1, 5,
+				10, 0.0, Distribution.UNIFORM, 0.0));
+		assertNotEquals(first.get(0).getDefaultGeometry(), second.get(0).getDefaultGeometry());
+	}
+
+	@Test
+	public final void testSchema() {
+		SyntheticFeatureCollection collection = new SyntheticFeatureCollection("test", 1L, 3, GeometryKind.POLYLINE,
+				4, SyntheticFeatureCollection.MAX_FIELDS, 12, 0.0, Distribution.GRID, 0.1);
+		// The geometry is not a DBF field
+		assertEquals(SyntheticFeatureCollection.MAX_FIELDS + 1, collection.getSchema().getAttributeCount());
+		assertEquals(Long.class,
+				collection.getSchema().getDescriptor(SyntheticFeatureCollection.ID_FIELD).getType().getBinding());
+		for (SimpleFeature feature : readAll(collection)) {
+			String value = (String) feature.getAttribute("FIELD001");
+			assertTrue(value, value.length() <= 12);
+			assertTrue(collection.getBounds().contains(((Geometry) feature.getDefaultGeometry()).getEnvelopeInternal()));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public final void testTooManyFields() {
+		new SyntheticFeatureCollection("test", 1L, 1, GeometryKind.POINT, 1, SyntheticFeatureCollection.MAX_FIELDS + 1,
+				10, 0.0, Distribution.UNIFORM, 0.0);
+	}
+
+	@Test
+	public final void testAllNull() {
+		for (SimpleFeature feature : readAll(new SyntheticFeatureCollection("test", 7L, 20, GeometryKind.POLYGON, 5,
+				9, 10, 1.0, Distribution.UNIFORM, 0.5))) {
+			assertNotNull(feature.getAttribute(SyntheticFeatureCollection.ID_FIELD));
+			assertTrue(feature.getDefaultGeometry() instanceof Polygon);
+			assertTrue(((Polygon) feature.getDefaultGeometry()).isValid());
+			for (int i = 1; i < 9; i++) {
+				assertNull(feature.getAttribute(String.format("FIELD%03d", i)));
+			}
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKTReader;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+/**
+ * Builds small in-memory feature collections, and shapefiles written from
+ * them, for the tests.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+final class TestFeatures {
+
+	private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+	private final SimpleFeatureType schema;
+	private final SimpleFeatureBuilder featureBuilder;
+	private final ListFeatureCollection collection;
+
+	private TestFeatures(SimpleFeatureType schema) {
+		this.schema = schema;
+		this.featureBuilder = new SimpleFeatureBuilder(schema);
+		this.collection = new ListFeatureCollection(schema);
+	}
+
+	/**
+	 * Create an empty collection with a new schema.
+	 *
+	 * @param typeName
+	 *            The name of the schema.
+	 * @param attributes
+	 *            Pairs of attribute names and bindings. The first geometry
+	 *            binding is used as the default geometry.
+	 * @return An empty collection with the schema.
+	 */
+	static TestFeatures create(String typeName, Object... attributes) {
+		SimpleFeatureTypeBuilder builder = new SimpleFeatureTypeBuilder();
+		builder.setName(typeName);
+		for (int i = 0; i < attributes.length; i += 2) {
+			builder.add((String) attributes[i], (Class<?>) attributes[i + 1]);
+		}
+		return new TestFeatures(builder.buildFeatureType());
+	}
+
+	/**
+	 * Build a feature with the given values and add it to the collection.
+	 *
+	 * @param id
+	 *            The feature identifier.
+	 * @param values
+	 *            The attribute values, in the order of the schema.
+	 * @return This object, to add more features.
+	 */
+	TestFeatures add(String id, Object... values) {
+		collection.add(build(id, values));
+		return this;
+	}
+
+	/**
+	 * Build a feature with the given values without adding it to the
+	 * collection.
+	 */
+	SimpleFeature build(String id, Object... values) {
+		return featureBuilder.buildFeature(id, values);
+	}
+
+	SimpleFeatureType getSchema() {
+		return schema;
+	}
+
+	ListFeatureCollection getCollection() {
+		return collection;
+	}
+
+	/**
+	 * Write the collection to a shapefile.
+	 *
+	 * @param directory
+	 *            An empty directory to write the shapefile to.
+	 * @return The path to the .shp file.
+	 * @throws IOException
+	 *             If the shapefile could not be written.
+	 */
+	Path writeShapefile(Path directory) throws IOException {
+		SHPUtils.writeShapefile(collection, directory);
+		return findShapefile(directory);
+	}
+
+	/**
+	 * Find the only .shp file in a directory.
+	 */
+	static Path findShapefile(Path directory) throws IOException {
+		try (Stream<Path> files = Files.list(directory);) {
+			List<Path> shapefiles = files.filter(p -> p.getFileName().toString().endsWith(".shp"))
+					.collect(Collectors.toList());
+			assertEquals(shapefiles.toString(), 1, shapefiles.size());
+			return shapefiles.get(0);
+		}
+	}
+
+	static GeometryFactory getGeometryFactory() {
+		return GEOMETRY_FACTORY;
+	}
+
+	static Point point(double x, double y) {
+		return GEOMETRY_FACTORY.createPoint(new Coordinate(x, y));
+	}
+
+	static Geometry wkt(String wkt) throws ParseException {
+		return new WKTReader(GEOMETRY_FACTORY).read(wkt);
+	}
+}
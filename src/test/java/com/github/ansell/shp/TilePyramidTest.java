@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.util.GeometricShapeFactory;
+
+/**
+ * Tests for {@link TilePyramid}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class TilePyramidTest {
+
+	@Rule
+	public TemporaryFolder tempDir = new TemporaryFolder();
+
+	private ListFeatureCollection source;
+
+	@Before
+	public void setUp() throws Exception {
+		source = TestFeatures.create("tiles", "the_geom", Point.class, "NAME", String.class)
+				.add("sydney", TestFeatures.point(151.2, -33.9), "sydney").add("null", null, "null").getCollection();
+	}
+
+	@Test
+	public final void testMercator() throws Exception {
+		assertEquals(TilePyramid.ORIGIN_SHIFT, TilePyramid.toMercatorX(180), 1e-6);
+		assertEquals(TilePyramid.ORIGIN_SHIFT, TilePyramid.toMercatorY(TilePyramid.MAX_LATITUDE), 1e-3);
+		assertEquals(TilePyramid.ORIGIN_SHIFT, TilePyramid.toMercatorY(90), 1e-3);
+		assertEquals(0.0, TilePyramid.toMercatorY(0), 1e-9);
+		assertEquals(-33.9, TilePyramid.toLatitude(TilePyramid.toMercatorY(-33.9)), 1e-9);
+		assertEquals(151.2, TilePyramid.toLongitude(TilePyramid.toMercatorX(151.2)), 1e-9);
+	}
+
+	@Test
+	public final void testTileBounds() throws Exception {
+		Envelope world = TilePyramid.getTileBounds(0, 0, 0);
+		assertEquals(-TilePyramid.ORIGIN_SHIFT, world.getMinX(), 1e-6);
+		assertEquals(TilePyramid.ORIGIN_SHIFT, world.getMaxY(), 1e-6);
+		assertEquals(2 * TilePyramid.ORIGIN_SHIFT / TilePyramid.TILE_SIZE, TilePyramid.getPixelSize(0), 1e-9);
+
+		// The south east quarter of the world
+		Envelope southEast = TilePyramid.getTileBounds(1, 1, 1);
+		assertEquals(0.0, southEast.getMinX(), 1e-6);
+		assertEquals(TilePyramid.ORIGIN_SHIFT, southEast.getMaxX(), 1e-6);
+		assertEquals(-TilePyramid.ORIGIN_SHIFT, southEast.getMinY(), 1e-6);
+		assertEquals(0.0, southEast.getMaxY(), 1e-6);
+	}
+
+	@Test
+	public final void testInvalidZoom() throws Exception {
+		try {
+			new TilePyramid(source.getSchema(), 3, 2, 1);
+			fail("Did not find expected exception");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().contains("3-2"));
+		}
+	}
+
+	@Test
+	public final void testRenderDirectory() throws Exception {
+		Path outputDir = tempDir.getRoot().toPath().resolve("tiles");
+		TilePyramid pyramid = new TilePyramid(source.getSchema(), 0, 3, 2).addFeatures(source);
+		assertEquals(1, pyramid.getFeatureCount());
+		assertEquals(151.2, pyramid.getGeographicBounds().getMinX(), 1e-9);
+
+		pyramid.render(TilePyramid.directorySink(outputDir));
+
+		// Only the tile containing the point is written at each zoom level
+		assertEquals(4, pyramid.getTileCount());
+		assertTrue(Files.exists(outputDir.resolve("0/0/0.png")));
+		assertTrue(Files.exists(outputDir.resolve("1/1/1.png")));
+		assertFalse(Files.exists(outputDir.resolve("1/0/0.png")));
+		assertTrue(Files.exists(outputDir.resolve("2/3/2.png")));
+		assertTrue(Files.exists(outputDir.resolve("3/7/4.png")));
+	}
+
+	@Test
+	public final void testRenderMinZoom() throws Exception {
+		Path outputDir = tempDir.getRoot().toPath().resolve("tiles");
+		TilePyramid pyramid = new TilePyramid(source.getSchema(), 2, 2, 1).addFeatures(source);
+		pyramid.render(TilePyramid.directorySink(outputDir));
+
+		assertEquals(1, pyramid.getTileCount());
+		assertFalse(Files.exists(outputDir.resolve("0")));
+		assertTrue(Files.exists(outputDir.resolve("2/3/2.png")));
+	}
+
+	@Test
+	public final void testGeneralisePerZoom() throws Exception {
+		GeometricShapeFactory shapes = new GeometricShapeFactory(TestFeatures.getGeometryFactory());
+		shapes.setCentre(new Coordinate(151.2, -33.9));
+		shapes.setSize(20.0);
+		shapes.setNumPoints(2000);
+		ListFeatureCollection circles = TestFeatures.create("tiles", "the_geom", Polygon.class, "NAME", String.class)
+				.add("circle", shapes.createCircle(), "circle").getCollection();
+		TilePyramid pyramid = new TilePyramid(circles.getSchema(), 0, 8, 2).addFeatures(circles);
+
+		// The circle is simplified further for each lower zoom level
+		long zoom0Vertices = getVertexCount(pyramid.buildIndex(0));
+		long zoom4Vertices = getVertexCount(pyramid.buildIndex(4));
+		long zoom8Vertices = getVertexCount(pyramid.buildIndex(8));
+		assertTrue(zoom0Vertices + " " + zoom4Vertices, zoom0Vertices < zoom4Vertices);
+		assertTrue(zoom4Vertices + " " + zoom8Vertices, zoom4Vertices < zoom8Vertices);
+	}
+
+	@Test
+	public final void testGeneraliseRemovesPointsInSamePixel() throws Exception {
+		ListFeatureCollection points = TestFeatures.create("tiles", "the_geom", Point.class, "NAME", String.class)
+				.add("sydney", TestFeatures.point(151.2, -33.9), "sydney")
+				.add("nearby", TestFeatures.point(151.21, -33.9), "nearby").getCollection();
+		TilePyramid pyramid = new TilePyramid(points.getSchema(), 0, 8, 1).addFeatures(points);
+
+		// The points are in the same pixel at zoom level 0 but not at zoom level 8
+		assertEquals(1, pyramid.buildIndex(0).size());
+		assertEquals(2, pyramid.buildIndex(8).size());
+
+		Path outputDir = tempDir.getRoot().toPath().resolve("tiles");
+		pyramid.render(TilePyramid.directorySink(outputDir));
+		assertTrue(Files.exists(outputDir.resolve("0/0/0.png")));
+		assertTrue(Files.exists(outputDir.resolve("8/235/153.png")));
+	}
+
+	private static long getVertexCount(STRtree index) {
+		long result = 0;
+		for (Object nextGeometry : index.query(TilePyramid.getTileBounds(0, 0, 0))) {
+			result += ((Geometry) nextGeometry).getNumPoints();
+		}
+		return result;
+	}
+
+	@Test
+	public final void testRenderDirectoryExists() throws Exception {
+		Path outputDir = tempDir.newFolder("tiles").toPath();
+		try {
+			TilePyramid.directorySink(outputDir);
+			fail("Did not find expected exception");
+		} catch (FileAlreadyExistsException e) {
+			assertTrue(e.getMessage().contains("tiles"));
+		}
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2016, Peter Ansell
+ * 
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.ansell.shp;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.geotools.data.collection.ListFeatureCollection;
+import org.geotools.data.collection.SpatialIndexFeatureSource;
+import org.geotools.data.simple.SimpleFeatureSource;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.map.FeatureLayer;
+import org.geotools.map.MapContent;
+import org.geotools.styling.SLD;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.locationtech.jts.geom.Polygon;
+import org.opengis.filter.FilterFactory2;
+
+/**
+ * Tests for {@link TiledMapImage}.
+ *
+ * @author Peter Ansell p_ansell@yahoo.com
+ */
+public class TiledMapImageTest {
+
+	private static final int WIDTH = 200;
+
+	private static final int THREADS = 3;
+
+	private ListFeatureCollection source;
+
+	private ReferencedEnvelope bounds;
+
+	private MapContent map;
+
+	@Before
+	public void setUp() throws Exception {
+		// A square in each quarter of the map, with a gap through the centre
+		source = TestFeatures.create("squares", "the_geom", Polygon.class, "NAME", String.class)
+				.add("sw", TestFeatures.wkt("POLYGON ((10 10, 40 10, 40 40, 10 40, 10 10))"), "sw")
+				.add("se", TestFeatures.wkt("POLYGON ((60 10, 90 10, 90 40, 60 40, 60 10))"), "se")
+				.add("nw", TestFeatures.wkt("POLYGON ((10 60, 40 60, 40 90, 10 90, 10 60))"), "nw")
+				.add("ne", TestFeatures.wkt("POLYGON ((60 60, 90 60, 90 90, 60 90, 60 60))"), "ne").getCollection();
+		bounds = new ReferencedEnvelope(0, 100, 0, 100, null);
+		map = new MapContent();
+		map.addLayer(new FeatureLayer(SHPUtils.getRenderSource(source, WIDTH, THREADS),
+				SLD.createPolygonStyle(Color.BLACK, Color.RED, 1.0f)));
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		map.dispose();
+	}
+
+	@Test
+	public final void testRenderSource() throws Exception {
+		SimpleFeatureSource single = SHPUtils.getRenderSource(source, WIDTH, 1);
+		assertFalse(single instanceof SpatialIndexFeatureSource);
+		assertEquals(4, single.getFeatures().size());
+
+		SimpleFeatureSource tiled = SHPUtils.getRenderSource(source, WIDTH, THREADS);
+		assertTrue(tiled instanceof SpatialIndexFeatureSource);
+		assertEquals(4, tiled.getFeatures().size());
+		FilterFactory2 filterFactory = CommonFactoryFinder.getFilterFactory2();
+		assertEquals(1, tiled.getFeatures(filterFactory.bbox(filterFactory.property("the_geom"),
+				new ReferencedEnvelope(0, 50, 0, 50, null))).size());
+
+		assertTrue(SHPUtils.isTiledRender(WIDTH, THREADS));
+		assertTrue(SHPUtils.isTiledRender(SHPUtils.MAX_SINGLE_IMAGE_WIDTH + 1, 1));
+		assertFalse(SHPUtils.isTiledRender(WIDTH, 1));
+	}
+
+	@Test
+	public final void testTiles() throws Exception {
+		try (TiledMapImage image = new TiledMapImage(map, bounds, WIDTH, WIDTH, 64, THREADS);) {
+			assertEquals(WIDTH, image.getWidth());
+			assertEquals(WIDTH, image.getHeight());
+			assertEquals(4, image.getNumXTiles());
+			assertEquals(4, image.getNumYTiles());
+			Raster raster = image.getData();
+			assertEquals(WIDTH, raster.getWidth());
+			assertEquals(WIDTH, raster.getHeight());
+			// The centre of each square, which are split over several tiles
+			assertPixel(Color.RED, raster, 50, 150);
+			assertPixel(Color.RED, raster, 150, 150);
+			assertPixel(Color.RED, raster, 50, 50);
+			assertPixel(Color.RED, raster, 150, 50);
+			// The gaps between the squares
+			assertPixel(Color.WHITE, raster, 100, 100);
+			assertPixel(Color.WHITE, raster, 5, 5);
+			assertPixel(Color.WHITE, raster, 195, 195);
+		}
+	}
+
+	@Test
+	public final void testRenderImage() throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		SHPUtils.renderImage(map, bounds, output, WIDTH, "png", THREADS, 64);
+		BufferedImage image = ImageIO.read(new ByteArrayInputStream(output.toByteArray()));
+		assertEquals(WIDTH, image.getWidth());
+		assertEquals(WIDTH, image.getHeight());
+		assertEquals(Color.RED.getRGB(), image.getRGB(50, 150));
+		assertEquals(Color.WHITE.getRGB(), image.getRGB(100, 100));
+	}
+
+	private void assertPixel(Color expected, Raster raster, int x, int y) {
+		int[] pixel = raster.getPixel(x, y, (int[]) null);
+		assertArrayEquals("Pixel " + x + "," + y,
+				new int[] { expected.getRed(), expected.getGreen(), expected.getBlue() }, pixel);
+	}
+}